@@ -1,2 +1,2 @@
 @echo off
-java -jar target\go2web-1.0-SNAPSHOT.jar %*
\ No newline at end of file
+java -XX:SharedArchiveFile=target\go2web.jsa -Xlog:cds=off,cds+dynamic=off -jar target\go2web-1.0-SNAPSHOT.jar %*
\ No newline at end of file
@@ -0,0 +1,130 @@
+package org.c8a.bench;
+
+import org.c8a.cache.CacheEntry;
+import org.c8a.cache.CacheManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Opening, reading and saving an on-disk cache of a given number of pages. Each trial starts from a freshly
+ * written cache in a temporary directory; the manager's progress lines are silenced while it runs. An open
+ * cache locks its directory, so {@link #load} opens a copy of it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CacheBenchmark {
+
+    private static final long MAX_BYTES = 1L << 30;
+
+    @Param({"100", "1000", "10000"})
+    public int entries;
+
+    private Path directory;
+    private Path copy;
+    private CacheManager cache;
+    private PrintStream stdout;
+    private String page;
+    private int next;
+    private int lookup;
+
+    @Setup
+    public void setUp() throws IOException {
+        stdout = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        page = new String(Corpus.html(20), StandardCharsets.UTF_8);
+        directory = Files.createTempDirectory("go2web-bench");
+
+        CacheManager writer = new CacheManager(directory, entries, MAX_BYTES);
+        for (next = 0; next < entries; next++) {
+            writer.addEntry(url(next), entry(next));
+        }
+        writer.saveCacheToFile();
+        writer.close();
+        copy = Files.createTempDirectory("go2web-bench");
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : files.toList()) {
+                Files.copy(file, copy.resolve(file.getFileName()));
+            }
+        }
+        cache = new CacheManager(directory, entries, MAX_BYTES);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        cache.close();
+        System.setOut(stdout);
+        delete(directory);
+        delete(copy);
+    }
+
+    private static void delete(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    /**
+     * Startup cost: mapping the indexes and catching up with the log.
+     */
+    @Benchmark
+    public CacheManager load() {
+        CacheManager opened = new CacheManager(copy, entries, MAX_BYTES);
+        opened.close();
+        return opened;
+    }
+
+    @Benchmark
+    public CacheEntry get() {
+        lookup = (lookup + 7919) % entries;
+        return cache.getEntry(url(lookup));
+    }
+
+    /**
+     * A fetch's worth of writes: one new page admitted (evicting another once full) and the log synced.
+     */
+    @Benchmark
+    public void addAndSave() {
+        cache.addEntry(url(next), entry(next));
+        next++;
+        cache.saveCacheToFile();
+    }
+
+    private static String url(int i) {
+        return "https://example.com/articles/" + i + "?utm_source=bench";
+    }
+
+    private CacheEntry entry(int i) {
+        return new CacheEntry("Article " + i + "\n\n" + page, Map.of(
+                "Content-Type", "text/html",
+                "Cache-Control", "max-age=86400",
+                "ETag", "\"" + Integer.toHexString(i) + "\""),
+                System.currentTimeMillis() + 86_400_000L);
+    }
+}
@@ -0,0 +1,57 @@
+package org.c8a.bench;
+
+import org.c8a.porcessor.ContentProcessor;
+import org.c8a.porcessor.StreamingTextExtractor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Both HTML extraction engines and the JSON reformatter, from bytes as they would arrive in a response body.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ContentBenchmark {
+
+    @Param({"small", "large"})
+    public String size;
+
+    private byte[] html;
+    private byte[] json;
+
+    @Setup
+    public void setUp() {
+        html = Corpus.html(size);
+        json = Corpus.json(size);
+    }
+
+    @Benchmark
+    public String extractReadableContent() {
+        return ContentProcessor.extractReadableContent(new ByteArrayInputStream(html), null, "https://example.com/");
+    }
+
+    @Benchmark
+    public String streamingExtraction() {
+        return StreamingTextExtractor.extract(new ByteArrayInputStream(html), null, null);
+    }
+
+    @Benchmark
+    public String formatJson() {
+        return ContentProcessor.formatJson(new ByteArrayInputStream(json));
+    }
+}
@@ -0,0 +1,176 @@
+package org.c8a.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Raw HTTP/1.1 responses for the JMH benchmarks, byte for byte as they come off the wire.
+ * <p>
+ * The built-in ones are generated from a fixed seed, so every run measures the same bytes:
+ * {@code fixed} and {@code chunked} carry a typical 30 KB article page, {@code large-html} a 2 MB page in
+ * 8 KB chunks and {@code large-json} a 2 MB API response. Any other name is read from
+ * {@code <name>.http} in the directory given by {@code -Dgo2web.bench.corpus}, e.g. a response captured
+ * with {@code curl --raw -i}, and selected with {@code -p response=<name>}.
+ */
+final class Corpus {
+
+    private static final int SMALL_PARAGRAPHS = 60;
+    private static final int LARGE_PARAGRAPHS = 4000;
+    private static final int SMALL_RECORDS = 60;
+    private static final int LARGE_RECORDS = 8000;
+
+    private static final String[] WORDS = ("the of and to in is that for it as was with be by on not he this are or "
+            + "his from at which but have an they you were her she there been one all we their has would when "
+            + "cache request response header server client stream parser socket buffer latency throughput").split(" ");
+
+    private Corpus() {
+    }
+
+    static byte[] response(String name) {
+        return switch (name) {
+            case "fixed" -> fixed(html(SMALL_PARAGRAPHS), "text/html; charset=utf-8");
+            case "chunked" -> chunked(html(SMALL_PARAGRAPHS), "text/html; charset=utf-8", 4096);
+            case "large-html" -> chunked(html(LARGE_PARAGRAPHS), "text/html; charset=utf-8", 8192);
+            case "large-json" -> fixed(json(LARGE_RECORDS), "application/json");
+            default -> recorded(name);
+        };
+    }
+
+    static byte[] html(String size) {
+        return html(size.equals("large") ? LARGE_PARAGRAPHS : SMALL_PARAGRAPHS);
+    }
+
+    static byte[] json(String size) {
+        return json(size.equals("large") ? LARGE_RECORDS : SMALL_RECORDS);
+    }
+
+    /**
+     * An article page shaped like the ones the extractor sees: scripts and styles in the head, navigation,
+     * a main article with headings, paragraphs, lists and a table, and a footer.
+     */
+    static byte[] html(int paragraphs) {
+        Random random = new Random(42);
+        StringBuilder html = new StringBuilder(paragraphs * 520);
+        html.append("<!DOCTYPE html>\n<html lang=\"en\"><head><meta charset=\"utf-8\"><title>")
+                .append(sentence(random, 6)).append("</title>\n<style>body{font-family:sans-serif}.nav li{display:inline}</style>\n")
+                .append("<script>window.dataLayer=window.dataLayer||[];function gtag(){dataLayer.push(arguments)}</script>\n")
+                .append("</head><body><header><nav class=\"nav\"><ul>");
+        for (int i = 0; i < 12; i++) {
+            html.append("<li><a href=\"/section/").append(i).append("\">").append(WORDS[random.nextInt(WORDS.length)]).append("</a></li>");
+        }
+        html.append("</ul></nav></header>\n<main><article><h1>").append(sentence(random, 8)).append("</h1>\n");
+        for (int i = 0; i < paragraphs; i++) {
+            if (i % 20 == 0) {
+                html.append("<h2>").append(sentence(random, 5)).append("</h2>\n");
+            }
+            html.append("<p>").append(sentence(random, 40)).append(" <a href=\"/ref/").append(i).append("\">")
+                    .append(sentence(random, 3)).append("</a> &amp; ").append(sentence(random, 30)).append("</p>\n");
+            if (i % 25 == 10) {
+                html.append("<ul>");
+                for (int j = 0; j < 5; j++) {
+                    html.append("<li>").append(sentence(random, 8)).append("</li>");
+                }
+                html.append("</ul>\n");
+            }
+            if (i % 50 == 30) {
+                html.append("<table><tr><th>Name</th><th>Value</th><th>Change</th></tr>");
+                for (int j = 0; j < 8; j++) {
+                    html.append("<tr><td>").append(WORDS[random.nextInt(WORDS.length)]).append("</td><td>")
+                            .append(random.nextInt(10_000)).append("</td><td>")
+                            .append(String.format(Locale.US, "%.2f%%", random.nextGaussian())).append("</td></tr>");
+                }
+                html.append("</table>\n");
+            }
+        }
+        html.append("</article></main>\n<footer><div class=\"hidden\" style=\"display:none\">")
+                .append(sentence(random, 10)).append("</div><p>").append(sentence(random, 12))
+                .append("</p></footer>\n<script src=\"/static/app.js\"></script></body></html>\n");
+        return html.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    static byte[] json(int records) {
+        Random random = new Random(42);
+        StringBuilder json = new StringBuilder(records * 260).append("{\"total\":").append(records).append(",\"items\":[");
+        for (int i = 0; i < records; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("{\"id\":").append(100_000 + i)
+                    .append(",\"title\":\"").append(sentence(random, 6)).append('"')
+                    .append(",\"score\":").append(String.format(Locale.US, "%.4f", random.nextDouble() * 100))
+                    .append(",\"active\":").append(random.nextBoolean())
+                    .append(",\"tags\":[\"").append(WORDS[random.nextInt(WORDS.length)]).append("\",\"")
+                    .append(WORDS[random.nextInt(WORDS.length)]).append("\"]")
+                    .append(",\"owner\":{\"name\":\"").append(WORDS[random.nextInt(WORDS.length)])
+                    .append("\",\"url\":\"https://example.com/u/").append(random.nextInt(1_000_000)).append("\"}")
+                    .append(",\"parent\":null}");
+        }
+        return json.append("]}").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String sentence(Random random, int words) {
+        StringBuilder sentence = new StringBuilder();
+        for (int i = 0; i < words; i++) {
+            if (i > 0) {
+                sentence.append(' ');
+            }
+            sentence.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return sentence.toString();
+    }
+
+    private static byte[] fixed(byte[] body, String contentType) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(body.length + 512);
+        out.writeBytes(head(contentType, "Content-Length: " + body.length));
+        out.writeBytes(body);
+        return out.toByteArray();
+    }
+
+    private static byte[] chunked(byte[] body, String contentType, int chunkSize) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(body.length + body.length / chunkSize * 8 + 512);
+        out.writeBytes(head(contentType, "Transfer-Encoding: chunked"));
+        for (int offset = 0; offset < body.length; offset += chunkSize) {
+            int length = Math.min(chunkSize, body.length - offset);
+            out.writeBytes((Integer.toHexString(length) + "\r\n").getBytes(StandardCharsets.US_ASCII));
+            out.write(body, offset, length);
+            out.writeBytes("\r\n".getBytes(StandardCharsets.US_ASCII));
+        }
+        out.writeBytes("0\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+        return out.toByteArray();
+    }
+
+    private static byte[] head(String contentType, String framing) {
+        return ("HTTP/1.1 200 OK\r\n"
+                + "Date: Tue, 14 May 2024 09:12:44 GMT\r\n"
+                + "Server: nginx/1.24.0\r\n"
+                + "Content-Type: " + contentType + "\r\n"
+                + framing + "\r\n"
+                + "Connection: keep-alive\r\n"
+                + "Cache-Control: public, max-age=300, stale-while-revalidate=60\r\n"
+                + "ETag: \"5f3a-61865b3e9c6c0\"\r\n"
+                + "Last-Modified: Mon, 13 May 2024 17:40:02 GMT\r\n"
+                + "Vary: Accept-Encoding\r\n"
+                + "X-Frame-Options: SAMEORIGIN\r\n"
+                + "Strict-Transport-Security: max-age=31536000; includeSubDomains\r\n"
+                + "\r\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] recorded(String name) {
+        String directory = System.getProperty("go2web.bench.corpus");
+        if (directory == null) {
+            throw new IllegalArgumentException("Unknown response '" + name + "'; set -Dgo2web.bench.corpus to a "
+                    + "directory of <name>.http files to use recorded ones");
+        }
+        try {
+            return Files.readAllBytes(Path.of(directory, name + ".http"));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
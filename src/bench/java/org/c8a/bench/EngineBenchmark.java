@@ -0,0 +1,143 @@
+package org.c8a.bench;
+
+import com.sun.net.httpserver.HttpServer;
+import org.c8a.client.ConnectionPool;
+import org.c8a.client.CustomHttpClient;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Compares the blocking client (one platform thread per in-flight request) with the NIO engine
+ * against a local server whose responses take a fixed time to arrive.
+ *
+ * Usage: mvn -Pbench exec:java -Dexec.args="[requests] [concurrency] [delayMillis]"
+ */
+public class EngineBenchmark {
+
+    private static final byte[] BODY = "<html><body>benchmark</body></html>".repeat(32).getBytes(StandardCharsets.UTF_8);
+
+    public static void main(String[] args) throws Exception {
+        int requests = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int concurrency = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int delayMillis = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+
+        HttpServer server = startServer(delayMillis);
+        String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/slow";
+        System.out.println("Local server at " + url + ", " + delayMillis + " ms per response");
+        System.out.println(requests + " requests, " + concurrency + " in flight\n");
+
+        try {
+            // Warm up both paths so class loading and JIT don't land in the first measurement
+            runBlocking(url, Math.min(requests, 200), Math.min(concurrency, 50));
+            runAsync(url, Math.min(requests, 200), Math.min(concurrency, 50));
+
+            print("blocking", runBlocking(url, requests, concurrency));
+            print("nio", runAsync(url, requests, concurrency));
+        } finally {
+            server.stop(0);
+        }
+        System.exit(0);
+    }
+
+    private static HttpServer startServer(int delayMillis) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 4096);
+        server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        server.createContext("/slow", exchange -> {
+            try {
+                Thread.sleep(delayMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            exchange.getResponseHeaders().set("Content-Type", "text/html; charset=utf-8");
+            exchange.sendResponseHeaders(200, BODY.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(BODY);
+            }
+        });
+        server.start();
+        return server;
+    }
+
+    private static Result runBlocking(String url, int requests, int concurrency) throws Exception {
+        CustomHttpClient client = new CustomHttpClient(10_000, 30_000, new ConnectionPool(concurrency, 30_000));
+        client.setVerbose(false);
+
+        long[] latencies = new long[requests];
+        List<Future<?>> futures = new ArrayList<>(requests);
+        int peakThreads;
+        long start = System.nanoTime();
+
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+        try {
+            for (int i = 0; i < requests; i++) {
+                int index = i;
+                futures.add(executor.submit(() -> {
+                    long requestStart = System.nanoTime();
+                    client.get(url);
+                    latencies[index] = System.nanoTime() - requestStart;
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            peakThreads = Thread.activeCount();
+        } finally {
+            executor.shutdown();
+        }
+
+        return new Result(requests, System.nanoTime() - start, latencies, peakThreads);
+    }
+
+    private static Result runAsync(String url, int requests, int concurrency) throws Exception {
+        CustomHttpClient client = new CustomHttpClient();
+        Semaphore inFlight = new Semaphore(concurrency);
+
+        long[] latencies = new long[requests];
+        List<CompletableFuture<?>> futures = new ArrayList<>(requests);
+        long start = System.nanoTime();
+
+        for (int i = 0; i < requests; i++) {
+            int index = i;
+            inFlight.acquire();
+            long requestStart = System.nanoTime();
+            futures.add(client.getAsync(url).whenComplete((response, error) -> {
+                latencies[index] = System.nanoTime() - requestStart;
+                inFlight.release();
+            }));
+        }
+        int peakThreads = Thread.activeCount();
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
+
+        return new Result(requests, System.nanoTime() - start, latencies, peakThreads);
+    }
+
+    private static void print(String name, Result result) {
+        long[] sorted = result.latencies().clone();
+        Arrays.sort(sorted);
+        System.out.println(String.format(Locale.US,
+                "%-9s %8.1f req/s | p50 %6.1f ms | p99 %6.1f ms | %5d threads",
+                name, result.requests() / (result.wallNanos() / 1e9),
+                percentile(sorted, 50) / 1e6, percentile(sorted, 99) / 1e6, result.threads()));
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        int index = (int) Math.ceil(p / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+
+    private record Result(int requests, long wallNanos, long[] latencies, int threads) {
+    }
+}
@@ -0,0 +1,413 @@
+package org.c8a.bench;
+
+import org.c8a.porcessor.ContentProcessor;
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.jsoup.select.Elements;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Checks that ContentProcessor extracts exactly what the select-based extractor it replaced did. The old
+ * one is kept below as the reference. Pages are generated from consecutive seeds: nested blocks and
+ * inline elements, every tag and class the extractor looks for, scripts, styles, svg and hidden elements
+ * anywhere including around titles and the body, titles outside the head, and unclosed tags for the parser
+ * to fix up. Every tenth page is a Corpus article of random length. Both the String and the streaming
+ * entry points are compared.
+ * <p>
+ * Prints the seed of every page that differs and exits with status 1 if any did.
+ * <p>
+ * Usage: mvn -Pbench compile exec:java -Dexec.mainClass=org.c8a.bench.ExtractionEquivalence
+ * -Dexec.args="[pages] [seed]"
+ */
+public class ExtractionEquivalence {
+
+    private static final String[] WORDS = ("the of and to in is that for it as was with be by on not "
+            + "cache request response header server client stream parser socket buffer latency").split(" ");
+    private static final String[] CLASSES = {
+            "content", "article", "post", "main-content", "entry-content", "post-content", "entry",
+            "article-body", "nav", "sidebar", "hidden"
+    };
+    private static final String[] IDS = {"content", "main", "article", "footer"};
+    private static final String[] BLOCKS = {
+            "div", "div", "div", "section", "main", "article", "p", "h1", "h2", "h3", "h4", "h5", "h6",
+            "ul", "ol", "table", "pre", "blockquote", "header", "footer"
+    };
+    private static final String[] INLINES = {"span", "a", "b", "em", "code", "br"};
+    private static final String[] SKIPPED = {"script", "style", "svg", "iframe", "noscript"};
+    private static final String[] SPACES = {" ", "  ", "\n", "\t", "&nbsp;", " \n  "};
+
+    public static void main(String[] args) {
+        int pages = args.length > 0 ? Integer.parseInt(args[0]) : 23_000;
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : 1;
+
+        int differing = 0;
+        for (int i = 0; i < pages; i++) {
+            Random random = new Random(seed + i);
+            String html = i % 10 == 9
+                    ? new String(Corpus.html(1 + random.nextInt(200)), StandardCharsets.UTF_8)
+                    : page(random);
+            String expected = Reference.extract(html);
+            String fromString = ContentProcessor.extractReadableContent(html);
+            String fromStream = ContentProcessor.extractReadableContent(
+                    new ByteArrayInputStream(html.getBytes(StandardCharsets.UTF_8)), "utf-8", "");
+            if (!expected.equals(fromString) || !expected.equals(fromStream)) {
+                differing++;
+                System.out.println("Seed " + (seed + i) + " differs at character "
+                        + firstDifference(expected, expected.equals(fromString) ? fromStream : fromString));
+            }
+        }
+
+        System.out.println("\n" + pages + " pages compared, " + differing + " differ");
+        if (differing > 0) {
+            System.exit(1);
+        }
+    }
+
+    private static int firstDifference(String a, String b) {
+        int i = 0;
+        while (i < a.length() && i < b.length() && a.charAt(i) == b.charAt(i)) {
+            i++;
+        }
+        return i;
+    }
+
+    private static String page(Random random) {
+        StringBuilder html = new StringBuilder(4096);
+        html.append("<!DOCTYPE html><html><head").append(random.nextInt(20) == 0 ? " hidden" : "").append(">");
+        int titles = random.nextInt(4);
+        for (int i = 0; i < titles; i++) {
+            switch (random.nextInt(5)) {
+                case 0 -> html.append("<noscript><title>").append(text(random, 4)).append("</title></noscript>");
+                case 1 -> html.append("<title hidden>").append(text(random, 4)).append("</title>");
+                default -> html.append("<title>").append(space(random)).append(text(random, 12)).append("</title>");
+            }
+        }
+        if (random.nextBoolean()) {
+            html.append("<style>p{margin:0}</style><script>var x = '<p>not text</p>';</script>");
+        }
+        html.append("</head><body").append(random.nextInt(40) == 0 ? " style=\"display:none\"" : "").append(">");
+        int children = 1 + random.nextInt(8);
+        for (int i = 0; i < children; i++) {
+            node(random, html, 0);
+        }
+        if (random.nextInt(5) == 0) {
+            html.append("<svg><title>").append(text(random, 3)).append("</title></svg>");
+        }
+        return html.append("</body></html>").toString();
+    }
+
+    private static void node(Random random, StringBuilder html, int depth) {
+        int kind = random.nextInt(depth > 6 ? 3 : 10);
+        if (kind < 3) {
+            html.append(text(random, random.nextInt(30)));
+        } else if (kind < 5) {
+            String tag = INLINES[random.nextInt(INLINES.length)];
+            if (tag.equals("br")) {
+                html.append("<br>");
+                return;
+            }
+            html.append('<').append(tag).append(attributes(random)).append('>').append(text(random, 1 + random.nextInt(6)));
+            int children = random.nextInt(3);
+            for (int i = 0; i < children; i++) {
+                node(random, html, depth + 1);
+            }
+            html.append("</").append(tag).append('>');
+        } else if (kind == 5 && random.nextInt(10) == 0) {
+            html.append("<title>").append(text(random, 3)).append("</title>");
+        } else if (kind == 5) {
+            String tag = SKIPPED[random.nextInt(SKIPPED.length)];
+            html.append('<').append(tag).append('>');
+            if (tag.equals("svg")) {
+                html.append("<title>").append(text(random, 3)).append("</title><text>").append(text(random, 5)).append("</text>");
+            } else {
+                html.append(text(random, 5));
+            }
+            html.append("</").append(tag).append('>');
+        } else {
+            String tag = BLOCKS[random.nextInt(BLOCKS.length)];
+            html.append('<').append(tag).append(attributes(random)).append('>');
+            switch (tag) {
+                case "ul", "ol" -> {
+                    int items = random.nextInt(6);
+                    for (int i = 0; i < items; i++) {
+                        html.append("<li>").append(text(random, random.nextInt(10)));
+                        if (random.nextInt(5) == 0) {
+                            node(random, html, depth + 1);
+                        }
+                        html.append(random.nextInt(4) == 0 ? "" : "</li>");
+                    }
+                }
+                case "table" -> {
+                    int rows = random.nextInt(5);
+                    for (int r = 0; r < rows; r++) {
+                        html.append("<tr>");
+                        String cell = r == 0 && random.nextBoolean() ? "th" : "td";
+                        int cells = random.nextInt(4);
+                        for (int c = 0; c < cells; c++) {
+                            html.append('<').append(cell).append('>').append(space(random))
+                                    .append(text(random, random.nextInt(4))).append("</").append(cell).append('>');
+                        }
+                        html.append("</tr>");
+                    }
+                }
+                case "pre" -> html.append("  ").append(text(random, 6)).append("\n   ").append(text(random, 4)).append('\n');
+                default -> {
+                    int children = random.nextInt(6);
+                    for (int i = 0; i < children; i++) {
+                        node(random, html, depth + 1);
+                    }
+                }
+            }
+            if (random.nextInt(8) != 0) {
+                html.append("</").append(tag).append('>');
+            }
+        }
+        if (random.nextBoolean()) {
+            html.append(space(random));
+        }
+    }
+
+    private static String attributes(Random random) {
+        return switch (random.nextInt(12)) {
+            case 0, 1 -> " class=\"" + CLASSES[random.nextInt(CLASSES.length)] + "\"";
+            case 2 -> " id=\"" + IDS[random.nextInt(IDS.length)] + "\"";
+            case 3 -> " hidden";
+            case 4 -> " style=\"display:none\"";
+            case 5 -> " style=\"color:red\"";
+            default -> "";
+        };
+    }
+
+    private static String text(Random random, int words) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < words; i++) {
+            text.append(i > 0 ? space(random) : "").append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return text.toString();
+    }
+
+    private static String space(Random random) {
+        return random.nextInt(3) == 0 ? SPACES[random.nextInt(SPACES.length)] : " ";
+    }
+
+    /**
+     * ContentProcessor's extractor as it was before PageScan.
+     */
+    private static final class Reference {
+
+        static String extract(String html) {
+            if (html == null || html.trim().isEmpty()) {
+                return "No content found";
+            }
+            try {
+                return extractFromDocument(Jsoup.parse(html));
+            } catch (Exception e) {
+                return "Error processing HTML: " + e.getMessage();
+            }
+        }
+
+        private static String extractFromDocument(Document doc) {
+            StringBuilder result = new StringBuilder();
+
+            doc.select("script, style, iframe, noscript, svg, [style*=display:none], [hidden]").remove();
+
+            String title = doc.title();
+            if (title != null && !title.trim().isEmpty()) {
+                result.append(title).append("\n");
+                result.append(String.valueOf('=').repeat(Math.min(title.length(), 40))).append("\n\n");
+            }
+
+            Element mainContent = findMainContent(doc);
+
+            if (mainContent != null) {
+                processContent(mainContent, result);
+            } else {
+                processContent(doc.body(), result);
+            }
+
+            String finalResult = result.toString().trim();
+            finalResult = finalResult.replaceAll("\n{3,}", "\n\n");
+
+            return finalResult.isEmpty() ? "Could not extract readable content" : finalResult;
+        }
+
+        private static Element findMainContent(Document doc) {
+            String[] contentSelectors = {
+                    "main", "article", "div.content", "div.article", "div.post",
+                    "div.main-content", "div#content", "div#main", "div#article",
+                    "div.entry-content", ".post-content", ".entry", ".article-body"
+            };
+
+            for (String selector : contentSelectors) {
+                Elements elements = doc.select(selector);
+                if (!elements.isEmpty()) {
+                    Element bestElement = null;
+                    int maxTextLength = 0;
+
+                    for (Element element : elements) {
+                        String text = element.text();
+                        if (text.length() > maxTextLength) {
+                            maxTextLength = text.length();
+                            bestElement = element;
+                        }
+                    }
+
+                    if (bestElement != null && maxTextLength > 100) {
+                        return bestElement;
+                    }
+                }
+            }
+
+            Elements divs = doc.select("div");
+            Element bestDiv = null;
+            int maxTextLength = 0;
+
+            for (Element div : divs) {
+                if (div.select("div").size() < 3) {
+                    String text = div.text();
+                    if (text.length() > maxTextLength) {
+                        maxTextLength = text.length();
+                        bestDiv = div;
+                    }
+                }
+            }
+
+            return (bestDiv != null && maxTextLength > 200) ? bestDiv : null;
+        }
+
+        private static void processContent(Element element, StringBuilder result) {
+            if (element == null) return;
+
+            processHeadings(element, result);
+
+            boolean foundParagraphs = processParagraphs(element, result);
+
+            processLists(element, result);
+
+            processTables(element, result);
+
+            if (!foundParagraphs && result.length() < 200) {
+                processTextDivs(element, result);
+            }
+
+            if (result.length() < 100) {
+                String text = element.text();
+                if (!text.isEmpty()) {
+                    result.append(text).append("\n");
+                }
+            }
+        }
+
+        private static void processHeadings(Element element, StringBuilder result) {
+            for (int i = 1; i <= 6; i++) {
+                Elements headings = element.select("h" + i);
+                for (Element heading : headings) {
+                    String headingText = heading.text().trim();
+                    if (!headingText.isEmpty()) {
+                        result.append(headingText).append("\n");
+                        if (i <= 2) {
+                            result.append(String.valueOf(i == 1 ? '=' : '-').repeat(Math.min(headingText.length(), 40))).append("\n");
+                        }
+                        result.append("\n");
+                    }
+                }
+            }
+        }
+
+        private static boolean processParagraphs(Element element, StringBuilder result) {
+            Elements paragraphs = element.select("p");
+            boolean foundContent = false;
+
+            for (Element paragraph : paragraphs) {
+                String paragraphText = paragraph.text().trim();
+                if (paragraphText.length() > 10) {
+                    result.append(paragraphText).append("\n\n");
+                    foundContent = true;
+                }
+            }
+
+            return foundContent;
+        }
+
+        private static void processLists(Element element, StringBuilder result) {
+            Elements unorderedLists = element.select("ul");
+            for (Element ul : unorderedLists) {
+                result.append("\n");
+                Elements items = ul.select("li");
+                for (Element item : items) {
+                    String itemText = item.text().trim();
+                    if (!itemText.isEmpty()) {
+                        result.append("• ").append(itemText).append("\n");
+                    }
+                }
+                result.append("\n");
+            }
+
+            Elements orderedLists = element.select("ol");
+            for (Element ol : orderedLists) {
+                result.append("\n");
+                Elements items = ol.select("li");
+                int i = 1;
+                for (Element item : items) {
+                    String itemText = item.text().trim();
+                    if (!itemText.isEmpty()) {
+                        result.append(i++).append(". ").append(itemText).append("\n");
+                    }
+                }
+                result.append("\n");
+            }
+        }
+
+        private static void processTables(Element element, StringBuilder result) {
+            Elements tables = element.select("table");
+            for (Element table : tables) {
+                result.append("\n");
+                Elements rows = table.select("tr");
+
+                for (Element row : rows) {
+                    Elements headerCells = row.select("th");
+                    Elements dataCells = row.select("td");
+
+                    if (!headerCells.isEmpty()) {
+                        StringBuilder headerText = new StringBuilder();
+                        for (Element cell : headerCells) {
+                            headerText.append(cell.text().trim()).append("\t");
+                        }
+                        String headerLine = headerText.toString().trim();
+                        result.append(headerLine).append("\n");
+                        result.append(String.valueOf('-').repeat(Math.min(headerLine.length(), 40))).append("\n");
+                    }
+                    else if (!dataCells.isEmpty()) {
+                        StringBuilder rowText = new StringBuilder();
+                        for (Element cell : dataCells) {
+                            rowText.append(cell.text().trim()).append("\t");
+                        }
+                        result.append(rowText.toString().trim()).append("\n");
+                    }
+                }
+                result.append("\n");
+            }
+        }
+
+        private static void processTextDivs(Element element, StringBuilder result) {
+            Set<String> processedContents = new HashSet<>();
+            Elements divs = element.select("div");
+
+            for (Element div : divs) {
+                if (div.select("p, h1, h2, h3, h4, h5, h6, ul, ol, table").isEmpty()) {
+                    String divText = div.text().trim();
+                    if (divText.length() > 40 && !processedContents.contains(divText)) {
+                        processedContents.add(divText);
+                        result.append(divText).append("\n\n");
+                    }
+                }
+            }
+        }
+    }
+}
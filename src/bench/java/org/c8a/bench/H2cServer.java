@@ -0,0 +1,689 @@
+package org.c8a.bench;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bare HTTP/2 server over cleartext TCP (h2c with prior knowledge) behind {@link MockOrigin}, since the JDK
+ * server only speaks HTTP/1.1. Its HPACK is written apart from the client's so each checks the other: requests
+ * are decoded through the static and dynamic tables and Huffman strings, with the codes rebuilt from the RFC's
+ * code lengths, and responses add their repeated fields to the dynamic table and refer to them by index after.
+ * Every stream is answered on its own thread, and DATA goes out only within the client's connection and stream
+ * windows, so a client that forgets a WINDOW_UPDATE stalls here.
+ */
+final class H2cServer implements Closeable {
+
+    record Response(int status, String contentType, byte[] body, String cacheControl) {
+    }
+
+    interface Handler {
+        Response handle(String target) throws InterruptedException;
+    }
+
+    private static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] EMPTY = new byte[0];
+
+    private static final int DATA = 0x0;
+    private static final int HEADERS = 0x1;
+    private static final int RST_STREAM = 0x3;
+    private static final int SETTINGS = 0x4;
+    private static final int PING = 0x6;
+    private static final int GOAWAY = 0x7;
+    private static final int WINDOW_UPDATE = 0x8;
+    private static final int CONTINUATION = 0x9;
+
+    private static final int FLAG_END_STREAM = 0x1;
+    private static final int FLAG_ACK = 0x1;
+    private static final int FLAG_END_HEADERS = 0x4;
+    private static final int FLAG_PADDED = 0x8;
+    private static final int FLAG_PRIORITY = 0x20;
+
+    private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+    private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+
+    private static final int MAX_FRAME_SIZE = 16_384;
+    private static final int DEFAULT_WINDOW = 65_535;
+    private static final int MAX_STREAMS = 256;
+    private static final int TABLE_SIZE = 4096;
+    private static final int ENTRY_OVERHEAD = 32;
+
+    // RFC 7541 Appendix A
+    private static final String[][] STATIC_TABLE = {
+            {":authority", ""}, {":method", "GET"}, {":method", "POST"}, {":path", "/"},
+            {":path", "/index.html"}, {":scheme", "http"}, {":scheme", "https"}, {":status", "200"},
+            {":status", "204"}, {":status", "206"}, {":status", "304"}, {":status", "400"},
+            {":status", "404"}, {":status", "500"}, {"accept-charset", ""}, {"accept-encoding", "gzip, deflate"},
+            {"accept-language", ""}, {"accept-ranges", ""}, {"accept", ""}, {"access-control-allow-origin", ""},
+            {"age", ""}, {"allow", ""}, {"authorization", ""}, {"cache-control", ""},
+            {"content-disposition", ""}, {"content-encoding", ""}, {"content-language", ""}, {"content-length", ""},
+            {"content-location", ""}, {"content-range", ""}, {"content-type", ""}, {"cookie", ""},
+            {"date", ""}, {"etag", ""}, {"expect", ""}, {"expires", ""},
+            {"from", ""}, {"host", ""}, {"if-match", ""}, {"if-modified-since", ""},
+            {"if-none-match", ""}, {"if-range", ""}, {"if-unmodified-since", ""}, {"last-modified", ""},
+            {"link", ""}, {"location", ""}, {"max-forwards", ""}, {"proxy-authenticate", ""},
+            {"proxy-authorization", ""}, {"range", ""}, {"referer", ""}, {"refresh", ""},
+            {"retry-after", ""}, {"server", ""}, {"set-cookie", ""}, {"strict-transport-security", ""},
+            {"transfer-encoding", ""}, {"user-agent", ""}, {"vary", ""}, {"via", ""},
+            {"www-authenticate", ""}
+    };
+
+    // RFC 7541 Appendix B code lengths by symbol, EOS last; the code is canonical, so the codes follow from these
+    private static final byte[] HUFFMAN_LENGTHS = {
+            13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+            28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+            6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+            5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+            13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+            7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+            15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+            6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+            20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+            24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+            22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+            21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+            26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+            19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+            20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+            26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+            30
+    };
+    private static final int EOS = 256;
+    private static final int MAX_CODE_LENGTH = 30;
+    private static final int[] HUFFMAN_CODES = new int[EOS + 1];
+    private static final int[] SYMBOLS_BY_CODE = new int[EOS + 1];
+    private static final int[] FIRST_CODE = new int[MAX_CODE_LENGTH + 1];
+    private static final int[] FIRST_SYMBOL = new int[MAX_CODE_LENGTH + 1];
+    private static final int[] CODE_COUNT = new int[MAX_CODE_LENGTH + 1];
+
+    static {
+        // Canonical: codes of one length count up in symbol order, then the next length continues one bit longer
+        int code = 0;
+        int next = 0;
+        for (int length = 1; length <= MAX_CODE_LENGTH; length++) {
+            FIRST_CODE[length] = code;
+            FIRST_SYMBOL[length] = next;
+            for (int symbol = 0; symbol <= EOS; symbol++) {
+                if (HUFFMAN_LENGTHS[symbol] == length) {
+                    HUFFMAN_CODES[symbol] = code++;
+                    SYMBOLS_BY_CODE[next++] = symbol;
+                    CODE_COUNT[length]++;
+                }
+            }
+            code <<= 1;
+        }
+    }
+
+    private final ServerSocket server;
+
+    /**
+     * Binds the port (0 for any free one); nothing is served until {@link #start}.
+     */
+    H2cServer(int port) throws IOException {
+        this.server = new ServerSocket(port, 4096, InetAddress.getLoopbackAddress());
+    }
+
+    void start(Handler handler) {
+        // Not a daemon, like the JDK server's dispatcher, so a standalone origin keeps running
+        Thread.ofPlatform().name("go2web-h2c-accept").start(() -> accept(handler));
+    }
+
+    int getPort() {
+        return server.getLocalPort();
+    }
+
+    @Override
+    public void close() {
+        try {
+            server.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private void accept(Handler handler) {
+        while (true) {
+            try {
+                Socket socket = server.accept();
+                socket.setTcpNoDelay(true);
+                Thread.ofVirtual().start(() -> new Connection(socket, handler).serve());
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private static final class Connection {
+        private final Socket socket;
+        private final Handler handler;
+
+        private final ReentrantLock writeLock = new ReentrantLock();
+        private final Encoder encoder = new Encoder(); // guarded by writeLock
+        private final Decoder decoder = new Decoder(); // reader thread only
+        private OutputStream out; // guarded by writeLock
+
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition windowOpened = lock.newCondition();
+        private final Map<Integer, StreamWindow> streamWindows = new HashMap<>(); // guarded by lock
+        private long connectionWindow = DEFAULT_WINDOW;
+        private int initialWindow = DEFAULT_WINDOW;
+        private boolean closed;
+
+        Connection(Socket socket, Handler handler) {
+            this.socket = socket;
+            this.handler = handler;
+        }
+
+        void serve() {
+            try (socket) {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 32 * 1024));
+                out = new BufferedOutputStream(socket.getOutputStream(), MAX_FRAME_SIZE + 9);
+                byte[] preface = new byte[PREFACE.length];
+                in.readFully(preface);
+                if (!Arrays.equals(preface, PREFACE)) {
+                    return;
+                }
+                byte[] settings = new byte[6];
+                putSetting(settings, 0, SETTINGS_MAX_CONCURRENT_STREAMS, MAX_STREAMS);
+                writeFrame(SETTINGS, 0, 0, settings, 0, settings.length);
+
+                ByteArrayOutputStream headerBlock = new ByteArrayOutputStream();
+                int headerStream = 0;
+                while (true) {
+                    int length = in.readUnsignedShort() << 8 | in.readUnsignedByte();
+                    int type = in.readUnsignedByte();
+                    int flags = in.readUnsignedByte();
+                    int streamId = in.readInt() & 0x7FFFFFFF;
+                    if (length > MAX_FRAME_SIZE) {
+                        throw new IOException("Frame of " + length + " bytes exceeds " + MAX_FRAME_SIZE);
+                    }
+                    byte[] payload = new byte[length];
+                    in.readFully(payload);
+
+                    switch (type) {
+                        case HEADERS -> {
+                            int offset = 0;
+                            int end = length;
+                            if ((flags & FLAG_PADDED) != 0) {
+                                offset = 1;
+                                end -= payload[0] & 0xFF;
+                            }
+                            if ((flags & FLAG_PRIORITY) != 0) {
+                                offset += 5;
+                            }
+                            headerBlock.reset();
+                            headerBlock.write(payload, offset, end - offset);
+                            headerStream = streamId;
+                            if ((flags & FLAG_END_HEADERS) != 0) {
+                                open(streamId, headerBlock.toByteArray());
+                            }
+                        }
+                        case CONTINUATION -> {
+                            headerBlock.write(payload, 0, length);
+                            if ((flags & FLAG_END_HEADERS) != 0) {
+                                open(headerStream, headerBlock.toByteArray());
+                            }
+                        }
+                        case SETTINGS -> {
+                            if ((flags & FLAG_ACK) == 0) {
+                                applySettings(payload);
+                                writeFrame(SETTINGS, FLAG_ACK, 0, EMPTY, 0, 0);
+                            }
+                        }
+                        case PING -> {
+                            if ((flags & FLAG_ACK) == 0) {
+                                writeFrame(PING, FLAG_ACK, 0, payload, 0, length);
+                            }
+                        }
+                        case WINDOW_UPDATE -> windowUpdate(streamId, readInt(payload, 0) & 0x7FFFFFFF);
+                        case RST_STREAM -> windowUpdate(streamId, -1);
+                        case DATA -> {
+                            // Request bodies are not used; hand the connection window straight back
+                            if (length > 0) {
+                                byte[] increment = new byte[4];
+                                putInt(increment, 0, length);
+                                writeFrame(WINDOW_UPDATE, 0, 0, increment, 0, 4);
+                            }
+                        }
+                        case GOAWAY -> {
+                            return;
+                        }
+                        default -> {
+                            // PRIORITY and unknown frame types carry nothing this server acts on
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                // The client closed the connection or broke the protocol; either way it is done
+            } finally {
+                lock.lock();
+                try {
+                    closed = true;
+                    windowOpened.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+
+        private void open(int streamId, byte[] block) throws IOException {
+            Map<String, String> headers = decoder.decode(block);
+            String path = headers.get(":path");
+            if (path == null) {
+                throw new IOException("Request without :path");
+            }
+            lock.lock();
+            try {
+                streamWindows.put(streamId, new StreamWindow(initialWindow));
+            } finally {
+                lock.unlock();
+            }
+            Thread.ofVirtual().start(() -> respond(streamId, path));
+        }
+
+        private void respond(int streamId, String path) {
+            try {
+                Response response = handler.handle(path);
+                byte[] body = response.body();
+                writeLock.lock();
+                try {
+                    // Encoded under the write lock, so header blocks reach the client in dynamic-table order
+                    byte[] block = encoder.encode(response, body.length);
+                    writeFrame(HEADERS, FLAG_END_HEADERS | (body.length == 0 ? FLAG_END_STREAM : 0),
+                            streamId, block, 0, block.length);
+                } finally {
+                    writeLock.unlock();
+                }
+                int sent = 0;
+                while (sent < body.length) {
+                    int chunk = reserve(streamId, Math.min(MAX_FRAME_SIZE, body.length - sent));
+                    if (chunk < 0) {
+                        return;
+                    }
+                    boolean last = sent + chunk == body.length;
+                    writeFrame(DATA, last ? FLAG_END_STREAM : 0, streamId, body, sent, chunk);
+                    sent += chunk;
+                }
+            } catch (IOException e) {
+                // The connection is gone
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                lock.lock();
+                try {
+                    streamWindows.remove(streamId);
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+
+        /**
+         * Waits until both windows are open and takes up to {@code wanted} bytes from them; -1 if the stream
+         * was reset or the connection closed meanwhile.
+         */
+        private int reserve(int streamId, int wanted) throws InterruptedException {
+            lock.lock();
+            try {
+                while (true) {
+                    StreamWindow stream = streamWindows.get(streamId);
+                    if (closed || stream == null || stream.reset) {
+                        return -1;
+                    }
+                    if (connectionWindow > 0 && stream.window > 0) {
+                        int granted = (int) Math.min(wanted, Math.min(connectionWindow, stream.window));
+                        connectionWindow -= granted;
+                        stream.window -= granted;
+                        return granted;
+                    }
+                    windowOpened.await();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Applies a WINDOW_UPDATE, or with a negative increment marks the stream reset.
+         */
+        private void windowUpdate(int streamId, int increment) {
+            lock.lock();
+            try {
+                if (streamId == 0) {
+                    connectionWindow += increment;
+                } else {
+                    StreamWindow stream = streamWindows.get(streamId);
+                    if (stream != null && increment < 0) {
+                        stream.reset = true;
+                    } else if (stream != null) {
+                        stream.window += increment;
+                    }
+                }
+                windowOpened.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void applySettings(byte[] payload) {
+            for (int i = 0; i + 6 <= payload.length; i += 6) {
+                int id = (payload[i] & 0xFF) << 8 | payload[i + 1] & 0xFF;
+                int value = readInt(payload, i + 2);
+                if (id == SETTINGS_INITIAL_WINDOW_SIZE) {
+                    lock.lock();
+                    try {
+                        // The change applies to every open stream's window, up or down
+                        int delta = value - initialWindow;
+                        initialWindow = value;
+                        for (StreamWindow stream : streamWindows.values()) {
+                            stream.window += delta;
+                        }
+                        windowOpened.signalAll();
+                    } finally {
+                        lock.unlock();
+                    }
+                } else if (id == SETTINGS_HEADER_TABLE_SIZE) {
+                    writeLock.lock();
+                    try {
+                        encoder.setMaxSize(value);
+                    } finally {
+                        writeLock.unlock();
+                    }
+                }
+            }
+        }
+
+        private void writeFrame(int type, int flags, int streamId, byte[] payload, int offset, int length)
+                throws IOException {
+            byte[] header = new byte[9];
+            header[0] = (byte) (length >>> 16);
+            header[1] = (byte) (length >>> 8);
+            header[2] = (byte) length;
+            header[3] = (byte) type;
+            header[4] = (byte) flags;
+            putInt(header, 5, streamId);
+            writeLock.lock();
+            try {
+                out.write(header);
+                out.write(payload, offset, length);
+                out.flush();
+            } finally {
+                writeLock.unlock();
+            }
+        }
+    }
+
+    private static final class StreamWindow {
+        long window;
+        boolean reset;
+
+        StreamWindow(long window) {
+            this.window = window;
+        }
+    }
+
+    /**
+     * Response headers: the status from the static table where it is there, content-type and cache-control
+     * added to the dynamic table on first use and sent as an index after, and content-length as a plain literal.
+     */
+    private static final class Encoder {
+        private final List<String[]> table = new ArrayList<>(); // newest first
+        private int size;
+        private int maxSize = TABLE_SIZE;
+        private int pendingMaxSize = -1;
+
+        void setMaxSize(int peerMaxSize) {
+            pendingMaxSize = Math.min(peerMaxSize, TABLE_SIZE);
+        }
+
+        byte[] encode(Response response, int contentLength) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(64);
+            if (pendingMaxSize >= 0) {
+                maxSize = pendingMaxSize;
+                pendingMaxSize = -1;
+                evict();
+                writeInteger(out, 0x20, 5, maxSize);
+            }
+            String status = Integer.toString(response.status());
+            int statusIndex = staticIndex(":status", status);
+            if (statusIndex > 0) {
+                writeInteger(out, 0x80, 7, statusIndex);
+            } else {
+                writeInteger(out, 0x00, 4, staticIndex(":status", null));
+                writeString(out, status);
+            }
+            indexed(out, "content-type", response.contentType());
+            indexed(out, "cache-control", response.cacheControl());
+            writeInteger(out, 0x00, 4, staticIndex("content-length", null));
+            writeString(out, Integer.toString(contentLength));
+            return out.toByteArray();
+        }
+
+        private void indexed(ByteArrayOutputStream out, String name, String value) {
+            for (int i = 0; i < table.size(); i++) {
+                if (table.get(i)[0].equals(name) && table.get(i)[1].equals(value)) {
+                    writeInteger(out, 0x80, 7, STATIC_TABLE.length + 1 + i);
+                    return;
+                }
+            }
+            writeInteger(out, 0x40, 6, staticIndex(name, null));
+            writeString(out, value);
+            table.add(0, new String[]{name, value});
+            size += entrySize(name, value);
+            evict();
+        }
+
+        private void evict() {
+            while (size > maxSize) {
+                String[] oldest = table.remove(table.size() - 1);
+                size -= entrySize(oldest[0], oldest[1]);
+            }
+        }
+
+        private static void writeString(ByteArrayOutputStream out, String s) {
+            byte[] raw = s.getBytes(StandardCharsets.ISO_8859_1);
+            long bits = 0;
+            for (byte b : raw) {
+                bits += HUFFMAN_LENGTHS[b & 0xFF];
+            }
+            if ((bits + 7) / 8 >= raw.length) {
+                writeInteger(out, 0x00, 7, raw.length);
+                out.write(raw, 0, raw.length);
+                return;
+            }
+            writeInteger(out, 0x80, 7, (int) ((bits + 7) / 8));
+            long current = 0;
+            int pending = 0;
+            for (byte b : raw) {
+                int symbol = b & 0xFF;
+                current = current << HUFFMAN_LENGTHS[symbol] | HUFFMAN_CODES[symbol];
+                pending += HUFFMAN_LENGTHS[symbol];
+                while (pending >= 8) {
+                    pending -= 8;
+                    out.write((int) (current >>> pending));
+                }
+            }
+            if (pending > 0) {
+                // Padded with the leading bits of EOS, all ones
+                out.write((int) (current << (8 - pending) | 0xFF >>> pending));
+            }
+        }
+    }
+
+    private static final class Decoder {
+        private final List<String[]> table = new ArrayList<>(); // newest first
+        private int size;
+        private int maxSize = TABLE_SIZE;
+        private byte[] block;
+        private int position;
+
+        Map<String, String> decode(byte[] block) throws IOException {
+            this.block = block;
+            this.position = 0;
+            Map<String, String> headers = new HashMap<>();
+            while (position < block.length) {
+                int b = block[position] & 0xFF;
+                if ((b & 0x80) != 0) {
+                    String[] entry = entry(readInteger(7));
+                    headers.put(entry[0], entry[1]);
+                } else if ((b & 0xE0) == 0x20) {
+                    maxSize = readInteger(5);
+                    if (maxSize > TABLE_SIZE) {
+                        throw new IOException("HPACK table size " + maxSize + " exceeds " + TABLE_SIZE);
+                    }
+                    evict();
+                } else {
+                    boolean indexing = (b & 0xC0) == 0x40;
+                    int index = readInteger(indexing ? 6 : 4);
+                    String name = index == 0 ? readString() : entry(index)[0];
+                    String value = readString();
+                    if (indexing) {
+                        table.add(0, new String[]{name, value});
+                        size += entrySize(name, value);
+                        evict();
+                    }
+                    headers.put(name, value);
+                }
+            }
+            return headers;
+        }
+
+        private String[] entry(int index) throws IOException {
+            if (index >= 1 && index <= STATIC_TABLE.length) {
+                return STATIC_TABLE[index - 1];
+            }
+            int dynamic = index - STATIC_TABLE.length - 1;
+            if (dynamic < 0 || dynamic >= table.size()) {
+                throw new IOException("HPACK index " + index + " is not in the table");
+            }
+            return table.get(dynamic);
+        }
+
+        private void evict() {
+            while (size > maxSize) {
+                String[] oldest = table.remove(table.size() - 1);
+                size -= entrySize(oldest[0], oldest[1]);
+            }
+        }
+
+        private int readInteger(int prefixBits) throws IOException {
+            int max = (1 << prefixBits) - 1;
+            int value = block[position++] & max;
+            if (value < max) {
+                return value;
+            }
+            for (int shift = 0; shift <= 28; shift += 7) {
+                if (position >= block.length) {
+                    throw new IOException("HPACK integer runs past the block");
+                }
+                int b = block[position++] & 0xFF;
+                value += (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("HPACK integer too large");
+        }
+
+        private String readString() throws IOException {
+            boolean huffman = (block[position] & 0x80) != 0;
+            int length = readInteger(7);
+            if (position + length > block.length) {
+                throw new IOException("HPACK string runs past the block");
+            }
+            int start = position;
+            position += length;
+            if (!huffman) {
+                return new String(block, start, length, StandardCharsets.ISO_8859_1);
+            }
+
+            // Canonical decoding: extend the code a bit at a time until it falls in the range of its length
+            ByteArrayOutputStream decoded = new ByteArrayOutputStream(length * 2);
+            int code = 0;
+            int bits = 0;
+            for (int i = start; i < start + length; i++) {
+                for (int shift = 7; shift >= 0; shift--) {
+                    code = code << 1 | (block[i] >>> shift) & 1;
+                    bits++;
+                    int offset = code - FIRST_CODE[bits];
+                    if (offset >= 0 && offset < CODE_COUNT[bits]) {
+                        int symbol = SYMBOLS_BY_CODE[FIRST_SYMBOL[bits] + offset];
+                        if (symbol == EOS) {
+                            throw new IOException("HPACK Huffman string contains EOS");
+                        }
+                        decoded.write(symbol);
+                        code = 0;
+                        bits = 0;
+                    } else if (bits == MAX_CODE_LENGTH) {
+                        throw new IOException("Invalid HPACK Huffman code");
+                    }
+                }
+            }
+            if (bits > 7 || code != (1 << bits) - 1) {
+                throw new IOException("Invalid HPACK Huffman padding");
+            }
+            return decoded.toString(StandardCharsets.ISO_8859_1);
+        }
+    }
+
+    private static int staticIndex(String name, String value) {
+        for (int i = 0; i < STATIC_TABLE.length; i++) {
+            if (STATIC_TABLE[i][0].equals(name) && (value == null || STATIC_TABLE[i][1].equals(value))) {
+                return i + 1;
+            }
+        }
+        return 0;
+    }
+
+    private static int entrySize(String name, String value) {
+        return name.length() + value.length() + ENTRY_OVERHEAD;
+    }
+
+    private static void writeInteger(ByteArrayOutputStream out, int flags, int prefixBits, int value) {
+        int max = (1 << prefixBits) - 1;
+        if (value < max) {
+            out.write(flags | value);
+            return;
+        }
+        out.write(flags | max);
+        value -= max;
+        while (value >= 0x80) {
+            out.write(value & 0x7F | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static void putSetting(byte[] settings, int offset, int id, int value) {
+        settings[offset] = (byte) (id >>> 8);
+        settings[offset + 1] = (byte) id;
+        putInt(settings, offset + 2, value);
+    }
+
+    private static void putInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xFF) << 24 | (bytes[offset + 1] & 0xFF) << 16
+                | (bytes[offset + 2] & 0xFF) << 8 | bytes[offset + 3] & 0xFF;
+    }
+}
@@ -0,0 +1,101 @@
+package org.c8a.bench;
+
+import java.io.PrintStream;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latencies in microseconds, counted in buckets a sixteenth of a power of two wide: percentiles are within
+ * about 6% at any scale, and recording is a single atomic increment, so many threads can share one.
+ */
+final class LatencyHistogram {
+
+    private static final int SUB_BUCKETS = 16;
+    private static final int SUB_BITS = 4;
+
+    private final AtomicLongArray counts = new AtomicLongArray(64 * SUB_BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    void record(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        counts.incrementAndGet(bucket(micros));
+        count.incrementAndGet();
+        max.accumulateAndGet(micros, Math::max);
+    }
+
+    long count() {
+        return count.get();
+    }
+
+    /**
+     * The latency in microseconds that {@code p} percent of recorded ones do not exceed.
+     */
+    long percentile(double p) {
+        long total = count.get();
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(p / 100.0 * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(upperBound(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    void print(PrintStream out) {
+        out.println(String.format(Locale.US, "latency   p50 %s | p90 %s | p99 %s | p99.9 %s | max %s",
+                millis(percentile(50)), millis(percentile(90)), millis(percentile(99)), millis(percentile(99.9)),
+                millis(max.get())));
+
+        // One line per power of two, which is as fine as a terminal bar chart can usefully be
+        long[] rows = new long[64];
+        int first = -1;
+        int last = -1;
+        for (int i = 0; i < counts.length(); i++) {
+            long n = counts.get(i);
+            if (n > 0) {
+                int row = i < SUB_BUCKETS ? 64 - Long.numberOfLeadingZeros(Math.max(1, i)) - 1 : i / SUB_BUCKETS + SUB_BITS - 1;
+                rows[row] += n;
+                first = first < 0 ? row : Math.min(first, row);
+                last = Math.max(last, row);
+            }
+        }
+        long peak = 1;
+        for (long n : rows) {
+            peak = Math.max(peak, n);
+        }
+        for (int row = Math.max(first, 0); row <= last; row++) {
+            int width = (int) Math.round(50.0 * rows[row] / peak);
+            out.println(String.format(Locale.US, "  < %10s %8d %s", millis(1L << (row + 1)), rows[row],
+                    "#".repeat(width)));
+        }
+    }
+
+    private static int bucket(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        int sub = (int) (micros >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    private static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        int sub = bucket % SUB_BUCKETS;
+        return ((long) (SUB_BUCKETS + sub + 1) << (exponent - SUB_BITS)) - 1;
+    }
+
+    private static String millis(long micros) {
+        return String.format(Locale.US, "%.2f ms", micros / 1000.0);
+    }
+}
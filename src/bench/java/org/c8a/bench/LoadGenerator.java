@@ -0,0 +1,238 @@
+package org.c8a.bench;
+
+import org.c8a.cache.CacheManager;
+import org.c8a.client.CachingResolver;
+import org.c8a.client.ConnectionPool;
+import org.c8a.client.CustomHttpClient;
+import org.c8a.client.Resolver;
+import org.c8a.client.SSLSocketFactory;
+import org.c8a.handler.FetchResult;
+import org.c8a.handler.HttpHandler;
+import org.c8a.search.SearchEngine;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+/**
+ * Drives go2web end to end against a {@link MockOrigin} with a fixed number of requests in flight and
+ * reports requests per second, a latency histogram and what came back. Each worker is a virtual thread
+ * that sends its next request as soon as the last one completes.
+ * <p>
+ * {@code client} measures CustomHttpClient alone, {@code handler} the whole fetch path (HttpHandler with a
+ * fresh cache, extraction and redirects), and {@code search} SearchEngine against the origin's results page.
+ * A {n} in the path is replaced by the request number, so {@code /page/{n}} misses the cache every time
+ * and {@code /page/1} hits it after the first fetch. {@code dns} is the client target behind a scripted
+ * {@link Resolver}: every request opens a new connection, so each one resolves its name. The lookups go through a
+ * CachingResolver whose short TTLs expire during the run. "localhost" lists a dead address ahead of the live one,
+ * and every tenth request asks for a name that does not exist, so that failure is negatively cached. {@code h2c} runs every request over multiplexed
+ * cleartext HTTP/2 connections, with the client told in advance that the origin speaks it.
+ * <p>
+ * Usage: mvn -Pbench compile exec:java -Dexec.mainClass=org.c8a.bench.LoadGenerator
+ * -Dexec.args="[client|handler|search|dns] [requests] [concurrency] [path] [http|https|h2c]"
+ */
+public class LoadGenerator {
+
+    private static final long DNS_TTL = 1000; // milliseconds
+    private static final long DNS_NEGATIVE_TTL = 250; // milliseconds
+
+    public static void main(String[] args) throws Exception {
+        String target = args.length > 0 ? args[0] : "handler";
+        int requests = args.length > 1 ? Integer.parseInt(args[1]) : 10_000;
+        int concurrency = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+        String path = args.length > 3 ? args[3] : "/page/{n}";
+        String mode = args.length > 4 ? args[4] : "http";
+        boolean https = mode.equals("https");
+        if (mode.equals("h2c")) {
+            // Read when the client class loads, which has not happened yet
+            System.setProperty("go2web.http2.priorKnowledge", "true");
+        }
+
+        try (MockOrigin origin = mode.equals("h2c") ? MockOrigin.startH2c(0) : MockOrigin.start(https)) {
+            if (https) {
+                SSLSocketFactory.configure(SSLSocketFactory.getConfig().withTrustStore(
+                        origin.getTrustStore().toString(), MockOrigin.TRUST_STORE_PASSWORD, "PKCS12"));
+            }
+            System.setProperty("go2web.search.url", origin.url("/html/?q="));
+            Path cacheDirectory = Files.createTempDirectory("go2web-load");
+            CacheManager cache = new CacheManager(cacheDirectory);
+            try {
+                Request request = request(target, origin, path, cache);
+                String shown = target.equals("search") ? origin.url("/html/?q=") : origin.url(path);
+                System.out.println(target + " against " + shown + ": " + requests + " requests, "
+                        + concurrency + " in flight\n");
+
+                // Warm up on request numbers the measured run will not use, so it starts with a cold cache
+                run(request, Math.min(requests, 1000), Math.min(concurrency, 16), -1_000_000);
+                Run run = run(request, requests, concurrency, 0);
+                print(run);
+                request.report();
+            } finally {
+                cache.close();
+                deleteRecursively(cacheDirectory);
+            }
+        }
+        System.exit(0);
+    }
+
+    private static Request request(String target, MockOrigin origin, String path, CacheManager cache)
+            throws IOException {
+        switch (target) {
+            case "client" -> {
+                CustomHttpClient client = new CustomHttpClient();
+                client.setVerbose(false);
+                return n -> {
+                    int status = client.get(origin.url(path.replace("{n}", Integer.toString(n)))).getStatusCode();
+                    return Integer.toString(status);
+                };
+            }
+            case "handler" -> {
+                HttpHandler handler = new HttpHandler(cache);
+                handler.setVerbose(false);
+                return n -> {
+                    FetchResult result = handler.fetch(origin.url(path.replace("{n}", Integer.toString(n))));
+                    return result.status().name();
+                };
+            }
+            case "search" -> {
+                SearchEngine engine = new SearchEngine(new HttpHandler(cache));
+                engine.setVerbose(false);
+                return n -> engine.results("go2web load " + n).size() + " results";
+            }
+            case "dns" -> {
+                return dnsRequest(origin, path);
+            }
+            default -> throw new IllegalArgumentException("Unknown target '" + target
+                    + "'; use client, handler, search or dns");
+        }
+    }
+
+    private static Request dnsRequest(MockOrigin origin, String path) throws IOException {
+        // The origin listens on 127.0.0.1 only, so a connect to ::1 on its port is refused
+        InetAddress dead = InetAddress.getByAddress("localhost", new byte[]{0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1});
+        InetAddress live = InetAddress.getByAddress("localhost", new byte[]{127, 0, 0, 1});
+        ScriptedResolver scripted = new ScriptedResolver(Map.of("localhost", List.of(dead, live)));
+        CachingResolver resolver = new CachingResolver(scripted, DNS_TTL, DNS_NEGATIVE_TTL);
+        CustomHttpClient client = new CustomHttpClient(10_000, 10_000, new ConnectionPool(64, 60_000, resolver));
+        client.setVerbose(false);
+        client.setRequestHeader("Connection", "close");
+
+        return new Request() {
+            @Override
+            public String send(int n) throws IOException {
+                // "localhost" keeps the HTTPS origin's certificate valid
+                String host = Math.floorMod(n, 10) == 9 ? "missing.test" : "localhost";
+                String url = origin.url(path.replace("{n}", Integer.toString(n))).replace("127.0.0.1", host);
+                return Integer.toString(client.get(url).getStatusCode());
+            }
+
+            @Override
+            public void report() {
+                System.out.println(String.format(Locale.US,
+                        "dns (ttl %d ms, negative ttl %d ms): %d lookups for localhost, %d for missing.test; "
+                                + "cache %d hits, %d misses",
+                        DNS_TTL, DNS_NEGATIVE_TTL, scripted.lookups("localhost"), scripted.lookups("missing.test"),
+                        resolver.getHitCount(), resolver.getMissCount()));
+            }
+        };
+    }
+
+    private static Run run(Request request, int requests, int concurrency, int firstNumber) throws InterruptedException {
+        LatencyHistogram latencies = new LatencyHistogram();
+        Map<String, LongAdder> outcomes = new ConcurrentHashMap<>();
+        AtomicInteger next = new AtomicInteger();
+        Thread[] workers = new Thread[concurrency];
+        long start = System.nanoTime();
+
+        for (int w = 0; w < concurrency; w++) {
+            workers[w] = Thread.ofVirtual().name("go2web-load-" + w).start(() -> {
+                int i;
+                while ((i = next.getAndIncrement()) < requests) {
+                    long requestStart = System.nanoTime();
+                    String outcome;
+                    try {
+                        outcome = request.send(firstNumber + i);
+                    } catch (IOException | RuntimeException e) {
+                        outcome = "error: " + e.getMessage();
+                    }
+                    latencies.record(System.nanoTime() - requestStart);
+                    outcomes.computeIfAbsent(outcome, key -> new LongAdder()).increment();
+                }
+            });
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return new Run(System.nanoTime() - start, latencies, outcomes);
+    }
+
+    private static void print(Run run) {
+        long count = run.latencies().count();
+        System.out.println(String.format(Locale.US, "throughput %.1f req/s (%d requests in %.2f s)",
+                count / (run.wallNanos() / 1e9), count, run.wallNanos() / 1e9));
+        run.latencies().print(System.out);
+        System.out.println("outcomes");
+        new TreeMap<>(run.outcomes()).forEach((outcome, n) -> System.out.println(String.format(Locale.US,
+                "  %8d %s", n.sum(), outcome)));
+    }
+
+    private static void deleteRecursively(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    private interface Request {
+        String send(int n) throws IOException;
+
+        /**
+         * Prints whatever else the target knows once the run is over.
+         */
+        default void report() {
+        }
+    }
+
+    /**
+     * Answers from a fixed table and counts how often each name reaches it, which is how often the cache in
+     * front of it missed.
+     */
+    private static final class ScriptedResolver implements Resolver {
+        private final Map<String, List<InetAddress>> names;
+        private final Map<String, LongAdder> lookups = new ConcurrentHashMap<>();
+
+        ScriptedResolver(Map<String, List<InetAddress>> names) {
+            this.names = names;
+        }
+
+        @Override
+        public List<InetAddress> resolve(String host) throws UnknownHostException {
+            lookups.computeIfAbsent(host, key -> new LongAdder()).increment();
+            List<InetAddress> addresses = names.get(host);
+            if (addresses == null) {
+                throw new UnknownHostException(host);
+            }
+            return addresses;
+        }
+
+        long lookups(String host) {
+            LongAdder count = lookups.get(host);
+            return count == null ? 0 : count.sum();
+        }
+    }
+
+    private record Run(long wallNanos, LatencyHistogram latencies, Map<String, LongAdder> outcomes) {
+    }
+}
@@ -0,0 +1,384 @@
+package org.c8a.bench;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A local origin serving fixed fixtures over HTTP or HTTPS, so go2web can be measured end to end without
+ * the network. Every fixture takes {@code delay=<ms>} to answer slowly and {@code kb=<size>} for its body:
+ * <pre>
+ * /page/...          article page with Content-Length, cacheable for max-age=&lt;s&gt; (default 60)
+ * /chunked/...       the same page, chunked
+ * /gzip/...          the same page, gzip-encoded when the client accepts it
+ * /drip/...          the page in chunks=&lt;n&gt; pieces, ms=&lt;ms&gt; apart
+ * /redirect/&lt;n&gt;      a chain of n 302s ending at /page/redirected
+ * /etag/...          the page with an ETag and no-cache, answering 304 to a matching If-None-Match
+ * /large/...         an mb=&lt;n&gt; MB page, generated as it is sent
+ * /json/...          an API response of records=&lt;n&gt; objects
+ * /html/?q=...       a DuckDuckGo-like page of 10 results linking back to /page/
+ * </pre>
+ * HTTPS uses a self-signed certificate made with keytool when the origin starts; clients trust it through
+ * {@link #getTrustStore()}. {@link #startH2c} serves /page, /chunked, /large, /json and /html over cleartext
+ * HTTP/2 instead (see {@link H2cServer}), for clients run with {@code -Dgo2web.http2.priorKnowledge=true}.
+ * <p>
+ * Usage: mvn -Pbench compile exec:java -Dexec.mainClass=org.c8a.bench.MockOrigin -Dexec.args="[port] [http|https|h2c]"
+ */
+public final class MockOrigin implements Closeable {
+
+    public static final String TRUST_STORE_PASSWORD = "go2web-bench";
+    private static final int PARAGRAPH_BYTES = 420;
+
+    static {
+        // The JDK server writes headers and body separately; with Nagle on, each response waits out a delayed ACK
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    private final HttpServer server;
+    private final H2cServer h2c;
+    private final String baseUrl;
+    private final Path trustStore;
+    private final Map<Integer, byte[]> pages = new ConcurrentHashMap<>();
+    private final Map<Integer, byte[]> gzipped = new ConcurrentHashMap<>();
+
+    private MockOrigin(HttpServer server, String scheme, Path trustStore) {
+        this.server = server;
+        this.h2c = null;
+        this.trustStore = trustStore;
+        this.baseUrl = scheme + "://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    private MockOrigin(H2cServer h2c) {
+        this.server = null;
+        this.h2c = h2c;
+        this.trustStore = null;
+        this.baseUrl = "http://127.0.0.1:" + h2c.getPort();
+    }
+
+    public static MockOrigin start(boolean https) throws IOException {
+        return start(0, https);
+    }
+
+    public static MockOrigin start(int port, boolean https) throws IOException {
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1", port);
+        MockOrigin origin;
+        if (https) {
+            Path keyStore = createKeyStore();
+            HttpsServer server = HttpsServer.create(address, 4096);
+            server.setHttpsConfigurator(new HttpsConfigurator(sslContext(keyStore)));
+            origin = new MockOrigin(server, "https", keyStore);
+        } else {
+            origin = new MockOrigin(HttpServer.create(address, 4096), "http", null);
+        }
+        // Platform threads: the JDK's HTTPS server reads the socket inside a monitor, so an idle keep-alive
+        // exchange would pin a virtual thread's carrier and, with few cores, leave new handshakes unserved
+        origin.server.setExecutor(Executors.newCachedThreadPool(Thread.ofPlatform().daemon().factory()));
+        origin.server.createContext("/", origin::handle);
+        origin.server.start();
+        return origin;
+    }
+
+    /**
+     * An origin that speaks only HTTP/2, on a plain http:// URL; clients must know that in advance.
+     */
+    public static MockOrigin startH2c(int port) throws IOException {
+        MockOrigin origin = new MockOrigin(new H2cServer(port));
+        origin.h2c.start(origin::serveH2c);
+        return origin;
+    }
+
+    public String url(String path) {
+        return baseUrl + path;
+    }
+
+    /**
+     * A PKCS12 store holding the origin's certificate, or null for plain HTTP.
+     */
+    public Path getTrustStore() {
+        return trustStore;
+    }
+
+    @Override
+    public void close() {
+        if (server != null) {
+            server.stop(0);
+        } else {
+            h2c.close();
+        }
+        if (trustStore != null) {
+            try {
+                Files.deleteIfExists(trustStore);
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 8080;
+        String mode = args.length > 1 ? args[1] : "http";
+        boolean https = mode.equals("https");
+        MockOrigin origin = mode.equals("h2c") ? startH2c(port) : start(port, https);
+        System.out.println("Mock origin at " + origin.url("/") + (origin.h2c != null ? " (h2c only)" : ""));
+        if (origin.h2c != null) {
+            System.out.println("Fetch it with -Dgo2web.http2.priorKnowledge=true, or curl --http2-prior-knowledge");
+        }
+        if (https) {
+            System.out.println("Trust it with -Dgo2web.tls.trustStore=" + origin.getTrustStore()
+                    + " -Dgo2web.tls.trustStorePassword=" + TRUST_STORE_PASSWORD + " -Dgo2web.tls.trustStoreType=PKCS12");
+        }
+        System.out.println("Try " + origin.url("/page/1") + " or " + origin.url(origin.h2c != null ? "/json/" : "/redirect/3"));
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            serve(exchange);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void serve(HttpExchange exchange) throws IOException, InterruptedException {
+        try {
+            Map<String, String> query = query(exchange.getRequestURI().getRawQuery());
+            int delay = Integer.parseInt(query.getOrDefault("delay", "0"));
+            if (delay > 0) {
+                Thread.sleep(delay);
+            }
+            String path = exchange.getRequestURI().getPath();
+            String fixture = path.length() > 1 ? path.substring(1).split("/", 2)[0] : "";
+            int kb = Integer.parseInt(query.getOrDefault("kb", "30"));
+
+            switch (fixture) {
+                case "page" -> send(exchange, 200, "text/html; charset=utf-8", page(kb),
+                        "public, max-age=" + query.getOrDefault("max-age", "60"));
+                case "chunked" -> chunked(exchange, page(kb), 4096, 0);
+                case "drip" -> chunked(exchange, page(kb),
+                        Math.max(1, page(kb).length / Integer.parseInt(query.getOrDefault("chunks", "10"))),
+                        Integer.parseInt(query.getOrDefault("ms", "100")));
+                case "gzip" -> gzip(exchange, kb);
+                case "redirect" -> redirect(exchange, path);
+                case "etag" -> etag(exchange, kb);
+                case "large" -> large(exchange, Integer.parseInt(query.getOrDefault("mb", "8")));
+                case "json" -> send(exchange, 200, "application/json",
+                        Corpus.json(Integer.parseInt(query.getOrDefault("records", "500"))), "no-store");
+                case "html" -> send(exchange, 200, "text/html; charset=utf-8",
+                        results(query.getOrDefault("q", "")), "no-store");
+                default -> send(exchange, 404, "text/plain", "Unknown fixture".getBytes(StandardCharsets.UTF_8), "no-store");
+            }
+        } catch (NumberFormatException e) {
+            send(exchange, 400, "text/plain", e.getMessage().getBytes(StandardCharsets.UTF_8), "no-store");
+        }
+    }
+
+    /**
+     * The fixtures HTTP/2 serves the same way; /chunked is /page, since HTTP/2 frames every body.
+     */
+    private H2cServer.Response serveH2c(String target) throws InterruptedException {
+        int queryStart = target.indexOf('?');
+        String path = queryStart < 0 ? target : target.substring(0, queryStart);
+        Map<String, String> query = query(queryStart < 0 ? null : target.substring(queryStart + 1));
+        try {
+            int delay = Integer.parseInt(query.getOrDefault("delay", "0"));
+            if (delay > 0) {
+                Thread.sleep(delay);
+            }
+            String fixture = path.length() > 1 ? path.substring(1).split("/", 2)[0] : "";
+            int kb = Integer.parseInt(query.getOrDefault("kb", "30"));
+            return switch (fixture) {
+                case "page", "chunked" -> new H2cServer.Response(200, "text/html; charset=utf-8", page(kb),
+                        "public, max-age=" + query.getOrDefault("max-age", "60"));
+                case "large" -> new H2cServer.Response(200, "text/html; charset=utf-8",
+                        largeBody(Integer.parseInt(query.getOrDefault("mb", "8"))), "no-store");
+                case "json" -> new H2cServer.Response(200, "application/json",
+                        Corpus.json(Integer.parseInt(query.getOrDefault("records", "500"))), "no-store");
+                case "html" -> new H2cServer.Response(200, "text/html; charset=utf-8",
+                        results(query.getOrDefault("q", "")), "no-store");
+                default -> new H2cServer.Response(404, "text/plain",
+                        "Unknown fixture".getBytes(StandardCharsets.UTF_8), "no-store");
+            };
+        } catch (NumberFormatException e) {
+            return new H2cServer.Response(400, "text/plain", e.getMessage().getBytes(StandardCharsets.UTF_8), "no-store");
+        }
+    }
+
+    private byte[] page(int kb) {
+        return pages.computeIfAbsent(kb, size -> Corpus.html(Math.max(1, size * 1024 / PARAGRAPH_BYTES)));
+    }
+
+    private static void send(HttpExchange exchange, int status, String contentType, byte[] body, String cacheControl)
+            throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.getResponseHeaders().set("Cache-Control", cacheControl);
+        exchange.sendResponseHeaders(status, body.length);
+        exchange.getResponseBody().write(body);
+    }
+
+    private static void chunked(HttpExchange exchange, byte[] body, int chunkSize, int pauseMillis)
+            throws IOException, InterruptedException {
+        exchange.getResponseHeaders().set("Content-Type", "text/html; charset=utf-8");
+        exchange.getResponseHeaders().set("Cache-Control", "no-store");
+        exchange.sendResponseHeaders(200, 0);
+        OutputStream out = exchange.getResponseBody();
+        for (int offset = 0; offset < body.length; offset += chunkSize) {
+            if (offset > 0 && pauseMillis > 0) {
+                Thread.sleep(pauseMillis);
+            }
+            out.write(body, offset, Math.min(chunkSize, body.length - offset));
+            out.flush();
+        }
+    }
+
+    private void gzip(HttpExchange exchange, int kb) throws IOException {
+        String accepted = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        exchange.getResponseHeaders().set("Vary", "Accept-Encoding");
+        if (accepted == null || !accepted.contains("gzip")) {
+            send(exchange, 200, "text/html; charset=utf-8", page(kb), "no-store");
+            return;
+        }
+        byte[] body = gzipped.computeIfAbsent(kb, size -> {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            try (GZIPOutputStream out = new GZIPOutputStream(compressed)) {
+                out.write(page(size));
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return compressed.toByteArray();
+        });
+        exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+        send(exchange, 200, "text/html; charset=utf-8", body, "no-store");
+    }
+
+    private static void redirect(HttpExchange exchange, String path) throws IOException {
+        String[] parts = path.split("/");
+        int remaining = parts.length > 2 ? Integer.parseInt(parts[2]) : 1;
+        String location = remaining <= 1 ? "/page/redirected" : "/redirect/" + (remaining - 1);
+        exchange.getResponseHeaders().set("Location", location);
+        exchange.getResponseHeaders().set("Cache-Control", "no-store");
+        exchange.sendResponseHeaders(302, -1);
+    }
+
+    private void etag(HttpExchange exchange, int kb) throws IOException {
+        byte[] body = page(kb);
+        String etag = "\"" + Integer.toHexString(Arrays.hashCode(body)) + "\"";
+        exchange.getResponseHeaders().set("ETag", etag);
+        if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+            exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+            exchange.sendResponseHeaders(304, -1);
+            return;
+        }
+        send(exchange, 200, "text/html; charset=utf-8", body, "no-cache");
+    }
+
+    private void large(HttpExchange exchange, int mb) throws IOException {
+        byte[] block = page(64);
+        long length = (long) mb * 1024 * 1024;
+        exchange.getResponseHeaders().set("Content-Type", "text/html; charset=utf-8");
+        exchange.getResponseHeaders().set("Cache-Control", "no-store");
+        exchange.sendResponseHeaders(200, length);
+        OutputStream out = exchange.getResponseBody();
+        for (long sent = 0; sent < length; sent += block.length) {
+            out.write(block, 0, (int) Math.min(block.length, length - sent));
+        }
+    }
+
+    private byte[] largeBody(int mb) {
+        byte[] block = page(64);
+        byte[] body = new byte[mb * 1024 * 1024];
+        for (int offset = 0; offset < body.length; offset += block.length) {
+            System.arraycopy(block, 0, body, offset, Math.min(block.length, body.length - offset));
+        }
+        return body;
+    }
+
+    /**
+     * Laid out like html.duckduckgo.com, down to the result__url anchors SearchEngine picks the links from.
+     */
+    private byte[] results(String query) {
+        String host = baseUrl.substring(baseUrl.indexOf("://") + 3);
+        String slug = query.replaceAll("[^A-Za-z0-9]+", "-");
+        StringBuilder html = new StringBuilder("<!DOCTYPE html><html><head><title>")
+                .append(query).append(" at DuckDuckGo</title></head><body><div id=\"links\" class=\"results\">");
+        for (int i = 1; i <= 10; i++) {
+            String target = host + "/page/" + slug + "-" + i;
+            html.append("<div class=\"result results_links web-result\"><div class=\"links_main result__body\">")
+                    .append("<h2 class=\"result__title\"><a rel=\"nofollow\" class=\"result__a\" href=\"//duckduckgo.com/l/?uddg=")
+                    .append(target).append("\">Result ").append(i).append(" for ").append(query).append("</a></h2>")
+                    .append("<div class=\"result__extras\"><div class=\"result__extras__url\">")
+                    .append("<a class=\"result__url\" href=\"//duckduckgo.com/l/?uddg=").append(target).append("\">\n")
+                    .append("                  ").append(target).append("\n                  </a></div></div>")
+                    .append("<a class=\"result__snippet\" href=\"//duckduckgo.com/l/?uddg=").append(target)
+                    .append("\">A snippet about <b>").append(query).append("</b> number ").append(i).append(".</a>")
+                    .append("</div></div>");
+        }
+        return html.append("</div></body></html>").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static Map<String, String> query(String raw) {
+        Map<String, String> query = new HashMap<>();
+        if (raw != null) {
+            for (String pair : raw.split("&")) {
+                int equals = pair.indexOf('=');
+                String name = URLDecoder.decode(equals < 0 ? pair : pair.substring(0, equals), StandardCharsets.UTF_8);
+                query.put(name, equals < 0 ? "" : URLDecoder.decode(pair.substring(equals + 1), StandardCharsets.UTF_8));
+            }
+        }
+        return query;
+    }
+
+    private static Path createKeyStore() throws IOException {
+        Path keyStore = Files.createTempFile("go2web-origin", ".p12");
+        Files.delete(keyStore);
+        Process keytool = new ProcessBuilder(Path.of(System.getProperty("java.home"), "bin", "keytool").toString(),
+                "-genkeypair", "-alias", "origin", "-keyalg", "EC", "-groupname", "secp256r1",
+                "-dname", "CN=localhost", "-ext", "SAN=dns:localhost,ip:127.0.0.1", "-validity", "2",
+                "-storetype", "PKCS12", "-keystore", keyStore.toString(),
+                "-storepass", TRUST_STORE_PASSWORD, "-keypass", TRUST_STORE_PASSWORD)
+                .redirectErrorStream(true).start();
+        try (InputStream output = keytool.getInputStream()) {
+            String log = new String(output.readAllBytes(), StandardCharsets.UTF_8);
+            if (keytool.waitFor() != 0) {
+                throw new IOException("keytool failed: " + log.trim());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while creating the origin's certificate");
+        }
+        return keyStore;
+    }
+
+    private static SSLContext sslContext(Path keyStore) throws IOException {
+        try (InputStream in = Files.newInputStream(keyStore)) {
+            KeyStore store = KeyStore.getInstance("PKCS12");
+            store.load(in, TRUST_STORE_PASSWORD.toCharArray());
+            KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keys.init(store, TRUST_STORE_PASSWORD.toCharArray());
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(keys.getKeyManagers(), null, null);
+            return context;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Could not set up TLS for the origin: " + e.getMessage(), e);
+        }
+    }
+}
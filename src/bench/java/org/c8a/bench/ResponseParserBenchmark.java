@@ -0,0 +1,71 @@
+package org.c8a.bench;
+
+import org.c8a.client.HttpResponseParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Status line, header and body framing (fixed length and chunked) of recorded responses, read from memory
+ * so the socket is out of the picture.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ResponseParserBenchmark {
+
+    @Param({"fixed", "chunked", "large-html", "large-json"})
+    public String response;
+
+    private byte[] wire;
+    private final byte[] buffer = new byte[8192];
+
+    @Setup
+    public void setUp() {
+        wire = Corpus.response(response);
+    }
+
+    /**
+     * The whole body into one array, as the blocking and async clients do.
+     */
+    @Benchmark
+    public byte[] readFullBody() throws IOException {
+        HttpResponseParser parser = new HttpResponseParser(new ByteArrayInputStream(wire));
+        parser.readHead();
+        parser.beginBody(true);
+        return parser.readFullBody();
+    }
+
+    /**
+     * The body through its stream in 8 KB reads, as the extractors consume it.
+     */
+    @Benchmark
+    public void streamBody(Blackhole blackhole) throws IOException {
+        HttpResponseParser parser = new HttpResponseParser(new ByteArrayInputStream(wire));
+        parser.readHead();
+        parser.beginBody(true);
+        InputStream body = parser.bodyStream();
+        int n;
+        while ((n = body.read(buffer, 0, buffer.length)) > 0) {
+            blackhole.consume(n);
+        }
+        blackhole.consume(parser.getHeaders());
+    }
+}
@@ -0,0 +1,132 @@
+package org.c8a.bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.stream.Stream;
+
+/**
+ * Launches go2web as a fresh process, the way scripts call it, and reports the time to its first byte of
+ * output and to its exit for the help, cache-hit and cache-miss paths. Given a class-data-sharing archive,
+ * every path is run both without and with it.
+ * <p>
+ * Usage: mvn -Pbench compile exec:java -Dexec.mainClass=org.c8a.bench.StartupBenchmark
+ * -Dexec.args="[runs] [jar] [archive]"
+ * <p>
+ * Without a jar the child runs from this process's class path; pass the shaded jar (and the archive from
+ * {@code mvn -Pcds package}) to measure what users run, since an archive only maps for the class path it was
+ * dumped with.
+ */
+public class StartupBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int runs = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        String jar = args.length > 1 ? args[1] : null;
+        String archive = args.length > 2 ? args[2] : null;
+        if (archive != null && !Files.exists(Path.of(archive))) {
+            throw new IllegalArgumentException("No archive at " + archive + "; build one with mvn -Pcds package");
+        }
+
+        Path cacheDirectory = Files.createTempDirectory("go2web-startup");
+        try (MockOrigin origin = MockOrigin.start(false)) {
+            List<String> launchers = archive == null ? List.of("default") : List.of("default", "AppCDS");
+            System.out.println("Fresh go2web process per run, " + runs + " runs per path (times in ms)\n");
+            System.out.println(String.format(Locale.US, "%-12s %-8s %22s %22s", "path", "archive",
+                    "first output p50/p90", "exit p50/p90"));
+
+            for (String launcher : launchers) {
+                List<String> command = command(jar, launcher.equals("AppCDS") ? archive : null, cacheDirectory);
+                String hitUrl = origin.url("/page/startup-hit-" + launcher);
+                launch(command, "-u", hitUrl);
+
+                measure("help", launcher, runs, n -> launch(command, "-h"));
+                measure("cache hit", launcher, runs, n -> launch(command, "-u", hitUrl));
+                measure("cache miss", launcher, runs, n -> launch(command, "-u",
+                        origin.url("/page/startup-miss-" + launcher + "-" + n)));
+            }
+        } finally {
+            try (Stream<Path> files = Files.walk(cacheDirectory)) {
+                for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                    Files.delete(file);
+                }
+            }
+        }
+        System.exit(0);
+    }
+
+    private static List<String> command(String jar, String archive, Path cacheDirectory) {
+        List<String> command = new ArrayList<>();
+        command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        if (archive != null) {
+            command.add("-XX:SharedArchiveFile=" + archive);
+        }
+        // A daemon left running would answer instead of the process being measured
+        command.add("-Dgo2web.daemon=false");
+        command.add("-Dgo2web.cache.dir=" + cacheDirectory);
+        if (jar != null) {
+            command.add("-jar");
+            command.add(jar);
+        } else {
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            command.add("org.c8a.Go2Web");
+        }
+        return command;
+    }
+
+    private static void measure(String path, String launcher, int runs, Launch launch) throws IOException {
+        // The first launch pages the JDK and jars in; later ones are what a script sees
+        launch.run(-1);
+        long[] firstOutput = new long[runs];
+        long[] exit = new long[runs];
+        for (int i = 0; i < runs; i++) {
+            long[] times = launch.run(i);
+            firstOutput[i] = times[0];
+            exit[i] = times[1];
+        }
+        System.out.println(String.format(Locale.US, "%-12s %-8s %22s %22s", path, launcher,
+                percentiles(firstOutput), percentiles(exit)));
+    }
+
+    /**
+     * Runs go2web once and returns nanoseconds to its first byte of output and to its exit.
+     */
+    private static long[] launch(List<String> command, String... args) throws IOException {
+        List<String> full = new ArrayList<>(command);
+        full.addAll(Arrays.asList(args));
+        long start = System.nanoTime();
+        Process process = new ProcessBuilder(full).redirectErrorStream(true).start();
+        long firstOutput;
+        try (InputStream out = process.getInputStream()) {
+            out.read();
+            firstOutput = System.nanoTime() - start;
+            out.transferTo(OutputStream.nullOutputStream());
+        }
+        try {
+            process.waitFor();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for go2web", e);
+        }
+        return new long[]{firstOutput, System.nanoTime() - start};
+    }
+
+    private static String percentiles(long[] nanos) {
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        long p50 = sorted[(sorted.length - 1) / 2];
+        long p90 = sorted[(int) Math.ceil(sorted.length * 0.9) - 1];
+        return String.format(Locale.US, "%.1f / %.1f", p50 / 1e6, p90 / 1e6);
+    }
+
+    private interface Launch {
+        long[] run(int n) throws IOException;
+    }
+}
@@ -1,35 +1,68 @@
 package org.c8a;
 
+import org.c8a.batch.BatchFetcher;
 import org.c8a.cache.CacheManager;
+import org.c8a.cache.CacheStats;
+import org.c8a.client.SSLSocketFactory;
+import org.c8a.daemon.Daemon;
+import org.c8a.daemon.DaemonClient;
 import org.c8a.handler.HttpHandler;
+import org.c8a.metrics.Metrics;
 import org.c8a.search.SearchEngine;
 
+import java.io.IOException;
+
 public class Go2Web {
 
     public static void main(String[] args) {
-        CacheManager cacheManager = new CacheManager();
-        HttpHandler httpHandler = new HttpHandler(cacheManager);
-        SearchEngine searchEngine = new SearchEngine(httpHandler);
+        if (args.length < 1 || args[0].equals("-h")) {
+            showHelp();
+            return;
+        }
+
+        // A running daemon already has the cache open and connections warm; hand the request over before opening anything
+        boolean forwardable = (args[0].equals("-u") || args[0].equals("-s") || args[0].equals("-b")) && args.length >= 2;
+        if (forwardable && DaemonClient.forward(args)) {
+            return;
+        }
+        if (args[0].equals("-d")) {
+            handleDaemonRequest(args);
+            return;
+        }
 
-        if (args.length < 1) {
+        if (!args[0].equals("-u") && !args[0].equals("-s") && !args[0].equals("-b")) {
+            System.out.println("Unknown option: " + args[0]);
             showHelp();
             return;
         }
 
+        // Only commands that fetch open the cache; search builds its engine on top of the same handler
+        CacheManager cacheManager = new CacheManager();
+        HttpHandler httpHandler = new HttpHandler(cacheManager);
+
         switch (args[0]) {
             case "-u":
                 handleUrlRequest(httpHandler, args);
                 break;
             case "-s":
-                handleSearchRequest(searchEngine, args);
+                handleSearchRequest(new SearchEngine(httpHandler), args);
                 break;
-            case "-h":
-                showHelp();
+            case "-b":
+                handleBatchRequest(httpHandler, args);
                 break;
-            default:
-                System.out.println("Unknown option: " + args[0]);
-                showHelp();
         }
+
+        CacheStats cacheStats = cacheManager.getStats();
+        if (cacheStats.getHits() + cacheStats.getMisses() > 0) {
+            System.out.println("\n" + cacheStats);
+        }
+
+        SSLSocketFactory.TlsStats tlsStats = SSLSocketFactory.getStats();
+        if (tlsStats.getTotalHandshakes() > 0) {
+            System.out.println("\n" + tlsStats);
+        }
+
+        Metrics.exportIfRequested(System.out);
     }
 
     private static void handleUrlRequest(HttpHandler handler, String[] args) {
@@ -48,10 +81,37 @@ public class Go2Web {
         engine.search(args);
     }
 
+    private static void handleDaemonRequest(String[] args) {
+        if (args.length < 2 || args[1].equals("start")) {
+            try {
+                new Daemon(DaemonClient.socketPath()).run();
+            } catch (IOException e) {
+                System.out.println("Could not start daemon: " + e.getMessage());
+            }
+            return;
+        }
+        if (!DaemonClient.forward(args)) {
+            System.out.println("No go2web daemon is listening on " + DaemonClient.socketPath());
+        }
+    }
+
+    private static void handleBatchRequest(HttpHandler handler, String[] args) {
+        if (!BatchFetcher.runCommand(handler, args, System.out)) {
+            showHelp();
+        }
+    }
+
     private static void showHelp() {
         System.out.println("Usage:");
         System.out.println("go2web -u <URL>         # make an HTTP request to the specified URL and print the response");
         System.out.println("go2web -s <search-term> # make an HTTP request to search the term using your favorite search engine and print top 10 results");
+        System.out.println("go2web -b <URL>... [-f <file>] [-] [-c <n>] [-p <n>]");
+        System.out.println("                        # fetch many URLs in parallel (from args, a file, or stdin with -)");
+        System.out.println("                        # -c total concurrency (default " + BatchFetcher.DEFAULT_CONCURRENCY
+                + "), -p per-host concurrency (default " + BatchFetcher.DEFAULT_PER_HOST_CONCURRENCY + ")");
+        System.out.println("go2web -d [start]       # run as a daemon that keeps the cache and connections warm; -u, -s and -b calls are forwarded to it");
+        System.out.println("go2web -d status|stop|metrics [prometheus]");
+        System.out.println("                        # query or stop the running daemon");
         System.out.println("go2web -h               # show this help");
     }
 }
\ No newline at end of file
@@ -0,0 +1,157 @@
+package org.c8a;
+
+import org.c8a.cache.CacheManager;
+import org.c8a.client.SSLSocketFactory;
+import org.c8a.handler.HttpHandler;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The training run for the class-data-sharing archive ({@code mvn -Pcds package}): fetches from a canned
+ * local server through the real path (chunked gzip HTML, JSON, a redirect, a cache hit, both extractors)
+ * and starts a TLS handshake, so the classes a real run loads are archived without touching the network.
+ */
+public class StartupTraining {
+
+    private static final String PAGE = "<html><head><title>go2web</title></head><body><main><h1>Training</h1>"
+            + "<p>" + "Class data sharing maps these classes instead of loading them. ".repeat(20) + "</p>"
+            + "<ul><li>one</li><li>two</li></ul><table><tr><td>a</td><td>b</td></tr></table></main></body></html>";
+    private static final String JSON = "{\"name\":\"go2web\",\"tags\":[\"cds\",\"startup\"],\"nested\":{\"n\":1,\"ok\":true}}";
+
+    public static void main(String[] args) throws IOException {
+        Path directory = Files.createTempDirectory("go2web-training");
+        try (ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            Thread.ofPlatform().daemon().name("go2web-training").start(() -> accept(server));
+            String origin = "http://127.0.0.1:" + server.getLocalPort();
+
+            CacheManager cacheManager = new CacheManager(directory);
+            HttpHandler handler = new HttpHandler(cacheManager);
+            handler.fetchURL(origin + "/page");
+            handler.fetchURL(origin + "/page");
+            handler.fetchURL(origin + "/json");
+            handler.fetchURL(origin + "/redirect");
+            handler.setStreamingExtraction(true);
+            handler.fetchURL(origin + "/streamed");
+            cacheManager.close();
+
+            // The server does not speak TLS, but the context, trust store and ClientHello are what cost at startup
+            try {
+                closeQuietly(SSLSocketFactory.createSSLSocket("localhost", server.getLocalPort(), 2000));
+                System.out.println("\nUnexpected TLS handshake with the training server");
+            } catch (IOException expected) {
+                System.out.println("\nTLS handshake exercised");
+            }
+        } finally {
+            try (Stream<Path> files = Files.walk(directory)) {
+                for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                    Files.delete(file);
+                }
+            }
+        }
+    }
+
+    private static void accept(ServerSocket server) {
+        byte[] page = gzip(PAGE.getBytes(StandardCharsets.UTF_8));
+        while (true) {
+            try {
+                Socket socket = server.accept();
+                Thread.ofPlatform().daemon().start(() -> serve(socket, page));
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private static void serve(Socket socket, byte[] gzippedPage) {
+        try (socket) {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+            String path;
+            while ((path = readRequest(in)) != null) {
+                switch (path) {
+                    case "/page", "/streamed" -> {
+                        out.write(("HTTP/1.1 200 OK\r\nContent-Type: text/html; charset=utf-8\r\nContent-Encoding: gzip\r\n"
+                                + "Transfer-Encoding: chunked\r\nCache-Control: max-age=60\r\nETag: \"training\"\r\n\r\n")
+                                .getBytes(StandardCharsets.US_ASCII));
+                        int half = gzippedPage.length / 2;
+                        writeChunk(out, gzippedPage, 0, half);
+                        writeChunk(out, gzippedPage, half, gzippedPage.length - half);
+                        out.write("0\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+                    }
+                    case "/json" -> respond(out, "200 OK", "application/json", JSON);
+                    case "/redirect" -> out.write(("HTTP/1.1 301 Moved Permanently\r\nLocation: /streamed\r\n"
+                            + "Content-Length: 0\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+                    default -> respond(out, "404 Not Found", "text/plain", "Not found");
+                }
+                out.flush();
+            }
+        } catch (IOException e) {
+            // The client went away, or it was the TLS attempt
+        }
+    }
+
+    /**
+     * Returns the request's path after consuming its head, or null at the end of the connection or for
+     * anything that is not HTTP.
+     */
+    private static String readRequest(InputStream in) throws IOException {
+        StringBuilder head = new StringBuilder();
+        int last = 0;
+        int b;
+        while ((b = in.read()) >= 0) {
+            if (head.isEmpty() && b == 0x16) {
+                return null;
+            }
+            head.append((char) b);
+            last = (last << 8) | b;
+            if (last == 0x0D0A0D0A) {
+                String[] requestLine = head.toString().split(" ", 3);
+                return requestLine.length > 1 ? requestLine[1] : "/";
+            }
+        }
+        return null;
+    }
+
+    private static void respond(OutputStream out, String status, String contentType, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        out.write(("HTTP/1.1 " + status + "\r\nContent-Type: " + contentType + "\r\nContent-Length: " + bytes.length
+                + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        out.write(bytes);
+    }
+
+    private static void writeChunk(OutputStream out, byte[] bytes, int offset, int length) throws IOException {
+        out.write((Integer.toHexString(length) + "\r\n").getBytes(StandardCharsets.US_ASCII));
+        out.write(bytes, offset, length);
+        out.write("\r\n".getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static byte[] gzip(byte[] bytes) {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(buffer)) {
+            gzip.write(bytes);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return buffer.toByteArray();
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package org.c8a.batch;
+
+import org.c8a.client.ConnectionPool;
+import org.c8a.handler.FetchResult;
+import org.c8a.handler.HttpHandler;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+public class BatchFetcher {
+
+    public static final int DEFAULT_CONCURRENCY = 16;
+    public static final int DEFAULT_PER_HOST_CONCURRENCY = 4;
+
+    private final HttpHandler handler;
+    private final int maxConcurrency;
+    private final int maxPerHost;
+    private final Map<String, Semaphore> hostPermits = new ConcurrentHashMap<>();
+
+    public BatchFetcher(HttpHandler handler) {
+        this(handler, DEFAULT_CONCURRENCY, DEFAULT_PER_HOST_CONCURRENCY);
+    }
+
+    public BatchFetcher(HttpHandler handler, int maxConcurrency, int maxPerHost) {
+        if (maxConcurrency < 1 || maxPerHost < 1) {
+            throw new IllegalArgumentException("Concurrency limits must be at least 1");
+        }
+        this.handler = handler;
+        this.maxConcurrency = maxConcurrency;
+        // More in-flight requests per host than the pool allows would only queue inside the pool
+        this.maxPerHost = Math.min(maxPerHost, ConnectionPool.shared().getMaxConnectionsPerHost());
+    }
+
+    /**
+     * Runs {@code -b} with its command-line options: URLs, {@code -f <file>}, {@code -} for stdin, {@code -c}
+     * and {@code -p}. Returns false, having printed why, if the options are invalid.
+     */
+    public static boolean runCommand(HttpHandler handler, String[] args, PrintStream out) {
+        List<String> urls = new ArrayList<>();
+        int concurrency = DEFAULT_CONCURRENCY;
+        int perHost = DEFAULT_PER_HOST_CONCURRENCY;
+
+        try {
+            for (int i = 1; i < args.length; i++) {
+                switch (args[i]) {
+                    case "-f" -> {
+                        try (BufferedReader reader = Files.newBufferedReader(Path.of(args[++i]))) {
+                            urls.addAll(readUrls(reader));
+                        }
+                    }
+                    case "-" -> urls.addAll(readUrls(new BufferedReader(new InputStreamReader(System.in))));
+                    case "-c" -> concurrency = Integer.parseInt(args[++i]);
+                    case "-p" -> perHost = Integer.parseInt(args[++i]);
+                    default -> urls.add(args[i]);
+                }
+            }
+        } catch (IOException e) {
+            out.println("Could not read URL list: " + e.getMessage());
+            return true;
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            out.println("Invalid batch options");
+            return false;
+        }
+
+        if (urls.isEmpty()) {
+            out.println("At least one URL required with -b");
+            return true;
+        }
+
+        handler.setVerbose(false);
+        try {
+            BatchFetcher fetcher = new BatchFetcher(handler, concurrency, perHost);
+            fetcher.run(urls, out).print(out);
+        } catch (IllegalArgumentException e) {
+            out.println(e.getMessage());
+        }
+        return true;
+    }
+
+    private static List<String> readUrls(BufferedReader reader) throws IOException {
+        List<String> urls = new ArrayList<>();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            line = line.trim();
+            if (!line.isEmpty() && !line.startsWith("#")) {
+                urls.add(line);
+            }
+        }
+        return urls;
+    }
+
+    /**
+     * Fetches every URL on its own virtual thread and prints results in input order as they become available.
+     */
+    public BatchSummary run(List<String> urls, PrintStream out) {
+        Semaphore globalPermits = new Semaphore(maxConcurrency);
+        List<Future<FetchResult>> futures = new ArrayList<>(urls.size());
+        List<FetchResult> results = new ArrayList<>(urls.size());
+        long start = System.nanoTime();
+
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (String url : urls) {
+                futures.add(executor.submit(() -> fetchWithLimits(url, globalPermits)));
+            }
+
+            for (int i = 0; i < futures.size(); i++) {
+                FetchResult result = await(futures.get(i), urls.get(i));
+                results.add(result);
+
+                out.println("\n==> [" + (i + 1) + "/" + urls.size() + "] " + result.requestedUrl()
+                        + " (" + describe(result) + ", " + String.format(Locale.US, "%.1f ms", result.elapsedMillis()) + ") <==");
+                HttpHandler.printResult(result, out);
+            }
+        }
+
+        BatchSummary summary = BatchSummary.of(results, System.nanoTime() - start);
+        handler.awaitRevalidations();
+        handler.getCacheManager().saveCacheToFile();
+        return summary;
+    }
+
+    private FetchResult fetchWithLimits(String url, Semaphore globalPermits) throws InterruptedException {
+        // Host first, then global: a task waiting on a busy host must not sit on a global slot
+        Semaphore hostLimit = hostPermits.computeIfAbsent(hostOf(url), h -> new Semaphore(maxPerHost));
+        hostLimit.acquire();
+        try {
+            globalPermits.acquire();
+            try {
+                return handler.fetch(url);
+            } finally {
+                globalPermits.release();
+            }
+        } finally {
+            hostLimit.release();
+        }
+    }
+
+    private static FetchResult await(Future<FetchResult> future, String url) {
+        long start = System.nanoTime();
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new FetchResult(url, url, FetchResult.Status.FAILED, -1, null, List.of(), null, 0, 0,
+                    System.nanoTime() - start, "Error: Interrupted");
+        } catch (ExecutionException e) {
+            return new FetchResult(url, url, FetchResult.Status.FAILED, -1, null, List.of(), null, 0, 0,
+                    System.nanoTime() - start, "Error fetching URL: " + e.getCause());
+        }
+    }
+
+    private static String describe(FetchResult result) {
+        return switch (result.status()) {
+            case FETCHED -> "HTTP " + result.statusCode();
+            case CACHED -> "cache hit";
+            case NOT_MODIFIED -> "304 revalidated";
+            case STALE -> "stale cache hit";
+            case FAILED -> "failed";
+        };
+    }
+
+    static String hostOf(String url) {
+        String withScheme = url.startsWith("http://") || url.startsWith("https://") ? url : "https://" + url;
+        try {
+            String host = URI.create(withScheme).getHost();
+            return host != null ? host.toLowerCase() : url;
+        } catch (IllegalArgumentException e) {
+            return url;
+        }
+    }
+
+    public record BatchSummary(int total, int fetched, int fromCache, int failed, long wallNanos, long wireBytes,
+                               double[] latencyMillis) {
+
+        static BatchSummary of(List<FetchResult> results, long wallNanos) {
+            int fetched = 0, fromCache = 0, failed = 0;
+            long wireBytes = 0;
+            double[] latencies = new double[results.size()];
+            for (int i = 0; i < results.size(); i++) {
+                FetchResult result = results.get(i);
+                if (result.status() == FetchResult.Status.FETCHED) fetched++;
+                else if (result.isFromCache()) fromCache++;
+                else failed++;
+                wireBytes += result.wireBytes();
+                latencies[i] = result.elapsedMillis();
+            }
+            Arrays.sort(latencies);
+            return new BatchSummary(results.size(), fetched, fromCache, failed, wallNanos, wireBytes, latencies);
+        }
+
+        public double throughput() {
+            return wallNanos == 0 ? 0 : total / (wallNanos / 1e9);
+        }
+
+        public double percentile(double p) {
+            if (latencyMillis.length == 0) return 0;
+            int index = (int) Math.ceil(p / 100.0 * latencyMillis.length) - 1;
+            return latencyMillis[Math.max(0, Math.min(index, latencyMillis.length - 1))];
+        }
+
+        public void print(PrintStream out) {
+            out.println("\nBatch summary:");
+            out.println(String.format(Locale.US, "  %d URLs in %.2f s (%.1f req/s)", total, wallNanos / 1e9, throughput()));
+            out.println("  " + fetched + " fetched, " + fromCache + " from cache, " + failed + " failed, "
+                    + wireBytes + " bytes transferred");
+            out.println(String.format(Locale.US, "  Latency ms: p50 %.1f | p90 %.1f | p99 %.1f | max %.1f",
+                    percentile(50), percentile(90), percentile(99), percentile(100)));
+        }
+    }
+}
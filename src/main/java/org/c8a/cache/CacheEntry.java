@@ -3,13 +3,47 @@ package org.c8a.cache;
 import java.io.Serial;
 import java.io.Serializable;
 import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public record CacheEntry(String content, Map<String, String> headers, long expirationTime) implements Serializable {
     @Serial
     private static final long serialVersionUID = 1L;
 
+    private static final Pattern STALE_WHILE_REVALIDATE = Pattern.compile("stale-while-revalidate\\s*=\\s*\"?(\\d{1,9})");
+    private static final Pattern STALE_IF_ERROR = Pattern.compile("stale-if-error\\s*=\\s*\"?(\\d{1,9})");
+
     public boolean isExpired() {
         return System.currentTimeMillis() > expirationTime;
     }
-}
 
+    /**
+     * Until when an expired entry may still be served while it is refreshed (Cache-Control stale-while-revalidate).
+     */
+    public long staleWhileRevalidateUntil() {
+        return staleUntil(STALE_WHILE_REVALIDATE);
+    }
+
+    /**
+     * Until when an expired entry may be served if refreshing it fails (Cache-Control stale-if-error).
+     */
+    public long staleIfErrorUntil() {
+        return staleUntil(STALE_IF_ERROR);
+    }
+
+    /**
+     * The last moment the entry is of any use, fresh or stale.
+     */
+    public long usableUntil() {
+        return Math.max(staleWhileRevalidateUntil(), staleIfErrorUntil());
+    }
+
+    private long staleUntil(Pattern directive) {
+        String cacheControl = headers.get("Cache-Control");
+        if (cacheControl == null || expirationTime <= 0) {
+            return expirationTime;
+        }
+        Matcher matcher = directive.matcher(cacheControl);
+        return matcher.find() ? expirationTime + Long.parseLong(matcher.group(1)) * 1000 : expirationTime;
+    }
+}
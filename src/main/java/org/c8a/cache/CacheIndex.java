@@ -0,0 +1,335 @@
+package org.c8a.cache;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.random.RandomGenerator;
+
+/**
+ * A memory-mapped hash table from a 64-bit key to where a record sits in the log, plus its expiry and a link.
+ * The log keeps two: one keyed by URL hash, linking each entry to the hash of its body, and one keyed by body
+ * hash, where the link is the number of entries sharing that body.
+ * Opening it costs the same whatever the number of entries, and lookups and expiry scans never touch content.
+ * Slots use linear probing with backward-shift deletion. The header also carries the log's byte counts and
+ * how far into the log the index is known to be current, so only records appended after that are replayed.
+ * <pre>
+ * header (64 bytes): magic "G2WI" | version | state | capacity | size | covered segment | covered offset (long)
+ *                    | total log bytes (long) | live log bytes (long)
+ * slot (40 bytes):   key (long, 0 = empty) | segment | record length | record offset (long) | expiry (long)
+ *                    | link (long)
+ * </pre>
+ * Callers hold the log's lock; hash collisions are caught by comparing the URL stored in the record.
+ */
+class CacheIndex {
+
+    private static final int MAGIC = 0x47325749; // "G2WI"
+    private static final int VERSION = 2;
+    private static final int STATE_VALID = 1;
+    private static final int STATE_RESIZING = 2;
+
+    private static final int HEADER_SIZE = 64;
+    private static final int SLOT_SIZE = 40;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private static final int STATE = 8;
+    private static final int CAPACITY = 12;
+    private static final int SIZE = 16;
+    private static final int COVERED_SEGMENT = 20;
+    private static final int COVERED_OFFSET = 24;
+    private static final int TOTAL_BYTES = 32;
+    private static final int LIVE_BYTES = 40;
+
+    private final Path file;
+    private FileChannel channel;
+    private MappedByteBuffer map;
+    private int capacity;
+
+    CacheIndex(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * Maps an existing index; returns false if there is none or it cannot be trusted, leaving a fresh empty one.
+     */
+    boolean open() throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long size = channel.size();
+        if (size >= HEADER_SIZE) {
+            map(size);
+            capacity = map.getInt(CAPACITY);
+            if (map.getInt(0) == MAGIC && map.getInt(4) == VERSION && map.getInt(STATE) == STATE_VALID
+                    && capacity >= INITIAL_CAPACITY && Integer.bitCount(capacity) == 1
+                    && size == HEADER_SIZE + (long) capacity * SLOT_SIZE) {
+                return true;
+            }
+        }
+        clear(INITIAL_CAPACITY);
+        return false;
+    }
+
+    private void map(long size) throws IOException {
+        map = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+    private void clear(int newCapacity) throws IOException {
+        long size = HEADER_SIZE + (long) newCapacity * SLOT_SIZE;
+        if (channel.size() > size) {
+            map = null;
+            channel.truncate(size);
+        }
+        map(size);
+        for (int i = 0; i < size; i += 8) {
+            map.putLong(i, 0);
+        }
+        capacity = newCapacity;
+        map.putInt(0, MAGIC).putInt(4, VERSION).putInt(STATE, STATE_VALID).putInt(CAPACITY, capacity);
+    }
+
+    /**
+     * Drops every slot, e.g. before rebuilding from the log.
+     */
+    void reset() throws IOException {
+        clear(INITIAL_CAPACITY);
+    }
+
+    Location get(long hash) {
+        int slot = find(hash);
+        return slot < 0 ? null : location(slot);
+    }
+
+    /**
+     * Points the hash at a new record; returns the location it replaced, if any.
+     */
+    Location put(long hash, Location location) throws IOException {
+        int slot = find(hash);
+        if (slot >= 0) {
+            Location previous = location(slot);
+            write(slot, hash, location);
+            return previous;
+        }
+
+        if ((size() + 1) * 10L > capacity * 7L) {
+            resize(capacity * 2);
+        }
+        int mask = capacity - 1;
+        int i = (int) hash & mask;
+        while (hashAt(i) != 0) {
+            i = (i + 1) & mask;
+        }
+        write(i, hash, location);
+        map.putInt(SIZE, size() + 1);
+        return null;
+    }
+
+    Location remove(long hash) {
+        int slot = find(hash);
+        if (slot < 0) {
+            return null;
+        }
+        Location previous = location(slot);
+        deleteAt(slot);
+        map.putInt(SIZE, size() - 1);
+        return previous;
+    }
+
+    /**
+     * Hashes of all entries whose expiry has passed, found from the index alone.
+     */
+    List<Long> expired(long now) {
+        List<Long> hashes = new ArrayList<>();
+        for (int i = 0; i < capacity; i++) {
+            long hash = hashAt(i);
+            if (hash != 0 && now > map.getLong(slotOffset(i) + 24)) {
+                hashes.add(hash);
+            }
+        }
+        return hashes;
+    }
+
+    List<Long> hashes() {
+        List<Long> hashes = new ArrayList<>(size());
+        for (int i = 0; i < capacity; i++) {
+            long hash = hashAt(i);
+            if (hash != 0) {
+                hashes.add(hash);
+            }
+        }
+        return hashes;
+    }
+
+    /**
+     * The hash in the first occupied slot at or after a random position, or 0 if the index is empty.
+     */
+    long sample(RandomGenerator random) {
+        if (size() == 0) {
+            return 0;
+        }
+        int mask = capacity - 1;
+        int i = random.nextInt(capacity);
+        long hash;
+        while ((hash = hashAt(i)) == 0) {
+            i = (i + 1) & mask;
+        }
+        return hash;
+    }
+
+    int size() {
+        return map.getInt(SIZE);
+    }
+
+    int getCoveredSegment() {
+        return map.getInt(COVERED_SEGMENT);
+    }
+
+    long getCoveredOffset() {
+        return map.getLong(COVERED_OFFSET);
+    }
+
+    void setCovered(int segment, long offset) {
+        map.putInt(COVERED_SEGMENT, segment).putLong(COVERED_OFFSET, offset);
+    }
+
+    long getTotalBytes() {
+        return map.getLong(TOTAL_BYTES);
+    }
+
+    long getLiveBytes() {
+        return map.getLong(LIVE_BYTES);
+    }
+
+    void setByteCounts(long totalBytes, long liveBytes) {
+        map.putLong(TOTAL_BYTES, totalBytes).putLong(LIVE_BYTES, liveBytes);
+    }
+
+    void force() {
+        map.force();
+    }
+
+    void close() throws IOException {
+        map = null;
+        channel.close();
+    }
+
+    private void resize(int newCapacity) throws IOException {
+        long[] hashes = new long[size()];
+        Location[] locations = new Location[hashes.length];
+        int n = 0;
+        for (int i = 0; i < capacity; i++) {
+            long hash = hashAt(i);
+            if (hash != 0) {
+                hashes[n] = hash;
+                locations[n++] = location(i);
+            }
+        }
+        int coveredSegment = getCoveredSegment();
+        long coveredOffset = getCoveredOffset();
+        long totalBytes = getTotalBytes();
+        long liveBytes = getLiveBytes();
+
+        // A crash halfway through leaves the state flag unset, and the next open rebuilds from the log
+        map.putInt(STATE, STATE_RESIZING);
+        clear(newCapacity);
+        map.putInt(STATE, STATE_RESIZING);
+        int mask = capacity - 1;
+        for (int k = 0; k < n; k++) {
+            int i = (int) hashes[k] & mask;
+            while (hashAt(i) != 0) {
+                i = (i + 1) & mask;
+            }
+            write(i, hashes[k], locations[k]);
+        }
+        map.putInt(SIZE, n);
+        setCovered(coveredSegment, coveredOffset);
+        setByteCounts(totalBytes, liveBytes);
+        map.putInt(STATE, STATE_VALID);
+    }
+
+    private int find(long hash) {
+        int mask = capacity - 1;
+        int i = (int) hash & mask;
+        while (true) {
+            long current = hashAt(i);
+            if (current == hash) {
+                return i;
+            }
+            if (current == 0) {
+                return -1;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    private void deleteAt(int hole) {
+        int mask = capacity - 1;
+        int i = hole;
+        while (true) {
+            i = (i + 1) & mask;
+            long hash = hashAt(i);
+            if (hash == 0) {
+                break;
+            }
+            // An entry may move back into the hole only if its home slot is not between the hole and itself
+            int home = (int) hash & mask;
+            boolean stays = hole <= i ? hole < home && home <= i : hole < home || home <= i;
+            if (!stays) {
+                write(hole, hash, location(i));
+                hole = i;
+            }
+        }
+        map.putLong(slotOffset(hole), 0);
+    }
+
+    private long hashAt(int slot) {
+        return map.getLong(slotOffset(slot));
+    }
+
+    private Location location(int slot) {
+        int offset = slotOffset(slot);
+        return new Location(map.getInt(offset + 8), map.getLong(offset + 16), map.getInt(offset + 12),
+                map.getLong(offset + 24), map.getLong(offset + 32));
+    }
+
+    private void write(int slot, long hash, Location location) {
+        int offset = slotOffset(slot);
+        map.putInt(offset + 8, location.segment())
+                .putInt(offset + 12, location.length())
+                .putLong(offset + 16, location.offset())
+                .putLong(offset + 24, location.expirationTime())
+                .putLong(offset + 32, location.link())
+                .putLong(offset, hash);
+    }
+
+    private static int slotOffset(int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    /**
+     * 64-bit FNV-1a over the URL's UTF-8 bytes, finished with a mixer so the low bits spread well; never 0.
+     */
+    static long hash(String url) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : url.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xFF;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h != 0 ? h : 1;
+    }
+
+    /**
+     * Where a record lives: segment number, byte offset and length including the record header.
+     */
+    record Location(int segment, long offset, int length, long expirationTime, long link) {
+
+        Location withLink(long newLink) {
+            return new Location(segment, offset, length, expirationTime, newLink);
+        }
+    }
+}
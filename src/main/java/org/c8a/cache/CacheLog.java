@@ -0,0 +1,906 @@
+package org.c8a.cache;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.random.RandomGenerator;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The cache on disk: numbered segment files holding CRC-checked records that are only ever appended.
+ * A later record for a URL supersedes the earlier ones. A record cut short by a crash fails its length
+ * or CRC check and is dropped along with anything after it, so a torn write loses only that record.
+ * Once superseded and expired records outweigh the live ones, {@link #compact} copies the live records
+ * into a fresh segment and deletes the rest.
+ * <p>
+ * Page content is stored apart from the URL's entry, deflated and keyed by a hash of the content, so a body
+ * reached through several URLs (mirrors, tracking parameters, redirects) is written once. Each body counts
+ * the entries referring to it and becomes garbage when the last one goes.
+ * <p>
+ * Two {@link CacheIndex}es map each URL to its latest entry and each body hash to its body, so opening the
+ * log reads nothing but the records appended since the indexes were last updated, and a lookup reads
+ * exactly two records. Lookups share a read lock and read their records outside it; appends, removals and
+ * compaction take the write lock.
+ * <pre>
+ * segment: magic "G2WC" | version (int) | record*
+ * record:  payload length (int) | CRC32 of payload (int) | payload
+ * entry:   1 (byte) | url | expirationTime (long) | body hash (long) | header count (int) | (name, value)*
+ * body:    2 (byte) | body hash (long) | content length (int) | deflated (boolean) | UTF-8 content, maybe deflated
+ * removal: 3 (byte) | count (int) | URL hash (long)*
+ * strings: byte length (int, -1 for null) | UTF-8 bytes
+ * </pre>
+ * A body is always appended before the first entry that refers to it. Removing, expiring or evicting entries
+ * appends a removal record naming them, so rebuilding the indexes from the segments does not bring them back. Segments of version 1, which held the
+ * content inline in each entry, are rewritten in this format when the log is opened.
+ * <p>
+ * The expiry the indexes keep is when an entry stops being usable at all, including the time it may be
+ * served stale, so expiry scans and eviction leave stale-but-servable entries alone.
+ */
+class CacheLog {
+
+    private static final int MAGIC = 0x47325743; // "G2WC"
+    private static final int VERSION = 2;
+    private static final int LEGACY_VERSION = 1;
+    private static final byte KIND_ENTRY = 1;
+    private static final byte KIND_BODY = 2;
+    private static final byte KIND_REMOVAL = 3;
+    private static final int SEGMENT_HEADER_SIZE = 8;
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final long MAX_SEGMENT_SIZE = 64L * 1024 * 1024;
+    private static final long MIN_COMPACTION_SIZE = 1024 * 1024;
+    private static final String SUFFIX = ".seg";
+    private static final String INDEX_FILE = "index.map";
+    private static final String BODIES_FILE = "bodies.map";
+    private static final String LOCK_FILE = "cache.lock";
+
+    private final Path directory;
+    private final List<Integer> segments = new ArrayList<>();
+    private final Map<Integer, FileChannel> readers = new ConcurrentHashMap<>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private FileChannel directoryLock;
+    private CacheIndex index;
+    private CacheIndex bodies;
+    private FileChannel active;
+    private int activeNumber;
+    private long activeSize;
+
+    CacheLog(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Locks the directory against other processes, maps the indexes and catches them up with the log; returns
+     * the number of entries. Throws {@link InUseException} if another process has the cache open.
+     */
+    int open() throws IOException {
+        lock.writeLock().lock();
+        try {
+            Files.createDirectories(directory);
+            lockDirectory();
+            try {
+                return openLocked();
+            } catch (IOException | RuntimeException e) {
+                directoryLock.close();
+                throw e;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Segments, indexes and the sketch are all written in place, so a second writer would corrupt them; the
+     * lock is held until {@link #close} and released by the OS if the process dies.
+     */
+    private void lockDirectory() throws IOException {
+        directoryLock = FileChannel.open(directory.resolve(LOCK_FILE),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock acquired;
+        try {
+            acquired = directoryLock.tryLock();
+        } catch (OverlappingFileLockException e) {
+            acquired = null; // held by another cache in this JVM
+        }
+        if (acquired == null) {
+            directoryLock.close();
+            throw new InUseException("Cache directory " + directory + " is in use by another go2web process");
+        }
+    }
+
+    private int openLocked() throws IOException {
+        try (Stream<Path> listing = Files.list(directory)) {
+            listing.map(CacheLog::segmentNumber).filter(n -> n > 0).sorted().forEach(segments::add);
+        }
+        List<Integer> legacy = new ArrayList<>();
+        for (Integer number : segments) {
+            if (segmentVersion(number) == LEGACY_VERSION) {
+                legacy.add(number);
+            }
+        }
+        segments.removeAll(legacy);
+        int lastNumber = Math.max(segments.isEmpty() ? 0 : segments.getLast(), legacy.isEmpty() ? 0 : legacy.getLast());
+
+        index = new CacheIndex(directory.resolve(INDEX_FILE));
+        bodies = new CacheIndex(directory.resolve(BODIES_FILE));
+        boolean indexValid = index.open() & bodies.open();
+        int fromSegment = index.getCoveredSegment();
+        long fromOffset = index.getCoveredOffset();
+        if (!indexValid || !segments.contains(fromSegment) || Files.size(segmentPath(fromSegment)) < fromOffset) {
+            if (!segments.isEmpty()) {
+                System.out.println("\nRebuilding cache index from " + segments.size() + " segment(s)");
+            }
+            index.reset();
+            bodies.reset();
+            fromSegment = segments.isEmpty() ? 0 : segments.getFirst();
+            fromOffset = 0;
+        }
+
+        for (Integer number : new ArrayList<>(segments)) {
+            if (number < fromSegment) {
+                continue;
+            }
+            Path file = segmentPath(number);
+            long validLength = scan(number, number == fromSegment ? fromOffset : 0, VERSION,
+                    (offset, payload) -> replayRecord(number, offset, payload));
+            if (validLength < 0) {
+                System.err.println("\nIgnoring unreadable cache segment " + file.getFileName());
+                segments.remove(number);
+                continue;
+            }
+            if (validLength < Files.size(file)) {
+                System.err.println("\nDropped a damaged record at the end of cache segment " + file.getFileName());
+                if (number.equals(segments.getLast())) {
+                    // Cut the torn tail off so new records follow the last good one
+                    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                        channel.truncate(validLength);
+                    }
+                }
+            }
+        }
+
+        if (!segments.isEmpty() && Files.size(segmentPath(segments.getLast())) < MAX_SEGMENT_SIZE) {
+            activeNumber = segments.getLast();
+            active = FileChannel.open(segmentPath(activeNumber), StandardOpenOption.WRITE);
+            activeSize = active.size();
+        } else {
+            activeNumber = lastNumber;
+            startSegment();
+        }
+
+        if (!legacy.isEmpty()) {
+            upgrade(legacy);
+        }
+        return index.size();
+    }
+
+    private int segmentVersion(int number) throws IOException {
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(segmentPath(number)))) {
+            return in.readInt() == MAGIC ? in.readInt() : -1;
+        } catch (EOFException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Re-appends the live entries of version 1 segments in the current format, then deletes those segments.
+     */
+    private void upgrade(List<Integer> legacy) throws IOException {
+        long now = System.currentTimeMillis();
+        int[] upgraded = {0};
+        for (Integer number : legacy) {
+            scan(number, 0, LEGACY_VERSION, (offset, payload) -> {
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+                String url = readString(in);
+                long expirationTime = in.readLong();
+                Map<String, String> headers = readHeaders(in);
+                CacheEntry entry = new CacheEntry(readString(in), headers, expirationTime);
+                if (entry.usableUntil() >= now) {
+                    appendLocked(encode(url, entry));
+                    upgraded[0]++;
+                }
+            });
+        }
+        active.force(false);
+        index.force();
+        bodies.force();
+        for (Integer number : legacy) {
+            Files.deleteIfExists(segmentPath(number));
+        }
+        System.out.println("\nUpgraded " + upgraded[0] + " cache entries to compressed storage");
+    }
+
+    /**
+     * Hands each record of one segment from the given offset (0 for the start) to the consumer; returns the
+     * length of its valid prefix, or -1 if the file is not a segment of the given version.
+     */
+    private long scan(int number, long from, int version, RecordConsumer consumer) throws IOException {
+        Path file = segmentPath(number);
+        long fileSize = Files.size(file);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+             DataInputStream in = new DataInputStream(
+                     new BufferedInputStream(Channels.newInputStream(channel.position(from)), 64 * 1024))) {
+            long offset = from;
+            if (from < SEGMENT_HEADER_SIZE) {
+                try {
+                    if (in.readInt() != MAGIC || in.readInt() != version) {
+                        return -1;
+                    }
+                } catch (EOFException e) {
+                    return -1;
+                }
+                offset = SEGMENT_HEADER_SIZE;
+            }
+
+            CRC32 crc = new CRC32();
+            while (offset < fileSize) {
+                int length;
+                int checksum;
+                byte[] payload;
+                try {
+                    length = in.readInt();
+                    checksum = in.readInt();
+                    if (length < 0 || length > fileSize - offset - RECORD_HEADER_SIZE) {
+                        return offset;
+                    }
+                    payload = in.readNBytes(length);
+                } catch (EOFException e) {
+                    return offset;
+                }
+                crc.reset();
+                crc.update(payload);
+                if (payload.length != length || (int) crc.getValue() != checksum) {
+                    return offset;
+                }
+
+                consumer.accept(offset, payload);
+                offset += RECORD_HEADER_SIZE + length;
+            }
+            return offset;
+        }
+    }
+
+    private void replayRecord(int number, long offset, byte[] payload) throws IOException {
+        DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+        int length = RECORD_HEADER_SIZE + payload.length;
+        byte kind = record.readByte();
+        if (kind == KIND_BODY) {
+            indexBody(record.readLong(), new CacheIndex.Location(number, offset, length, Long.MAX_VALUE, 0));
+        } else if (kind == KIND_REMOVAL) {
+            int count = record.readInt();
+            List<Long> hashes = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                hashes.add(record.readLong());
+            }
+            unindex(hashes, length);
+            index.setCovered(number, offset + length);
+        } else {
+            String url = readString(record);
+            long expirationTime = record.readLong();
+            long bodyHash = record.readLong();
+            long usableUntil = new CacheEntry(null, readHeaders(record), expirationTime).usableUntil();
+            indexEntry(CacheIndex.hash(url), new CacheIndex.Location(number, offset, length, usableUntil, bodyHash));
+        }
+    }
+
+    /**
+     * Reads and decodes the URL's latest entry and its body, or returns null if there is none.
+     */
+    CacheEntry read(String url) throws IOException {
+        long hash = CacheIndex.hash(url);
+        CacheIndex.Location location;
+        CacheIndex.Location bodyLocation;
+        ByteBuffer record;
+        ByteBuffer body;
+        int attempts = 0;
+        while (true) {
+            FileChannel reader;
+            FileChannel bodyReader;
+            lock.readLock().lock();
+            try {
+                location = index.get(hash);
+                if (location == null) {
+                    return null;
+                }
+                bodyLocation = bodies.get(location.link());
+                if (bodyLocation == null) {
+                    throw new IOException("Missing cached body for " + url);
+                }
+                reader = reader(location.segment());
+                bodyReader = reader(bodyLocation.segment());
+            } finally {
+                lock.readLock().unlock();
+            }
+
+            // The records themselves are read without the lock, so lookups of different URLs proceed in parallel
+            record = ByteBuffer.allocate(location.length());
+            body = ByteBuffer.allocate(bodyLocation.length());
+            try {
+                readFully(reader, record, location.offset());
+                readFully(bodyReader, body, bodyLocation.offset());
+                break;
+            } catch (ClosedChannelException e) {
+                // Compaction moved the records meanwhile; the indexes already point at their new place
+                if (++attempts == 2) {
+                    return null;
+                }
+            }
+        }
+
+        DataInputStream in = open(record, location, url);
+        if (in.readByte() != KIND_ENTRY || !url.equals(readString(in))) {
+            return null; // another URL with the same hash
+        }
+        long expirationTime = in.readLong();
+        long bodyHash = in.readLong();
+        Map<String, String> headers = readHeaders(in);
+
+        DataInputStream bodyIn = open(body, bodyLocation, url);
+        if (bodyIn.readByte() != KIND_BODY || bodyIn.readLong() != bodyHash) {
+            throw new IOException("Corrupt cache record for " + url);
+        }
+        return new CacheEntry(readBody(bodyIn), headers, expirationTime);
+    }
+
+    /**
+     * Checks a record read from disk against its length and CRC and returns a stream over its payload.
+     */
+    private static DataInputStream open(ByteBuffer record, CacheIndex.Location location, String url) throws IOException {
+        int length = record.getInt(0);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), RECORD_HEADER_SIZE, record.capacity() - RECORD_HEADER_SIZE);
+        if (length != location.length() - RECORD_HEADER_SIZE || (int) crc.getValue() != record.getInt(4)) {
+            throw new IOException("Corrupt cache record for " + url);
+        }
+        return new DataInputStream(new ByteArrayInputStream(record.array(), RECORD_HEADER_SIZE, length));
+    }
+
+    /**
+     * Until when the entry is usable, stale or not, straight from the index; -1 if the URL is not cached.
+     */
+    long getExpirationTime(String url) {
+        CacheIndex.Location location = locate(CacheIndex.hash(url));
+        return location == null ? -1 : location.expirationTime();
+    }
+
+    void append(String url, CacheEntry entry) throws IOException {
+        append(encode(url, entry));
+    }
+
+    /**
+     * Appends an entry made by {@link #encode}, whose size the caller may already have weighed. Its body is
+     * appended too unless an identical one is already stored.
+     */
+    void append(Encoded encoded) throws IOException {
+        lock.writeLock().lock();
+        try {
+            appendLocked(encoded);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void appendLocked(Encoded encoded) throws IOException {
+        if (bodies.get(encoded.bodyHash()) == null) {
+            int length = encoded.body().remaining();
+            long offset = appendRaw(encoded.body().duplicate());
+            indexBody(encoded.bodyHash(), new CacheIndex.Location(activeNumber, offset, length, Long.MAX_VALUE, 0));
+        }
+        int length = encoded.entry().remaining();
+        long offset = appendRaw(encoded.entry().duplicate());
+        indexEntry(CacheIndex.hash(encoded.url()), new CacheIndex.Location(activeNumber, offset, length,
+                encoded.usableUntil(), encoded.bodyHash()));
+    }
+
+    private long appendRaw(ByteBuffer record) throws IOException {
+        if (activeSize + record.remaining() > MAX_SEGMENT_SIZE && activeSize > SEGMENT_HEADER_SIZE) {
+            active.close();
+            startSegment();
+        }
+        long offset = activeSize;
+        while (record.hasRemaining()) {
+            activeSize += active.write(record, activeSize);
+        }
+        return offset;
+    }
+
+    private void indexEntry(long hash, CacheIndex.Location location) throws IOException {
+        CacheIndex.Location previous = index.put(hash, location);
+        // Take the new body before letting go of the old one, which is often the same
+        long liveBytes = index.getLiveBytes() + location.length() + retain(location.link());
+        if (previous != null) {
+            liveBytes -= previous.length() + release(previous.link());
+        }
+        index.setByteCounts(index.getTotalBytes() + location.length(), liveBytes);
+        index.setCovered(location.segment(), location.offset() + location.length());
+    }
+
+    /**
+     * A body counts as live only while some entry refers to it, so a new one adds nothing to the live bytes yet.
+     */
+    private void indexBody(long hash, CacheIndex.Location location) throws IOException {
+        CacheIndex.Location previous = bodies.put(hash, location);
+        long liveBytes = index.getLiveBytes();
+        if (previous != null && previous.link() > 0) {
+            bodies.put(hash, location.withLink(previous.link()));
+            liveBytes += location.length() - previous.length();
+        }
+        index.setByteCounts(index.getTotalBytes() + location.length(), liveBytes);
+        index.setCovered(location.segment(), location.offset() + location.length());
+    }
+
+    /**
+     * Adds a reference to a body; returns the bytes that became live.
+     */
+    private long retain(long bodyHash) throws IOException {
+        CacheIndex.Location body = bodies.get(bodyHash);
+        if (body == null) {
+            return 0;
+        }
+        bodies.put(bodyHash, body.withLink(body.link() + 1));
+        return body.link() == 0 ? body.length() : 0;
+    }
+
+    /**
+     * Drops a reference to a body, forgetting the body with its last one; returns the bytes that became garbage.
+     */
+    private long release(long bodyHash) throws IOException {
+        CacheIndex.Location body = bodies.get(bodyHash);
+        if (body == null) {
+            return 0;
+        }
+        if (body.link() > 1) {
+            bodies.put(bodyHash, body.withLink(body.link() - 1));
+            return 0;
+        }
+        bodies.remove(bodyHash);
+        return body.link() == 1 ? body.length() : 0;
+    }
+
+    /**
+     * Drops expired entries, turning their records into garbage.
+     */
+    int removeExpired(long now) throws IOException {
+        lock.writeLock().lock();
+        try {
+            List<Long> expired = index.expired(now);
+            removeLocked(expired);
+            return expired.size();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Appends a removal record for the entries and drops them from the index.
+     */
+    private void removeLocked(List<Long> hashes) throws IOException {
+        if (hashes.isEmpty()) {
+            return;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(RECORD_HEADER_SIZE + 5 + hashes.size() * 8);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeLong(0); // room for the record header
+        out.writeByte(KIND_REMOVAL);
+        out.writeInt(hashes.size());
+        for (long hash : hashes) {
+            out.writeLong(hash);
+        }
+        ByteBuffer record = seal(bytes);
+        int length = record.remaining();
+        long offset = appendRaw(record);
+        unindex(hashes, length);
+        index.setCovered(activeNumber, offset + length);
+    }
+
+    /**
+     * Forgets the entries a removal record of the given length names; the record itself is garbage at once.
+     */
+    private void unindex(List<Long> hashes, int length) throws IOException {
+        long liveBytes = index.getLiveBytes();
+        for (long hash : hashes) {
+            CacheIndex.Location removed = index.remove(hash);
+            if (removed != null) {
+                liveBytes -= removed.length() + release(removed.link());
+            }
+        }
+        index.setByteCounts(index.getTotalBytes() + length, liveBytes);
+    }
+
+    CacheIndex.Location locate(long hash) {
+        lock.readLock().lock();
+        try {
+            return index.get(hash);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Up to count distinct entries picked at random, as eviction candidates.
+     */
+    List<Long> sample(int count, RandomGenerator random) {
+        lock.readLock().lock();
+        try {
+            List<Long> hashes = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                long hash = index.sample(random);
+                if (hash != 0 && !hashes.contains(hash)) {
+                    hashes.add(hash);
+                }
+            }
+            return hashes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Drops an entry; its record becomes garbage for the next compaction.
+     */
+    boolean remove(long hash) throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (index.get(hash) == null) {
+                return false;
+            }
+            removeLocked(List.of(hash));
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    long getLiveBytes() {
+        lock.readLock().lock();
+        try {
+            return index.getLiveBytes();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    int size() {
+        lock.readLock().lock();
+        try {
+            return index.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    long getTotalBytes() {
+        lock.readLock().lock();
+        try {
+            return index.getTotalBytes();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    boolean shouldCompact() {
+        lock.readLock().lock();
+        try {
+            return index.getTotalBytes() >= MIN_COMPACTION_SIZE && index.getLiveBytes() * 2 < index.getTotalBytes();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Copies every referenced body and then every live entry as-is into a new segment and drops the older
+     * ones. The copies are synced
+     * before anything is deleted, so a crash midway leaves either the old records or the new ones in place.
+     */
+    void compact() throws IOException {
+        lock.writeLock().lock();
+        try {
+            compactLocked();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void compactLocked() throws IOException {
+        List<Integer> old = new ArrayList<>(segments);
+        active.close();
+        startSegment();
+
+        long liveBytes = 0;
+        for (long hash : bodies.hashes()) {
+            CacheIndex.Location location = bodies.get(hash);
+            if (location.link() == 0) {
+                bodies.remove(hash);
+                continue;
+            }
+            bodies.put(hash, copy(location));
+            liveBytes += location.length();
+        }
+        for (long hash : index.hashes()) {
+            CacheIndex.Location location = index.get(hash);
+            index.put(hash, copy(location));
+            liveBytes += location.length();
+        }
+        index.setByteCounts(liveBytes, liveBytes);
+        index.setCovered(activeNumber, activeSize);
+        active.force(false);
+        index.force();
+        bodies.force();
+
+        for (Integer number : old) {
+            FileChannel reader = readers.remove(number);
+            if (reader != null) {
+                reader.close();
+            }
+            Files.deleteIfExists(segmentPath(number));
+        }
+        segments.removeAll(old);
+    }
+
+    private CacheIndex.Location copy(CacheIndex.Location location) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(location.length());
+        readFully(reader(location.segment()), record, location.offset());
+        record.flip();
+        long offset = appendRaw(record);
+        return new CacheIndex.Location(activeNumber, offset, location.length(), location.expirationTime(),
+                location.link());
+    }
+
+    void sync() throws IOException {
+        lock.writeLock().lock();
+        try {
+            active.force(false);
+            index.force();
+            bodies.force();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            active.close();
+            index.close();
+            bodies.close();
+            for (FileChannel reader : readers.values()) {
+                reader.close();
+            }
+            readers.clear();
+            directoryLock.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Called with either lock held; readers of one segment may race to open it, and the loser closes its copy.
+     */
+    private FileChannel reader(int segment) throws IOException {
+        FileChannel reader = readers.get(segment);
+        if (reader == null) {
+            FileChannel opened = FileChannel.open(segmentPath(segment), StandardOpenOption.READ);
+            reader = readers.putIfAbsent(segment, opened);
+            if (reader == null) {
+                reader = opened;
+            } else {
+                opened.close();
+            }
+        }
+        return reader;
+    }
+
+    private void startSegment() throws IOException {
+        activeNumber++;
+        active = FileChannel.open(segmentPath(activeNumber), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        activeSize = 0;
+        appendRaw(ByteBuffer.allocate(SEGMENT_HEADER_SIZE).putInt(MAGIC).putInt(VERSION).flip());
+        segments.add(activeNumber);
+    }
+
+    private Path segmentPath(int number) {
+        return directory.resolve(String.format("%08d%s", number, SUFFIX));
+    }
+
+    private static int segmentNumber(Path file) {
+        String name = file.getFileName().toString();
+        if (!name.endsWith(SUFFIX)) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(name.substring(0, name.length() - SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position + buffer.position());
+            if (n < 0) {
+                throw new EOFException("Cache record cut short");
+            }
+        }
+    }
+
+    /**
+     * Serializes an entry and its deflated body into records, outside any lock.
+     */
+    static Encoded encode(String url, CacheEntry entry) throws IOException {
+        byte[] content = entry.content() == null ? new byte[0] : entry.content().getBytes(StandardCharsets.UTF_8);
+        long bodyHash = bodyHash(content);
+
+        ByteArrayOutputStream entryBytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(entryBytes);
+        out.writeLong(0); // room for the record header
+        out.writeByte(KIND_ENTRY);
+        writeString(out, url);
+        out.writeLong(entry.expirationTime());
+        out.writeLong(bodyHash);
+        out.writeInt(entry.headers().size());
+        for (Map.Entry<String, String> header : entry.headers().entrySet()) {
+            writeString(out, header.getKey());
+            writeString(out, header.getValue());
+        }
+
+        byte[] deflated = deflate(content);
+        boolean compressed = deflated.length < content.length;
+        ByteArrayOutputStream bodyBytes = new ByteArrayOutputStream(32 + Math.min(deflated.length, content.length));
+        out = new DataOutputStream(bodyBytes);
+        out.writeLong(0);
+        out.writeByte(KIND_BODY);
+        out.writeLong(bodyHash);
+        out.writeInt(content.length);
+        out.writeBoolean(compressed);
+        out.write(compressed ? deflated : content);
+
+        return new Encoded(url, entry.usableUntil(), seal(entryBytes), bodyHash, seal(bodyBytes));
+    }
+
+    private static ByteBuffer seal(ByteArrayOutputStream bytes) {
+        ByteBuffer record = ByteBuffer.wrap(bytes.toByteArray());
+        int length = record.capacity() - RECORD_HEADER_SIZE;
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), RECORD_HEADER_SIZE, length);
+        record.putInt(0, length).putInt(4, (int) crc.getValue());
+        return record;
+    }
+
+    /**
+     * The first 64 bits of the content's SHA-256, never 0. Pages are not trusted, so the hash must be one
+     * they cannot steer into another page's.
+     */
+    private static long bodyHash(byte[] content) throws IOException {
+        try {
+            long hash = ByteBuffer.wrap(MessageDigest.getInstance("SHA-256").digest(content)).getLong();
+            return hash != 0 ? hash : 1;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-256 is not available", e);
+        }
+    }
+
+    private static byte[] deflate(byte[] content) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        try {
+            deflater.setInput(content);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(content.length / 3 + 64);
+            byte[] chunk = new byte[8192];
+            while (!deflater.finished()) {
+                out.write(chunk, 0, deflater.deflate(chunk));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static String readBody(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        boolean compressed = in.readBoolean();
+        byte[] stored = in.readAllBytes();
+        if (!compressed) {
+            return new String(stored, StandardCharsets.UTF_8);
+        }
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(stored);
+            byte[] content = new byte[length];
+            int n = 0;
+            while (n < length && !inflater.finished()) {
+                int inflated = inflater.inflate(content, n, length - n);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                n += inflated;
+            }
+            if (n != length) {
+                throw new IOException("Cached body is cut short");
+            }
+            return new String(content, StandardCharsets.UTF_8);
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt cached body: " + e.getMessage(), e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static Map<String, String> readHeaders(DataInputStream in) throws IOException {
+        int headerCount = in.readInt();
+        Map<String, String> headers = new HashMap<>(Math.max(4, headerCount * 2));
+        for (int i = 0; i < headerCount; i++) {
+            headers.put(readString(in), readString(in));
+        }
+        return headers;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        return new String(in.readNBytes(length), StandardCharsets.UTF_8);
+    }
+
+    static class InUseException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        InUseException(String message) {
+            super(message);
+        }
+    }
+
+    @FunctionalInterface
+    private interface RecordConsumer {
+        void accept(long offset, byte[] payload) throws IOException;
+    }
+
+    /**
+     * An entry ready to append: its own record, and the record of its body keyed by the body's hash.
+     */
+    record Encoded(String url, long usableUntil, ByteBuffer entry, long bodyHash, ByteBuffer body) {
+
+        /**
+         * Bytes the entry adds to the log at most; less when its body is already stored.
+         */
+        int weight() {
+            return entry.remaining() + body.remaining();
+        }
+    }
+}
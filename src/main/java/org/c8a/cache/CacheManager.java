@@ -1,57 +1,247 @@
 package org.c8a.cache;
 
+import org.c8a.metrics.Metrics;
+
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.io.FileOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.Date;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
 
+/**
+ * Cached pages live on disk only: the index is memory-mapped and a page is read when it is looked up,
+ * so startup and heap use do not grow with the number of entries.
+ * <p>
+ * The cache is bounded by entry count and by bytes, an entry weighing as much as its records on disk.
+ * When it is full, a few entries are sampled and the expired or least frequently requested one is the
+ * eviction victim. A new entry displaces it only if the frequency sketch says the newcomer is asked for
+ * at least as often (TinyLFU admission), so a crawl of one-off pages cannot flush out the pages in regular use.
+ */
 public class CacheManager {
-    private final Map<String, CacheEntry> cache = new HashMap<>();
-    private static final String CACHE_FILE = "go2web_cache.dat";
+    private static final String CACHE_DIR = System.getProperty("go2web.cache.dir", "go2web_cache");
+    private static final String LEGACY_CACHE_FILE = "go2web_cache.dat";
+    private static final String SKETCH_FILE = "sketch.bin";
+    private static final int DEFAULT_MAX_ENTRIES = 10_000;
+    private static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+    private static final int EVICTION_SAMPLE_SIZE = 8;
+
+    private final Path directory;
+    private final int maxEntries;
+    private final long maxBytes;
+    private final CacheLog log;
+    private final FrequencySketch sketch;
+    private final CacheStats stats = new CacheStats();
+    private final Map<String, Long> unsaved = new LinkedHashMap<>();
 
     public CacheManager() {
-        loadCacheFromFile();
+        this(defaultDirectory());
+    }
+
+    /**
+     * {@code -Dgo2web.cache.dir}, or {@code go2web_cache} in the working directory.
+     */
+    public static Path defaultDirectory() {
+        return Path.of(CACHE_DIR);
+    }
+
+    public CacheManager(Path directory) {
+        this(directory, Integer.getInteger("go2web.cache.maxEntries", DEFAULT_MAX_ENTRIES),
+                Long.getLong("go2web.cache.maxBytes", DEFAULT_MAX_BYTES));
+    }
+
+    public CacheManager(Path directory, int maxEntries, long maxBytes) {
+        if (maxEntries < 1 || maxBytes < 1) {
+            throw new IllegalArgumentException("Cache capacity must be positive");
+        }
+        this.directory = directory;
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.sketch = new FrequencySketch(maxEntries);
+        this.log = openLog(directory);
+        if (log != null) {
+            sketch.load(directory.resolve(SKETCH_FILE));
+        }
     }
 
     public CacheEntry getEntry(String url) {
-        return cache.get(url);
+        if (log == null) {
+            return null;
+        }
+        sketch.increment(CacheIndex.hash(url));
+        long start = System.nanoTime();
+        try {
+            CacheEntry entry = log.read(url);
+            Metrics.recordSince(Metrics.Phase.CACHE_LOOKUP, start);
+            if (entry != null && !entry.isExpired()) {
+                stats.recordHit();
+            } else {
+                stats.recordMiss();
+            }
+            return entry;
+        } catch (IOException e) {
+            stats.recordMiss();
+            System.err.println("\nError reading cache entry: " + e.getMessage());
+            return null;
+        }
     }
 
+    /**
+     * Appends the entry to the on-disk log right away, evicting others to make room if it is admitted.
+     */
     public void addEntry(String url, CacheEntry entry) {
-        cache.put(url, entry);
+        if (log == null) {
+            return;
+        }
+        try {
+            CacheLog.Encoded encoded = CacheLog.encode(url, entry);
+            synchronized (this) {
+                if (!makeRoom(CacheIndex.hash(url), encoded.weight())) {
+                    stats.recordRejection();
+                    return;
+                }
+                log.append(encoded);
+            }
+            synchronized (unsaved) {
+                unsaved.put(url, entry.expirationTime());
+            }
+        } catch (IOException e) {
+            System.err.println("\nError writing cache entry: " + e.getMessage());
+        }
     }
 
-    private void loadCacheFromFile() {
-        try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(CACHE_FILE))) {
+    /**
+     * Evicts until an entry of the given weight fits; returns false if the candidate should not be cached.
+     */
+    private boolean makeRoom(long candidate, int weight) throws IOException {
+        if (weight > maxBytes) {
+            return false;
+        }
+        CacheIndex.Location existing = log.locate(candidate);
+        int extraEntries = existing == null ? 1 : 0;
+        long extraBytes = weight - (existing == null ? 0 : existing.length());
 
-            @SuppressWarnings("unchecked")
-            Map<String, CacheEntry> loadedCache = (Map<String, CacheEntry>) ois.readObject();
+        while (log.size() + extraEntries > maxEntries || log.getLiveBytes() + extraBytes > maxBytes) {
+            long victim = pickVictim(candidate);
+            if (victim == 0) {
+                return false;
+            }
+            CacheIndex.Location location = log.locate(victim);
+            boolean expired = location.expirationTime() < System.currentTimeMillis();
+            // Updates to an entry already cached always go in; newcomers must be at least as popular as the victim
+            if (!expired && existing == null && sketch.frequency(candidate) < sketch.frequency(victim)) {
+                return false;
+            }
+            log.remove(victim);
+            stats.recordEviction();
+        }
+        return true;
+    }
 
-            loadedCache.entrySet().removeIf(entry -> entry.getValue().isExpired());
+    private long pickVictim(long candidate) {
+        long now = System.currentTimeMillis();
+        long victim = 0;
+        int victimFrequency = Integer.MAX_VALUE;
+        for (long hash : log.sample(EVICTION_SAMPLE_SIZE, ThreadLocalRandom.current())) {
+            if (hash == candidate) {
+                continue;
+            }
+            if (log.locate(hash).expirationTime() < now) {
+                return hash;
+            }
+            int frequency = sketch.frequency(hash);
+            if (frequency < victimFrequency) {
+                victim = hash;
+                victimFrequency = frequency;
+            }
+        }
+        return victim;
+    }
+
+    public CacheStats getStats() {
+        return stats;
+    }
 
-            cache.putAll(loadedCache);
-            System.out.println("\nLoaded " + loadedCache.size() + " cache entries from disk");
-        } catch (IOException | ClassNotFoundException e) {
+    private CacheLog openLog(Path directory) {
+        CacheLog cacheLog = new CacheLog(directory);
+        try {
+            int entries = cacheLog.open();
+            System.out.println("\nOpened cache with " + entries + " entries");
+        } catch (CacheLog.InUseException e) {
+            System.err.println("\n" + e.getMessage() + "; running without the cache");
+            return null;
+        } catch (IOException e) {
             System.err.println("\nError loading cache: " + e.getMessage());
+            return null;
         }
+
+        migrateLegacyFile(cacheLog);
+        return cacheLog;
     }
 
+    /**
+     * Carries over a cache written by older versions as one serialized map, then removes the old file.
+     */
+    private void migrateLegacyFile(CacheLog cacheLog) {
+        Path legacy = Path.of(LEGACY_CACHE_FILE);
+        if (!Files.exists(legacy)) {
+            return;
+        }
+        try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(legacy.toFile()))) {
+            @SuppressWarnings("unchecked")
+            Map<String, CacheEntry> legacyCache = (Map<String, CacheEntry>) ois.readObject();
 
-    public void saveCacheToFile() {
+            int migrated = 0;
+            for (Map.Entry<String, CacheEntry> entry : legacyCache.entrySet()) {
+                if (!entry.getValue().isExpired() && cacheLog.getExpirationTime(entry.getKey()) < 0) {
+                    cacheLog.append(entry.getKey(), entry.getValue());
+                    migrated++;
+                }
+            }
+            cacheLog.sync();
+            Files.delete(legacy);
+            System.out.println("\nMigrated " + migrated + " cache entries from " + LEGACY_CACHE_FILE);
+        } catch (IOException | ClassNotFoundException | ClassCastException e) {
+            System.err.println("\nError migrating " + LEGACY_CACHE_FILE + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Entries are already on disk once added; this drops expired ones, syncs the log and compacts it
+     * when most of it is superseded or expired.
+     */
+    public synchronized void saveCacheToFile() {
+        if (log == null) {
+            return;
+        }
 
-        cache.entrySet().removeIf(entry -> entry.getValue().isExpired());
-        try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(CACHE_FILE))) {
-            oos.writeObject(cache);
-            System.out.println("\nSaved " + cache.size() + " cache entries to disk");
+        Map<String, Long> saved;
+        synchronized (unsaved) {
+            saved = new LinkedHashMap<>(unsaved);
+            unsaved.clear();
+        }
+        long start = System.nanoTime();
+        try {
+            log.removeExpired(System.currentTimeMillis());
+            if (log.shouldCompact()) {
+                long before = log.getTotalBytes();
+                log.compact();
+                System.out.println("\nCompacted cache log from " + before / 1024 + " KB to "
+                        + log.getTotalBytes() / 1024 + " KB");
+            } else {
+                log.sync();
+            }
+            sketch.save(directory.resolve(SKETCH_FILE));
+            Metrics.recordSince(Metrics.Phase.CACHE_SAVE, start);
+            System.out.println("\nSaved " + saved.size() + " new cache entries to disk (" + log.size() + " in total)");
             System.out.println("Cache entries being saved:");
-            cache.forEach((url, entry) -> {
-                long remainingMillis = entry.expirationTime() - System.currentTimeMillis();
+            saved.forEach((url, expirationTime) -> {
+                long remainingMillis = expirationTime - System.currentTimeMillis();
                 String remainingTime = formatDuration(remainingMillis);
-                System.out.println(url + " | Expires: " + new Date(entry.expirationTime())
+                System.out.println(url + " | Expires: " + new Date(expirationTime)
                         + " (in " + remainingTime + ")");
             });
         } catch (IOException e) {
@@ -59,6 +249,20 @@ public class CacheManager {
         }
     }
 
+    /**
+     * Releases the log's files. Entries are on disk as soon as they are added, so nothing is lost by not saving.
+     */
+    public synchronized void close() {
+        if (log == null) {
+            return;
+        }
+        try {
+            log.close();
+        } catch (IOException e) {
+            System.err.println("\nError closing cache: " + e.getMessage());
+        }
+    }
+
     private static String formatDuration(long millis) {
         if (millis <= 0) return "EXPIRED";
         long seconds = millis / 1000;
@@ -67,4 +271,4 @@ public class CacheManager {
         long minutes = seconds / 60; seconds %= 60;
         return String.format("%dd %dh %dm %ds", days, hours, minutes, seconds);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,64 @@
+package org.c8a.cache;
+
+import org.c8a.metrics.Metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+public class CacheStats {
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong rejections = new AtomicLong();
+
+    void recordHit() {
+        hits.incrementAndGet();
+        Metrics.increment(Metrics.Counter.CACHE_HITS);
+    }
+
+    void recordMiss() {
+        misses.incrementAndGet();
+        Metrics.increment(Metrics.Counter.CACHE_MISSES);
+    }
+
+    void recordEviction() {
+        evictions.incrementAndGet();
+        Metrics.increment(Metrics.Counter.CACHE_EVICTIONS);
+    }
+
+    void recordRejection() {
+        rejections.incrementAndGet();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Lookups that found nothing or only an expired entry.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * New entries turned away because they were less popular than what they would have displaced, or too big.
+     */
+    public long getRejections() {
+        return rejections.get();
+    }
+
+    public double getHitRate() {
+        long lookups = hits.get() + misses.get();
+        return lookups == 0 ? 0 : (double) hits.get() / lookups;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Cache: %d hits, %d misses (%.1f%% hit rate), %d evictions, %d rejected",
+                getHits(), getMisses(), getHitRate() * 100, getEvictions(), getRejections());
+    }
+}
@@ -0,0 +1,122 @@
+package org.c8a.cache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A count-min sketch of 4-bit counters estimating how often each URL has been asked for (TinyLFU).
+ * Its size depends only on the cache capacity. All counters are halved after every 10 &times; capacity
+ * increments, so old popularity fades. It is saved next to the log because a CLI run is too short to
+ * learn anything on its own. Counters are updated with compare-and-set, so lookups never block on it;
+ * an increment racing with the periodic halving may be lost, which a sketch can afford.
+ */
+class FrequencySketch {
+
+    private static final int MAGIC = 0x47325746; // "G2WF"
+    private static final int DEPTH = 4;
+    private static final long[] SEEDS = {
+            0x97cb3127bc5d8a3dL, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+    };
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    private final int width;
+    private final AtomicLongArray table;
+    private final int sampleSize;
+    private final AtomicInteger additions = new AtomicInteger();
+
+    FrequencySketch(int capacity) {
+        // Power of two of at least twice the capacity, keeping collisions rare within each row
+        this.width = Integer.highestOneBit(Math.max(16, Math.min(capacity, 1 << 25) * 2 - 1) << 1);
+        this.table = new AtomicLongArray(DEPTH * (width / 16));
+        this.sampleSize = (int) Math.min(10L * capacity, Integer.MAX_VALUE);
+    }
+
+    int frequency(long hash) {
+        int frequency = 15;
+        for (int row = 0; row < DEPTH; row++) {
+            frequency = Math.min(frequency, counter(row, hash));
+        }
+        return frequency;
+    }
+
+    void increment(long hash) {
+        boolean added = false;
+        for (int row = 0; row < DEPTH; row++) {
+            int index = index(row, hash);
+            int shift = (index & 15) << 2;
+            int slot = row * (width / 16) + (index >>> 4);
+            long counters;
+            do {
+                counters = table.get(slot);
+                if (((counters >>> shift) & 0xF) == 15) {
+                    break;
+                }
+            } while (!table.compareAndSet(slot, counters, counters + (1L << shift)));
+            added |= ((counters >>> shift) & 0xF) < 15;
+        }
+        if (added) {
+            int count = additions.incrementAndGet();
+            // Whoever wins the compare-and-set ages the table; the others carry on
+            if (count >= sampleSize && additions.compareAndSet(count, count / 2)) {
+                for (int i = 0; i < table.length(); i++) {
+                    table.getAndUpdate(i, counters -> (counters >>> 1) & RESET_MASK);
+                }
+            }
+        }
+    }
+
+    private int counter(int row, long hash) {
+        int index = index(row, hash);
+        return (int) (table.get(row * (width / 16) + (index >>> 4)) >>> ((index & 15) << 2)) & 0xF;
+    }
+
+    private int index(int row, long hash) {
+        long h = (hash ^ SEEDS[row]) * 0x9e3779b97f4a7c15L;
+        return (int) (h >>> 32) & (width - 1);
+    }
+
+    /**
+     * Restores saved counters; a missing file or one saved for another capacity is ignored.
+     */
+    void load(Path file) {
+        if (!Files.exists(file)) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != width) {
+                return;
+            }
+            int savedAdditions = in.readInt();
+            for (int i = 0; i < table.length(); i++) {
+                table.set(i, in.readLong());
+            }
+            additions.set(savedAdditions);
+        } catch (IOException e) {
+            System.err.println("\nIgnoring unreadable cache frequency sketch: " + e.getMessage());
+            for (int i = 0; i < table.length(); i++) {
+                table.set(i, 0);
+            }
+        }
+    }
+
+    void save(Path file) throws IOException {
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(width);
+            out.writeInt(additions.get());
+            for (int i = 0; i < table.length(); i++) {
+                out.writeLong(table.get(i));
+            }
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING);
+    }
+}
@@ -0,0 +1,161 @@
+package org.c8a.client;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers lookups for a fixed time, failures included, so repeated requests to a host skip DNS entirely.
+ * Concurrent misses for the same name share one lookup.
+ */
+public class CachingResolver implements Resolver {
+
+    private static final long DEFAULT_TTL = 60_000; // 1 minute
+    private static final long DEFAULT_NEGATIVE_TTL = 10_000; // 10 seconds
+    private static final int MAX_ENTRIES = 1024;
+
+    private static final CachingResolver SHARED = new CachingResolver(Resolver.system(),
+            Long.getLong("go2web.dns.ttl", DEFAULT_TTL / 1000) * 1000,
+            Long.getLong("go2web.dns.negativeTtl", DEFAULT_NEGATIVE_TTL / 1000) * 1000);
+
+    private final Resolver delegate;
+    private final long ttl;
+    private final long negativeTtl;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<Entry>> lookups = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public CachingResolver(Resolver delegate) {
+        this(delegate, DEFAULT_TTL, DEFAULT_NEGATIVE_TTL);
+    }
+
+    /**
+     * @param ttl         how long successful lookups are kept, in milliseconds
+     * @param negativeTtl how long failed lookups are kept, in milliseconds; 0 disables negative caching
+     */
+    public CachingResolver(Resolver delegate, long ttl, long negativeTtl) {
+        this.delegate = delegate;
+        this.ttl = ttl;
+        this.negativeTtl = negativeTtl;
+    }
+
+    /**
+     * The system resolver behind a cache configured by go2web.dns.ttl and go2web.dns.negativeTtl (seconds).
+     */
+    public static CachingResolver shared() {
+        return SHARED;
+    }
+
+    @Override
+    public List<InetAddress> resolve(String host) throws UnknownHostException {
+        if (isLiteral(host)) {
+            return delegate.resolve(host);
+        }
+
+        String key = host.toLowerCase();
+        Entry entry = entries.get(key);
+        if (entry != null && !entry.isExpired(System.currentTimeMillis())) {
+            hits.incrementAndGet();
+            return entry.get(host);
+        }
+
+        CompletableFuture<Entry> lookup = new CompletableFuture<>();
+        CompletableFuture<Entry> running = lookups.putIfAbsent(key, lookup);
+        if (running != null) {
+            hits.incrementAndGet();
+            return running.join().get(host);
+        }
+
+        misses.incrementAndGet();
+        try {
+            entry = lookup(host);
+            store(key, entry);
+            lookup.complete(entry);
+            return entry.get(host);
+        } catch (RuntimeException e) {
+            lookup.completeExceptionally(e);
+            throw e;
+        } finally {
+            lookups.remove(key, lookup);
+        }
+    }
+
+    private Entry lookup(String host) {
+        long now = System.currentTimeMillis();
+        try {
+            List<InetAddress> addresses = delegate.resolve(host);
+            if (addresses.isEmpty()) {
+                return new Entry(null, now + negativeTtl);
+            }
+            return new Entry(List.copyOf(addresses), now + ttl);
+        } catch (UnknownHostException e) {
+            return new Entry(null, now + negativeTtl);
+        }
+    }
+
+    private void store(String key, Entry entry) {
+        if (entry.addresses == null && negativeTtl <= 0) {
+            entries.remove(key);
+            return;
+        }
+        if (entries.size() >= MAX_ENTRIES) {
+            long now = System.currentTimeMillis();
+            entries.values().removeIf(e -> e.isExpired(now));
+            Iterator<String> it = entries.keySet().iterator();
+            while (entries.size() >= MAX_ENTRIES && it.hasNext()) {
+                it.next();
+                it.remove();
+            }
+        }
+        entries.put(key, entry);
+    }
+
+    public void invalidate(String host) {
+        entries.remove(host.toLowerCase());
+    }
+
+    public void clear() {
+        entries.clear();
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    private static boolean isLiteral(String host) {
+        if (host.indexOf(':') >= 0) {
+            return true;
+        }
+        for (int i = 0; i < host.length(); i++) {
+            char c = host.charAt(i);
+            if ((c < '0' || c > '9') && c != '.') {
+                return false;
+            }
+        }
+        return !host.isEmpty();
+    }
+
+    private record Entry(List<InetAddress> addresses, long expiresAt) {
+
+        boolean isExpired(long now) {
+            return now >= expiresAt;
+        }
+
+        List<InetAddress> get(String host) throws UnknownHostException {
+            if (addresses == null) {
+                throw new UnknownHostException(host);
+            }
+            return addresses;
+        }
+    }
+}
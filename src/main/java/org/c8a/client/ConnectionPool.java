@@ -0,0 +1,321 @@
+package org.c8a.client;
+
+import org.c8a.metrics.Metrics;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+public class ConnectionPool {
+
+    private static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 6;
+    private static final long DEFAULT_IDLE_TIMEOUT = 30_000; // 30 seconds
+    private static final long VALIDATE_AFTER_INACTIVITY = 1_000; // 1 second
+
+    private static final String[] ALPN_HTTP2 = {"h2", "http/1.1"};
+
+    private static final ConnectionPool SHARED = new ConnectionPool();
+
+    private final Map<String, HostPool> hosts = new HashMap<>();
+    private final Map<String, Http2Connection> http2Connections = new HashMap<>();
+    private final int maxConnectionsPerHost;
+    private final long idleTimeout;
+    private final Resolver resolver;
+
+    public ConnectionPool() {
+        this(DEFAULT_MAX_CONNECTIONS_PER_HOST, DEFAULT_IDLE_TIMEOUT);
+    }
+
+    public ConnectionPool(int maxConnectionsPerHost, long idleTimeout) {
+        this(maxConnectionsPerHost, idleTimeout, CachingResolver.shared());
+    }
+
+    public ConnectionPool(int maxConnectionsPerHost, long idleTimeout, Resolver resolver) {
+        if (maxConnectionsPerHost < 1) {
+            throw new IllegalArgumentException("maxConnectionsPerHost must be at least 1");
+        }
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+        this.idleTimeout = idleTimeout;
+        this.resolver = resolver;
+    }
+
+    public static ConnectionPool shared() {
+        return SHARED;
+    }
+
+    static String key(String scheme, String host, int port) {
+        return scheme.toLowerCase() + "://" + host.toLowerCase() + ":" + port;
+    }
+
+    PooledConnection acquire(String scheme, String host, int port, int connectTimeout, int readTimeout,
+                             boolean forceNew) throws IOException {
+        return acquire(scheme, host, port, connectTimeout, readTimeout, forceNew, false);
+    }
+
+    /**
+     * Leases an HTTP/1.1 connection. With offerHttp2, new TLS connections offer h2 via ALPN; check
+     * {@link PooledConnection#isHttp2()} and hand such a connection to {@link #registerHttp2}.
+     */
+    PooledConnection acquire(String scheme, String host, int port, int connectTimeout, int readTimeout,
+                             boolean forceNew, boolean offerHttp2) throws IOException {
+        String key = key(scheme, host, port);
+        long deadline = System.currentTimeMillis() + connectTimeout;
+
+        while (true) {
+            PooledConnection idle = reserve(key, host, port, deadline, forceNew);
+            if (idle == null) {
+                break;
+            }
+
+            // Validation can block for a moment, so it runs outside the pool lock
+            if (System.currentTimeMillis() - idle.getLastUsed() < VALIDATE_AFTER_INACTIVITY || !idle.isStale()) {
+                try {
+                    idle.markLeased(readTimeout);
+                    return idle;
+                } catch (IOException ignored) {
+                }
+            }
+            idle.close();
+            releaseSlot(key);
+        }
+
+        try {
+            PooledConnection connection = new PooledConnection(key,
+                    connect(scheme, host, port, connectTimeout, offerHttp2 ? ALPN_HTTP2 : null));
+            connection.markLeased(readTimeout);
+            return connection;
+        } catch (IOException | RuntimeException e) {
+            releaseSlot(key);
+            throw e;
+        }
+    }
+
+    private PooledConnection reserve(String key, String host, int port, long deadline, boolean forceNew)
+            throws IOException {
+        List<PooledConnection> expired = new ArrayList<>();
+        try {
+            synchronized (this) {
+                HostPool hostPool = hosts.computeIfAbsent(key, k -> new HostPool());
+
+                while (true) {
+                    long now = System.currentTimeMillis();
+                    evictExpired(hostPool, now, expired);
+
+                    if (!forceNew && !hostPool.idle.isEmpty()) {
+                        hostPool.leased++;
+                        return hostPool.idle.pollFirst();
+                    }
+
+                    if (hostPool.leased + hostPool.idle.size() < maxConnectionsPerHost) {
+                        hostPool.leased++;
+                        return null;
+                    }
+
+                    // Over the limit with idle sockets around: drop the oldest to make room for a fresh one
+                    if (!hostPool.idle.isEmpty()) {
+                        expired.add(hostPool.idle.pollLast());
+                        continue;
+                    }
+
+                    long remaining = deadline - now;
+                    if (remaining <= 0) {
+                        throw new IOException("Timed out waiting for a free connection to " + host + ":" + port);
+                    }
+                    try {
+                        wait(remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted while waiting for a connection", e);
+                    }
+                }
+            }
+        } finally {
+            expired.forEach(PooledConnection::close);
+        }
+    }
+
+    private synchronized void releaseSlot(String key) {
+        hosts.get(key).leased--;
+        notifyAll();
+    }
+
+    void release(PooledConnection connection, boolean reusable, long keepAliveTimeout) {
+        boolean keep;
+        synchronized (this) {
+            HostPool hostPool = hosts.get(connection.getKey());
+            hostPool.leased--;
+            keep = reusable && !connection.getSocket().isClosed();
+            if (keep) {
+                connection.markIdle(keepAliveTimeout);
+                hostPool.idle.addFirst(connection);
+            }
+            notifyAll();
+        }
+
+        if (!keep) {
+            connection.close();
+        }
+    }
+
+    /**
+     * The shared HTTP/2 connection to this origin, or null if there is none that accepts new streams.
+     */
+    Http2Connection getHttp2(String scheme, String host, int port) {
+        String key = key(scheme, host, port);
+        Http2Connection connection;
+        synchronized (this) {
+            connection = http2Connections.get(key);
+            if (connection == null
+                    || (connection.isOpen() && !connection.isIdleLongerThan(System.currentTimeMillis(), idleTimeout))) {
+                return connection;
+            }
+            http2Connections.remove(key);
+        }
+        connection.closeWhenIdle();
+        return null;
+    }
+
+    /**
+     * Turns a leased connection that negotiated h2 into the origin's shared HTTP/2 connection.
+     * If another thread got there first, theirs is returned and this socket is closed.
+     */
+    Http2Connection registerHttp2(PooledConnection leased) throws IOException {
+        String key = leased.getKey();
+        // A multiplexed connection does not count against the per-host HTTP/1.1 limit
+        releaseSlot(key);
+        Http2Connection connection;
+        try {
+            connection = new Http2Connection(key, leased.getSocket());
+        } catch (IOException e) {
+            leased.close();
+            throw e;
+        }
+        return register(connection, leased::close);
+    }
+
+    /**
+     * Opens a cleartext HTTP/2 connection without negotiation (h2c "prior knowledge").
+     */
+    Http2Connection openHttp2(String scheme, String host, int port, int connectTimeout) throws IOException {
+        Socket socket = connect(scheme, host, port, connectTimeout, null);
+        return register(new Http2Connection(key(scheme, host, port), socket), () -> closeQuietly(socket));
+    }
+
+    private Http2Connection register(Http2Connection connection, Runnable closeSocket) throws IOException {
+        synchronized (this) {
+            Http2Connection existing = http2Connections.get(connection.getKey());
+            if (existing != null && existing.isOpen()) {
+                closeSocket.run();
+                return existing;
+            }
+            http2Connections.put(connection.getKey(), connection);
+        }
+
+        try {
+            connection.start();
+            return connection;
+        } catch (IOException e) {
+            synchronized (this) {
+                http2Connections.remove(connection.getKey(), connection);
+            }
+            closeSocket.run();
+            throw e;
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    public Resolver getResolver() {
+        return resolver;
+    }
+
+    public int getMaxConnectionsPerHost() {
+        return maxConnectionsPerHost;
+    }
+
+    public void evictIdle() {
+        List<PooledConnection> expired = new ArrayList<>();
+        List<Http2Connection> expiredHttp2 = new ArrayList<>();
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            for (HostPool hostPool : hosts.values()) {
+                evictExpired(hostPool, now, expired);
+            }
+            Iterator<Http2Connection> it = http2Connections.values().iterator();
+            while (it.hasNext()) {
+                Http2Connection connection = it.next();
+                if (!connection.isOpen() || connection.isIdleLongerThan(now, idleTimeout)) {
+                    it.remove();
+                    expiredHttp2.add(connection);
+                }
+            }
+        }
+        expired.forEach(PooledConnection::close);
+        expiredHttp2.forEach(Http2Connection::closeWhenIdle);
+    }
+
+    public void closeAll() {
+        List<PooledConnection> idle = new ArrayList<>();
+        List<Http2Connection> http2 = new ArrayList<>();
+        synchronized (this) {
+            for (HostPool hostPool : hosts.values()) {
+                idle.addAll(hostPool.idle);
+                hostPool.idle.clear();
+            }
+            http2.addAll(http2Connections.values());
+            http2Connections.clear();
+        }
+        idle.forEach(PooledConnection::close);
+        http2.forEach(Http2Connection::closeWhenIdle);
+    }
+
+    public synchronized int getIdleCount() {
+        int count = 0;
+        for (HostPool hostPool : hosts.values()) {
+            count += hostPool.idle.size();
+        }
+        return count;
+    }
+
+    private void evictExpired(HostPool hostPool, long now, List<PooledConnection> expired) {
+        Iterator<PooledConnection> it = hostPool.idle.iterator();
+        while (it.hasNext()) {
+            PooledConnection connection = it.next();
+            if (connection.isExpired(now, idleTimeout)) {
+                it.remove();
+                expired.add(connection);
+            }
+        }
+    }
+
+    private Socket connect(String scheme, String host, int port, int connectTimeout,
+                           String[] applicationProtocols) throws IOException {
+        long start = System.nanoTime();
+        List<InetAddress> addresses = resolver.resolve(host);
+        long resolved = System.nanoTime();
+        Metrics.record(Metrics.Phase.DNS, resolved - start);
+        Socket socket = HappyEyeballs.connect(addresses, port, connectTimeout);
+        Metrics.recordSince(Metrics.Phase.CONNECT, resolved);
+        if ("https".equalsIgnoreCase(scheme)) {
+            return SSLSocketFactory.createSSLSocket(socket, host, port, connectTimeout, applicationProtocols);
+        }
+        return socket;
+    }
+
+    private static class HostPool {
+        private final Deque<PooledConnection> idle = new ArrayDeque<>();
+        private int leased;
+    }
+}
@@ -0,0 +1,96 @@
+package org.c8a.client;
+
+import org.brotli.dec.BrotliInputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+public class ContentDecoder {
+
+    public static final String ACCEPT_ENCODING = "gzip, deflate, br";
+
+    private static final int DECODER_BUFFER_SIZE = 8192;
+
+    /**
+     * Wraps a raw body stream with decoders for every coding listed in Content-Encoding.
+     * Codings are applied by the server in listed order, so they are undone in reverse.
+     */
+    public static InputStream wrap(InputStream in, String contentEncoding) throws IOException {
+        if (contentEncoding == null || contentEncoding.isBlank()) {
+            return in;
+        }
+
+        String[] codings = contentEncoding.split(",");
+        InputStream decoded = in;
+        for (int i = codings.length - 1; i >= 0; i--) {
+            decoded = wrapSingle(decoded, codings[i].trim().toLowerCase());
+        }
+        return decoded;
+    }
+
+    public static boolean isSupported(String contentEncoding) {
+        if (contentEncoding == null) {
+            return true;
+        }
+        for (String coding : contentEncoding.split(",")) {
+            switch (coding.trim().toLowerCase()) {
+                case "", "identity", "gzip", "x-gzip", "deflate", "br" -> { }
+                default -> {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static InputStream wrapSingle(InputStream in, String coding) throws IOException {
+        PushbackInputStream peekable = new PushbackInputStream(in, 2);
+
+        // An empty body carries no coding header; decoders would fail trying to read one
+        int first = peekable.read();
+        if (first == -1) {
+            return peekable;
+        }
+
+        switch (coding) {
+            case "", "identity" -> {
+                peekable.unread(first);
+                return peekable;
+            }
+            case "gzip", "x-gzip" -> {
+                peekable.unread(first);
+                return new GZIPInputStream(peekable, DECODER_BUFFER_SIZE);
+            }
+            case "deflate" -> {
+                int second = peekable.read();
+                if (second != -1) {
+                    peekable.unread(second);
+                }
+                peekable.unread(first);
+                // "deflate" is meant to be zlib-wrapped, but some servers send a raw deflate stream
+                boolean zlibWrapped = second != -1 && (first & 0x0F) == 8 && ((first << 8) | second) % 31 == 0;
+                // Unlike GZIPInputStream, this one leaves a given Inflater's native memory to its owner to free
+                Inflater inflater = new Inflater(!zlibWrapped);
+                return new InflaterInputStream(peekable, inflater, DECODER_BUFFER_SIZE) {
+                    @Override
+                    public void close() throws IOException {
+                        try {
+                            super.close();
+                        } finally {
+                            inflater.end();
+                        }
+                    }
+                };
+            }
+            case "br" -> {
+                peekable.unread(first);
+                return new BrotliInputStream(peekable);
+            }
+            default -> throw new IOException("Unsupported Content-Encoding: " + coding);
+        }
+    }
+}
@@ -1,12 +1,20 @@
 package org.c8a.client;
 
-import java.io.*;
-import java.net.Socket;
+import org.c8a.metrics.Metrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.net.UnknownHostException;
+import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -15,24 +23,45 @@ public class CustomHttpClient {
     private static final int DEFAULT_HTTP_PORT = 80;
     private static final int DEFAULT_HTTPS_PORT = 443;
     private static final int DEFAULT_TIMEOUT = 10000; // 10 seconds
+    private static final boolean HTTP2_ENABLED = Boolean.parseBoolean(System.getProperty("go2web.http2", "true"));
+    private static final boolean HTTP2_PRIOR_KNOWLEDGE = Boolean.getBoolean("go2web.http2.priorKnowledge");
+    private static final Executor RESOLVE_THREADS = task -> Thread.ofVirtual().name("go2web-resolve").start(task);
+
+    private static final Pattern KEEP_ALIVE_TIMEOUT_PATTERN = Pattern.compile("timeout\\s*=\\s*(\\d+)");
+    private static final Pattern CHARSET_PATTERN = Pattern.compile("charset\\s*=\\s*\"?([^\\s;\"]+)", Pattern.CASE_INSENSITIVE);
 
     private final Map<String, String> requestHeaders;
     private final int connectTimeout;
     private final int readTimeout;
+    private final ConnectionPool pool;
+    private long maxBodySize = Long.MAX_VALUE;
+    private boolean verbose = true;
+    private boolean http2Enabled = HTTP2_ENABLED;
+    private boolean http2PriorKnowledge = HTTP2_PRIOR_KNOWLEDGE;
 
     public CustomHttpClient() {
         this(DEFAULT_TIMEOUT, DEFAULT_TIMEOUT);
     }
 
     public CustomHttpClient(int connectTimeout, int readTimeout) {
+        this(connectTimeout, readTimeout, ConnectionPool.shared());
+    }
+
+    public CustomHttpClient(int connectTimeout, int readTimeout, ConnectionPool pool) {
         this.connectTimeout = connectTimeout;
         this.readTimeout = readTimeout;
-        this.requestHeaders = new HashMap<>();
+        this.pool = pool;
+        this.requestHeaders = defaultRequestHeaders();
+    }
 
-        setRequestHeader("User-Agent", "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/122.0.0.0 Safari/537.36");
-        setRequestHeader("Accept", "application/json, text/html;q=0.9, application/xhtml+xml;q=0.8, application/xml;q=0.7");
-        setRequestHeader("Accept-Language", "en-US,en;q=0.5");
-        setRequestHeader("Connection", "close");
+    private static Map<String, String> defaultRequestHeaders() {
+        Map<String, String> headers = new HashMap<>();
+        headers.put("User-Agent", "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/122.0.0.0 Safari/537.36");
+        headers.put("Accept", "application/json, text/html;q=0.9, application/xhtml+xml;q=0.8, application/xml;q=0.7");
+        headers.put("Accept-Language", "en-US,en;q=0.5");
+        headers.put("Accept-Encoding", ContentDecoder.ACCEPT_ENCODING);
+        headers.put("Connection", "keep-alive");
+        return headers;
     }
 
     public void setRequestHeader(String name, String value) {
@@ -43,230 +72,347 @@ public class CustomHttpClient {
         }
     }
 
-    public HttpResponse get(String url) throws IOException {
-        return request("GET", url, null);
+    /**
+     * Caps the decoded size of response bodies; reads fail as soon as the cap is crossed.
+     */
+    public void setMaxBodySize(long maxBodySize) {
+        this.maxBodySize = maxBodySize;
     }
 
-    public HttpResponse request(String method, String url, byte[] body) throws IOException {
-        try {
-            URI uri = new URI(url);
-            String scheme = uri.getScheme();
-            String host = uri.getHost();
-            int port = uri.getPort();
+    public long getMaxBodySize() {
+        return maxBodySize;
+    }
 
-            if (scheme == null) {
-                throw new IOException("URL scheme is missing");
-            }
+    public void setVerbose(boolean verbose) {
+        this.verbose = verbose;
+    }
 
-            boolean isHttps = "https".equalsIgnoreCase(scheme);
-            if (port == -1) {
-                port = isHttps ? DEFAULT_HTTPS_PORT : DEFAULT_HTTP_PORT;
-            }
+    /**
+     * Offers h2 via ALPN on HTTPS connections; servers that decline are spoken to in HTTP/1.1.
+     */
+    public void setHttp2Enabled(boolean http2Enabled) {
+        this.http2Enabled = http2Enabled;
+    }
 
-            String path = uri.getRawPath();
-            if (path == null || path.isEmpty()) {
-                path = "/";
-            }
-            String query = uri.getRawQuery();
-            if (query != null && !query.isEmpty()) {
-                path += "?" + query;
-            }
+    /**
+     * Speaks HTTP/2 straight away on plain http:// connections (h2c with prior knowledge), for servers
+     * known to support it, such as a local test server. Defaults to {@code -Dgo2web.http2.priorKnowledge}.
+     */
+    public void setHttp2PriorKnowledge(boolean http2PriorKnowledge) {
+        this.http2PriorKnowledge = http2PriorKnowledge;
+    }
 
-            System.out.println("Connecting to " + host + ":" + port + "...");
+    public HttpResponse get(String url) throws IOException {
+        return request("GET", url, null);
+    }
 
-            Socket socket;
-            if (isHttps) {
-                socket = SSLSocketFactory.createSSLSocket(host, port, connectTimeout);
-            } else {
-                socket = new Socket(host, port);
-                socket.setSoTimeout(readTimeout);
-            }
+    public HttpResponse request(String method, String url, byte[] body) throws IOException {
+        try (StreamingResponse response = stream(method, url, body)) {
+            byte[] responseBody = response.readAllBytes();
+            return new HttpResponse(response.getStatusCode(), response.getStatusMessage(), response.getHeaders(),
+                    responseBody, response.getWireLength());
+        }
+    }
 
-            StringBuilder requestBuilder = new StringBuilder();
-            requestBuilder.append(method).append(" ").append(path).append(" HTTP/1.1\r\n");
-            requestBuilder.append("Host: ").append(host).append("\r\n");
+    public StreamingResponse stream(String url) throws IOException {
+        return stream("GET", url, null);
+    }
 
-            for (Map.Entry<String, String> header : requestHeaders.entrySet()) {
-                requestBuilder.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+    /**
+     * Sends the request and returns as soon as the response head has arrived. The caller must close the
+     * response; the connection goes back to the pool only if the body was read to its end.
+     */
+    public StreamingResponse stream(String method, String url, byte[] body) throws IOException {
+        Target target = Target.parse(url);
+        String scheme = target.scheme();
+        String host = target.host();
+        int port = target.port();
+        byte[] requestHead = buildRequestHead(method, target, body);
+
+        for (int attempt = 0; ; attempt++) {
+            boolean cleartext = "http".equalsIgnoreCase(scheme);
+            Http2Connection http2 = http2Enabled || (cleartext && http2PriorKnowledge)
+                    ? pool.getHttp2(scheme, host, port) : null;
+            boolean reused = http2 != null;
+
+            if (http2 == null && cleartext && http2PriorKnowledge) {
+                http2 = pool.openHttp2(scheme, host, port, connectTimeout);
             }
 
-            if (body != null && body.length > 0) {
-                requestBuilder.append("Content-Length: ").append(body.length).append("\r\n");
+            if (http2 == null) {
+                PooledConnection connection = pool.acquire(scheme, host, port, connectTimeout, readTimeout,
+                        attempt > 0, http2Enabled);
+                reused = connection.isReused();
+                if (connection.isHttp2()) {
+                    http2 = pool.registerHttp2(connection);
+                } else {
+                    printConnecting(host, port, reused, "");
+                    Metrics.increment(reused ? Metrics.Counter.CONNECTIONS_REUSED : Metrics.Counter.CONNECTIONS_OPENED);
+                    StreamingResponse response = sendHttp1(connection, method, requestHead, body,
+                            attempt == 0 && reused && isIdempotent(method));
+                    if (response != null) {
+                        return response;
+                    }
+                    continue;
+                }
             }
 
-            requestBuilder.append("\r\n");
+            printConnecting(host, port, reused, "HTTP/2 ");
+            Metrics.increment(reused ? Metrics.Counter.CONNECTIONS_REUSED : Metrics.Counter.CONNECTIONS_OPENED);
+            try {
+                return sendHttp2(http2, method, target, body);
+            } catch (IOException e) {
+                // A refused stream was never processed, so even a POST can go out again
+                if (attempt == 0 && (e instanceof Http2Connection.RefusedStreamException
+                        || (reused && isIdempotent(method)))) {
+                    continue;
+                }
+                throw e;
+            }
+        }
+    }
 
-            OutputStream out = socket.getOutputStream();
-            out.write(requestBuilder.toString().getBytes("UTF-8"));
+    private void printConnecting(String host, int port, boolean reused, String protocol) {
+        if (verbose) {
+            if (reused) {
+                System.out.println("Reusing " + protocol + "connection to " + host + ":" + port + "...");
+            } else {
+                System.out.println("Connecting to " + host + ":" + port + "...");
+            }
+        }
+    }
 
+    /**
+     * Returns null when a reused connection failed before any response and the request should be retried.
+     */
+    private StreamingResponse sendHttp1(PooledConnection connection, String method, byte[] requestHead, byte[] body,
+                                        boolean retryable) throws IOException {
+        HttpResponseParser parser = connection.getParser();
+        long start = System.nanoTime();
+        try {
+            OutputStream out = connection.getOutputStream();
+            out.write(requestHead);
             if (body != null && body.length > 0) {
                 out.write(body);
             }
             out.flush();
 
-            InputStream in = socket.getInputStream();
-            return parseResponse(in);
+            if (!parser.readHead()) {
+                throw new IOException("Empty response");
+            }
+            Metrics.recordSince(Metrics.Phase.TIME_TO_FIRST_BYTE, start);
+        } catch (IOException e) {
+            pool.release(connection, false, -1);
+            // The server may have dropped a pooled connection just before we used it; retry once on a fresh one
+            if (retryable) {
+                return null;
+            }
+            throw e;
+        }
 
-        } catch (URISyntaxException e) {
-            throw new IOException("Invalid URL: " + e.getMessage(), e);
+        try {
+            return openResponse(connection, parser, method);
+        } catch (IOException | RuntimeException e) {
+            pool.release(connection, false, -1);
+            throw e;
         }
     }
 
-    private HttpResponse parseResponse(InputStream in) throws IOException {
-        BufferedReader reader = new BufferedReader(new InputStreamReader(in));
-
-        String statusLine = reader.readLine();
-        if (statusLine == null) {
-            throw new IOException("Empty response");
+    private StreamingResponse sendHttp2(Http2Connection connection, String method, Target target, byte[] body)
+            throws IOException {
+        boolean defaultPort = target.port() == ("https".equalsIgnoreCase(target.scheme()) ? DEFAULT_HTTPS_PORT : DEFAULT_HTTP_PORT);
+        HttpHeaders headers = new HttpHeaders(requestHeaders.size() + 5);
+        headers.add(":method", method);
+        headers.add(":scheme", target.scheme().toLowerCase());
+        headers.add(":authority", defaultPort ? target.host() : target.host() + ":" + target.port());
+        headers.add(":path", target.path());
+        for (Map.Entry<String, String> header : requestHeaders.entrySet()) {
+            String name = header.getKey().toLowerCase();
+            if (!Http2Connection.isConnectionSpecific(name)) {
+                headers.add(name, header.getValue());
+            }
         }
-
-        Pattern statusPattern = Pattern.compile("HTTP/\\d\\.\\d (\\d+) (.*)");
-        Matcher matcher = statusPattern.matcher(statusLine);
-        if (!matcher.matches()) {
-            throw new IOException("Invalid status line: " + statusLine);
+        if (body != null && body.length > 0) {
+            headers.add("content-length", String.valueOf(body.length));
         }
 
-        int statusCode = Integer.parseInt(matcher.group(1));
-        String statusMessage = matcher.group(2);
+        long start = System.nanoTime();
+        Http2Stream stream = connection.newStream(headers, body, readTimeout);
+        try {
+            stream.awaitResponse(readTimeout);
+            Metrics.recordSince(Metrics.Phase.TIME_TO_FIRST_BYTE, start);
+            return new StreamingResponse(stream.getStatusCode(), "", stream.getHeaders(), stream, maxBodySize);
+        } catch (IOException | RuntimeException e) {
+            stream.release();
+            throw e;
+        }
+    }
 
-        Map<String, String> headers = new HashMap<>();
-        String line;
-        while ((line = reader.readLine()) != null && !line.isEmpty()) {
-            int colonPos = line.indexOf(':');
-            if (colonPos > 0) {
-                String headerName = line.substring(0, colonPos).trim();
-                String headerValue = line.substring(colonPos + 1).trim();
-                headers.put(headerName, headerValue);
-
-                headers.put(headerName.toLowerCase(), headerValue);
+    /**
+     * Sends the request on the shared non-blocking engine. Many of these can be in flight from a
+     * handful of event-loop threads; the future completes with the fully read and decoded response.
+     */
+    public CompletableFuture<HttpResponse> requestAsync(String method, String url, byte[] body) {
+        Target target;
+        byte[] request;
+        NioHttpEngine engine;
+        try {
+            target = Target.parse(url);
+            byte[] head = buildRequestHead(method, target, body);
+            boolean hasBody = body != null && body.length > 0;
+            request = hasBody ? Arrays.copyOf(head, head.length + body.length) : head;
+            if (hasBody) {
+                System.arraycopy(body, 0, request, head.length, body.length);
             }
+            engine = NioHttpEngine.shared();
+        } catch (IOException | RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
         }
 
-        String contentLengthStr = headers.get("content-length");
-
-        boolean isChunked = "chunked".equalsIgnoreCase(headers.get("transfer-encoding"));
-
-        ByteArrayOutputStream responseBody = new ByteArrayOutputStream();
-
-        if (isChunked) {
-            readChunkedBody(reader, responseBody);
-        } else if (contentLengthStr != null) {
-            int contentLength = Integer.parseInt(contentLengthStr);
-            readFixedLengthBody(in, responseBody, contentLength);
-        } else {
-            readUntilEOF(in, responseBody);
-        }
+        // The lookup blocks, so it runs on its own thread and the caller gets the future back at once
+        Resolver resolver = pool.getResolver();
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return resolver.resolve(target.host());
+            } catch (UnknownHostException e) {
+                throw new CompletionException(e);
+            }
+        }, RESOLVE_THREADS).thenCompose(addresses -> engine.send(target.scheme(), target.host(), target.port(),
+                addresses, method, request, connectTimeout, readTimeout, maxBodySize));
+    }
 
-        return new HttpResponse(statusCode, statusMessage, headers, responseBody.toByteArray());
+    public CompletableFuture<HttpResponse> getAsync(String url) {
+        return requestAsync("GET", url, null);
     }
 
-    private void readChunkedBody(BufferedReader reader, ByteArrayOutputStream output) throws IOException {
-        try {
-            while (true) {
-                String chunkSizeLine = reader.readLine();
-                if (chunkSizeLine == null) break;
+    private byte[] buildRequestHead(String method, Target target, byte[] body) {
+        StringBuilder requestBuilder = new StringBuilder();
+        requestBuilder.append(method).append(" ").append(target.path()).append(" HTTP/1.1\r\n");
+        requestBuilder.append("Host: ").append(target.host()).append("\r\n");
 
-                if (chunkSizeLine.trim().isEmpty()) {
-                    continue;
-                }
+        for (Map.Entry<String, String> header : requestHeaders.entrySet()) {
+            requestBuilder.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+        }
 
-                String hexPart = extractHexPart(chunkSizeLine);
-                if (hexPart.isEmpty()) {
-//                    System.err.println("Warning: Skipping invalid chunk header: " + chunkSizeLine);
-                    continue;
-                }
+        if (body != null && body.length > 0) {
+            requestBuilder.append("Content-Length: ").append(body.length).append("\r\n");
+        }
 
-                try {
-                    int chunkSize = Integer.parseInt(hexPart, 16);
+        requestBuilder.append("\r\n");
+        return requestBuilder.toString().getBytes(StandardCharsets.UTF_8);
+    }
 
-                    if (chunkSize == 0) {
-                        reader.readLine();
-                        break;
-                    }
+    private static boolean isIdempotent(String method) {
+        return !"POST".equalsIgnoreCase(method) && !"PATCH".equalsIgnoreCase(method);
+    }
 
-                    char[] buffer = new char[chunkSize];
-                    int totalRead = 0;
+    private StreamingResponse openResponse(PooledConnection connection, HttpResponseParser parser, String method)
+            throws IOException {
+        // Interim responses (100 Continue, 103 Early Hints) precede the real one on the same connection
+        while (parser.getStatusCode() >= 100 && parser.getStatusCode() < 200 && parser.getStatusCode() != 101) {
+            if (!parser.readHead()) {
+                throw new IOException("Connection closed after interim response");
+            }
+        }
 
-                    while (totalRead < chunkSize) {
-                        int read = reader.read(buffer, totalRead, chunkSize - totalRead);
-                        if (read == -1) break;
-                        totalRead += read;
-                    }
+        int statusCode = parser.getStatusCode();
+        HttpHeaders headers = parser.getHeaders();
+        boolean hasBody = !"HEAD".equalsIgnoreCase(method) && statusCode != 204 && statusCode != 304;
+        parser.beginBody(hasBody);
 
-                    output.write(new String(buffer, 0, totalRead).getBytes(StandardCharsets.UTF_8));
+        String connectionHeader = headers.get("Connection");
+        boolean keepAlive = parser.getVersion() >= 11
+                ? connectionHeader == null || !connectionHeader.toLowerCase().contains("close")
+                : connectionHeader != null && connectionHeader.toLowerCase().contains("keep-alive");
 
-                    reader.readLine();
-                } catch (NumberFormatException e) {
-                    System.err.println("Warning: Failed to parse chunk size from: " + chunkSizeLine);
-                    continue;
-                }
-            }
+        return new StreamingResponse(pool, connection, parser, keepAlive,
+                parseKeepAliveTimeout(headers.get("Keep-Alive")), maxBodySize);
+    }
 
-            String line;
-            while ((line = reader.readLine()) != null && !line.isEmpty()) {
-                //  Consuming the trailing headers
-            }
-        } catch (IOException e) {
-            System.err.println("Error reading chunked body: " + e.getMessage());
-            throw e;
+    private static long parseKeepAliveTimeout(String keepAlive) {
+        if (keepAlive == null) {
+            return -1;
         }
+        Matcher matcher = KEEP_ALIVE_TIMEOUT_PATTERN.matcher(keepAlive);
+        if (matcher.find()) {
+            return Long.parseLong(matcher.group(1)) * 1000;
+        }
+        return -1;
     }
 
-
-    private String extractHexPart(String line) {
-        line = line.trim();
-
-        int endPos = 0;
-        while (endPos < line.length() && isHexDigit(line.charAt(endPos))) {
-            endPos++;
+    static String declaredCharset(HttpHeaders headers) {
+        String contentType = headers.get("Content-Type");
+        if (contentType != null) {
+            Matcher matcher = CHARSET_PATTERN.matcher(contentType);
+            if (matcher.find()) {
+                return matcher.group(1);
+            }
         }
-
-        return endPos > 0 ? line.substring(0, endPos) : "";
+        return null;
     }
 
-    private boolean isHexDigit(char c) {
-        return (c >= '0' && c <= '9') ||
-                (c >= 'a' && c <= 'f') ||
-                (c >= 'A' && c <= 'F');
+    static Charset charsetOf(HttpHeaders headers) {
+        String charset = declaredCharset(headers);
+        if (charset != null) {
+            try {
+                return Charset.forName(charset);
+            } catch (IllegalArgumentException ignored) {
+                // Unknown or malformed charset name; fall back to UTF-8
+            }
+        }
+        return StandardCharsets.UTF_8;
     }
 
-    private void readFixedLengthBody(InputStream in, ByteArrayOutputStream output, int contentLength) throws IOException {
-        byte[] buffer = new byte[1024];
-        int bytesRemaining = contentLength;
-
-        while (bytesRemaining > 0) {
-            int bytesToRead = Math.min(buffer.length, bytesRemaining);
-            int bytesRead = in.read(buffer, 0, bytesToRead);
+    private record Target(String scheme, String host, int port, String path) {
 
-            if (bytesRead == -1) {
-                break;
-            }
+        static Target parse(String url) throws IOException {
+            try {
+                URI uri = new URI(url);
+                String scheme = uri.getScheme();
+                String host = uri.getHost();
+                int port = uri.getPort();
 
-            output.write(buffer, 0, bytesRead);
-            bytesRemaining -= bytesRead;
-        }
-    }
+                if (scheme == null) {
+                    throw new IOException("URL scheme is missing");
+                }
 
-    private void readUntilEOF(InputStream in, ByteArrayOutputStream output) throws IOException {
-        byte[] buffer = new byte[1024];
-        int bytesRead;
+                boolean isHttps = "https".equalsIgnoreCase(scheme);
+                if (port == -1) {
+                    port = isHttps ? DEFAULT_HTTPS_PORT : DEFAULT_HTTP_PORT;
+                }
 
-        while ((bytesRead = in.read(buffer)) != -1) {
-            output.write(buffer, 0, bytesRead);
+                String path = uri.getRawPath();
+                if (path == null || path.isEmpty()) {
+                    path = "/";
+                }
+                String query = uri.getRawQuery();
+                if (query != null && !query.isEmpty()) {
+                    path += "?" + query;
+                }
+                return new Target(scheme, host, port, path);
+            } catch (URISyntaxException e) {
+                throw new IOException("Invalid URL: " + e.getMessage(), e);
+            }
         }
     }
 
     public static class HttpResponse {
         private final int statusCode;
         private final String statusMessage;
-        private final Map<String, String> headers;
+        private final HttpHeaders headers;
         private final byte[] body;
+        private final long wireLength;
 
-        public HttpResponse(int statusCode, String statusMessage, Map<String, String> headers, byte[] body) {
+        public HttpResponse(int statusCode, String statusMessage, HttpHeaders headers, byte[] body) {
+            this(statusCode, statusMessage, headers, body, body.length);
+        }
+
+        public HttpResponse(int statusCode, String statusMessage, HttpHeaders headers, byte[] body, long wireLength) {
             this.statusCode = statusCode;
             this.statusMessage = statusMessage;
             this.headers = headers;
             this.body = body;
+            this.wireLength = wireLength;
         }
 
         public int getStatusCode() {
@@ -277,24 +423,32 @@ public class CustomHttpClient {
             return statusMessage;
         }
 
-        public Map<String, String> getHeaders() {
+        public HttpHeaders getHeaders() {
             return headers;
         }
 
         public String getHeader(String name) {
-            return headers.get(name.toLowerCase());
+            return headers.get(name);
         }
 
         public byte[] getBody() {
             return body;
         }
 
+        public long getWireLength() {
+            return wireLength;
+        }
+
+        public long getDecodedLength() {
+            return body.length;
+        }
+
+        public Charset getCharset() {
+            return charsetOf(headers);
+        }
+
         public String getBodyAsString() {
-            try {
-                return new String(body, "UTF-8");
-            } catch (UnsupportedEncodingException e) {
-                return new String(body);
-            }
+            return new String(body, getCharset());
         }
 
         public boolean isRedirect() {
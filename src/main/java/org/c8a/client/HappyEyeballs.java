@@ -0,0 +1,155 @@
+package org.c8a.client;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Connects to whichever of a host's addresses answers first (RFC 8305). Attempts start one after another,
+ * a short delay apart or as soon as the previous one fails, and alternate between IPv6 and IPv4, so a dead
+ * address or a broken address family costs a fraction of a second instead of the whole connect timeout.
+ */
+final class HappyEyeballs {
+
+    static final long ATTEMPT_DELAY = 250; // milliseconds, as recommended by the RFC
+
+    private HappyEyeballs() {
+    }
+
+    static Socket connect(List<InetAddress> addresses, int port, int connectTimeout) throws IOException {
+        List<InetAddress> ordered = interleave(addresses);
+        if (ordered.size() == 1) {
+            return connect(ordered.get(0), port, connectTimeout);
+        }
+
+        long deadline = System.currentTimeMillis() + connectTimeout;
+        BlockingQueue<Attempt> results = new LinkedBlockingQueue<>();
+        List<Socket> sockets = new ArrayList<>();
+        Socket winner = null;
+        IOException lastError = null;
+        int started = 0;
+        int finished = 0;
+        try {
+            start(ordered.get(started++), port, deadline, sockets, results);
+            while (true) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new SocketTimeoutException("Connect timed out (" + started + " of " + ordered.size()
+                            + " addresses tried)");
+                }
+
+                Attempt attempt = results.poll(started < ordered.size() ? Math.min(ATTEMPT_DELAY, remaining) : remaining,
+                        TimeUnit.MILLISECONDS);
+                if (attempt == null) {
+                    // The current attempt is slow, not failed; race the next address against it
+                    if (started < ordered.size()) {
+                        start(ordered.get(started++), port, deadline, sockets, results);
+                    }
+                    continue;
+                }
+
+                finished++;
+                if (attempt.error() == null) {
+                    winner = attempt.socket();
+                    return winner;
+                }
+                lastError = attempt.error();
+                if (started < ordered.size()) {
+                    start(ordered.get(started++), port, deadline, sockets, results);
+                } else if (finished == started) {
+                    throw lastError;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while connecting", e);
+        } finally {
+            // Closing the losers also aborts their connects still in progress
+            synchronized (sockets) {
+                for (Socket socket : sockets) {
+                    if (socket != winner) {
+                        closeQuietly(socket);
+                    }
+                }
+            }
+        }
+    }
+
+    private static Socket connect(InetAddress address, int port, int connectTimeout) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(address, port), connectTimeout);
+            return socket;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    private static void start(InetAddress address, int port, long deadline, List<Socket> sockets,
+                              BlockingQueue<Attempt> results) {
+        Socket socket = new Socket();
+        synchronized (sockets) {
+            sockets.add(socket);
+        }
+        Thread.ofVirtual().name("go2web-connect-" + address.getHostAddress()).start(() -> {
+            try {
+                socket.setTcpNoDelay(true);
+                socket.connect(new InetSocketAddress(address, port),
+                        (int) Math.max(1, deadline - System.currentTimeMillis()));
+                results.add(new Attempt(socket, null));
+            } catch (IOException e) {
+                closeQuietly(socket);
+                results.add(new Attempt(null, e));
+            }
+        });
+    }
+
+    /**
+     * Alternates address families, starting with the family of the resolver's first choice.
+     */
+    static List<InetAddress> interleave(List<InetAddress> addresses) {
+        if (addresses.isEmpty()) {
+            throw new IllegalArgumentException("No addresses to connect to");
+        }
+        List<InetAddress> preferred = new ArrayList<>();
+        List<InetAddress> other = new ArrayList<>();
+        boolean preferIpv6 = addresses.get(0) instanceof Inet6Address;
+        for (InetAddress address : addresses) {
+            ((address instanceof Inet6Address) == preferIpv6 ? preferred : other).add(address);
+        }
+        if (other.isEmpty()) {
+            return addresses;
+        }
+
+        List<InetAddress> ordered = new ArrayList<>(addresses.size());
+        for (int i = 0; i < Math.max(preferred.size(), other.size()); i++) {
+            if (i < preferred.size()) {
+                ordered.add(preferred.get(i));
+            }
+            if (i < other.size()) {
+                ordered.add(other.get(i));
+            }
+        }
+        return ordered;
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private record Attempt(Socket socket, IOException error) {
+    }
+}
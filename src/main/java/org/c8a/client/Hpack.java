@@ -0,0 +1,537 @@
+package org.c8a.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * HPACK header compression (RFC 7541) for HTTP/2: static and dynamic tables, prefixed integers
+ * and Huffman-coded string literals.
+ */
+final class Hpack {
+
+    static final int DEFAULT_TABLE_SIZE = 4096;
+
+    private static final int ENTRY_OVERHEAD = 32;
+    private static final int EOS = 256;
+
+    private static final String[][] STATIC_TABLE = {
+            {":authority", ""}, {":method", "GET"}, {":method", "POST"}, {":path", "/"},
+            {":path", "/index.html"}, {":scheme", "http"}, {":scheme", "https"}, {":status", "200"},
+            {":status", "204"}, {":status", "206"}, {":status", "304"}, {":status", "400"},
+            {":status", "404"}, {":status", "500"}, {"accept-charset", ""}, {"accept-encoding", "gzip, deflate"},
+            {"accept-language", ""}, {"accept-ranges", ""}, {"accept", ""}, {"access-control-allow-origin", ""},
+            {"age", ""}, {"allow", ""}, {"authorization", ""}, {"cache-control", ""},
+            {"content-disposition", ""}, {"content-encoding", ""}, {"content-language", ""}, {"content-length", ""},
+            {"content-location", ""}, {"content-range", ""}, {"content-type", ""}, {"cookie", ""},
+            {"date", ""}, {"etag", ""}, {"expect", ""}, {"expires", ""},
+            {"from", ""}, {"host", ""}, {"if-match", ""}, {"if-modified-since", ""},
+            {"if-none-match", ""}, {"if-range", ""}, {"if-unmodified-since", ""}, {"last-modified", ""},
+            {"link", ""}, {"location", ""}, {"max-forwards", ""}, {"proxy-authenticate", ""},
+            {"proxy-authorization", ""}, {"range", ""}, {"referer", ""}, {"refresh", ""},
+            {"retry-after", ""}, {"server", ""}, {"set-cookie", ""}, {"strict-transport-security", ""},
+            {"transfer-encoding", ""}, {"user-agent", ""}, {"vary", ""}, {"via", ""},
+            {"www-authenticate", ""}
+    };
+
+    private static final Map<String, Integer> STATIC_NAMES = new HashMap<>();
+    private static final Map<String, Integer> STATIC_ENTRIES = new HashMap<>();
+
+    static {
+        for (int i = STATIC_TABLE.length - 1; i >= 0; i--) {
+            STATIC_NAMES.put(STATIC_TABLE[i][0], i + 1);
+            if (!STATIC_TABLE[i][1].isEmpty()) {
+                STATIC_ENTRIES.put(STATIC_TABLE[i][0] + '\0' + STATIC_TABLE[i][1], i + 1);
+            }
+        }
+    }
+
+    // RFC 7541 Appendix B, indexed by symbol; the last entry is EOS
+    private static final int[] HUFFMAN_CODES = {
+            0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5, 0xfffffe6, 0xfffffe7,
+            0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9, 0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec,
+            0xfffffed, 0xfffffee, 0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3,
+            0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9, 0xffffffa, 0xffffffb,
+            0x14, 0x3f8, 0x3f9, 0xffa, 0x1ff9, 0x15, 0xf8, 0x7fa,
+            0x3fa, 0x3fb, 0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18,
+            0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b, 0x1c, 0x1d,
+            0x1e, 0x1f, 0x5c, 0xfb, 0x7ffc, 0x20, 0xffb, 0x3fc,
+            0x1ffa, 0x21, 0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62,
+            0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a,
+            0x6b, 0x6c, 0x6d, 0x6e, 0x6f, 0x70, 0x71, 0x72,
+            0xfc, 0x73, 0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22,
+            0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5, 0x25, 0x26,
+            0x27, 0x6, 0x74, 0x75, 0x28, 0x29, 0x2a, 0x7,
+            0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78,
+            0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd, 0x1ffd, 0xffffffc,
+            0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8, 0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9,
+            0x3fffd6, 0x7fffda, 0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf,
+            0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1, 0x7fffe2, 0x7fffe3,
+            0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5, 0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef,
+            0x3fffda, 0x1fffdd, 0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde,
+            0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf, 0x7fffeb, 0x7fffec,
+            0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2, 0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef,
+            0xfffea, 0x3fffe2, 0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1,
+            0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2, 0x3fffe8, 0x1ffffec,
+            0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde, 0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed,
+            0x7fff2, 0x1fffe3, 0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2,
+            0x1fffe4, 0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3, 0x7ffffe4, 0x7ffffe5,
+            0xfffec, 0xfffff3, 0xfffed, 0x1fffe6, 0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3,
+            0x3fffea, 0x3fffeb, 0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4,
+            0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8, 0x7ffffe9, 0x7ffffea,
+            0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed, 0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee,
+            0x3fffffff
+    };
+
+    private static final byte[] HUFFMAN_LENGTHS = {
+            13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+            28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+            6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+            5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+            13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+            7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+            15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+            6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+            20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+            24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+            22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+            21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+            26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+            19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+            20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+            26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+            30
+    };
+
+    /**
+     * Binary decoding tree over the Huffman codes. Slot node * 2 + bit holds the next node, or -(symbol + 1) for a leaf.
+     */
+    private static final int[] HUFFMAN_TREE = buildHuffmanTree();
+
+    private Hpack() {
+    }
+
+    private static int[] buildHuffmanTree() {
+        // A complete prefix code over 257 symbols has exactly 256 internal nodes
+        int[] tree = new int[2 * 256];
+        int nodes = 1;
+        for (int symbol = 0; symbol <= EOS; symbol++) {
+            int code = HUFFMAN_CODES[symbol];
+            int length = HUFFMAN_LENGTHS[symbol];
+            int node = 0;
+            for (int bit = length - 1; bit > 0; bit--) {
+                int slot = node * 2 + ((code >>> bit) & 1);
+                if (tree[slot] == 0) {
+                    tree[slot] = nodes++;
+                }
+                node = tree[slot];
+            }
+            tree[node * 2 + (code & 1)] = -(symbol + 1);
+        }
+        return tree;
+    }
+
+    static void huffmanDecode(byte[] src, int offset, int length, ByteArrayOutputStream out) throws IOException {
+        int node = 0;
+        int pendingBits = 0;
+        boolean pendingAllOnes = true;
+
+        for (int i = offset; i < offset + length; i++) {
+            int b = src[i] & 0xFF;
+            for (int shift = 7; shift >= 0; shift--) {
+                int bit = (b >>> shift) & 1;
+                int next = HUFFMAN_TREE[node * 2 + bit];
+                pendingBits++;
+                pendingAllOnes &= bit == 1;
+                if (next < 0) {
+                    int symbol = -next - 1;
+                    if (symbol == EOS) {
+                        throw new IOException("HPACK: EOS symbol inside a Huffman string");
+                    }
+                    out.write(symbol);
+                    node = 0;
+                    pendingBits = 0;
+                    pendingAllOnes = true;
+                } else {
+                    node = next;
+                }
+            }
+        }
+
+        // Only a partial EOS code (at most seven 1-bits) may pad the last byte
+        if (pendingBits > 7 || !pendingAllOnes) {
+            throw new IOException("HPACK: invalid Huffman padding");
+        }
+    }
+
+    static int huffmanLength(byte[] src) {
+        long bits = 0;
+        for (byte b : src) {
+            bits += HUFFMAN_LENGTHS[b & 0xFF];
+        }
+        return (int) ((bits + 7) >>> 3);
+    }
+
+    static void huffmanEncode(byte[] src, ByteArrayOutputStream out) {
+        long current = 0;
+        int bits = 0;
+        for (byte b : src) {
+            int symbol = b & 0xFF;
+            current = (current << HUFFMAN_LENGTHS[symbol]) | HUFFMAN_CODES[symbol];
+            bits += HUFFMAN_LENGTHS[symbol];
+            while (bits >= 8) {
+                bits -= 8;
+                out.write((int) (current >>> bits));
+            }
+        }
+        if (bits > 0) {
+            // Pad with the most significant bits of EOS, which are all ones
+            out.write((int) ((current << (8 - bits)) | (0xFF >>> bits)));
+        }
+    }
+
+    static void writeInteger(ByteArrayOutputStream out, int flags, int prefixBits, int value) {
+        int max = (1 << prefixBits) - 1;
+        if (value < max) {
+            out.write(flags | value);
+            return;
+        }
+        out.write(flags | max);
+        value -= max;
+        while (value >= 0x80) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int entrySize(String name, String value) {
+        return name.length() + value.length() + ENTRY_OVERHEAD;
+    }
+
+    /**
+     * The dynamic table as a ring buffer; index 0 is the most recently added entry.
+     */
+    static final class DynamicTable {
+        private String[] names = new String[16];
+        private String[] values = new String[16];
+        private int first;
+        private int count;
+        private int size;
+        private int maxSize;
+
+        DynamicTable(int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        int length() {
+            return count;
+        }
+
+        String name(int index) {
+            return names[(first + index) % names.length];
+        }
+
+        String value(int index) {
+            return values[(first + index) % values.length];
+        }
+
+        void add(String name, String value) {
+            int entrySize = entrySize(name, value);
+            if (entrySize > maxSize) {
+                // An entry larger than the table empties it and is not added
+                clear();
+                return;
+            }
+            while (size + entrySize > maxSize) {
+                evictOldest();
+            }
+            if (count == names.length) {
+                grow();
+            }
+            first = (first - 1 + names.length) % names.length;
+            names[first] = name;
+            values[first] = value;
+            count++;
+            size += entrySize;
+        }
+
+        void setMaxSize(int maxSize) {
+            this.maxSize = maxSize;
+            while (size > maxSize) {
+                evictOldest();
+            }
+        }
+
+        int find(String name, String value) {
+            for (int i = 0; i < count; i++) {
+                if (name.equals(name(i)) && value.equals(value(i))) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        int findName(String name) {
+            for (int i = 0; i < count; i++) {
+                if (name.equals(name(i))) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private void evictOldest() {
+            int last = (first + count - 1) % names.length;
+            size -= entrySize(names[last], values[last]);
+            names[last] = null;
+            values[last] = null;
+            count--;
+        }
+
+        private void clear() {
+            while (count > 0) {
+                evictOldest();
+            }
+        }
+
+        private void grow() {
+            String[] newNames = new String[names.length * 2];
+            String[] newValues = new String[values.length * 2];
+            for (int i = 0; i < count; i++) {
+                newNames[i] = name(i);
+                newValues[i] = value(i);
+            }
+            names = newNames;
+            values = newValues;
+            first = 0;
+        }
+    }
+
+    static final class Encoder {
+        // Values that change on nearly every request would only churn the table
+        private static final Set<String> NOT_INDEXED = Set.of(":path", "content-length", "if-none-match",
+                "if-modified-since", "range");
+        private static final Set<String> NEVER_INDEXED = Set.of("authorization", "proxy-authorization", "cookie");
+
+        private final DynamicTable table = new DynamicTable(DEFAULT_TABLE_SIZE);
+        private int smallestPendingSize = -1;
+        private boolean sizeChanged;
+
+        /**
+         * Applies the peer's SETTINGS_HEADER_TABLE_SIZE; the change is announced at the start of the next block.
+         */
+        void setMaxTableSize(int peerMaxSize) {
+            int newSize = Math.min(peerMaxSize, DEFAULT_TABLE_SIZE);
+            smallestPendingSize = smallestPendingSize < 0 ? newSize : Math.min(smallestPendingSize, newSize);
+            table.setMaxSize(newSize);
+            sizeChanged = true;
+        }
+
+        byte[] encode(HttpHeaders headers) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+            if (sizeChanged) {
+                if (smallestPendingSize < table.maxSize) {
+                    writeInteger(out, 0x20, 5, smallestPendingSize);
+                }
+                writeInteger(out, 0x20, 5, table.maxSize);
+                smallestPendingSize = -1;
+                sizeChanged = false;
+            }
+
+            for (int i = 0; i < headers.size(); i++) {
+                encodeField(out, headers.nameAt(i), headers.valueAt(i));
+            }
+            return out.toByteArray();
+        }
+
+        private void encodeField(ByteArrayOutputStream out, String name, String value) {
+            boolean never = NEVER_INDEXED.contains(name);
+            if (!never) {
+                Integer staticIndex = STATIC_ENTRIES.get(name + '\0' + value);
+                if (staticIndex != null) {
+                    writeInteger(out, 0x80, 7, staticIndex);
+                    return;
+                }
+                int dynamicIndex = table.find(name, value);
+                if (dynamicIndex >= 0) {
+                    writeInteger(out, 0x80, 7, STATIC_TABLE.length + 1 + dynamicIndex);
+                    return;
+                }
+            }
+
+            int nameIndex = STATIC_NAMES.getOrDefault(name, 0);
+            if (nameIndex == 0) {
+                int dynamicName = table.findName(name);
+                if (dynamicName >= 0) {
+                    nameIndex = STATIC_TABLE.length + 1 + dynamicName;
+                }
+            }
+
+            boolean index = !never && !NOT_INDEXED.contains(name) && entrySize(name, value) <= table.maxSize / 2;
+            if (index) {
+                writeInteger(out, 0x40, 6, nameIndex);
+            } else {
+                writeInteger(out, never ? 0x10 : 0x00, 4, nameIndex);
+            }
+            if (nameIndex == 0) {
+                writeString(out, name);
+            }
+            writeString(out, value);
+
+            if (index) {
+                table.add(name, value);
+            }
+        }
+
+        private static void writeString(ByteArrayOutputStream out, String s) {
+            byte[] raw = s.getBytes(StandardCharsets.ISO_8859_1);
+            int huffmanLength = huffmanLength(raw);
+            if (huffmanLength < raw.length) {
+                writeInteger(out, 0x80, 7, huffmanLength);
+                huffmanEncode(raw, out);
+            } else {
+                writeInteger(out, 0x00, 7, raw.length);
+                out.write(raw, 0, raw.length);
+            }
+        }
+    }
+
+    static final class Decoder {
+        private final DynamicTable table;
+        private final int maxTableSize;
+        private final int maxHeaderListSize;
+        private final ByteArrayOutputStream scratch = new ByteArrayOutputStream(128);
+
+        private byte[] block;
+        private int position;
+        private int end;
+
+        Decoder(int maxTableSize, int maxHeaderListSize) {
+            this.table = new DynamicTable(maxTableSize);
+            this.maxTableSize = maxTableSize;
+            this.maxHeaderListSize = maxHeaderListSize;
+        }
+
+        /**
+         * Decodes one complete header block. Pseudo-headers are returned like any other field, in wire order.
+         */
+        HttpHeaders decode(byte[] src, int offset, int length) throws IOException {
+            block = src;
+            position = offset;
+            end = offset + length;
+
+            HttpHeaders headers = new HttpHeaders();
+            long listSize = 0;
+            boolean fieldSeen = false;
+
+            while (position < end) {
+                int b = block[position] & 0xFF;
+                String name;
+                String value;
+
+                if ((b & 0x80) != 0) {
+                    int index = readInteger(7);
+                    name = nameAt(index);
+                    value = valueAt(index);
+                } else if ((b & 0xE0) == 0x20) {
+                    if (fieldSeen) {
+                        throw new IOException("HPACK: table size update after a header field");
+                    }
+                    int size = readInteger(5);
+                    if (size > maxTableSize) {
+                        throw new IOException("HPACK: table size " + size + " exceeds the advertised " + maxTableSize);
+                    }
+                    table.setMaxSize(size);
+                    continue;
+                } else {
+                    boolean incremental = (b & 0xC0) == 0x40;
+                    int index = readInteger(incremental ? 6 : 4);
+                    name = index == 0 ? readString() : nameAt(index);
+                    value = readString();
+                    if (incremental) {
+                        table.add(name, value);
+                    }
+                }
+
+                fieldSeen = true;
+                listSize += entrySize(name, value);
+                if (listSize > maxHeaderListSize) {
+                    throw new IOException("HPACK: header list exceeds " + maxHeaderListSize + " bytes");
+                }
+                headers.add(name, value);
+            }
+
+            block = null;
+            return headers;
+        }
+
+        private String nameAt(int index) throws IOException {
+            if (index >= 1 && index <= STATIC_TABLE.length) {
+                return STATIC_TABLE[index - 1][0];
+            }
+            return table.name(dynamicIndex(index));
+        }
+
+        private String valueAt(int index) throws IOException {
+            if (index >= 1 && index <= STATIC_TABLE.length) {
+                return STATIC_TABLE[index - 1][1];
+            }
+            return table.value(dynamicIndex(index));
+        }
+
+        private int dynamicIndex(int index) throws IOException {
+            int dynamic = index - STATIC_TABLE.length - 1;
+            if (index < 1 || dynamic >= table.length()) {
+                throw new IOException("HPACK: invalid table index " + index);
+            }
+            return dynamic;
+        }
+
+        private int readInteger(int prefixBits) throws IOException {
+            int max = (1 << prefixBits) - 1;
+            int value = block[position++] & max;
+            if (value < max) {
+                return value;
+            }
+            for (int shift = 0; ; shift += 7) {
+                if (position >= end) {
+                    throw new IOException("HPACK: truncated integer");
+                }
+                if (shift > 21) {
+                    throw new IOException("HPACK: integer overflow");
+                }
+                int b = block[position++] & 0xFF;
+                value += (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+        }
+
+        private String readString() throws IOException {
+            if (position >= end) {
+                throw new IOException("HPACK: truncated string");
+            }
+            boolean huffman = (block[position] & 0x80) != 0;
+            int length = readInteger(7);
+            if (length > end - position) {
+                throw new IOException("HPACK: string runs past the header block");
+            }
+
+            String s;
+            if (huffman) {
+                scratch.reset();
+                huffmanDecode(block, position, length, scratch);
+                s = scratch.toString(StandardCharsets.ISO_8859_1);
+            } else {
+                s = new String(block, position, length, StandardCharsets.ISO_8859_1);
+            }
+            position += length;
+            return s;
+        }
+    }
+}
@@ -0,0 +1,905 @@
+package org.c8a.client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * One HTTP/2 connection (RFC 9113) carrying any number of concurrent request streams. A reader thread
+ * dispatches incoming frames to their streams; callers write their own frames under a shared write lock.
+ */
+class Http2Connection {
+
+    private static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    private static final int FRAME_HEADER_LENGTH = 9;
+
+    private static final int DATA = 0x0;
+    private static final int HEADERS = 0x1;
+    private static final int PRIORITY = 0x2;
+    private static final int RST_STREAM = 0x3;
+    private static final int SETTINGS = 0x4;
+    private static final int PUSH_PROMISE = 0x5;
+    private static final int PING = 0x6;
+    private static final int GOAWAY = 0x7;
+    private static final int WINDOW_UPDATE = 0x8;
+    private static final int CONTINUATION = 0x9;
+
+    private static final int FLAG_END_STREAM = 0x1;
+    private static final int FLAG_ACK = 0x1;
+    private static final int FLAG_END_HEADERS = 0x4;
+    private static final int FLAG_PADDED = 0x8;
+    private static final int FLAG_PRIORITY = 0x20;
+
+    private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+    private static final int SETTINGS_ENABLE_PUSH = 0x2;
+    private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+    private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+    private static final int SETTINGS_MAX_HEADER_LIST_SIZE = 0x6;
+
+    static final int NO_ERROR = 0x0;
+    static final int PROTOCOL_ERROR = 0x1;
+    static final int FLOW_CONTROL_ERROR = 0x3;
+    static final int FRAME_SIZE_ERROR = 0x6;
+    static final int REFUSED_STREAM = 0x7;
+    static final int CANCEL = 0x8;
+    static final int COMPRESSION_ERROR = 0x9;
+
+    private static final int DEFAULT_WINDOW = 65_535;
+    private static final int MAX_WINDOW = Integer.MAX_VALUE;
+    private static final int DEFAULT_MAX_FRAME_SIZE = 16_384;
+    private static final int INITIAL_MAX_CONCURRENT_STREAMS = 100; // until the server's SETTINGS say otherwise
+
+    static final int STREAM_WINDOW = 1 << 20; // 1 MB granted to each stream
+    private static final int CONNECTION_WINDOW = 16 << 20; // 16 MB across all streams
+    private static final int MAX_HEADER_LIST_SIZE = 256 * 1024;
+
+    // Hop-by-hop fields that HTTP/2 forbids; the connection itself carries this meaning
+    private static final Set<String> CONNECTION_SPECIFIC_HEADERS = Set.of("connection", "keep-alive",
+            "proxy-connection", "transfer-encoding", "upgrade", "host");
+
+    private final String key;
+    private final Socket socket;
+    private final InputStream in;
+    private final OutputStream out;
+
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final Hpack.Encoder encoder = new Hpack.Encoder(); // guarded by writeLock
+    private final Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE, MAX_HEADER_LIST_SIZE);
+
+    final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final Map<Integer, Http2Stream> streams = new HashMap<>();
+    private int nextStreamId = 1;
+    // Written under the lock; the few fields the pool checks from inside its monitor are volatile, so that
+    // check never parks a (then pinned) virtual thread on the lock
+    private volatile int activeStreams;
+    private int peerMaxConcurrentStreams = INITIAL_MAX_CONCURRENT_STREAMS;
+    private int peerInitialWindow = DEFAULT_WINDOW;
+    private int peerMaxFrameSize = DEFAULT_MAX_FRAME_SIZE;
+    private long sendWindow = DEFAULT_WINDOW;
+    private long receiveWindow = CONNECTION_WINDOW;
+    private int unackedBytes;
+    private volatile boolean goingAway;
+    private volatile boolean closeWhenIdle;
+    private volatile IOException failure;
+    private volatile long lastActivity = System.currentTimeMillis();
+    private int streamCount;
+
+    // Reader-thread state for a header block split over CONTINUATION frames
+    private final ByteArrayOutputStream headerBlock = new ByteArrayOutputStream();
+    private int continuationStreamId;
+    private boolean continuationEndStream;
+
+    Http2Connection(String key, Socket socket) throws IOException {
+        this.key = key;
+        this.socket = socket;
+        // The reader thread blocks until the server speaks; per-request timeouts live on the streams
+        socket.setSoTimeout(0);
+        this.in = new BufferedInputStream(socket.getInputStream(), DEFAULT_MAX_FRAME_SIZE + FRAME_HEADER_LENGTH);
+        this.out = new BufferedOutputStream(socket.getOutputStream(), DEFAULT_MAX_FRAME_SIZE + FRAME_HEADER_LENGTH);
+    }
+
+    static boolean isConnectionSpecific(String lowerCaseName) {
+        return CONNECTION_SPECIFIC_HEADERS.contains(lowerCaseName);
+    }
+
+    String getKey() {
+        return key;
+    }
+
+    /**
+     * Sends the client preface and our settings, then starts dispatching frames. Requests may be sent
+     * right away; the server's settings are applied whenever they arrive.
+     */
+    void start() throws IOException {
+        writeLock.lock();
+        try {
+            out.write(PREFACE);
+            byte[] settings = new byte[18];
+            putSetting(settings, 0, SETTINGS_ENABLE_PUSH, 0);
+            putSetting(settings, 6, SETTINGS_INITIAL_WINDOW_SIZE, STREAM_WINDOW);
+            putSetting(settings, 12, SETTINGS_MAX_HEADER_LIST_SIZE, MAX_HEADER_LIST_SIZE);
+            writeFrame(SETTINGS, 0, 0, settings, 0, settings.length);
+            writeWindowUpdate(0, CONNECTION_WINDOW - DEFAULT_WINDOW);
+            out.flush();
+        } finally {
+            writeLock.unlock();
+        }
+
+        // The reader outlives the request that opened the connection, so it keeps none of that thread's state
+        Thread.ofPlatform().daemon().name("go2web-h2-" + key).inheritInheritableThreadLocals(false)
+                .start(this::readLoop);
+    }
+
+    boolean isOpen() {
+        return failure == null && !goingAway && !closeWhenIdle;
+    }
+
+    boolean isReused() {
+        lock.lock();
+        try {
+            return streamCount > 1;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean isIdleLongerThan(long now, long idleTimeout) {
+        return activeStreams == 0 && now - lastActivity >= idleTimeout;
+    }
+
+    /**
+     * Stops new streams from being opened here; the socket closes once the last active stream ends.
+     */
+    void closeWhenIdle() {
+        boolean closeNow;
+        lock.lock();
+        try {
+            closeWhenIdle = true;
+            closeNow = activeStreams == 0;
+        } finally {
+            lock.unlock();
+        }
+        if (closeNow) {
+            shutdown();
+        }
+    }
+
+    void shutdown() {
+        try {
+            writeGoAway(NO_ERROR);
+        } catch (IOException ignored) {
+        }
+        fail(new IOException("HTTP/2 connection closed"));
+    }
+
+    /**
+     * Opens a stream and sends the request on it. Headers must be lower-case and start with the pseudo-headers.
+     */
+    Http2Stream newStream(HttpHeaders headers, byte[] body, int timeout) throws IOException {
+        long deadline = System.currentTimeMillis() + timeout;
+        lock.lock();
+        try {
+            while (true) {
+                checkOpen();
+                if (activeStreams < peerMaxConcurrentStreams) {
+                    break;
+                }
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new SocketTimeoutException("Timed out waiting for a free HTTP/2 stream");
+                }
+                awaitChange(remaining);
+            }
+            activeStreams++;
+            streamCount++;
+        } finally {
+            lock.unlock();
+        }
+
+        boolean hasBody = body != null && body.length > 0;
+        Http2Stream stream = null;
+        writeLock.lock();
+        try {
+            // Stream ids must reach the wire in increasing order, so they are allocated under the write lock
+            lock.lock();
+            try {
+                if (failure != null || goingAway) {
+                    activeStreams--;
+                    changed.signalAll();
+                } else {
+                    stream = new Http2Stream(this, nextStreamId, peerInitialWindow, STREAM_WINDOW);
+                    streams.put(nextStreamId, stream);
+                    nextStreamId += 2;
+                    if (nextStreamId < 0) {
+                        // Stream ids are exhausted; finish the streams in flight and use a new connection after that
+                        goingAway = true;
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+
+            if (stream != null) {
+                byte[] block = encoder.encode(headers);
+                writeHeaders(stream.getId(), block, !hasBody);
+                out.flush();
+            }
+        } catch (IOException e) {
+            // Only a failed write breaks the connection for the other streams on it
+            fail(e);
+            throw e;
+        } finally {
+            writeLock.unlock();
+        }
+        if (stream == null) {
+            // GOAWAY arrived meanwhile: refuse this request and leave the streams in flight to finish
+            throw refusal();
+        }
+
+        if (hasBody) {
+            writeBody(stream, body, timeout);
+        }
+        return stream;
+    }
+
+    private void checkOpen() throws IOException {
+        if (failure != null || goingAway || closeWhenIdle) {
+            throw refusal();
+        }
+    }
+
+    private RefusedStreamException refusal() {
+        return failure != null
+                ? new RefusedStreamException("HTTP/2 connection failed: " + failure.getMessage())
+                : new RefusedStreamException("HTTP/2 connection is shutting down");
+    }
+
+    private void writeBody(Http2Stream stream, byte[] body, int timeout) throws IOException {
+        int offset = 0;
+        while (offset < body.length) {
+            int n;
+            lock.lock();
+            try {
+                long deadline = System.currentTimeMillis() + timeout;
+                while (true) {
+                    if (!stream.checkWritable()) {
+                        return;
+                    }
+                    n = (int) Math.min(Math.min(sendWindow, stream.sendWindow), Math.min(peerMaxFrameSize, body.length - offset));
+                    if (n > 0) {
+                        break;
+                    }
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        throw new SocketTimeoutException("Timed out waiting for HTTP/2 flow-control window");
+                    }
+                    awaitChange(remaining);
+                }
+                sendWindow -= n;
+                stream.sendWindow -= n;
+            } finally {
+                lock.unlock();
+            }
+
+            boolean last = offset + n == body.length;
+            writeLock.lock();
+            try {
+                writeFrame(DATA, last ? FLAG_END_STREAM : 0, stream.getId(), body, offset, n);
+                if (last) {
+                    out.flush();
+                }
+            } catch (IOException e) {
+                fail(e);
+                throw e;
+            } finally {
+                writeLock.unlock();
+            }
+            offset += n;
+        }
+    }
+
+    /**
+     * Waits on the connection-wide condition; caller holds the lock.
+     */
+    void awaitChange(long millis) throws IOException {
+        try {
+            changed.await(millis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting on HTTP/2 connection", e);
+        }
+    }
+
+    Condition newCondition() {
+        return lock.newCondition();
+    }
+
+    /**
+     * Returns consumed body bytes to the flow-control windows; caller holds the lock.
+     * The result is the connection-level increment to send, or 0.
+     */
+    int consumed(int bytes) {
+        unackedBytes += bytes;
+        if (unackedBytes >= CONNECTION_WINDOW / 2 && failure == null) {
+            int increment = unackedBytes;
+            unackedBytes = 0;
+            receiveWindow += increment;
+            return increment;
+        }
+        return 0;
+    }
+
+    /**
+     * Called once a stream is closed on both sides or abandoned; caller holds the lock.
+     */
+    void streamClosed(Http2Stream stream) {
+        if (streams.remove(stream.getId()) != null) {
+            activeStreams--;
+            lastActivity = System.currentTimeMillis();
+            changed.signalAll();
+        }
+    }
+
+    void sendWindowUpdates(int streamId, int streamIncrement, int connectionIncrement) {
+        if (streamIncrement == 0 && connectionIncrement == 0) {
+            return;
+        }
+        writeLock.lock();
+        try {
+            if (streamIncrement > 0) {
+                writeWindowUpdate(streamId, streamIncrement);
+            }
+            if (connectionIncrement > 0) {
+                writeWindowUpdate(0, connectionIncrement);
+            }
+            out.flush();
+        } catch (IOException e) {
+            fail(e);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    void sendReset(int streamId, int errorCode) {
+        writeLock.lock();
+        try {
+            byte[] payload = new byte[4];
+            putInt(payload, 0, errorCode);
+            writeFrame(RST_STREAM, 0, streamId, payload, 0, 4);
+            out.flush();
+        } catch (IOException e) {
+            fail(e);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void readLoop() {
+        byte[] header = new byte[FRAME_HEADER_LENGTH];
+        byte[] payload = new byte[DEFAULT_MAX_FRAME_SIZE];
+        try {
+            while (true) {
+                if (!readFully(header, FRAME_HEADER_LENGTH, true)) {
+                    throw new EOFException("HTTP/2 connection closed by server");
+                }
+                int length = ((header[0] & 0xFF) << 16) | ((header[1] & 0xFF) << 8) | (header[2] & 0xFF);
+                int type = header[3] & 0xFF;
+                int flags = header[4] & 0xFF;
+                int streamId = getInt(header, 5) & 0x7FFFFFFF;
+
+                // We never raise SETTINGS_MAX_FRAME_SIZE, so anything larger is a protocol violation
+                if (length > DEFAULT_MAX_FRAME_SIZE) {
+                    throw new ConnectionError(FRAME_SIZE_ERROR, "Frame of " + length + " bytes exceeds the maximum size");
+                }
+                readFully(payload, length, false);
+
+                if (continuationStreamId != 0 && (type != CONTINUATION || streamId != continuationStreamId)) {
+                    throw new ConnectionError(PROTOCOL_ERROR, "Expected CONTINUATION for stream " + continuationStreamId);
+                }
+
+                switch (type) {
+                    case DATA -> onData(streamId, flags, payload, length);
+                    case HEADERS -> onHeaders(streamId, flags, payload, length);
+                    case PRIORITY -> { }
+                    case RST_STREAM -> onReset(streamId, payload, length);
+                    case SETTINGS -> onSettings(streamId, flags, payload, length);
+                    case PUSH_PROMISE -> throw new ConnectionError(PROTOCOL_ERROR, "PUSH_PROMISE received with push disabled");
+                    case PING -> onPing(streamId, flags, payload, length);
+                    case GOAWAY -> onGoAway(payload, length);
+                    case WINDOW_UPDATE -> onWindowUpdate(streamId, payload, length);
+                    case CONTINUATION -> onContinuation(streamId, flags, payload, length);
+                    default -> { } // Unknown frame types must be ignored
+                }
+            }
+        } catch (ConnectionError e) {
+            try {
+                writeGoAway(e.errorCode);
+            } catch (IOException ignored) {
+            }
+            fail(e);
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private boolean readFully(byte[] buffer, int length, boolean eofAllowed) throws IOException {
+        int offset = 0;
+        while (offset < length) {
+            int n = in.read(buffer, offset, length - offset);
+            if (n < 0) {
+                if (offset == 0 && eofAllowed) {
+                    return false;
+                }
+                throw new EOFException("HTTP/2 connection closed mid-frame");
+            }
+            offset += n;
+        }
+        return true;
+    }
+
+    private void onData(int streamId, int flags, byte[] payload, int length) throws IOException {
+        if (streamId == 0) {
+            throw new ConnectionError(PROTOCOL_ERROR, "DATA frame on stream 0");
+        }
+        int offset = 0;
+        int end = length;
+        if ((flags & FLAG_PADDED) != 0) {
+            end -= padLength(payload, length);
+            offset = 1;
+        }
+
+        int connectionIncrement;
+        int streamIncrement = 0;
+        Http2Stream stream;
+        lock.lock();
+        try {
+            receiveWindow -= length;
+            if (receiveWindow < 0) {
+                throw new ConnectionError(FLOW_CONTROL_ERROR, "Server overran the connection window");
+            }
+
+            stream = streams.get(streamId);
+            if (stream == null) {
+                // Data still in flight for a stream we cancelled; hand the window straight back
+                connectionIncrement = consumed(length);
+            } else {
+                byte[] data = new byte[end - offset];
+                System.arraycopy(payload, offset, data, 0, data.length);
+                if (!stream.onData(data, length, (flags & FLAG_END_STREAM) != 0)) {
+                    throw new ConnectionError(FLOW_CONTROL_ERROR, "Server overran the window of stream " + streamId);
+                }
+                if (stream.isRemoteClosed()) {
+                    streamClosed(stream);
+                }
+                // Padding is never read by anyone, so it counts as consumed immediately
+                int padding = length - data.length;
+                connectionIncrement = padding > 0 ? consumed(padding) : 0;
+                if (padding > 0) {
+                    streamIncrement = stream.consumed(padding);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        sendWindowUpdates(streamId, streamIncrement, connectionIncrement);
+        closeIfIdle();
+    }
+
+    private void onHeaders(int streamId, int flags, byte[] payload, int length) throws IOException {
+        if (streamId == 0) {
+            throw new ConnectionError(PROTOCOL_ERROR, "HEADERS frame on stream 0");
+        }
+        int offset = 0;
+        int end = length;
+        if ((flags & FLAG_PADDED) != 0) {
+            end -= padLength(payload, length);
+            offset = 1;
+        }
+        if ((flags & FLAG_PRIORITY) != 0) {
+            offset += 5;
+        }
+        if (offset > end) {
+            throw new ConnectionError(PROTOCOL_ERROR, "HEADERS frame too short");
+        }
+
+        headerBlock.reset();
+        headerBlock.write(payload, offset, end - offset);
+        if ((flags & FLAG_END_HEADERS) != 0) {
+            onHeaderBlock(streamId, (flags & FLAG_END_STREAM) != 0);
+        } else {
+            continuationStreamId = streamId;
+            continuationEndStream = (flags & FLAG_END_STREAM) != 0;
+        }
+    }
+
+    private void onContinuation(int streamId, int flags, byte[] payload, int length) throws IOException {
+        if (continuationStreamId == 0) {
+            throw new ConnectionError(PROTOCOL_ERROR, "Unexpected CONTINUATION frame");
+        }
+        if (headerBlock.size() + length > MAX_HEADER_LIST_SIZE) {
+            throw new ConnectionError(PROTOCOL_ERROR, "Header block exceeds " + MAX_HEADER_LIST_SIZE + " bytes");
+        }
+        headerBlock.write(payload, 0, length);
+        if ((flags & FLAG_END_HEADERS) != 0) {
+            continuationStreamId = 0;
+            onHeaderBlock(streamId, continuationEndStream);
+        }
+    }
+
+    private void onHeaderBlock(int streamId, boolean endStream) throws IOException {
+        HttpHeaders headers;
+        try {
+            // Every block is decoded, even for streams we dropped, to keep the HPACK table in sync
+            byte[] block = headerBlock.toByteArray();
+            headers = decoder.decode(block, 0, block.length);
+        } catch (IOException e) {
+            throw new ConnectionError(COMPRESSION_ERROR, e.getMessage());
+        }
+
+        boolean reset = false;
+        lock.lock();
+        try {
+            Http2Stream stream = streams.get(streamId);
+            if (stream != null) {
+                reset = !stream.onHeaders(headers, endStream);
+                if (reset || stream.isRemoteClosed()) {
+                    streamClosed(stream);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (reset) {
+            sendReset(streamId, PROTOCOL_ERROR);
+        }
+        closeIfIdle();
+    }
+
+    private void onReset(int streamId, byte[] payload, int length) throws IOException {
+        if (streamId == 0) {
+            throw new ConnectionError(PROTOCOL_ERROR, "RST_STREAM on stream 0");
+        }
+        if (length != 4) {
+            throw new ConnectionError(FRAME_SIZE_ERROR, "RST_STREAM frame must be 4 bytes");
+        }
+        int errorCode = getInt(payload, 0);
+        lock.lock();
+        try {
+            Http2Stream stream = streams.get(streamId);
+            if (stream != null) {
+                stream.fail(errorCode == REFUSED_STREAM
+                        ? new RefusedStreamException("HTTP/2 stream refused by server")
+                        : new IOException("HTTP/2 stream reset by server (error " + errorCode + ")"));
+                streamClosed(stream);
+            }
+        } finally {
+            lock.unlock();
+        }
+        closeIfIdle();
+    }
+
+    private void onSettings(int streamId, int flags, byte[] payload, int length) throws IOException {
+        if (streamId != 0) {
+            throw new ConnectionError(PROTOCOL_ERROR, "SETTINGS frame on stream " + streamId);
+        }
+        if ((flags & FLAG_ACK) != 0) {
+            if (length != 0) {
+                throw new ConnectionError(FRAME_SIZE_ERROR, "SETTINGS acknowledgement with a payload");
+            }
+            return;
+        }
+        if (length % 6 != 0) {
+            throw new ConnectionError(FRAME_SIZE_ERROR, "SETTINGS payload is not a multiple of 6 bytes");
+        }
+
+        writeLock.lock();
+        try {
+            for (int i = 0; i < length; i += 6) {
+                int id = ((payload[i] & 0xFF) << 8) | (payload[i + 1] & 0xFF);
+                int value = getInt(payload, i + 2);
+                applySetting(id, value);
+            }
+            // Acknowledged under the same lock, so no frame encoded with the old settings can follow the ACK
+            writeFrame(SETTINGS, FLAG_ACK, 0, payload, 0, 0);
+            out.flush();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void applySetting(int id, int value) throws IOException {
+        switch (id) {
+            case SETTINGS_HEADER_TABLE_SIZE -> encoder.setMaxTableSize(value < 0 ? Integer.MAX_VALUE : value);
+            case SETTINGS_ENABLE_PUSH -> {
+                if (value != 0 && value != 1) {
+                    throw new ConnectionError(PROTOCOL_ERROR, "Invalid SETTINGS_ENABLE_PUSH " + value);
+                }
+            }
+            case SETTINGS_MAX_CONCURRENT_STREAMS -> {
+                lock.lock();
+                try {
+                    peerMaxConcurrentStreams = value < 0 ? Integer.MAX_VALUE : value;
+                    changed.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+            case SETTINGS_INITIAL_WINDOW_SIZE -> {
+                if (value < 0) {
+                    throw new ConnectionError(FLOW_CONTROL_ERROR, "Initial window size exceeds the maximum");
+                }
+                lock.lock();
+                try {
+                    // The change applies retroactively to every open stream
+                    int delta = value - peerInitialWindow;
+                    peerInitialWindow = value;
+                    for (Http2Stream stream : streams.values()) {
+                        stream.sendWindow += delta;
+                        if (stream.sendWindow > MAX_WINDOW) {
+                            throw new ConnectionError(FLOW_CONTROL_ERROR, "Stream window overflow");
+                        }
+                    }
+                    changed.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+            case SETTINGS_MAX_FRAME_SIZE -> {
+                if (value < DEFAULT_MAX_FRAME_SIZE || value > 0xFFFFFF) {
+                    throw new ConnectionError(PROTOCOL_ERROR, "Invalid SETTINGS_MAX_FRAME_SIZE " + value);
+                }
+                lock.lock();
+                try {
+                    peerMaxFrameSize = value;
+                } finally {
+                    lock.unlock();
+                }
+            }
+            case SETTINGS_MAX_HEADER_LIST_SIZE -> { } // Advisory; our request headers are small
+            default -> { } // Unknown settings must be ignored
+        }
+    }
+
+    private void onPing(int streamId, int flags, byte[] payload, int length) throws IOException {
+        if (streamId != 0) {
+            throw new ConnectionError(PROTOCOL_ERROR, "PING frame on stream " + streamId);
+        }
+        if (length != 8) {
+            throw new ConnectionError(FRAME_SIZE_ERROR, "PING frame must be 8 bytes");
+        }
+        if ((flags & FLAG_ACK) != 0) {
+            return;
+        }
+        writeLock.lock();
+        try {
+            writeFrame(PING, FLAG_ACK, 0, payload, 0, 8);
+            out.flush();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void onGoAway(byte[] payload, int length) throws IOException {
+        if (length < 8) {
+            throw new ConnectionError(FRAME_SIZE_ERROR, "GOAWAY frame too short");
+        }
+        int lastStreamId = getInt(payload, 0) & 0x7FFFFFFF;
+        int errorCode = getInt(payload, 4);
+        String reason = "HTTP/2 server is going away (error " + errorCode
+                + (length > 8 ? ": " + new String(payload, 8, length - 8, StandardCharsets.ISO_8859_1) : "") + ")";
+
+        boolean closeNow;
+        lock.lock();
+        try {
+            goingAway = true;
+            // Streams above the last id were never processed and are safe to retry elsewhere. After an error
+            // code the server is about to drop the connection, so the processed ones will not finish either.
+            List<Http2Stream> failed = new ArrayList<>();
+            for (Http2Stream stream : streams.values()) {
+                if (stream.getId() > lastStreamId || errorCode != NO_ERROR) {
+                    failed.add(stream);
+                }
+            }
+            for (Http2Stream stream : failed) {
+                stream.fail(stream.getId() > lastStreamId ? new RefusedStreamException(reason) : new IOException(reason));
+                streamClosed(stream);
+            }
+            changed.signalAll();
+            closeNow = activeStreams == 0;
+        } finally {
+            lock.unlock();
+        }
+        if (closeNow) {
+            fail(new IOException(reason));
+        }
+    }
+
+    private void onWindowUpdate(int streamId, byte[] payload, int length) throws IOException {
+        if (length != 4) {
+            throw new ConnectionError(FRAME_SIZE_ERROR, "WINDOW_UPDATE frame must be 4 bytes");
+        }
+        int increment = getInt(payload, 0) & 0x7FFFFFFF;
+        if (increment == 0) {
+            throw new ConnectionError(PROTOCOL_ERROR, "WINDOW_UPDATE with zero increment");
+        }
+        lock.lock();
+        try {
+            if (streamId == 0) {
+                sendWindow += increment;
+                if (sendWindow > MAX_WINDOW) {
+                    throw new ConnectionError(FLOW_CONTROL_ERROR, "Connection window overflow");
+                }
+            } else {
+                Http2Stream stream = streams.get(streamId);
+                if (stream != null) {
+                    stream.sendWindow += increment;
+                    if (stream.sendWindow > MAX_WINDOW) {
+                        throw new ConnectionError(FLOW_CONTROL_ERROR, "Stream window overflow");
+                    }
+                }
+            }
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void closeIfIdle() {
+        boolean closeNow;
+        lock.lock();
+        try {
+            closeNow = (closeWhenIdle || goingAway) && activeStreams == 0 && failure == null;
+        } finally {
+            lock.unlock();
+        }
+        if (closeNow) {
+            shutdown();
+        }
+    }
+
+    private void fail(IOException error) {
+        List<Http2Stream> failed;
+        lock.lock();
+        try {
+            if (failure != null) {
+                return;
+            }
+            failure = error;
+            failed = new ArrayList<>(streams.values());
+            for (Http2Stream stream : failed) {
+                stream.fail(error);
+            }
+            streams.clear();
+            activeStreams = 0;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private int padLength(byte[] payload, int length) throws IOException {
+        if (length < 1) {
+            throw new ConnectionError(PROTOCOL_ERROR, "Padded frame without a pad length");
+        }
+        int padLength = payload[0] & 0xFF;
+        if (padLength >= length) {
+            throw new ConnectionError(PROTOCOL_ERROR, "Padding exceeds frame payload");
+        }
+        return padLength;
+    }
+
+    private void writeHeaders(int streamId, byte[] block, boolean endStream) throws IOException {
+        int maxFrameSize = peerMaxFrameSize();
+        int first = Math.min(block.length, maxFrameSize);
+        int flags = (endStream ? FLAG_END_STREAM : 0) | (first == block.length ? FLAG_END_HEADERS : 0);
+        writeFrame(HEADERS, flags, streamId, block, 0, first);
+        for (int offset = first; offset < block.length; ) {
+            int n = Math.min(block.length - offset, maxFrameSize);
+            writeFrame(CONTINUATION, offset + n == block.length ? FLAG_END_HEADERS : 0, streamId, block, offset, n);
+            offset += n;
+        }
+    }
+
+    private int peerMaxFrameSize() {
+        lock.lock();
+        try {
+            return peerMaxFrameSize;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void writeWindowUpdate(int streamId, int increment) throws IOException {
+        byte[] payload = new byte[4];
+        putInt(payload, 0, increment);
+        writeFrame(WINDOW_UPDATE, 0, streamId, payload, 0, 4);
+    }
+
+    private void writeGoAway(int errorCode) throws IOException {
+        byte[] payload = new byte[8];
+        putInt(payload, 4, errorCode);
+        writeLock.lock();
+        try {
+            writeFrame(GOAWAY, 0, 0, payload, 0, 8);
+            out.flush();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void writeFrame(int type, int flags, int streamId, byte[] payload, int offset, int length)
+            throws IOException {
+        byte[] header = new byte[FRAME_HEADER_LENGTH];
+        header[0] = (byte) (length >>> 16);
+        header[1] = (byte) (length >>> 8);
+        header[2] = (byte) length;
+        header[3] = (byte) type;
+        header[4] = (byte) flags;
+        putInt(header, 5, streamId);
+        out.write(header);
+        out.write(payload, offset, length);
+    }
+
+    private static void putSetting(byte[] buffer, int offset, int id, int value) {
+        buffer[offset] = (byte) (id >>> 8);
+        buffer[offset + 1] = (byte) id;
+        putInt(buffer, offset + 2, value);
+    }
+
+    private static void putInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+
+    private static int getInt(byte[] buffer, int offset) {
+        return ((buffer[offset] & 0xFF) << 24) | ((buffer[offset + 1] & 0xFF) << 16)
+                | ((buffer[offset + 2] & 0xFF) << 8) | (buffer[offset + 3] & 0xFF);
+    }
+
+    /**
+     * The server did not process the stream (REFUSED_STREAM, or above the last id in GOAWAY),
+     * so the request can safely be sent again on another connection.
+     */
+    static class RefusedStreamException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        RefusedStreamException(String message) {
+            super(message);
+        }
+    }
+
+    private static class ConnectionError extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private final int errorCode;
+
+        private ConnectionError(int errorCode, String message) {
+            super(message);
+            this.errorCode = errorCode;
+        }
+    }
+}
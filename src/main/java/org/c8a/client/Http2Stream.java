@@ -0,0 +1,351 @@
+package org.c8a.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+
+/**
+ * One request/response exchange on an {@link Http2Connection}. The reader thread queues incoming DATA here
+ * and the caller drains it; window updates go out as the caller consumes, so a slow reader throttles only its
+ * own stream. All state is guarded by the connection lock.
+ */
+class Http2Stream implements StreamingResponse.Source {
+
+    private final Http2Connection connection;
+    private final int id;
+    private final Condition changed;
+    private final int receiveWindowSize;
+
+    long sendWindow;
+    private long receiveWindow;
+    private int unackedBytes;
+
+    private int statusCode;
+    private HttpHeaders headers;
+    private HttpHeaders trailers;
+    private long declaredLength = -1;
+
+    private final Deque<byte[]> chunks = new ArrayDeque<>();
+    private int chunkOffset;
+    private long bodyBytesRead;
+    private boolean remoteClosed;
+    private boolean released;
+    private IOException error;
+    private int timeout;
+
+    Http2Stream(Http2Connection connection, int id, int sendWindow, int receiveWindow) {
+        this.connection = connection;
+        this.id = id;
+        this.changed = connection.newCondition();
+        this.sendWindow = sendWindow;
+        this.receiveWindow = receiveWindow;
+        this.receiveWindowSize = receiveWindow;
+    }
+
+    int getId() {
+        return id;
+    }
+
+    /**
+     * Blocks until the final (non-1xx) response head has arrived.
+     */
+    void awaitResponse(int timeout) throws IOException {
+        this.timeout = timeout;
+        connection.lock.lock();
+        try {
+            long deadline = System.currentTimeMillis() + timeout;
+            while (headers == null) {
+                if (error != null) {
+                    throw error;
+                }
+                await(deadline);
+            }
+        } finally {
+            connection.lock.unlock();
+        }
+    }
+
+    int getStatusCode() {
+        return statusCode;
+    }
+
+    HttpHeaders getHeaders() {
+        return headers;
+    }
+
+    HttpHeaders getTrailers() {
+        return trailers;
+    }
+
+    /**
+     * Reader thread: a complete header block arrived. Returns false if it is malformed.
+     */
+    boolean onHeaders(HttpHeaders block, boolean endStream) {
+        if (headers == null) {
+            String status = block.get(":status");
+            int code;
+            try {
+                code = status != null ? Integer.parseInt(status) : -1;
+            } catch (NumberFormatException e) {
+                code = -1;
+            }
+            if (code < 100 || code > 999) {
+                fail(new IOException("HTTP/2 response without a valid :status"));
+                return false;
+            }
+            if (code < 200) {
+                // Interim response (100 Continue, 103 Early Hints); the final one follows
+                return !endStream || failMalformed();
+            }
+            statusCode = code;
+            headers = withoutPseudoHeaders(block);
+            String contentLength = headers.get("content-length");
+            if (contentLength != null) {
+                try {
+                    declaredLength = Long.parseLong(contentLength.trim());
+                } catch (NumberFormatException ignored) {
+                }
+            }
+        } else {
+            if (!endStream) {
+                return failMalformed();
+            }
+            trailers = withoutPseudoHeaders(block);
+        }
+
+        if (endStream) {
+            remoteClosed = true;
+        }
+        changed.signalAll();
+        return true;
+    }
+
+    private boolean failMalformed() {
+        fail(new IOException("Malformed HTTP/2 response on stream " + id));
+        return false;
+    }
+
+    /**
+     * Reader thread: queues a DATA payload. Returns false if the server overran the stream window.
+     */
+    boolean onData(byte[] data, int frameLength, boolean endStream) {
+        receiveWindow -= frameLength;
+        if (receiveWindow < 0) {
+            return false;
+        }
+        if (data.length > 0) {
+            chunks.addLast(data);
+        }
+        if (endStream) {
+            remoteClosed = true;
+        }
+        changed.signalAll();
+        return true;
+    }
+
+    boolean isRemoteClosed() {
+        return remoteClosed;
+    }
+
+    void fail(IOException e) {
+        if (error == null && !remoteClosed) {
+            error = e;
+        }
+        changed.signalAll();
+    }
+
+    /**
+     * Whether the request body may still be sent; the server may answer before reading all of it.
+     */
+    boolean checkWritable() throws IOException {
+        if (error != null) {
+            throw error;
+        }
+        return !remoteClosed && !released;
+    }
+
+    /**
+     * Credits consumed bytes to this stream's window; caller holds the connection lock.
+     */
+    int consumed(int bytes) {
+        unackedBytes += bytes;
+        if (!remoteClosed && unackedBytes >= receiveWindowSize / 2) {
+            int increment = unackedBytes;
+            unackedBytes = 0;
+            receiveWindow += increment;
+            return increment;
+        }
+        return 0;
+    }
+
+    int read(byte[] buffer, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+
+        int n;
+        int streamIncrement;
+        int connectionIncrement;
+        connection.lock.lock();
+        try {
+            long deadline = System.currentTimeMillis() + timeout;
+            while (chunks.isEmpty()) {
+                if (error != null) {
+                    throw error;
+                }
+                if (remoteClosed || released) {
+                    return -1;
+                }
+                await(deadline);
+            }
+
+            byte[] chunk = chunks.peekFirst();
+            n = Math.min(length, chunk.length - chunkOffset);
+            System.arraycopy(chunk, chunkOffset, buffer, offset, n);
+            chunkOffset += n;
+            if (chunkOffset == chunk.length) {
+                chunks.pollFirst();
+                chunkOffset = 0;
+            }
+            bodyBytesRead += n;
+
+            streamIncrement = consumed(n);
+            connectionIncrement = connection.consumed(n);
+        } finally {
+            connection.lock.unlock();
+        }
+
+        connection.sendWindowUpdates(id, streamIncrement, connectionIncrement);
+        return n;
+    }
+
+    private void await(long deadline) throws IOException {
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+            throw new SocketTimeoutException("Read timed out");
+        }
+        try {
+            changed.await(remaining, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for HTTP/2 stream " + id, e);
+        }
+    }
+
+    @Override
+    public long getDeclaredLength() {
+        return declaredLength;
+    }
+
+    @Override
+    public long getBodyBytesRead() {
+        connection.lock.lock();
+        try {
+            return bodyBytesRead;
+        } finally {
+            connection.lock.unlock();
+        }
+    }
+
+    @Override
+    public InputStream bodyStream() {
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] single = new byte[1];
+                int n = Http2Stream.this.read(single, 0, 1);
+                return n < 0 ? -1 : single[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return Http2Stream.this.read(b, off, len);
+            }
+        };
+    }
+
+    @Override
+    public byte[] readFullBody(long maxBytes) throws IOException {
+        long limit = Math.min(maxBytes, Integer.MAX_VALUE - 8);
+        if (declaredLength > limit) {
+            throw new IOException("Response body of " + declaredLength + " bytes exceeds limit of " + limit + " bytes");
+        }
+
+        byte[] body = new byte[declaredLength >= 0 ? (int) declaredLength : 8192];
+        int size = 0;
+        while (true) {
+            if (size == body.length) {
+                if (size >= limit) {
+                    if (read(new byte[1], 0, 1) < 0) {
+                        return body;
+                    }
+                    throw new IOException("Response body exceeds limit of " + limit + " bytes");
+                }
+                body = Arrays.copyOf(body, (int) Math.min(Math.max(body.length * 2L, 8192), limit));
+            }
+            int n = read(body, size, body.length - size);
+            if (n < 0) {
+                return size == body.length ? body : Arrays.copyOf(body, size);
+            }
+            size += n;
+        }
+    }
+
+    @Override
+    public void finishBody() {
+        // DATA frames end exactly at END_STREAM; nothing trails the body on the wire
+    }
+
+    /**
+     * Leaves the stream. An unfinished response is cancelled with RST_STREAM, which, unlike HTTP/1.1,
+     * costs nothing beyond this stream: the connection stays up for everyone else.
+     */
+    @Override
+    public void release() {
+        boolean cancel;
+        int connectionIncrement = 0;
+        connection.lock.lock();
+        try {
+            if (released) {
+                return;
+            }
+            released = true;
+            cancel = !remoteClosed && error == null;
+
+            // Unread data still occupies the connection window
+            int buffered = -chunkOffset;
+            for (byte[] chunk : chunks) {
+                buffered += chunk.length;
+            }
+            chunks.clear();
+            chunkOffset = 0;
+            if (buffered > 0) {
+                connectionIncrement = connection.consumed(buffered);
+            }
+            connection.streamClosed(this);
+        } finally {
+            connection.lock.unlock();
+        }
+
+        if (cancel) {
+            connection.sendReset(id, Http2Connection.CANCEL);
+        }
+        connection.sendWindowUpdates(0, 0, connectionIncrement);
+        connection.closeIfIdle();
+    }
+
+    private static HttpHeaders withoutPseudoHeaders(HttpHeaders block) {
+        HttpHeaders headers = new HttpHeaders(block.size());
+        for (int i = 0; i < block.size(); i++) {
+            if (!block.nameAt(i).startsWith(":")) {
+                headers.add(block.nameAt(i), block.valueAt(i));
+            }
+        }
+        return headers;
+    }
+}
@@ -0,0 +1,118 @@
+package org.c8a.client;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+public class HttpHeaders {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private String[] names;
+    private String[] values;
+    private int size;
+
+    public HttpHeaders() {
+        this(INITIAL_CAPACITY);
+    }
+
+    public HttpHeaders(int capacity) {
+        this.names = new String[capacity];
+        this.values = new String[capacity];
+    }
+
+    public void add(String name, String value) {
+        if (size == names.length) {
+            int capacity = Math.max(INITIAL_CAPACITY, size * 2);
+            names = Arrays.copyOf(names, capacity);
+            values = Arrays.copyOf(values, capacity);
+        }
+        names[size] = name;
+        values[size] = value;
+        size++;
+    }
+
+    public void set(String name, String value) {
+        remove(name);
+        if (value != null) {
+            add(name, value);
+        }
+    }
+
+    public void remove(String name) {
+        int write = 0;
+        for (int read = 0; read < size; read++) {
+            if (!names[read].equalsIgnoreCase(name)) {
+                names[write] = names[read];
+                values[write] = values[read];
+                write++;
+            }
+        }
+        for (int i = write; i < size; i++) {
+            names[i] = null;
+            values[i] = null;
+        }
+        size = write;
+    }
+
+    public String get(String name) {
+        for (int i = 0; i < size; i++) {
+            if (names[i].equalsIgnoreCase(name)) {
+                return values[i];
+            }
+        }
+        return null;
+    }
+
+    public List<String> getAll(String name) {
+        List<String> result = new ArrayList<>(2);
+        for (int i = 0; i < size; i++) {
+            if (names[i].equalsIgnoreCase(name)) {
+                result.add(values[i]);
+            }
+        }
+        return result;
+    }
+
+    public boolean contains(String name) {
+        return get(name) != null;
+    }
+
+    public String nameAt(int index) {
+        return names[index];
+    }
+
+    public String valueAt(int index) {
+        return values[index];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void forEach(BiConsumer<String, String> action) {
+        for (int i = 0; i < size; i++) {
+            action.accept(names[i], values[i]);
+        }
+    }
+
+    public Map<String, String> toMap() {
+        Map<String, String> map = new LinkedHashMap<>();
+        for (int i = 0; i < size; i++) {
+            map.merge(names[i], values[i], (first, second) -> first + ", " + second);
+        }
+        return map;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < size; i++) {
+            builder.append(names[i]).append(": ").append(values[i]).append("\n");
+        }
+        return builder.toString();
+    }
+}
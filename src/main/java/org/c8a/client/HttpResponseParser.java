@@ -0,0 +1,488 @@
+package org.c8a.client;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+public class HttpResponseParser {
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_HEAD_LINE = 64 * 1024;
+    private static final int INITIAL_UNKNOWN_BODY_SIZE = 8 * 1024;
+
+    private static final String[] KNOWN_HEADERS = {
+            "Cache-Control", "Connection", "Content-Encoding", "Content-Length", "Content-Type", "Date",
+            "ETag", "Expires", "Keep-Alive", "Last-Modified", "Location", "Server", "Set-Cookie",
+            "Transfer-Encoding", "Vary", "Age", "Accept-Ranges", "Alt-Svc", "Strict-Transport-Security"
+    };
+
+    private enum Framing { NONE, FIXED, CHUNKED, EOF }
+
+    private final InputStream in;
+    private ByteBuffer buffer;
+
+    private int version;
+    private int statusCode;
+    private String statusMessage;
+    private HttpHeaders headers;
+    private HttpHeaders trailers;
+
+    private Framing framing = Framing.NONE;
+    private long remaining;
+    private boolean firstChunk;
+    private boolean bodyComplete = true;
+    private long bodyBytesRead;
+
+    public HttpResponseParser(InputStream in) {
+        this.in = in;
+        this.buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        this.buffer.flip();
+    }
+
+    /**
+     * Reads the status line and headers of the next response.
+     * Returns false if the stream ended before a single byte of a response arrived.
+     */
+    public boolean readHead() throws IOException {
+        int lineEnd = findLineEnd();
+        if (lineEnd < 0) {
+            return false;
+        }
+        parseStatusLine(lineEnd);
+        headers = new HttpHeaders();
+        readHeaderBlock(headers);
+        trailers = null;
+        return true;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    public String getStatusMessage() {
+        return statusMessage;
+    }
+
+    public HttpHeaders getHeaders() {
+        return headers;
+    }
+
+    public HttpHeaders getTrailers() {
+        return trailers;
+    }
+
+    public boolean hasBufferedData() {
+        return buffer.hasRemaining();
+    }
+
+    /**
+     * Sets up body framing for the response just read. Must be called before any read of the body.
+     */
+    public void beginBody(boolean hasBody) throws IOException {
+        bodyBytesRead = 0;
+        bodyComplete = false;
+
+        String transferEncoding = headers.get("Transfer-Encoding");
+        String contentLength = headers.get("Content-Length");
+
+        if (!hasBody) {
+            framing = Framing.NONE;
+            bodyComplete = true;
+        } else if (transferEncoding != null && transferEncoding.toLowerCase().contains("chunked")) {
+            framing = Framing.CHUNKED;
+            remaining = 0;
+            firstChunk = true;
+        } else if (contentLength != null) {
+            try {
+                remaining = Long.parseLong(contentLength.trim());
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid Content-Length: " + contentLength);
+            }
+            if (remaining < 0) {
+                throw new IOException("Invalid Content-Length: " + contentLength);
+            }
+            framing = Framing.FIXED;
+            bodyComplete = remaining == 0;
+        } else {
+            framing = Framing.EOF;
+        }
+    }
+
+    /**
+     * True when the body was delimited by the protocol (length or chunks) and has been read to its end,
+     * leaving the stream positioned at the start of the next response.
+     */
+    public boolean isMessageComplete() {
+        return bodyComplete && framing != Framing.EOF;
+    }
+
+    public boolean isBodyComplete() {
+        return bodyComplete;
+    }
+
+    public long getBodyBytesRead() {
+        return bodyBytesRead;
+    }
+
+    public long getDeclaredLength() {
+        return framing == Framing.FIXED ? bodyBytesRead + remaining : -1;
+    }
+
+    public int readBody(byte[] dst, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (bodyComplete) {
+            return -1;
+        }
+
+        int n;
+        switch (framing) {
+            case FIXED -> {
+                n = readRaw(dst, off, (int) Math.min(len, remaining));
+                if (n < 0) {
+                    throw new EOFException("Connection closed with " + remaining + " body bytes outstanding");
+                }
+                remaining -= n;
+                if (remaining == 0) {
+                    bodyComplete = true;
+                }
+            }
+            case CHUNKED -> {
+                if (remaining == 0 && !nextChunk()) {
+                    return -1;
+                }
+                n = readRaw(dst, off, (int) Math.min(len, remaining));
+                if (n < 0) {
+                    throw new EOFException("Connection closed inside a chunk");
+                }
+                remaining -= n;
+            }
+            case EOF -> {
+                n = readRaw(dst, off, len);
+                if (n < 0) {
+                    bodyComplete = true;
+                    return -1;
+                }
+            }
+            default -> {
+                bodyComplete = true;
+                return -1;
+            }
+        }
+
+        bodyBytesRead += n;
+        return n;
+    }
+
+    public byte[] readFullBody() throws IOException {
+        return readFullBody(Integer.MAX_VALUE - 8);
+    }
+
+    /**
+     * Reads the whole body into an array sized from Content-Length when it is known,
+     * failing as soon as more than maxBytes would be needed.
+     */
+    public byte[] readFullBody(long maxBytes) throws IOException {
+        long limit = Math.min(maxBytes, Integer.MAX_VALUE - 8);
+        if (framing == Framing.FIXED) {
+            if (remaining > limit) {
+                throw new IOException("Response body of " + remaining + " bytes exceeds limit of " + limit + " bytes");
+            }
+            byte[] body = new byte[(int) remaining];
+            int offset = 0;
+            while (offset < body.length) {
+                offset += readBody(body, offset, body.length - offset);
+            }
+            return body;
+        }
+
+        byte[] body = new byte[INITIAL_UNKNOWN_BODY_SIZE];
+        int size = 0;
+        while (true) {
+            if (size == body.length) {
+                if (size >= limit) {
+                    if (readBody(new byte[1], 0, 1) < 0) {
+                        break;
+                    }
+                    throw new IOException("Response body exceeds limit of " + limit + " bytes");
+                }
+                body = Arrays.copyOf(body, (int) Math.min((long) size * 2, limit));
+            }
+            int n = readBody(body, size, body.length - size);
+            if (n < 0) {
+                break;
+            }
+            size += n;
+        }
+        return size == body.length ? body : Arrays.copyOf(body, size);
+    }
+
+    /**
+     * A view of the remaining body as a stream. Closing it does not touch the underlying connection.
+     */
+    public InputStream bodyStream() {
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] single = new byte[1];
+                int n;
+                while ((n = readBody(single, 0, 1)) == 0) {
+                    // readBody only returns 0 for zero-length requests; loop is defensive
+                }
+                return n < 0 ? -1 : single[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return readBody(b, off, len);
+            }
+        };
+    }
+
+    public void skipBody() throws IOException {
+        skipBody(Long.MAX_VALUE);
+    }
+
+    /**
+     * Discards up to maxBytes of the remaining body. Returns true if the body was consumed to its end.
+     */
+    public boolean skipBody(long maxBytes) throws IOException {
+        if (bodyComplete) {
+            return true;
+        }
+        if (framing == Framing.FIXED && remaining > maxBytes) {
+            return false;
+        }
+
+        byte[] scratch = new byte[(int) Math.min(BUFFER_SIZE, Math.max(1, maxBytes))];
+        long skipped = 0;
+        int n;
+        while ((n = readBody(scratch, 0, scratch.length)) >= 0) {
+            skipped += n;
+            if (skipped > maxBytes) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean nextChunk() throws IOException {
+        if (!firstChunk) {
+            int lineEnd = requireLine();
+            if (contentEnd(lineEnd) != buffer.position()) {
+                throw new IOException("Missing CRLF after chunk data");
+            }
+            consumeLine(lineEnd);
+        }
+        firstChunk = false;
+
+        int lineEnd = requireLine();
+        long size = parseChunkSize(lineEnd);
+        consumeLine(lineEnd);
+
+        if (size == 0) {
+            trailers = new HttpHeaders(0);
+            readHeaderBlock(trailers);
+            bodyComplete = true;
+            return false;
+        }
+
+        remaining = size;
+        return true;
+    }
+
+    private long parseChunkSize(int lineEnd) throws IOException {
+        byte[] array = buffer.array();
+        int start = buffer.position();
+        int end = contentEnd(lineEnd);
+        long size = 0;
+        int digits = 0;
+        for (int i = start; i < end; i++) {
+            int digit = Character.digit(array[i], 16);
+            if (digit < 0) {
+                // Chunk extensions (";name=value") and trailing whitespace are ignored
+                if (array[i] == ';' || array[i] == ' ' || array[i] == '\t') break;
+                throw new IOException("Invalid chunk size line: " + ascii(start, end));
+            }
+            if (++digits > 15) {
+                throw new IOException("Chunk size too large: " + ascii(start, end));
+            }
+            size = (size << 4) | digit;
+        }
+        if (digits == 0) {
+            throw new IOException("Invalid chunk size line: " + ascii(start, end));
+        }
+        return size;
+    }
+
+    private void parseStatusLine(int lineEnd) throws IOException {
+        byte[] array = buffer.array();
+        int start = buffer.position();
+        int end = contentEnd(lineEnd);
+        int length = end - start;
+
+        // "HTTP/x.y NNN" is the shortest valid status line
+        if (length < 12 || array[start] != 'H' || array[start + 1] != 'T' || array[start + 2] != 'T'
+                || array[start + 3] != 'P' || array[start + 4] != '/' || !isDigit(array[start + 5])
+                || array[start + 6] != '.' || !isDigit(array[start + 7]) || array[start + 8] != ' '
+                || !isDigit(array[start + 9]) || !isDigit(array[start + 10]) || !isDigit(array[start + 11])
+                || (length > 12 && array[start + 12] != ' ')) {
+            throw new IOException("Invalid status line: " + ascii(start, end));
+        }
+
+        version = (array[start + 5] - '0') * 10 + (array[start + 7] - '0');
+        statusCode = (array[start + 9] - '0') * 100 + (array[start + 10] - '0') * 10 + (array[start + 11] - '0');
+        statusMessage = length > 13 ? ascii(start + 13, end) : "";
+        consumeLine(lineEnd);
+    }
+
+    private void readHeaderBlock(HttpHeaders target) throws IOException {
+        while (true) {
+            int lineEnd = requireLine();
+            int start = buffer.position();
+            int end = contentEnd(lineEnd);
+            if (end == start) {
+                consumeLine(lineEnd);
+                return;
+            }
+
+            byte[] array = buffer.array();
+            int colon = -1;
+            for (int i = start; i < end; i++) {
+                if (array[i] == ':') {
+                    colon = i;
+                    break;
+                }
+            }
+
+            if (colon > start) {
+                int nameEnd = colon;
+                while (nameEnd > start && isWhitespace(array[nameEnd - 1])) nameEnd--;
+                int valueStart = colon + 1;
+                int valueEnd = end;
+                while (valueStart < valueEnd && isWhitespace(array[valueStart])) valueStart++;
+                while (valueEnd > valueStart && isWhitespace(array[valueEnd - 1])) valueEnd--;
+
+                target.add(headerName(array, start, nameEnd), ascii(valueStart, valueEnd));
+            }
+            consumeLine(lineEnd);
+        }
+    }
+
+    private static String headerName(byte[] array, int start, int end) {
+        int length = end - start;
+        for (String known : KNOWN_HEADERS) {
+            if (known.length() == length && regionMatchesIgnoreCase(array, start, known)) {
+                return known;
+            }
+        }
+        return new String(array, start, length, StandardCharsets.ISO_8859_1);
+    }
+
+    private static boolean regionMatchesIgnoreCase(byte[] array, int start, String name) {
+        for (int i = 0; i < name.length(); i++) {
+            int b = array[start + i];
+            int c = name.charAt(i);
+            if (b != c && (b | 0x20) != (c | 0x20)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int readRaw(byte[] dst, int off, int len) throws IOException {
+        if (buffer.hasRemaining()) {
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(dst, off, n);
+            return n;
+        }
+        // Nothing buffered: read straight into the caller's array instead of staging through the buffer
+        return in.read(dst, off, len);
+    }
+
+    /**
+     * Returns the index of the '\n' ending the line that starts at the buffer position,
+     * or -1 if the stream ended before any byte arrived.
+     */
+    private int findLineEnd() throws IOException {
+        int scanned = buffer.position();
+        while (true) {
+            byte[] array = buffer.array();
+            for (int i = scanned; i < buffer.limit(); i++) {
+                if (array[i] == '\n') {
+                    return i;
+                }
+            }
+
+            int consumedBefore = buffer.position();
+            scanned = buffer.limit() - consumedBefore;
+            if (!fill()) {
+                if (buffer.hasRemaining()) {
+                    throw new EOFException("Connection closed in the middle of a line");
+                }
+                return -1;
+            }
+            scanned += buffer.position();
+        }
+    }
+
+    private int requireLine() throws IOException {
+        int lineEnd = findLineEnd();
+        if (lineEnd < 0) {
+            throw new EOFException("Connection closed before the end of the response");
+        }
+        return lineEnd;
+    }
+
+    private int contentEnd(int lineEnd) {
+        return lineEnd > buffer.position() && buffer.array()[lineEnd - 1] == '\r' ? lineEnd - 1 : lineEnd;
+    }
+
+    private void consumeLine(int lineEnd) {
+        buffer.position(lineEnd + 1);
+    }
+
+    private boolean fill() throws IOException {
+        if (buffer.position() > 0) {
+            buffer.compact();
+        } else {
+            if (buffer.limit() == buffer.capacity()) {
+                if (buffer.capacity() >= MAX_HEAD_LINE) {
+                    throw new IOException("Response line exceeds " + MAX_HEAD_LINE + " bytes");
+                }
+                ByteBuffer larger = ByteBuffer.allocate(buffer.capacity() * 2);
+                larger.put(buffer);
+                buffer = larger;
+            } else {
+                buffer.compact();
+            }
+        }
+
+        int n = in.read(buffer.array(), buffer.position(), buffer.remaining());
+        if (n > 0) {
+            buffer.position(buffer.position() + n);
+        }
+        buffer.flip();
+        return n > 0;
+    }
+
+    private String ascii(int start, int end) {
+        return new String(buffer.array(), start, end - start, StandardCharsets.ISO_8859_1);
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t';
+    }
+}
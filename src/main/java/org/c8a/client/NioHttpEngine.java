@@ -0,0 +1,1021 @@
+package org.c8a.client;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non-blocking HTTP/1.1 engine: a few selector threads multiplex any number of in-flight exchanges.
+ * Responses are framed incrementally on the event loop and decoded off it, so slow or large bodies
+ * never hold a thread.
+ */
+public class NioHttpEngine implements Closeable {
+
+    private static final int DEFAULT_EVENT_LOOPS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+    private static final long SELECT_TICK = 50; // milliseconds
+    private static final long IDLE_TIMEOUT = 30_000; // 30 seconds
+    private static final int MAX_IDLE_PER_HOST = 32;
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+
+    private static volatile NioHttpEngine shared;
+
+    private final EventLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private final Executor completionExecutor;
+
+    public NioHttpEngine() throws IOException {
+        this(DEFAULT_EVENT_LOOPS, ForkJoinPool.commonPool());
+    }
+
+    public NioHttpEngine(int eventLoops, Executor completionExecutor) throws IOException {
+        if (eventLoops < 1) {
+            throw new IllegalArgumentException("eventLoops must be at least 1");
+        }
+        this.completionExecutor = completionExecutor;
+        this.loops = new EventLoop[eventLoops];
+        for (int i = 0; i < eventLoops; i++) {
+            loops[i] = new EventLoop(i);
+        }
+    }
+
+    public static NioHttpEngine shared() throws IOException {
+        NioHttpEngine engine = shared;
+        if (engine == null) {
+            synchronized (NioHttpEngine.class) {
+                if (shared == null) {
+                    shared = new NioHttpEngine();
+                }
+                engine = shared;
+            }
+        }
+        return engine;
+    }
+
+    public int getEventLoopCount() {
+        return loops.length;
+    }
+
+    /**
+     * Sends a fully serialized request. The returned future completes with the decoded response, off the event loop.
+     * New connections race across the given addresses like {@link HappyEyeballs}; resolving them blocks, so it is
+     * left to the caller's thread rather than done on the event loop.
+     */
+    public CompletableFuture<CustomHttpClient.HttpResponse> send(String scheme, String host, int port,
+                                                                 List<InetAddress> addresses, String method,
+                                                                 byte[] request, int connectTimeout, int readTimeout,
+                                                                 long maxBodySize) {
+        CompletableFuture<CustomHttpClient.HttpResponse> future = new CompletableFuture<>();
+        if (addresses.isEmpty()) {
+            future.completeExceptionally(new UnknownHostException(host));
+            return future;
+        }
+
+        EventLoop loop = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+        Exchange exchange = new Exchange(loop, ConnectionPool.key(scheme, host, port),
+                HappyEyeballs.interleave(addresses), host, port, "https".equalsIgnoreCase(scheme), method, request,
+                connectTimeout, readTimeout, maxBodySize, future);
+        loop.execute(exchange::start);
+        return future;
+    }
+
+    @Override
+    public void close() {
+        for (EventLoop loop : loops) {
+            loop.shutdown();
+        }
+        synchronized (NioHttpEngine.class) {
+            if (shared == this) {
+                shared = null;
+            }
+        }
+    }
+
+    private CustomHttpClient.HttpResponse decode(byte[] bytes, int length, String method, long maxBodySize)
+            throws IOException {
+        HttpResponseParser parser = new HttpResponseParser(new ByteArrayInputStream(bytes, 0, length));
+        if (!parser.readHead()) {
+            throw new IOException("Empty response");
+        }
+        while (isInterim(parser.getStatusCode())) {
+            parser.readHead();
+        }
+
+        int statusCode = parser.getStatusCode();
+        parser.beginBody(hasBody(method, statusCode));
+        HttpHeaders headers = parser.getHeaders();
+        String contentEncoding = headers.get("Content-Encoding");
+
+        byte[] body;
+        if (contentEncoding != null && !"identity".equalsIgnoreCase(contentEncoding.trim())) {
+            try (InputStream decoded = ContentDecoder.wrap(parser.bodyStream(), contentEncoding)) {
+                body = decoded.readNBytes((int) Math.min(maxBodySize, Integer.MAX_VALUE - 9) + 1);
+            }
+            if (body.length > maxBodySize) {
+                throw new IOException("Response body exceeds limit of " + maxBodySize + " bytes");
+            }
+        } else {
+            body = parser.readFullBody(maxBodySize);
+        }
+        return new CustomHttpClient.HttpResponse(statusCode, parser.getStatusMessage(), headers, body,
+                parser.getBodyBytesRead());
+    }
+
+    private static boolean isInterim(int statusCode) {
+        return statusCode >= 100 && statusCode < 200 && statusCode != 101;
+    }
+
+    private static boolean hasBody(String method, int statusCode) {
+        return !"HEAD".equalsIgnoreCase(method) && statusCode != 204 && statusCode != 304;
+    }
+
+    private final class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Thread thread;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final Set<Exchange> active = new HashSet<>();
+        private final Map<String, Deque<NioConnection>> idle = new HashMap<>();
+        private volatile boolean running = true;
+
+        private EventLoop(int index) throws IOException {
+            this.selector = Selector.open();
+            // The shared engine's loops are started by whichever request needs it first, then serve every later one
+            this.thread = Thread.ofPlatform().daemon().name("go2web-nio-" + index)
+                    .inheritInheritableThreadLocals(false).start(this);
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    selector.select(SELECT_TICK);
+                    runTasks();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (key.attachment() instanceof Exchange exchange && key.isValid()) {
+                            try {
+                                exchange.onReady(key);
+                            } catch (IOException | RuntimeException e) {
+                                exchange.fail(e);
+                            }
+                        }
+                    }
+
+                    expire(System.currentTimeMillis());
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                System.err.println("NIO event loop stopped: " + e.getMessage());
+            } finally {
+                closeEverything();
+            }
+        }
+
+        private void runTasks() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+        }
+
+        private void expire(long now) {
+            List<Exchange> timedOut = new ArrayList<>();
+            List<Exchange> slowConnects = new ArrayList<>();
+            for (Exchange exchange : active) {
+                if (now >= exchange.deadline) {
+                    timedOut.add(exchange);
+                } else if (exchange.shouldRaceNextAddress(now)) {
+                    slowConnects.add(exchange);
+                }
+            }
+            for (Exchange exchange : slowConnects) {
+                try {
+                    exchange.connectNext();
+                } catch (IOException | RuntimeException e) {
+                    exchange.fail(e);
+                }
+            }
+            for (Exchange exchange : timedOut) {
+                exchange.fail(new SocketTimeoutException(exchange.connected ? "Read timed out" : "Connect timed out"));
+            }
+
+            for (Deque<NioConnection> connections : idle.values()) {
+                connections.removeIf(connection -> {
+                    if (now - connection.lastUsed >= IDLE_TIMEOUT) {
+                        connection.close();
+                        return true;
+                    }
+                    return false;
+                });
+            }
+        }
+
+        NioConnection takeIdle(String key) {
+            Deque<NioConnection> connections = idle.get(key);
+            NioConnection connection;
+            while (connections != null && (connection = connections.pollFirst()) != null) {
+                if (connection.isUsable()) {
+                    return connection;
+                }
+                connection.close();
+            }
+            return null;
+        }
+
+        void offerIdle(String key, NioConnection connection) {
+            Deque<NioConnection> connections = idle.computeIfAbsent(key, k -> new ArrayDeque<>());
+            if (connections.size() >= MAX_IDLE_PER_HOST) {
+                connection.close();
+                return;
+            }
+            connection.lastUsed = System.currentTimeMillis();
+            connections.addFirst(connection);
+        }
+
+        void shutdown() {
+            running = false;
+            selector.wakeup();
+        }
+
+        private void closeEverything() {
+            for (Exchange exchange : new ArrayList<>(active)) {
+                exchange.fail(new IOException("Engine closed"));
+            }
+            for (Deque<NioConnection> connections : idle.values()) {
+                connections.forEach(NioConnection::close);
+            }
+            idle.clear();
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private static final class NioConnection {
+        private final SocketChannel channel;
+        private SelectionKey key;
+        private SSLEngine engine;
+        private ByteBuffer netIn;
+        private ByteBuffer netOut;
+        private ByteBuffer appIn;
+        private long lastUsed;
+        private int exchanges;
+
+        private NioConnection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        boolean isUsable() {
+            if (!channel.isOpen() || (key != null && !key.isValid())) {
+                return false;
+            }
+            try {
+                // A readable idle socket has either been closed by the peer or holds stray bytes
+                ByteBuffer probe = ByteBuffer.allocate(1);
+                return channel.read(probe) == 0;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        void interest(int ops) {
+            key.interestOps(ops);
+        }
+
+        void close() {
+            if (engine != null) {
+                engine.closeOutbound();
+            }
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private enum Phase { CONNECTING, HANDSHAKING, WRITING, READING, DONE }
+
+    private final class Exchange {
+        private final EventLoop loop;
+        private final String poolKey;
+        private final List<InetAddress> addresses;
+        private final String host;
+        private final int port;
+        private final boolean https;
+        private final String method;
+        private final byte[] request;
+        private final int connectTimeout;
+        private final int readTimeout;
+        private final long maxBodySize;
+        private final CompletableFuture<CustomHttpClient.HttpResponse> future;
+
+        private NioConnection connection;
+        private final List<NioConnection> attempts = new ArrayList<>();
+        private int nextAddress;
+        private long nextAttemptAt;
+        private IOException connectError;
+        private ByteBuffer requestBuffer;
+        private ResponseFramer framer;
+        private Phase phase = Phase.CONNECTING;
+        private boolean connected;
+        private boolean retried;
+        private long deadline;
+        private long handshakeStart;
+        private long handshakeStartMillis;
+
+        private Exchange(EventLoop loop, String poolKey, List<InetAddress> addresses, String host, int port,
+                         boolean https, String method, byte[] request, int connectTimeout, int readTimeout,
+                         long maxBodySize, CompletableFuture<CustomHttpClient.HttpResponse> future) {
+            this.loop = loop;
+            this.poolKey = poolKey;
+            this.addresses = addresses;
+            this.host = host;
+            this.port = port;
+            this.https = https;
+            this.method = method;
+            this.request = request;
+            this.connectTimeout = connectTimeout;
+            this.readTimeout = readTimeout;
+            this.maxBodySize = maxBodySize;
+            this.future = future;
+        }
+
+        void start() {
+            loop.active.add(this);
+            requestBuffer = ByteBuffer.wrap(request);
+            framer = new ResponseFramer(method, maxBodySize);
+
+            try {
+                NioConnection idle = retried ? null : loop.takeIdle(poolKey);
+                if (idle != null) {
+                    connection = idle;
+                    connection.key.attach(this);
+                    connected = true;
+                    touch();
+                    beginWrite();
+                    return;
+                }
+
+                connection = null;
+                deadline = System.currentTimeMillis() + connectTimeout;
+                nextAddress = 0;
+                connectNext();
+            } catch (IOException | RuntimeException e) {
+                fail(e);
+            }
+        }
+
+        boolean shouldRaceNextAddress(long now) {
+            return !connected && !attempts.isEmpty() && nextAddress < addresses.size() && now >= nextAttemptAt;
+        }
+
+        /**
+         * Starts a connect to the next address alongside any still pending; fails once none are left.
+         */
+        void connectNext() throws IOException {
+            while (nextAddress < addresses.size()) {
+                InetSocketAddress address = new InetSocketAddress(addresses.get(nextAddress++), port);
+                NioConnection attempt = new NioConnection(SocketChannel.open());
+                boolean connectedNow;
+                try {
+                    attempt.channel.configureBlocking(false);
+                    attempt.channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    attempt.key = attempt.channel.register(loop.selector, 0, this);
+                    connectedNow = attempt.channel.connect(address);
+                } catch (IOException e) {
+                    attempt.close();
+                    connectError = e;
+                    continue;
+                }
+
+                attempts.add(attempt);
+                nextAttemptAt = System.currentTimeMillis() + HappyEyeballs.ATTEMPT_DELAY;
+                if (connectedNow) {
+                    onConnected(attempt);
+                } else {
+                    attempt.interest(SelectionKey.OP_CONNECT);
+                }
+                return;
+            }
+            if (attempts.isEmpty()) {
+                throw connectError != null ? connectError : new IOException("No addresses for " + host);
+            }
+        }
+
+        void onReady(SelectionKey key) throws IOException {
+            if (key.isConnectable()) {
+                NioConnection attempt = null;
+                for (NioConnection candidate : attempts) {
+                    if (candidate.key == key) {
+                        attempt = candidate;
+                    }
+                }
+                if (attempt == null) {
+                    key.cancel();
+                    return;
+                }
+                boolean finished;
+                try {
+                    finished = attempt.channel.finishConnect();
+                } catch (IOException e) {
+                    // This address is out; the next one starts right away instead of after the delay
+                    attempts.remove(attempt);
+                    attempt.close();
+                    connectError = e;
+                    connectNext();
+                    return;
+                }
+                if (finished) {
+                    onConnected(attempt);
+                }
+                return;
+            }
+            switch (phase) {
+                case HANDSHAKING -> handshake();
+                case WRITING -> write();
+                case READING -> read();
+                default -> connection.interest(0);
+            }
+        }
+
+        private void onConnected(NioConnection winner) throws IOException {
+            attempts.remove(winner);
+            closeAttempts();
+            connection = winner;
+            connected = true;
+            touch();
+            if (!https) {
+                beginWrite();
+                return;
+            }
+
+            SSLEngine engine = SSLSocketFactory.createSSLEngine(host, port);
+            SSLSession session = engine.getSession();
+            connection.engine = engine;
+            connection.netIn = ByteBuffer.allocate(session.getPacketBufferSize());
+            connection.netOut = ByteBuffer.allocate(session.getPacketBufferSize());
+            connection.appIn = ByteBuffer.allocate(session.getApplicationBufferSize());
+
+            phase = Phase.HANDSHAKING;
+            handshakeStart = System.nanoTime();
+            handshakeStartMillis = System.currentTimeMillis();
+            engine.beginHandshake();
+            handshake();
+        }
+
+        private void handshake() throws IOException {
+            SSLEngine engine = connection.engine;
+            while (true) {
+                switch (engine.getHandshakeStatus()) {
+                    case NEED_WRAP -> {
+                        if (!flushNetOut()) {
+                            return;
+                        }
+                        wrap(EMPTY);
+                    }
+                    case NEED_UNWRAP, NEED_UNWRAP_AGAIN -> {
+                        // Our last flight has to reach the peer before its answer can arrive
+                        if (!flushNetOut()) {
+                            return;
+                        }
+                        if (!unwrapForHandshake()) {
+                            connection.interest(SelectionKey.OP_READ);
+                            return;
+                        }
+                    }
+                    case NEED_TASK -> runDelegatedTasks();
+                    default -> {
+                        if (!flushNetOut()) {
+                            return;
+                        }
+                        SSLSocketFactory.getStats().record(System.nanoTime() - handshakeStart,
+                                engine.getSession().getCreationTime() < handshakeStartMillis);
+                        beginWrite();
+                        return;
+                    }
+                }
+            }
+        }
+
+        private boolean unwrapForHandshake() throws IOException {
+            ByteBuffer netIn = connection.netIn;
+            while (true) {
+                netIn.flip();
+                SSLEngineResult result = connection.engine.unwrap(netIn, connection.appIn);
+                netIn.compact();
+
+                switch (result.getStatus()) {
+                    case OK -> {
+                        return true;
+                    }
+                    case BUFFER_OVERFLOW -> connection.appIn = grow(connection.appIn,
+                            connection.engine.getSession().getApplicationBufferSize());
+                    case BUFFER_UNDERFLOW -> {
+                        if (netIn.position() == netIn.capacity()) {
+                            connection.netIn = netIn = grow(netIn, connection.engine.getSession().getPacketBufferSize());
+                        }
+                        int n = connection.channel.read(netIn);
+                        if (n < 0) {
+                            throw new EOFException("Connection closed during TLS handshake");
+                        }
+                        if (n == 0) {
+                            return false;
+                        }
+                        touch();
+                    }
+                    case CLOSED -> throw new SSLException("TLS connection closed during handshake");
+                }
+            }
+        }
+
+        private void beginWrite() throws IOException {
+            phase = Phase.WRITING;
+            write();
+        }
+
+        private void write() throws IOException {
+            if (connection.engine == null) {
+                connection.channel.write(requestBuffer);
+                if (requestBuffer.hasRemaining()) {
+                    connection.interest(SelectionKey.OP_WRITE);
+                    return;
+                }
+            } else {
+                while (true) {
+                    if (!flushNetOut()) {
+                        return;
+                    }
+                    if (!requestBuffer.hasRemaining()) {
+                        break;
+                    }
+                    wrap(requestBuffer);
+                }
+            }
+
+            touch();
+            phase = Phase.READING;
+            connection.interest(SelectionKey.OP_READ);
+        }
+
+        private void read() throws IOException {
+            if (connection.engine == null) {
+                ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+                while (phase == Phase.READING) {
+                    buffer.clear();
+                    int n = connection.channel.read(buffer);
+                    if (n == 0) {
+                        return;
+                    }
+                    touch();
+                    if (n < 0) {
+                        onEof();
+                        return;
+                    }
+                    buffer.flip();
+                    deliver(buffer);
+                }
+                return;
+            }
+
+            while (phase == Phase.READING) {
+                int n = connection.channel.read(connection.netIn);
+                if (n > 0) {
+                    touch();
+                }
+                boolean closed = unwrapApplicationData();
+                if (phase != Phase.READING) {
+                    return;
+                }
+                if (closed || n < 0) {
+                    onEof();
+                    return;
+                }
+                if (n == 0) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Unwraps whatever records are buffered; returns true once the peer has sent close_notify.
+         */
+        private boolean unwrapApplicationData() throws IOException {
+            ByteBuffer netIn = connection.netIn;
+            while (true) {
+                netIn.flip();
+                SSLEngineResult result = connection.engine.unwrap(netIn, connection.appIn);
+                netIn.compact();
+
+                if (connection.appIn.position() > 0) {
+                    connection.appIn.flip();
+                    deliver(connection.appIn);
+                    connection.appIn.clear();
+                    if (phase != Phase.READING) {
+                        return false;
+                    }
+                }
+
+                switch (result.getStatus()) {
+                    case OK -> {
+                        // Post-handshake messages (session tickets, key updates) may need tasks or a reply
+                        if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                            runDelegatedTasks();
+                        }
+                        if (connection.engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                            wrap(EMPTY);
+                            flushNetOut();
+                        }
+                        if (result.bytesConsumed() == 0 && result.bytesProduced() == 0) {
+                            return false;
+                        }
+                    }
+                    case BUFFER_OVERFLOW -> connection.appIn = grow(connection.appIn,
+                            connection.engine.getSession().getApplicationBufferSize());
+                    case BUFFER_UNDERFLOW -> {
+                        if (netIn.position() == netIn.capacity()) {
+                            connection.netIn = netIn = grow(netIn, connection.engine.getSession().getPacketBufferSize());
+                        }
+                        return false;
+                    }
+                    case CLOSED -> {
+                        return true;
+                    }
+                }
+            }
+        }
+
+        private void deliver(ByteBuffer data) throws IOException {
+            framer.append(data);
+            if (framer.isComplete()) {
+                complete(framer.isReusable());
+            }
+        }
+
+        private void onEof() throws IOException {
+            if (framer.isEmpty() && connection.exchanges > 0 && !retried && isIdempotent()) {
+                retryOnFreshConnection();
+                return;
+            }
+            framer.onEof();
+            complete(false);
+        }
+
+        private void complete(boolean reusable) {
+            phase = Phase.DONE;
+            loop.active.remove(this);
+            connection.exchanges++;
+
+            if (reusable) {
+                connection.interest(0);
+                connection.key.attach(null);
+                loop.offerIdle(poolKey, connection);
+            } else {
+                connection.close();
+            }
+
+            byte[] bytes = framer.bytes();
+            int length = framer.length();
+            future.completeAsync(() -> {
+                try {
+                    return decode(bytes, length, method, maxBodySize);
+                } catch (IOException e) {
+                    throw new java.util.concurrent.CompletionException(e);
+                }
+            }, completionExecutor);
+        }
+
+        void fail(Throwable error) {
+            if (phase == Phase.DONE) {
+                return;
+            }
+            boolean wasReused = connection != null && connection.exchanges > 0;
+            if (connection != null) {
+                connection.close();
+            }
+            closeAttempts();
+            if (wasReused && !retried && framer != null && framer.isEmpty() && isIdempotent()) {
+                retryOnFreshConnection();
+                return;
+            }
+            phase = Phase.DONE;
+            loop.active.remove(this);
+            completionExecutor.execute(() -> future.completeExceptionally(error));
+        }
+
+        private void retryOnFreshConnection() {
+            // The server dropped a pooled connection before answering; one fresh attempt is safe for idempotent requests
+            connection.close();
+            loop.active.remove(this);
+            retried = true;
+            connected = false;
+            phase = Phase.CONNECTING;
+            start();
+        }
+
+        private void closeAttempts() {
+            attempts.forEach(NioConnection::close);
+            attempts.clear();
+        }
+
+        private boolean isIdempotent() {
+            return !"POST".equalsIgnoreCase(method) && !"PATCH".equalsIgnoreCase(method);
+        }
+
+        private void touch() {
+            deadline = System.currentTimeMillis() + readTimeout;
+        }
+
+        private void wrap(ByteBuffer source) throws IOException {
+            SSLEngineResult result = connection.engine.wrap(source, connection.netOut);
+            switch (result.getStatus()) {
+                case BUFFER_OVERFLOW -> connection.netOut = grow(connection.netOut,
+                        connection.engine.getSession().getPacketBufferSize());
+                case CLOSED -> throw new SSLException("TLS connection closed");
+                default -> { }
+            }
+        }
+
+        /**
+         * Writes pending TLS records; returns false (and waits for OP_WRITE) if the socket could not take them all.
+         */
+        private boolean flushNetOut() throws IOException {
+            ByteBuffer netOut = connection.netOut;
+            if (netOut.position() == 0) {
+                return true;
+            }
+            netOut.flip();
+            connection.channel.write(netOut);
+            boolean flushed = !netOut.hasRemaining();
+            netOut.compact();
+            if (!flushed) {
+                connection.interest(SelectionKey.OP_WRITE);
+            }
+            return flushed;
+        }
+
+        private void runDelegatedTasks() {
+            Runnable task;
+            while ((task = connection.engine.getDelegatedTask()) != null) {
+                task.run();
+            }
+        }
+    }
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private static ByteBuffer grow(ByteBuffer buffer, int minimumCapacity) {
+        ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, minimumCapacity));
+        buffer.flip();
+        larger.put(buffer);
+        return larger;
+    }
+
+    /**
+     * Tracks where the current response ends while bytes are still arriving, without decoding anything.
+     */
+    static final class ResponseFramer {
+        private enum State { HEAD, FIXED, CHUNK_SIZE, CHUNK_DATA, TRAILERS, UNTIL_EOF, DONE }
+
+        private final String method;
+        private final long maxBodySize;
+
+        private byte[] data = new byte[READ_BUFFER_SIZE];
+        private int length;
+        private int scan;
+        private int headStart;
+        private State state = State.HEAD;
+        private long bodyEnd;
+        private boolean keepAlive;
+
+        ResponseFramer(String method, long maxBodySize) {
+            this.method = method;
+            this.maxBodySize = maxBodySize;
+        }
+
+        void append(ByteBuffer source) throws IOException {
+            int n = source.remaining();
+            if (length + n > data.length) {
+                long needed = (long) length + n;
+                if (needed > Integer.MAX_VALUE - 8) {
+                    throw new IOException("Response too large to buffer");
+                }
+                data = Arrays.copyOf(data, (int) Math.min(Math.max(needed, (long) data.length * 2), Integer.MAX_VALUE - 8));
+            }
+            source.get(data, length, n);
+            length += n;
+            advance();
+
+            if (state != State.DONE && length - headStart - 64 * 1024 > maxBodySize) {
+                throw new IOException("Response body exceeds limit of " + maxBodySize + " bytes");
+            }
+        }
+
+        boolean isEmpty() {
+            return length == 0;
+        }
+
+        boolean isComplete() {
+            return state == State.DONE;
+        }
+
+        boolean isReusable() {
+            return state == State.DONE && keepAlive && length == bodyEnd;
+        }
+
+        void onEof() throws IOException {
+            switch (state) {
+                case UNTIL_EOF, DONE -> state = State.DONE;
+                default -> throw new EOFException("Connection closed before the response was complete");
+            }
+        }
+
+        byte[] bytes() {
+            return data;
+        }
+
+        int length() {
+            return length;
+        }
+
+        private void advance() throws IOException {
+            while (true) {
+                switch (state) {
+                    case HEAD -> {
+                        int end = findHeadEnd();
+                        if (end < 0) {
+                            return;
+                        }
+                        parseHead(end);
+                    }
+                    case FIXED -> {
+                        if (length < bodyEnd) {
+                            return;
+                        }
+                        state = State.DONE;
+                    }
+                    case CHUNK_SIZE -> {
+                        int lineEnd = indexOf('\n', scan);
+                        if (lineEnd < 0) {
+                            return;
+                        }
+                        long size = chunkSize(scan, lineEnd);
+                        scan = lineEnd + 1;
+                        if (size == 0) {
+                            state = State.TRAILERS;
+                        } else {
+                            bodyEnd = scan + size;
+                            state = State.CHUNK_DATA;
+                        }
+                    }
+                    case CHUNK_DATA -> {
+                        // Chunk payload followed by its CRLF
+                        int lineEnd = length > bodyEnd ? indexOf('\n', (int) bodyEnd) : -1;
+                        if (lineEnd < 0) {
+                            return;
+                        }
+                        scan = lineEnd + 1;
+                        state = State.CHUNK_SIZE;
+                    }
+                    case TRAILERS -> {
+                        int lineEnd = indexOf('\n', scan);
+                        if (lineEnd < 0) {
+                            return;
+                        }
+                        boolean blank = lineEnd == scan || (lineEnd == scan + 1 && data[scan] == '\r');
+                        scan = lineEnd + 1;
+                        if (blank) {
+                            bodyEnd = scan;
+                            state = State.DONE;
+                        }
+                    }
+                    default -> {
+                        return;
+                    }
+                }
+            }
+        }
+
+        private int findHeadEnd() {
+            for (int i = Math.max(scan, headStart); i < length; i++) {
+                if (data[i] == '\n' && i > headStart
+                        && (data[i - 1] == '\n' || (data[i - 1] == '\r' && i - 2 >= headStart && data[i - 2] == '\n'))) {
+                    return i + 1;
+                }
+            }
+            scan = Math.max(headStart, length - 3);
+            return -1;
+        }
+
+        private void parseHead(int end) throws IOException {
+            HttpResponseParser head = new HttpResponseParser(new ByteArrayInputStream(data, headStart, end - headStart));
+            head.readHead();
+            int statusCode = head.getStatusCode();
+            HttpHeaders headers = head.getHeaders();
+
+            if (isInterim(statusCode)) {
+                headStart = end;
+                scan = end;
+                return;
+            }
+
+            String connection = headers.get("Connection");
+            keepAlive = head.getVersion() >= 11
+                    ? connection == null || !connection.toLowerCase().contains("close")
+                    : connection != null && connection.toLowerCase().contains("keep-alive");
+
+            String transferEncoding = headers.get("Transfer-Encoding");
+            String contentLength = headers.get("Content-Length");
+            scan = end;
+
+            if (!hasBody(method, statusCode)) {
+                bodyEnd = end;
+                state = State.DONE;
+            } else if (transferEncoding != null && transferEncoding.toLowerCase().contains("chunked")) {
+                state = State.CHUNK_SIZE;
+            } else if (contentLength != null) {
+                long declared;
+                try {
+                    declared = Long.parseLong(contentLength.trim());
+                } catch (NumberFormatException e) {
+                    throw new IOException("Invalid Content-Length: " + contentLength);
+                }
+                if (declared > maxBodySize) {
+                    throw new IOException("Response body of " + declared + " bytes exceeds limit of " + maxBodySize + " bytes");
+                }
+                bodyEnd = end + declared;
+                state = State.FIXED;
+            } else {
+                keepAlive = false;
+                state = State.UNTIL_EOF;
+            }
+        }
+
+        private long chunkSize(int start, int lineEnd) throws IOException {
+            long size = 0;
+            int digits = 0;
+            for (int i = start; i < lineEnd; i++) {
+                int digit = Character.digit(data[i], 16);
+                if (digit < 0) {
+                    if (data[i] == ';' || data[i] == ' ' || data[i] == '\t' || data[i] == '\r') break;
+                    throw new IOException("Invalid chunk size line");
+                }
+                if (++digits > 15) {
+                    throw new IOException("Chunk size too large");
+                }
+                size = (size << 4) | digit;
+            }
+            if (digits == 0) {
+                throw new IOException("Invalid chunk size line");
+            }
+            return size;
+        }
+
+        private int indexOf(int b, int from) {
+            for (int i = from; i < length; i++) {
+                if (data[i] == b) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+}
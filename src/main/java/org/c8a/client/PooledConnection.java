@@ -0,0 +1,113 @@
+package org.c8a.client;
+
+import javax.net.ssl.SSLSocket;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+class PooledConnection {
+
+    private final String key;
+    private final Socket socket;
+    private final InputStream in;
+    private final HttpResponseParser parser;
+    private final OutputStream out;
+    private final long createdAt;
+
+    private long lastUsed;
+    private long keepAliveTimeout = -1;
+    private int requestCount;
+
+    PooledConnection(String key, Socket socket) throws IOException {
+        this.key = key;
+        this.socket = socket;
+        this.in = socket.getInputStream();
+        this.parser = new HttpResponseParser(in);
+        this.out = socket.getOutputStream();
+        this.createdAt = System.currentTimeMillis();
+        this.lastUsed = createdAt;
+    }
+
+    String getKey() {
+        return key;
+    }
+
+    Socket getSocket() {
+        return socket;
+    }
+
+    HttpResponseParser getParser() {
+        return parser;
+    }
+
+    OutputStream getOutputStream() {
+        return out;
+    }
+
+    long getLastUsed() {
+        return lastUsed;
+    }
+
+    int getRequestCount() {
+        return requestCount;
+    }
+
+    boolean isHttp2() {
+        return socket instanceof SSLSocket sslSocket && "h2".equals(sslSocket.getApplicationProtocol());
+    }
+
+    boolean isReused() {
+        return requestCount > 1;
+    }
+
+    void markLeased(int readTimeout) throws IOException {
+        requestCount++;
+        socket.setSoTimeout(readTimeout);
+    }
+
+    void markIdle(long keepAliveTimeout) {
+        this.lastUsed = System.currentTimeMillis();
+        this.keepAliveTimeout = keepAliveTimeout;
+    }
+
+    boolean isExpired(long now, long poolIdleTimeout) {
+        long timeout = keepAliveTimeout > 0 ? Math.min(keepAliveTimeout, poolIdleTimeout) : poolIdleTimeout;
+        return now - lastUsed >= timeout;
+    }
+
+    boolean isStale() {
+        if (socket.isClosed() || socket.isInputShutdown() || socket.isOutputShutdown()) {
+            return true;
+        }
+
+        try {
+            // Bytes waiting on an idle connection mean the previous exchange was not fully consumed
+            if (parser.hasBufferedData() || in.available() > 0) {
+                return true;
+            }
+
+            int originalTimeout = socket.getSoTimeout();
+            try {
+                socket.setSoTimeout(1);
+                // Either EOF (peer closed) or unsolicited data; both make the connection unusable
+                in.read();
+                return true;
+            } catch (SocketTimeoutException e) {
+                return false;
+            } finally {
+                socket.setSoTimeout(originalTimeout);
+            }
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    void close() {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package org.c8a.client;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.List;
+
+/**
+ * Turns a host name into the addresses worth connecting to, most preferred first. Pass one to
+ * {@link ConnectionPool#ConnectionPool(int, long, Resolver)} to point names at local servers without real DNS.
+ */
+@FunctionalInterface
+public interface Resolver {
+
+    List<InetAddress> resolve(String host) throws UnknownHostException;
+
+    /**
+     * The platform resolver, uncached apart from whatever the JVM itself keeps.
+     */
+    static Resolver system() {
+        return host -> List.of(InetAddress.getAllByName(host));
+    }
+}
@@ -1,44 +1,258 @@
 package org.c8a.client;
 
+import org.c8a.metrics.Metrics;
+
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
 import javax.net.ssl.SSLSocket;
 import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
 import javax.net.ssl.X509TrustManager;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.security.KeyManagementException;
-import java.security.NoSuchAlgorithmException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
 import java.security.cert.X509Certificate;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class SSLSocketFactory {
 
+    private static final TlsStats STATS = new TlsStats();
+
+    private static volatile TlsConfig config = TlsConfig.fromSystemProperties();
+    private static volatile SSLContext sharedContext;
+
+    public static void configure(TlsConfig tlsConfig) {
+        synchronized (SSLSocketFactory.class) {
+            config = tlsConfig;
+            sharedContext = null;
+        }
+    }
+
+    public static TlsConfig getConfig() {
+        return config;
+    }
+
+    public static TlsStats getStats() {
+        return STATS;
+    }
+
     public static Socket createSSLSocket(String host, int port, int timeout) throws IOException {
+        return createSSLSocket(host, port, timeout, null);
+    }
+
+    /**
+     * Connects and handshakes, offering the given ALPN protocols (e.g. "h2", "http/1.1") when not null.
+     * The negotiated one is available from {@link SSLSocket#getApplicationProtocol()}.
+     */
+    public static Socket createSSLSocket(String host, int port, int timeout, String[] applicationProtocols)
+            throws IOException {
+        Socket plainSocket = new Socket();
+        try {
+            plainSocket.setTcpNoDelay(true);
+            plainSocket.connect(new InetSocketAddress(host, port), timeout);
+        } catch (IOException e) {
+            plainSocket.close();
+            throw e;
+        }
+        return createSSLSocket(plainSocket, host, port, timeout, applicationProtocols);
+    }
+
+    /**
+     * Handshakes over an already connected socket, e.g. one raced across several addresses. The socket
+     * is closed if the handshake fails.
+     */
+    public static Socket createSSLSocket(Socket plainSocket, String host, int port, int timeout,
+                                         String[] applicationProtocols) throws IOException {
+        TlsConfig tlsConfig = config;
+        try {
+            SSLContext sslContext = getContext();
+
+            // Layering over host/port (rather than an address) keys the client session cache for resumption
+            SSLSocket sslSocket = (SSLSocket) sslContext.getSocketFactory().createSocket(plainSocket, host, port, true);
+
+            SSLParameters parameters = configure(sslSocket.getSSLParameters(), tlsConfig);
+            if (applicationProtocols != null) {
+                parameters.setApplicationProtocols(applicationProtocols);
+            }
+            sslSocket.setSSLParameters(parameters);
+            sslSocket.setSoTimeout(timeout);
+
+            long start = System.nanoTime();
+            long startMillis = System.currentTimeMillis();
+            sslSocket.startHandshake();
+            long elapsed = System.nanoTime() - start;
+
+            SSLSession session = sslSocket.getSession();
+            STATS.record(elapsed, session.getCreationTime() < startMillis);
+
+            return sslSocket;
+        } catch (IOException | RuntimeException e) {
+            plainSocket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * An engine for non-blocking clients, configured like the sockets and sharing their session cache.
+     */
+    static SSLEngine createSSLEngine(String host, int port) throws IOException {
+        TlsConfig tlsConfig = config;
+        SSLEngine engine = getContext().createSSLEngine(host, port);
+        engine.setUseClientMode(true);
+        engine.setSSLParameters(configure(engine.getSSLParameters(), tlsConfig));
+        return engine;
+    }
+
+    private static SSLParameters configure(SSLParameters parameters, TlsConfig tlsConfig) {
+        if (!tlsConfig.trustAll()) {
+            parameters.setEndpointIdentificationAlgorithm("HTTPS");
+        }
+        if (tlsConfig.protocols() != null) {
+            parameters.setProtocols(tlsConfig.protocols());
+        }
+        return parameters;
+    }
+
+    private static SSLContext getContext() throws IOException {
+        SSLContext context = sharedContext;
+        if (context != null) {
+            return context;
+        }
+
+        synchronized (SSLSocketFactory.class) {
+            if (sharedContext == null) {
+                sharedContext = buildContext(config);
+            }
+            return sharedContext;
+        }
+    }
+
+    private static SSLContext buildContext(TlsConfig tlsConfig) throws IOException {
         try {
             SSLContext sslContext = SSLContext.getInstance("TLS");
+            sslContext.init(null, trustManagers(tlsConfig), null);
 
-            TrustManager[] trustAllCerts = new TrustManager[] {
+            SSLSessionContext sessionContext = sslContext.getClientSessionContext();
+            sessionContext.setSessionCacheSize(tlsConfig.sessionCacheSize());
+            sessionContext.setSessionTimeout(tlsConfig.sessionTimeoutSeconds());
+
+            return sslContext;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("SSL error: " + e.getMessage(), e);
+        }
+    }
+
+    private static TrustManager[] trustManagers(TlsConfig tlsConfig) throws GeneralSecurityException, IOException {
+        if (tlsConfig.trustAll()) {
+            return new TrustManager[] {
                     new X509TrustManager() {
-                        public X509Certificate[] getAcceptedIssuers() { return null; }
+                        public X509Certificate[] getAcceptedIssuers() { return new X509Certificate[0]; }
                         public void checkClientTrusted(X509Certificate[] certs, String authType) { }
                         public void checkServerTrusted(X509Certificate[] certs, String authType) { }
                     }
             };
+        }
 
-            sslContext.init(null, trustAllCerts, new java.security.SecureRandom());
+        KeyStore trustStore = null;
+        if (tlsConfig.trustStorePath() != null) {
+            trustStore = KeyStore.getInstance(tlsConfig.trustStoreType());
+            char[] password = tlsConfig.trustStorePassword() != null ? tlsConfig.trustStorePassword().toCharArray() : null;
+            try (InputStream in = new FileInputStream(tlsConfig.trustStorePath())) {
+                trustStore.load(in, password);
+            }
+        }
 
-            javax.net.ssl.SSLSocketFactory factory = sslContext.getSocketFactory();
-            SSLSocket sslSocket = (SSLSocket) factory.createSocket();
+        // A null key store makes the factory fall back to the JDK's default cacerts
+        TrustManagerFactory factory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        factory.init(trustStore);
+        return factory.getTrustManagers();
+    }
 
-            sslSocket.setSoTimeout(timeout);
+    public record TlsConfig(boolean trustAll, String trustStorePath, String trustStorePassword, String trustStoreType,
+                            int sessionCacheSize, int sessionTimeoutSeconds, String[] protocols) {
 
-            sslSocket.connect(new InetSocketAddress(host, port), timeout);
+        private static final int DEFAULT_SESSION_CACHE_SIZE = 256;
+        private static final int DEFAULT_SESSION_TIMEOUT = 24 * 60 * 60; // 1 day
 
-            sslSocket.startHandshake();
+        public static TlsConfig defaults() {
+            return new TlsConfig(false, null, null, KeyStore.getDefaultType(),
+                    DEFAULT_SESSION_CACHE_SIZE, DEFAULT_SESSION_TIMEOUT, null);
+        }
 
-            return sslSocket;
-        } catch (NoSuchAlgorithmException | KeyManagementException e) {
-            throw new IOException("SSL error: " + e.getMessage(), e);
+        public static TlsConfig fromSystemProperties() {
+            String protocols = System.getProperty("go2web.tls.protocols");
+            return new TlsConfig(
+                    Boolean.getBoolean("go2web.tls.trustAll") || "true".equalsIgnoreCase(System.getenv("GO2WEB_TLS_TRUST_ALL")),
+                    System.getProperty("go2web.tls.trustStore"),
+                    System.getProperty("go2web.tls.trustStorePassword"),
+                    System.getProperty("go2web.tls.trustStoreType", KeyStore.getDefaultType()),
+                    Integer.getInteger("go2web.tls.sessionCacheSize", DEFAULT_SESSION_CACHE_SIZE),
+                    Integer.getInteger("go2web.tls.sessionTimeout", DEFAULT_SESSION_TIMEOUT),
+                    protocols != null ? protocols.split("\\s*,\\s*") : null);
+        }
+
+        public TlsConfig withTrustAll(boolean trustAll) {
+            return new TlsConfig(trustAll, trustStorePath, trustStorePassword, trustStoreType,
+                    sessionCacheSize, sessionTimeoutSeconds, protocols);
+        }
+
+        public TlsConfig withTrustStore(String path, String password, String type) {
+            return new TlsConfig(trustAll, path, password, type, sessionCacheSize, sessionTimeoutSeconds, protocols);
+        }
+    }
+
+    public static class TlsStats {
+        private final AtomicLong fullHandshakes = new AtomicLong();
+        private final AtomicLong resumedHandshakes = new AtomicLong();
+        private final AtomicLong fullHandshakeNanos = new AtomicLong();
+        private final AtomicLong resumedHandshakeNanos = new AtomicLong();
+
+        void record(long nanos, boolean resumed) {
+            Metrics.record(Metrics.Phase.TLS_HANDSHAKE, nanos);
+            Metrics.increment(resumed ? Metrics.Counter.TLS_RESUMED_HANDSHAKES : Metrics.Counter.TLS_FULL_HANDSHAKES);
+            if (resumed) {
+                resumedHandshakes.incrementAndGet();
+                resumedHandshakeNanos.addAndGet(nanos);
+            } else {
+                fullHandshakes.incrementAndGet();
+                fullHandshakeNanos.addAndGet(nanos);
+            }
+        }
+
+        public long getFullHandshakes() {
+            return fullHandshakes.get();
+        }
+
+        public long getResumedHandshakes() {
+            return resumedHandshakes.get();
+        }
+
+        public long getTotalHandshakes() {
+            return fullHandshakes.get() + resumedHandshakes.get();
+        }
+
+        public double getAverageFullHandshakeMillis() {
+            long count = fullHandshakes.get();
+            return count == 0 ? 0 : fullHandshakeNanos.get() / 1e6 / count;
+        }
+
+        public double getAverageResumedHandshakeMillis() {
+            long count = resumedHandshakes.get();
+            return count == 0 ? 0 : resumedHandshakeNanos.get() / 1e6 / count;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("TLS handshakes: %d full (avg %.1f ms), %d resumed (avg %.1f ms)",
+                    getFullHandshakes(), getAverageFullHandshakeMillis(),
+                    getResumedHandshakes(), getAverageResumedHandshakeMillis());
         }
     }
 }
@@ -0,0 +1,296 @@
+package org.c8a.client;
+
+import org.c8a.metrics.Metrics;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+
+public class StreamingResponse implements Closeable {
+
+    private static final int TRANSFER_BUFFER_SIZE = 16 * 1024;
+    private static final long DRAIN_ON_CLOSE_LIMIT = 64 * 1024;
+
+    @FunctionalInterface
+    public interface BodyConsumer {
+        /**
+         * Receives the next slice of the decoded body. Returning false aborts the transfer.
+         */
+        boolean accept(byte[] chunk, int offset, int length) throws IOException;
+    }
+
+    /**
+     * Where body bytes come from: the parser of an HTTP/1.1 connection or an HTTP/2 stream.
+     */
+    interface Source {
+        long getDeclaredLength();
+
+        long getBodyBytesRead();
+
+        InputStream bodyStream() throws IOException;
+
+        byte[] readFullBody(long maxBytes) throws IOException;
+
+        /**
+         * Called once the decoded body hit EOF, to consume anything the decoder left behind.
+         */
+        void finishBody() throws IOException;
+
+        void release();
+    }
+
+    private final Source source;
+    private final long maxBodySize;
+
+    private final int statusCode;
+    private final String statusMessage;
+    private final HttpHeaders headers;
+
+    private BodyStream body;
+    private long decodedLength;
+    private long transferNanos;
+    private long wireLength;
+    private boolean closed;
+
+    StreamingResponse(ConnectionPool pool, PooledConnection connection, HttpResponseParser parser,
+                      boolean keepAlive, long keepAliveTimeout, long maxBodySize) throws IOException {
+        this(parser.getStatusCode(), parser.getStatusMessage(), parser.getHeaders(),
+                new Http1Source(pool, connection, parser, keepAlive, keepAliveTimeout), maxBodySize);
+    }
+
+    StreamingResponse(int statusCode, String statusMessage, HttpHeaders headers, Source source, long maxBodySize)
+            throws IOException {
+        this.source = source;
+        this.maxBodySize = maxBodySize;
+        this.statusCode = statusCode;
+        this.statusMessage = statusMessage;
+        this.headers = headers;
+
+        long declared = source.getDeclaredLength();
+        if (declared > maxBodySize && !isEncoded()) {
+            throw new IOException("Response body of " + declared + " bytes exceeds limit of " + maxBodySize + " bytes");
+        }
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    public String getStatusMessage() {
+        return statusMessage;
+    }
+
+    public HttpHeaders getHeaders() {
+        return headers;
+    }
+
+    public String getHeader(String name) {
+        return headers.get(name);
+    }
+
+    public boolean isRedirect() {
+        return statusCode >= 300 && statusCode < 400;
+    }
+
+    /**
+     * Charset named in Content-Type, or null when the server did not declare one.
+     */
+    public String getDeclaredCharset() {
+        return CustomHttpClient.declaredCharset(headers);
+    }
+
+    public Charset getCharset() {
+        return CustomHttpClient.charsetOf(headers);
+    }
+
+    /**
+     * Counted by the connection's parser while the response is open, and fixed when it closes: after that the
+     * parser is back in the pool and may already be counting another request's body.
+     */
+    public long getWireLength() {
+        return closed ? wireLength : source.getBodyBytesRead();
+    }
+
+    public long getDecodedLength() {
+        return decodedLength;
+    }
+
+    /**
+     * The decoded body. Reads are bounded by the client's max body size and fail once it is exceeded.
+     */
+    public InputStream getBody() throws IOException {
+        if (closed) {
+            throw new IOException("Response already closed");
+        }
+        if (body == null) {
+            body = new BodyStream(ContentDecoder.wrap(source.bodyStream(), encoding()));
+        }
+        return body;
+    }
+
+    public ReadableByteChannel getChannel() throws IOException {
+        return Channels.newChannel(getBody());
+    }
+
+    /**
+     * Pushes the body to the consumer slice by slice. Returns false if the consumer aborted early,
+     * in which case the connection is discarded on close rather than drained.
+     */
+    public boolean transferTo(BodyConsumer consumer) throws IOException {
+        InputStream in = getBody();
+        byte[] buffer = new byte[TRANSFER_BUFFER_SIZE];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            if (!consumer.accept(buffer, 0, n)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public byte[] readAllBytes() throws IOException {
+        if (body == null && !isEncoded() && !closed) {
+            // Identity bodies go straight from the socket into an array presized from Content-Length
+            long start = System.nanoTime();
+            byte[] bytes = source.readFullBody(maxBodySize);
+            transferNanos += System.nanoTime() - start;
+            decodedLength = bytes.length;
+            return bytes;
+        }
+        return getBody().readAllBytes();
+    }
+
+    /**
+     * Time spent so far waiting for and decoding body bytes, leaving out whatever the reader did in between.
+     */
+    public long getTransferNanos() {
+        return transferNanos;
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        wireLength = source.getBodyBytesRead();
+        closed = true;
+        if (transferNanos > 0) {
+            Metrics.record(Metrics.Phase.BODY_TRANSFER, transferNanos);
+            Metrics.recordBytes(Metrics.Size.WIRE, wireLength);
+            Metrics.recordBytes(Metrics.Size.DECODED, decodedLength);
+        }
+        if (body != null) {
+            // Ends a gzip or deflate decoder's native zlib state now rather than when it is collected; closing
+            // it leaves the connection alone, since the source's body stream ignores close
+            try {
+                body.decoded.close();
+            } catch (IOException ignored) {
+            }
+        }
+        source.release();
+    }
+
+    private String encoding() {
+        String contentEncoding = headers.get("Content-Encoding");
+        return contentEncoding == null || "identity".equalsIgnoreCase(contentEncoding.trim()) ? null : contentEncoding;
+    }
+
+    private boolean isEncoded() {
+        return encoding() != null;
+    }
+
+    private class BodyStream extends InputStream {
+        private final InputStream decoded;
+
+        private BodyStream(InputStream decoded) {
+            this.decoded = decoded;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            int n = read(single, 0, 1);
+            return n < 0 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            long start = System.nanoTime();
+            int n = decoded.read(b, off, len);
+            transferNanos += System.nanoTime() - start;
+            if (n < 0) {
+                // Anything the decoder left unread (padding after a gzip trailer) still has to leave the connection
+                source.finishBody();
+                return -1;
+            }
+            decodedLength += n;
+            if (decodedLength > maxBodySize) {
+                throw new IOException("Response body exceeds limit of " + maxBodySize + " bytes");
+            }
+            return n;
+        }
+
+        @Override
+        public void close() {
+            StreamingResponse.this.close();
+        }
+    }
+
+    private static class Http1Source implements Source {
+        private final ConnectionPool pool;
+        private final PooledConnection connection;
+        private final HttpResponseParser parser;
+        private final boolean keepAlive;
+        private final long keepAliveTimeout;
+
+        private Http1Source(ConnectionPool pool, PooledConnection connection, HttpResponseParser parser,
+                            boolean keepAlive, long keepAliveTimeout) {
+            this.pool = pool;
+            this.connection = connection;
+            this.parser = parser;
+            this.keepAlive = keepAlive;
+            this.keepAliveTimeout = keepAliveTimeout;
+        }
+
+        @Override
+        public long getDeclaredLength() {
+            return parser.getDeclaredLength();
+        }
+
+        @Override
+        public long getBodyBytesRead() {
+            return parser.getBodyBytesRead();
+        }
+
+        @Override
+        public InputStream bodyStream() {
+            return parser.bodyStream();
+        }
+
+        @Override
+        public byte[] readFullBody(long maxBytes) throws IOException {
+            return parser.readFullBody(maxBytes);
+        }
+
+        @Override
+        public void finishBody() throws IOException {
+            parser.skipBody();
+        }
+
+        @Override
+        public void release() {
+            boolean reusable = false;
+            if (keepAlive) {
+                try {
+                    // A small unread remainder is cheaper to drain than a new connection is to open
+                    reusable = parser.skipBody(DRAIN_ON_CLOSE_LIMIT) && parser.isMessageComplete();
+                } catch (IOException ignored) {
+                }
+            }
+            pool.release(connection, reusable, keepAliveTimeout);
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package org.c8a.daemon;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Channels.newInputStream() holds the channel's blocking lock while it waits for data, which would stall
+ * the other side of the conversation; reading the channel directly lets one thread read while another writes.
+ */
+final class ChannelStreams {
+
+    private ChannelStreams() {
+    }
+
+    static InputStream input(SocketChannel channel) {
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                int n;
+                do {
+                    n = channel.read(ByteBuffer.wrap(b, off, len));
+                } while (n == 0);
+                return n;
+            }
+        };
+    }
+
+    static void write(SocketChannel channel, byte[] b, int off, int len) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
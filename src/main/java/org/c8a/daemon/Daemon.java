@@ -0,0 +1,244 @@
+package org.c8a.daemon;
+
+import org.c8a.batch.BatchFetcher;
+import org.c8a.cache.CacheManager;
+import org.c8a.client.SSLSocketFactory;
+import org.c8a.handler.HttpHandler;
+import org.c8a.metrics.Metrics;
+import org.c8a.search.SearchEngine;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps one warm JVM with its cache, connection pool, TLS sessions and DNS cache, and serves {@code -u},
+ * {@code -s} and {@code -b} requests forwarded by {@link DaemonClient} over a Unix domain socket next to the
+ * cache. The cache directory stays locked while it runs, so a go2web run outside it would go without the cache.
+ * <p>
+ * A request is the argument list; the reply is the output the command would have printed, framed as
+ * stdout or stderr chunks, and the connection closes when it is done. Anything the client writes after
+ * the arguments is the command's stdin, which is how a search reads the selected result.
+ */
+public class Daemon {
+
+    static final int STDOUT = 1;
+    static final int STDERR = 2;
+    static final int MAX_ARGS = 256;
+
+    private final Path socket;
+    private final CacheManager cacheManager = new CacheManager();
+    private final HttpHandler httpHandler = new HttpHandler(cacheManager);
+    private final SearchEngine searchEngine = new SearchEngine(httpHandler);
+    private final Set<Thread> workers = ConcurrentHashMap.newKeySet();
+    private final AtomicLong served = new AtomicLong();
+    private final long startedAt = System.currentTimeMillis();
+    private volatile ServerSocketChannel server;
+
+    public Daemon(Path socket) {
+        this.socket = socket;
+    }
+
+    /**
+     * Listens until a client sends {@code -d stop}, then waits for requests in progress and closes the cache.
+     */
+    public void run() throws IOException {
+        if (Files.exists(socket)) {
+            if (DaemonClient.isListening(socket)) {
+                throw new IOException("A go2web daemon is already listening on " + socket);
+            }
+            // Left behind by a daemon that did not shut down cleanly
+            Files.delete(socket);
+        }
+        Path parent = socket.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+
+        server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        server.bind(UnixDomainSocketAddress.of(socket));
+        try {
+            Files.setPosixFilePermissions(socket, PosixFilePermissions.fromString("rw-------"));
+        } catch (UnsupportedOperationException e) {
+            // Not a POSIX file system; the socket keeps the directory's permissions
+        }
+        Thread cleanup = new Thread(this::deleteSocket, "go2web-daemon-cleanup");
+        Runtime.getRuntime().addShutdownHook(cleanup);
+
+        RoutedStreams.install();
+        System.out.println("\ngo2web daemon listening on " + socket + " (pid " + ProcessHandle.current().pid() + ")");
+
+        try {
+            while (true) {
+                SocketChannel channel = server.accept();
+                Thread worker = Thread.ofVirtual().name("go2web-daemon-" + served.incrementAndGet()).unstarted(() -> {
+                    try {
+                        serve(channel);
+                    } finally {
+                        workers.remove(Thread.currentThread());
+                    }
+                });
+                workers.add(worker);
+                worker.start();
+            }
+        } catch (ClosedChannelException e) {
+            // Stopped
+        } finally {
+            for (Thread worker : workers) {
+                try {
+                    worker.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            httpHandler.awaitRevalidations();
+            cacheManager.close();
+            deleteSocket();
+            Runtime.getRuntime().removeShutdownHook(cleanup);
+            System.out.println("\ngo2web daemon stopped after " + served.get() + " requests");
+        }
+    }
+
+    private void serve(SocketChannel channel) {
+        try (channel) {
+            InputStream in = ChannelStreams.input(channel);
+            DataInputStream request = new DataInputStream(in);
+            int count = request.readInt();
+            if (count < 1 || count > MAX_ARGS) {
+                throw new IOException("Invalid request");
+            }
+            String[] args = new String[count];
+            for (int i = 0; i < count; i++) {
+                args[i] = request.readUTF();
+            }
+
+            Lock frames = new ReentrantLock();
+            RoutedStreams.route(in, new FrameOutput(channel, STDOUT, frames), new FrameOutput(channel, STDERR, frames));
+            try {
+                execute(args);
+            } finally {
+                RoutedStreams.clear();
+            }
+        } catch (EOFException e) {
+            // A client that only checked whether the daemon was up
+        } catch (IOException e) {
+            System.err.println("\nDaemon request failed: " + e.getMessage());
+        } catch (RuntimeException e) {
+            System.err.println("\nDaemon request failed: " + e);
+        }
+    }
+
+    private void execute(String[] args) throws IOException {
+        switch (args[0]) {
+            case "-u" -> {
+                if (args.length < 2) {
+                    System.out.println("URL required with -u");
+                    return;
+                }
+                httpHandler.fetchURL(args[1]);
+            }
+            case "-s" -> {
+                if (args.length < 2) {
+                    System.out.println("Search term required with -s");
+                    return;
+                }
+                searchEngine.search(args);
+            }
+            case "-b" -> {
+                // A handler of its own, so turning off progress lines for the batch does not affect other requests
+                HttpHandler batchHandler = new HttpHandler(cacheManager);
+                BatchFetcher.runCommand(batchHandler, args, System.out);
+            }
+            case "-d" -> {
+                String command = args.length > 1 ? args[1] : "status";
+                switch (command) {
+                    case "status" -> printStatus();
+                    case "metrics" -> System.out.print(args.length > 2 && args[2].startsWith("prom")
+                            ? Metrics.toPrometheus() : Metrics.toJson() + "\n");
+                    case "stop" -> {
+                        System.out.println("\nStopping go2web daemon");
+                        server.close();
+                    }
+                    default -> System.out.println("Unknown daemon command: " + command);
+                }
+            }
+            default -> System.out.println("The daemon only serves -u, -s, -b and -d requests, not " + args[0]);
+        }
+    }
+
+    private void printStatus() {
+        long uptime = (System.currentTimeMillis() - startedAt) / 1000;
+        System.out.println("\ngo2web daemon on " + socket + " (pid " + ProcessHandle.current().pid() + "), up "
+                + uptime + " s, " + served.get() + " requests served");
+        System.out.println("\n" + cacheManager.getStats());
+        SSLSocketFactory.TlsStats tlsStats = SSLSocketFactory.getStats();
+        if (tlsStats.getTotalHandshakes() > 0) {
+            System.out.println("\n" + tlsStats);
+        }
+    }
+
+    private void deleteSocket() {
+        try {
+            Files.deleteIfExists(socket);
+        } catch (IOException e) {
+            // Nothing left to do on the way out
+        }
+    }
+
+    /**
+     * Writes each chunk as a frame: the stream it belongs to, its length, then the bytes. Stdout and stderr
+     * share the channel, so a frame is written whole under a lock both hold.
+     */
+    private static final class FrameOutput extends OutputStream {
+        private final SocketChannel channel;
+        private final int stream;
+        private final Lock lock;
+
+        FrameOutput(SocketChannel channel, int stream, Lock lock) {
+            this.channel = channel;
+            this.stream = stream;
+            this.lock = lock;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return;
+            }
+            ByteBuffer[] frame = {
+                    ByteBuffer.allocate(5).put((byte) stream).putInt(len).flip(),
+                    ByteBuffer.wrap(b, off, len)
+            };
+            lock.lock();
+            try {
+                while (frame[1].hasRemaining()) {
+                    channel.write(frame);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package org.c8a.daemon;
+
+import org.c8a.cache.CacheManager;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * The thin side of daemon mode: sends the arguments to a running {@link Daemon} and copies its output to
+ * stdout and stderr as it arrives, so a forwarded call prints exactly what a local one would.
+ */
+public final class DaemonClient {
+
+    private DaemonClient() {
+    }
+
+    /**
+     * Runs the command in the daemon if one is listening; returns false, having done nothing, if not.
+     * {@code -Dgo2web.daemon=false} always runs locally.
+     */
+    public static boolean forward(String[] args) {
+        if ("false".equals(System.getProperty("go2web.daemon")) || args.length > Daemon.MAX_ARGS) {
+            return false;
+        }
+        Path socket = socketPath();
+        if (!Files.exists(socket)) {
+            return false;
+        }
+        SocketChannel channel;
+        try {
+            channel = SocketChannel.open(UnixDomainSocketAddress.of(socket));
+        } catch (IOException e) {
+            return false;
+        }
+
+        try (channel) {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            DataOutputStream request = new DataOutputStream(buffer);
+            request.writeInt(args.length);
+            for (int i = 0; i < args.length; i++) {
+                // The daemon has its own working directory, so a batch's URL file goes by its full path
+                boolean urlFile = args[0].equals("-b") && i > 1 && args[i - 1].equals("-f");
+                request.writeUTF(urlFile ? Path.of(args[i]).toAbsolutePath().toString() : args[i]);
+            }
+            ChannelStreams.write(channel, buffer.toByteArray(), 0, buffer.size());
+
+            // Only a search (the result to open) and a batch given - (its URLs) read stdin; other commands should
+            // not swallow a script's input
+            if (args[0].equals("-s") || args[0].equals("-b") && List.of(args).contains("-")) {
+                Thread.ofPlatform().daemon().name("go2web-stdin").start(() -> copyInput(channel));
+            } else {
+                channel.shutdownOutput();
+            }
+
+            DataInputStream frames = new DataInputStream(new BufferedInputStream(ChannelStreams.input(channel)));
+            int stream;
+            while ((stream = frames.read()) >= 0) {
+                byte[] chunk = new byte[frames.readInt()];
+                frames.readFully(chunk);
+                PrintStream out = stream == Daemon.STDERR ? System.err : System.out;
+                out.write(chunk, 0, chunk.length);
+                out.flush();
+            }
+        } catch (EOFException e) {
+            System.err.println("\nThe go2web daemon closed the connection mid-response");
+        } catch (IOException e) {
+            System.err.println("\nLost connection to the go2web daemon: " + e.getMessage());
+        }
+        return true;
+    }
+
+    /**
+     * The socket clients look for: {@code -Dgo2web.daemon.socket}, else {@code daemon.sock} in the cache
+     * directory, so a client finds the daemon that owns the cache it would otherwise open itself. Kept here
+     * rather than in Daemon so a forwarded call loads as few classes as possible.
+     */
+    public static Path socketPath() {
+        String configured = System.getProperty("go2web.daemon.socket");
+        return configured != null ? Path.of(configured) : CacheManager.defaultDirectory().resolve("daemon.sock");
+    }
+
+    /**
+     * Whether a daemon accepts connections on the socket, as opposed to a file left behind by one that died.
+     */
+    public static boolean isListening(Path socket) {
+        try {
+            closeQuietly(SocketChannel.open(UnixDomainSocketAddress.of(socket)));
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static void copyInput(SocketChannel channel) {
+        byte[] buffer = new byte[1024];
+        InputStream in = System.in;
+        try {
+            int n;
+            while ((n = in.read(buffer)) >= 0) {
+                ChannelStreams.write(channel, buffer, 0, n);
+            }
+            channel.shutdownOutput();
+        } catch (IOException e) {
+            // The daemon has finished and closed the connection
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package org.c8a.daemon;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/**
+ * Replaces System.in, System.out and System.err with streams that follow the calling thread, so the existing
+ * printing code talks to whichever client the thread is serving. Threads a request starts, such as background
+ * revalidations, inherit its route; threads with no route use the daemon's own console. Connection threads
+ * that outlive a request, such as HTTP/2 readers and NIO event loops, are started without inheriting one.
+ */
+final class RoutedStreams {
+
+    private static final InheritableThreadLocal<Route> ROUTE = new InheritableThreadLocal<>();
+
+    private RoutedStreams() {
+    }
+
+    static void install() {
+        InputStream in = System.in;
+        PrintStream out = System.out;
+        PrintStream err = System.err;
+        System.setIn(new RoutedInput(in));
+        System.setOut(new PrintStream(new RoutedOutput(out, false), true, out.charset()));
+        System.setErr(new PrintStream(new RoutedOutput(err, true), true, err.charset()));
+    }
+
+    static void route(InputStream in, OutputStream out, OutputStream err) {
+        ROUTE.set(new Route(in, out, err));
+    }
+
+    static void clear() {
+        System.out.flush();
+        System.err.flush();
+        ROUTE.remove();
+    }
+
+    private record Route(InputStream in, OutputStream out, OutputStream err) {
+    }
+
+    private static final class RoutedInput extends InputStream {
+        private final InputStream console;
+
+        RoutedInput(InputStream console) {
+            this.console = console;
+        }
+
+        private InputStream target() {
+            Route route = ROUTE.get();
+            return route == null ? console : route.in();
+        }
+
+        @Override
+        public int read() throws IOException {
+            return target().read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return target().read(b, off, len);
+        }
+
+        @Override
+        public int available() throws IOException {
+            return target().available();
+        }
+    }
+
+    private static final class RoutedOutput extends OutputStream {
+        private final OutputStream console;
+        private final boolean error;
+
+        RoutedOutput(OutputStream console, boolean error) {
+            this.console = console;
+            this.error = error;
+        }
+
+        private OutputStream target() {
+            Route route = ROUTE.get();
+            if (route == null) {
+                return console;
+            }
+            return error ? route.err() : route.out();
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            target().write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            target().write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            target().flush();
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package org.c8a.handler;
+
+import org.c8a.cache.CacheEntry;
+
+import java.util.List;
+
+public record FetchResult(String requestedUrl, String finalUrl, Status status, int statusCode, String content,
+                          List<String> redirects, CacheEntry cacheEntry, long wireBytes, long decodedBytes,
+                          long elapsedNanos, String error) {
+
+    /**
+     * STALE is an expired copy served within its stale-while-revalidate or stale-if-error window;
+     * {@code error} then says why.
+     */
+    public enum Status {
+        FETCHED, CACHED, NOT_MODIFIED, STALE, FAILED
+    }
+
+    static FetchResult failed(String requestedUrl, String finalUrl, List<String> redirects, String error,
+                              long startNanos) {
+        return new FetchResult(requestedUrl, finalUrl, Status.FAILED, -1, null, List.copyOf(redirects), null,
+                0, 0, System.nanoTime() - startNanos, error);
+    }
+
+    public boolean isSuccess() {
+        return status != Status.FAILED;
+    }
+
+    public boolean isFromCache() {
+        return status == Status.CACHED || status == Status.NOT_MODIFIED || status == Status.STALE;
+    }
+
+    public double elapsedMillis() {
+        return elapsedNanos / 1e6;
+    }
+}
@@ -3,16 +3,29 @@ package org.c8a.handler;
 import org.c8a.cache.CacheEntry;
 import org.c8a.cache.CacheManager;
 import org.c8a.client.CustomHttpClient;
+import org.c8a.client.StreamingResponse;
+import org.c8a.metrics.Metrics;
 import org.c8a.porcessor.ContentProcessor;
+import org.c8a.porcessor.StreamingTextExtractor;
 
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
 import java.net.URL;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.TimeZone;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -22,13 +35,119 @@ public class HttpHandler {
     private final CacheManager cacheManager;
     private static final int MAX_REDIRECTS = 5;
     private static final int TIMEOUT = 10000;
+    private static final long PERMANENT_REDIRECT_TTL = 24 * 60 * 60 * 1000;
+    private static final long MAX_BODY_SIZE = Long.getLong("go2web.maxBodySize", 100L * 1024 * 1024);
+
+    private final Map<String, CompletableFuture<Hop>> inFlight = new ConcurrentHashMap<>();
+    private final Set<CompletableFuture<Void>> revalidations = ConcurrentHashMap.newKeySet();
+    private volatile boolean verbose = true;
+    private volatile boolean streamingExtraction = Boolean.getBoolean("go2web.streamingExtraction");
+    private volatile long maxBodySize = MAX_BODY_SIZE;
+    private volatile boolean cancelled;
 
     public HttpHandler(CacheManager cacheManager) {
         this.cacheManager = cacheManager;
     }
 
+    public CacheManager getCacheManager() {
+        return cacheManager;
+    }
+
+    /**
+     * Controls the client's per-connection progress lines; batch runs turn them off to keep output readable.
+     */
+    public void setVerbose(boolean verbose) {
+        this.verbose = verbose;
+    }
+
+    /**
+     * Chooses the HTML extraction engine: the streaming tokenizer, which prints text as it arrives, or the
+     * default DOM-based one, which finds the main content block first.
+     */
+    public void setStreamingExtraction(boolean streamingExtraction) {
+        this.streamingExtraction = streamingExtraction;
+    }
+
+    /**
+     * Caps the bodies this handler downloads, below {@code go2web.maxBodySize} for speculative fetches.
+     */
+    public void setMaxBodySize(long maxBodySize) {
+        this.maxBodySize = maxBodySize;
+    }
+
+    /**
+     * Makes fetches in progress give up at their next body read, and later ones fail at once. Meant for a
+     * handler doing speculative work that is no longer wanted; nothing is interrupted, so cache writes
+     * already under way complete.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
     public void fetchURL(String urlString) {
+        boolean[] streamed = new boolean[1];
+        FetchResult result = fetch(urlString, !streamingExtraction ? null : line -> {
+            if (!streamed[0]) {
+                System.out.println();
+                streamed[0] = true;
+            }
+            System.out.print(line);
+        });
+        if (streamed[0]) {
+            System.out.println();
+        }
+        printResult(result, System.out, !streamed[0]);
+        finish(result);
+    }
+
+    /**
+     * Prints a result fetched earlier, such as a prefetched search result, as fetchURL would have.
+     */
+    public void show(FetchResult result) {
+        printResult(result, System.out);
+        finish(result);
+    }
+
+    private void finish(FetchResult result) {
+        awaitRevalidations();
+        if (result.status() != FetchResult.Status.CACHED && result.status() != FetchResult.Status.FAILED) {
+            cacheManager.saveCacheToFile();
+        }
+    }
+
+    /**
+     * Waits for stale entries being refreshed in the background, so a short run does not exit before caching them.
+     */
+    public void awaitRevalidations() {
+        for (CompletableFuture<Void> revalidation : revalidations) {
+            revalidation.exceptionally(e -> null).join();
+        }
+    }
+
+    public FetchResult fetch(String requestedUrl) {
+        return fetch(requestedUrl, null);
+    }
+
+    /**
+     * Fetches the URL; with streaming extraction on, lines of a page's text are also passed to {@code live}
+     * while it downloads.
+     */
+    public FetchResult fetch(String requestedUrl, Consumer<String> live) {
+        long start = System.nanoTime();
+        FetchResult result = fetch(requestedUrl, live, start);
+        Metrics.recordSince(Metrics.Phase.FETCH, start);
+        if (result.status() == FetchResult.Status.FAILED) {
+            Metrics.increment(Metrics.Counter.FETCHES_FAILED);
+        } else if (result.status() == FetchResult.Status.STALE) {
+            Metrics.increment(Metrics.Counter.CACHE_STALE);
+        }
+        return result;
+    }
+
+    private FetchResult fetch(String requestedUrl, Consumer<String> live, long start) {
         int redirectCount = 0;
+        String urlString = requestedUrl;
+        List<String> redirects = new ArrayList<>();
 
         try {
             if (!urlString.startsWith("http://") && !urlString.startsWith("https://")) {
@@ -37,91 +156,279 @@ public class HttpHandler {
 
             while (true) {
                 CacheEntry cached = cacheManager.getEntry(urlString);
-                if (cached != null && !cached.isExpired()) {
-                    System.out.println("\nServing from cache:");
-                    System.out.println(cached.content());
-                    return;
+                String location = null;
+                if (cached != null && cached.headers().get("Location") != null) {
+                    // A cached redirect is followed without a round trip while fresh, and asked again once expired
+                    location = cached.isExpired() ? null : cached.headers().get("Location");
+                    cached = null;
                 }
 
-                CustomHttpClient client = new CustomHttpClient(TIMEOUT, TIMEOUT);
+                if (location == null) {
+                    if (cached != null && !cached.isExpired()) {
+                        return new FetchResult(requestedUrl, urlString, FetchResult.Status.CACHED, 200, cached.content(),
+                                redirects, cached, 0, 0, System.nanoTime() - start, null);
+                    }
+
+                    if (cached != null && System.currentTimeMillis() <= cached.staleWhileRevalidateUntil()) {
+                        revalidateInBackground(urlString, cached);
+                        return stale(requestedUrl, urlString, redirects, cached, "revalidating in background", start);
+                    }
+
+                    Hop hop;
+                    try {
+                        hop = fetchShared(urlString, cached, live);
+                    } catch (IOException e) {
+                        if (cached != null && System.currentTimeMillis() <= cached.staleIfErrorUntil()) {
+                            return stale(requestedUrl, urlString, redirects, cached, "Error fetching URL: " + e.getMessage(), start);
+                        }
+                        throw e;
+                    }
+                    if (hop.isStale()) {
+                        return stale(requestedUrl, urlString, redirects, hop.entry(), hop.error(), start);
+                    }
+                    if (hop.error() != null) {
+                        return FetchResult.failed(requestedUrl, urlString, redirects, hop.error(), start);
+                    }
 
-                if (cached != null) {
-                    String etag = cached.headers().get("ETag");
-                    String lastModified = cached.headers().get("Last-Modified");
-                    if (etag != null) client.setRequestHeader("If-None-Match", etag);
-                    if (lastModified != null) client.setRequestHeader("If-Modified-Since", lastModified);
+                    if (hop.statusCode() == 304) {
+                        return new FetchResult(requestedUrl, urlString, FetchResult.Status.NOT_MODIFIED, 304,
+                                hop.entry().content(), redirects, hop.entry(), 0, 0, System.nanoTime() - start, null);
+                    }
+                    if (hop.location() == null) {
+                        return new FetchResult(requestedUrl, urlString, FetchResult.Status.FETCHED, hop.statusCode(),
+                                hop.content(), redirects, hop.entry(), hop.wireBytes(), hop.decodedBytes(),
+                                System.nanoTime() - start, null);
+                    }
+                    location = hop.location();
                 }
 
-                CustomHttpClient.HttpResponse response = client.get(urlString);
-                int responseCode = response.getStatusCode();
+                urlString = location;
 
-                if (responseCode == 304) {
-                    System.out.println("\nResource not modified. Serving from cache:");
-                    assert cached != null;
-                    System.out.println(cached.content());
-                    return;
+                if (redirectCount++ >= MAX_REDIRECTS) {
+                    return FetchResult.failed(requestedUrl, urlString, redirects,
+                            "Error: Too many redirects (" + MAX_REDIRECTS + " max)", start);
                 }
 
-                if (responseCode >= 300 && responseCode < 400) {
-                    String location = response.getHeader("Location");
-                    if (location == null || location.isEmpty()) {
-                        System.out.println("\nError: Redirect requested but no Location header found");
-                        return;
-                    }
+                redirects.add(urlString);
+            }
+        } catch (IOException e) {
+            return FetchResult.failed(requestedUrl, urlString, redirects, "Error fetching URL: " + e.getMessage(), start);
+        }
+    }
 
-                    URL base = new URL(urlString);
-                    URL resolvedUrl = new URL(base, location);
-                    urlString = resolvedUrl.toString();
+    private static FetchResult stale(String requestedUrl, String urlString, List<String> redirects, CacheEntry cached,
+                                     String reason, long start) {
+        return new FetchResult(requestedUrl, urlString, FetchResult.Status.STALE, 200, cached.content(), redirects,
+                cached, 0, 0, System.nanoTime() - start, reason);
+    }
 
-                    if (redirectCount++ >= MAX_REDIRECTS) {
-                        System.out.println("\nError: Too many redirects (" + MAX_REDIRECTS + " max)");
-                        return;
-                    }
+    private void revalidateInBackground(String urlString, CacheEntry cached) {
+        CompletableFuture<Void> revalidation = new CompletableFuture<>();
+        revalidations.add(revalidation);
+        Thread.ofVirtual().name("go2web-revalidate").start(() -> {
+            try {
+                fetchShared(urlString, cached, null);
+            } catch (IOException e) {
+                if (verbose) {
+                    System.err.println("\nBackground revalidation of " + urlString + " failed: " + e.getMessage());
+                }
+            } finally {
+                revalidations.remove(revalidation);
+                revalidation.complete(null);
+            }
+        });
+    }
 
-                    System.out.println("\nRedirecting to: " + urlString);
-                    continue;
+    /**
+     * Single-flight: while a request for this URL is on the wire, other callers wait for its outcome instead
+     * of sending their own. Only the caller that made the request reports its transferred bytes.
+     */
+    private Hop fetchShared(String urlString, CacheEntry cached, Consumer<String> live) throws IOException {
+        CompletableFuture<Hop> flight = new CompletableFuture<>();
+        CompletableFuture<Hop> leader = inFlight.putIfAbsent(urlString, flight);
+        if (leader != null) {
+            try {
+                return leader.join().shared();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof IOException cause) {
+                    throw new IOException(cause.getMessage(), cause);
                 }
+                throw e;
+            }
+        }
 
-                System.out.println("\nFinal URL: " + urlString);
-                System.out.println("Response Code: " + responseCode);
+        try {
+            Hop hop = fetchHop(urlString, cached, live);
+            flight.complete(hop);
+            return hop;
+        } catch (Throwable e) {
+            flight.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(urlString, flight);
+        }
+    }
+
+    private Hop fetchHop(String urlString, CacheEntry cached, Consumer<String> live) throws IOException {
+        if (cancelled) {
+            throw new IOException("Cancelled");
+        }
+        CustomHttpClient client = new CustomHttpClient(TIMEOUT, TIMEOUT);
+        client.setMaxBodySize(maxBodySize);
+        client.setVerbose(verbose);
+
+        if (cached != null) {
+            Metrics.increment(Metrics.Counter.CACHE_REVALIDATIONS);
+            String etag = cached.headers().get("ETag");
+            String lastModified = cached.headers().get("Last-Modified");
+            if (etag != null) client.setRequestHeader("If-None-Match", etag);
+            if (lastModified != null) client.setRequestHeader("If-Modified-Since", lastModified);
+        }
 
-                String responseBody = response.getBodyAsString();
-                String contentType = response.getHeader("Content-Type");
+        try (StreamingResponse response = client.stream(urlString)) {
+            int responseCode = response.getStatusCode();
 
-                if (contentType == null) {
-                    contentType = "text/html";
-                } else if (contentType.contains(";")) {
-                    contentType = contentType.split(";")[0].trim();
+            if (responseCode == 304) {
+                if (cached == null) {
+                    return Hop.failed("Error: Received 304 Not Modified without a cached copy");
                 }
+                Metrics.increment(Metrics.Counter.CACHE_NOT_MODIFIED);
+                // The 304 may carry new validators and freshness; the stored copy takes them on
+                Map<String, String> headers = new HashMap<>(cached.headers());
+                for (String name : List.of("ETag", "Last-Modified", "Cache-Control", "Expires")) {
+                    String value = response.getHeader(name);
+                    if (value != null) {
+                        headers.put(name, value);
+                    }
+                }
+                CacheEntry refreshed = new CacheEntry(cached.content(), headers, calculateExpirationTime(headers));
+                cacheManager.addEntry(urlString, refreshed);
+                return new Hop(304, null, cached.content(), refreshed, 0, 0, null);
+            }
+
+            if (responseCode >= 500 && cached != null && System.currentTimeMillis() <= cached.staleIfErrorUntil()) {
+                return Hop.stale(cached, "Error: Server responded with HTTP " + responseCode);
+            }
 
-                String readableContent;
-                if (contentType.equals("application/json")) {
-                    readableContent = ContentProcessor.formatJson(responseBody);
-                } else {
-                    readableContent = ContentProcessor.extractReadableContent(responseBody);
+            if (responseCode >= 300 && responseCode < 400) {
+                String location = response.getHeader("Location");
+                if (location == null || location.isEmpty()) {
+                    return Hop.failed("Error: Redirect requested but no Location header found");
                 }
 
-                Map<String, String> headers = new HashMap<>();
-                headers.put("Content-Type", contentType);
-                headers.put("ETag", response.getHeader("ETag"));
-                headers.put("Last-Modified", response.getHeader("Last-Modified"));
-                headers.put("Cache-Control", response.getHeader("Cache-Control"));
-                headers.put("Expires", response.getHeader("Expires"));
+                URL base = new URL(urlString);
+                URL resolvedUrl = new URL(base, location);
+                cacheRedirect(urlString, responseCode, resolvedUrl.toString(), response);
+                return new Hop(responseCode, resolvedUrl.toString(), null, null, 0, 0, null);
+            }
 
-                long expirationTime = calculateExpirationTime(headers);
-                cacheManager.addEntry(urlString, new CacheEntry(readableContent, headers, expirationTime));
+            String contentType = response.getHeader("Content-Type");
 
-                System.out.println("\n" + readableContent);
-                System.out.println("\nCaching URL: " + urlString);
-                System.out.println("Cache-Control: " + headers.get("Cache-Control"));
-                System.out.println("Expires: " + headers.get("Expires"));
-                System.out.println("Calculated Expiration: " + new Date(expirationTime));
-                cacheManager.saveCacheToFile();
+            if (contentType == null) {
+                contentType = "text/html";
+            } else if (contentType.contains(";")) {
+                contentType = contentType.split(";")[0].trim();
+            }
 
-                break;
+            // Extraction pulls the body as it goes; the time spent waiting on the network is body transfer
+            long extractStart = System.nanoTime();
+            long transferBefore = response.getTransferNanos();
+            GuardedBody body = new GuardedBody(response.getBody());
+            String readableContent;
+            if (ContentProcessor.isJson(contentType)) {
+                readableContent = ContentProcessor.formatJson(body);
+            } else if (streamingExtraction) {
+                readableContent = StreamingTextExtractor.extract(body, response.getDeclaredCharset(), live);
+            } else {
+                readableContent = ContentProcessor.extractReadableContent(
+                        body, response.getDeclaredCharset(), urlString);
+            }
+            // The extractors turn read errors into text; a cut-off or cancelled body must not be cached as the page
+            if (body.failure != null) {
+                throw body.failure;
+            }
+            Metrics.record(Metrics.Phase.EXTRACTION,
+                    System.nanoTime() - extractStart - (response.getTransferNanos() - transferBefore));
+
+            Map<String, String> headers = new HashMap<>();
+            headers.put("Content-Type", contentType);
+            headers.put("ETag", response.getHeader("ETag"));
+            headers.put("Last-Modified", response.getHeader("Last-Modified"));
+            headers.put("Cache-Control", response.getHeader("Cache-Control"));
+            headers.put("Expires", response.getHeader("Expires"));
+
+            long expirationTime = calculateExpirationTime(headers);
+            CacheEntry entry = new CacheEntry(readableContent, headers, expirationTime);
+            cacheManager.addEntry(urlString, entry);
+
+            return new Hop(responseCode, null, readableContent, entry, response.getWireLength(),
+                    response.getDecodedLength(), null);
+        }
+    }
+
+    /**
+     * Stores a redirect as an entry whose Location header points onward, so the hop is skipped next time.
+     * Permanent redirects (301, 308) are cacheable unless marked otherwise; temporary ones (302, 307) only
+     * with an explicit lifetime.
+     */
+    private void cacheRedirect(String urlString, int responseCode, String target, StreamingResponse response) {
+        String cacheControl = response.getHeader("Cache-Control");
+        String expires = response.getHeader("Expires");
+        boolean permanent = responseCode == 301 || responseCode == 308;
+        boolean explicit = expires != null || (cacheControl != null && cacheControl.contains("max-age"));
+        if (!(permanent || (responseCode == 302 || responseCode == 307) && explicit)) {
+            return;
+        }
+
+        Map<String, String> headers = new HashMap<>();
+        headers.put("Location", target);
+        headers.put("Cache-Control", cacheControl);
+        headers.put("Expires", expires);
+        long expirationTime = explicit || cacheControl != null
+                ? calculateExpirationTime(headers)
+                : System.currentTimeMillis() + PERMANENT_REDIRECT_TTL;
+        if (expirationTime > System.currentTimeMillis()) {
+            cacheManager.addEntry(urlString, new CacheEntry("", headers, expirationTime));
+        }
+    }
+
+    public static void printResult(FetchResult result, PrintStream out) {
+        printResult(result, out, true);
+    }
+
+    private static void printResult(FetchResult result, PrintStream out, boolean withContent) {
+        for (String redirect : result.redirects()) {
+            out.println("\nRedirecting to: " + redirect);
+        }
+
+        switch (result.status()) {
+            case CACHED -> {
+                out.println("\nServing from cache:");
+                out.println(result.content());
+            }
+            case NOT_MODIFIED -> {
+                out.println("\nResource not modified. Serving from cache:");
+                out.println(result.content());
+            }
+            case STALE -> {
+                out.println("\nServing stale copy from cache (" + result.error() + "):");
+                out.println(result.content());
+            }
+            case FAILED -> out.println("\n" + result.error());
+            case FETCHED -> {
+                CacheEntry entry = result.cacheEntry();
+                out.println("\nFinal URL: " + result.finalUrl());
+                out.println("Response Code: " + result.statusCode());
+                out.println("Body: " + result.wireBytes() + " bytes transferred, "
+                        + result.decodedBytes() + " bytes decoded");
+                if (withContent) {
+                    out.println("\n" + result.content());
+                }
+                out.println("\nCaching URL: " + result.finalUrl());
+                out.println("Cache-Control: " + entry.headers().get("Cache-Control"));
+                out.println("Expires: " + entry.headers().get("Expires"));
+                out.println("Calculated Expiration: " + new Date(entry.expirationTime()));
             }
-        } catch (IOException e) {
-            System.out.println("\nError fetching URL: " + e.getMessage());
         }
     }
 
@@ -140,7 +447,6 @@ public class HttpHandler {
                 try {
                     String maxAgeStr = matcher.group(1).trim();
                     long maxAge = Long.parseLong(maxAgeStr) * 1000;
-                    if (maxAge <= 0) return 0;
                     return System.currentTimeMillis() + maxAge;
                 } catch (NumberFormatException e) {
                     System.err.println("\nInvalid max-age: " + matcher.group(1));
@@ -161,5 +467,75 @@ public class HttpHandler {
 
         return System.currentTimeMillis() + defaultTTL;
     }
-}
 
+    /**
+     * The outcome of one request for one URL: a redirect target, a page, a 304, or an error message.
+     */
+    private record Hop(int statusCode, String location, String content, CacheEntry entry, long wireBytes,
+                       long decodedBytes, String error) {
+
+        static Hop failed(String error) {
+            return new Hop(-1, null, null, null, 0, 0, error);
+        }
+
+        /**
+         * The origin failed but the cached copy may stand in for it.
+         */
+        static Hop stale(CacheEntry cached, String error) {
+            return new Hop(-1, null, cached.content(), cached, 0, 0, error);
+        }
+
+        boolean isStale() {
+            return error != null && entry != null;
+        }
+
+        Hop shared() {
+            return new Hop(statusCode, location, content, entry, 0, decodedBytes, error);
+        }
+    }
+
+    /**
+     * The response body as the extractors read it: fails once the handler is cancelled, and remembers the
+     * first read error so the fetch can fail instead of caching whatever the extractor made of it.
+     */
+    private final class GuardedBody extends FilterInputStream {
+        private IOException failure;
+
+        GuardedBody(InputStream body) {
+            super(body);
+        }
+
+        @Override
+        public int read() throws IOException {
+            try {
+                checkCancelled();
+                return super.read();
+            } catch (IOException e) {
+                throw remember(e);
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            try {
+                checkCancelled();
+                return super.read(b, off, len);
+            } catch (IOException e) {
+                throw remember(e);
+            }
+        }
+
+        private void checkCancelled() throws IOException {
+            if (cancelled) {
+                throw new IOException("Cancelled");
+            }
+        }
+
+        private IOException remember(IOException e) {
+            if (failure == null) {
+                failure = e;
+            }
+            return e;
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package org.c8a.metrics;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide timings, sizes and counts for every phase of a fetch, so a slow one can be pinned on DNS,
+ * connecting, the TLS handshake, waiting for the server, the body transfer, extraction or the cache.
+ * <p>
+ * Everything is always recorded; {@code -Dgo2web.metrics=json} or {@code prometheus} prints it at the end
+ * of a run, to {@code -Dgo2web.metrics.file=<path>} if given, and {@link #toJson()} / {@link #toPrometheus()}
+ * give it on demand.
+ */
+public final class Metrics {
+
+    public enum Phase {
+        DNS("dns"),
+        CONNECT("connect"),
+        TLS_HANDSHAKE("tls_handshake"),
+        TIME_TO_FIRST_BYTE("time_to_first_byte"),
+        BODY_TRANSFER("body_transfer"),
+        EXTRACTION("extraction"),
+        CACHE_LOOKUP("cache_lookup"),
+        CACHE_SAVE("cache_save"),
+        FETCH("fetch");
+
+        private final String label;
+
+        Phase(String label) {
+            this.label = label;
+        }
+    }
+
+    public enum Size {
+        WIRE("wire"),
+        DECODED("decoded");
+
+        private final String label;
+
+        Size(String label) {
+            this.label = label;
+        }
+    }
+
+    public enum Counter {
+        CACHE_HITS("cache_hits", "Lookups that found a fresh entry"),
+        CACHE_MISSES("cache_misses", "Lookups that found nothing or only an expired entry"),
+        CACHE_STALE("cache_stale_served", "Expired entries served under stale-while-revalidate or stale-if-error"),
+        CACHE_REVALIDATIONS("cache_revalidations", "Conditional requests sent for a cached entry"),
+        CACHE_NOT_MODIFIED("cache_not_modified", "Revalidations answered with 304 Not Modified"),
+        CACHE_EVICTIONS("cache_evictions", "Entries evicted to make room"),
+        CONNECTIONS_OPENED("connections_opened", "Requests that needed a new connection"),
+        CONNECTIONS_REUSED("connections_reused", "Requests sent on a pooled connection or HTTP/2 session"),
+        TLS_FULL_HANDSHAKES("tls_full_handshakes", "TLS handshakes that negotiated a new session"),
+        TLS_RESUMED_HANDSHAKES("tls_resumed_handshakes", "TLS handshakes that resumed a cached session"),
+        FETCHES_FAILED("fetches_failed", "Fetches that ended in an error");
+
+        private final String label;
+        private final String help;
+
+        Counter(String label, String help) {
+            this.label = label;
+            this.help = help;
+        }
+    }
+
+    private static final Map<Phase, Histogram> PHASES = new EnumMap<>(Phase.class);
+    private static final Map<Size, Histogram> SIZES = new EnumMap<>(Size.class);
+    private static final Map<Counter, AtomicLong> COUNTERS = new EnumMap<>(Counter.class);
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    static {
+        for (Phase phase : Phase.values()) {
+            PHASES.put(phase, new Histogram());
+        }
+        for (Size size : Size.values()) {
+            SIZES.put(size, new Histogram());
+        }
+        for (Counter counter : Counter.values()) {
+            COUNTERS.put(counter, new AtomicLong());
+        }
+    }
+
+    private Metrics() {
+    }
+
+    public static void record(Phase phase, long nanos) {
+        PHASES.get(phase).record(nanos);
+    }
+
+    /**
+     * Records the time since {@code startNanos}, a {@link System#nanoTime()} reading.
+     */
+    public static void recordSince(Phase phase, long startNanos) {
+        PHASES.get(phase).record(System.nanoTime() - startNanos);
+    }
+
+    public static void recordBytes(Size size, long bytes) {
+        SIZES.get(size).record(bytes);
+    }
+
+    public static void increment(Counter counter) {
+        COUNTERS.get(counter).incrementAndGet();
+    }
+
+    public static Histogram get(Phase phase) {
+        return PHASES.get(phase);
+    }
+
+    public static Histogram get(Size size) {
+        return SIZES.get(size);
+    }
+
+    public static long get(Counter counter) {
+        return COUNTERS.get(counter).get();
+    }
+
+    public static void reset() {
+        PHASES.values().forEach(Histogram::reset);
+        SIZES.values().forEach(Histogram::reset);
+        COUNTERS.values().forEach(counter -> counter.set(0));
+    }
+
+    /**
+     * Phase timings in milliseconds and sizes in bytes, each with count, sum, mean, max and percentiles.
+     */
+    public static String toJson() {
+        StringBuilder json = new StringBuilder("{\n  \"phases_ms\": {");
+        String separator = "\n";
+        for (Phase phase : Phase.values()) {
+            json.append(separator).append("    \"").append(phase.label).append("\": ");
+            appendJson(json, PHASES.get(phase), 1e-6);
+            separator = ",\n";
+        }
+        json.append("\n  },\n  \"response_bytes\": {");
+        separator = "\n";
+        for (Size size : Size.values()) {
+            json.append(separator).append("    \"").append(size.label).append("\": ");
+            appendJson(json, SIZES.get(size), 1);
+            separator = ",\n";
+        }
+        json.append("\n  },\n  \"counters\": {");
+        separator = "\n";
+        for (Counter counter : Counter.values()) {
+            json.append(separator).append("    \"").append(counter.label).append("\": ").append(get(counter));
+            separator = ",\n";
+        }
+        return json.append("\n  }\n}").toString();
+    }
+
+    /**
+     * The Prometheus text exposition format: phases and sizes as summaries with quantiles, counts as counters.
+     */
+    public static String toPrometheus() {
+        StringBuilder text = new StringBuilder();
+        text.append("# HELP go2web_phase_seconds Time spent in each phase of a fetch\n");
+        text.append("# TYPE go2web_phase_seconds summary\n");
+        for (Phase phase : Phase.values()) {
+            appendSummary(text, "go2web_phase_seconds", "phase", phase.label, PHASES.get(phase), 1e-9);
+        }
+        text.append("# HELP go2web_response_bytes Size of response bodies as transferred and after decoding\n");
+        text.append("# TYPE go2web_response_bytes summary\n");
+        for (Size size : Size.values()) {
+            appendSummary(text, "go2web_response_bytes", "encoding", size.label, SIZES.get(size), 1);
+        }
+        for (Counter counter : Counter.values()) {
+            String name = "go2web_" + counter.label + "_total";
+            text.append("# HELP ").append(name).append(' ').append(counter.help).append('\n');
+            text.append("# TYPE ").append(name).append(" counter\n");
+            text.append(name).append(' ').append(get(counter)).append('\n');
+        }
+        return text.toString();
+    }
+
+    /**
+     * Prints the metrics if {@code go2web.metrics} asks for them; called once a run is over.
+     */
+    public static void exportIfRequested(PrintStream out) {
+        String format = System.getProperty("go2web.metrics");
+        if (format == null || format.isEmpty()) {
+            return;
+        }
+        String exported = switch (format.toLowerCase(Locale.ROOT)) {
+            case "json" -> toJson() + "\n";
+            case "prometheus", "prom" -> toPrometheus();
+            default -> null;
+        };
+        if (exported == null) {
+            System.err.println("\nUnknown metrics format '" + format + "'; use json or prometheus");
+            return;
+        }
+
+        String file = System.getProperty("go2web.metrics.file");
+        if (file == null) {
+            out.print("\n" + exported);
+            return;
+        }
+        try {
+            Files.writeString(Path.of(file), exported, StandardCharsets.UTF_8);
+            out.println("\nMetrics written to " + file);
+        } catch (IOException e) {
+            System.err.println("\nError writing metrics: " + e.getMessage());
+        }
+    }
+
+    private static void appendJson(StringBuilder json, Histogram histogram, double scale) {
+        json.append("{\"count\": ").append(histogram.getCount())
+                .append(", \"sum\": ").append(number(histogram.getSum() * scale))
+                .append(", \"mean\": ").append(number(histogram.getMean() * scale))
+                .append(", \"max\": ").append(number(histogram.getMax() * scale));
+        for (double quantile : QUANTILES) {
+            json.append(", \"p").append(percentLabel(quantile)).append("\": ")
+                    .append(number(histogram.getPercentile(quantile * 100) * scale));
+        }
+        json.append('}');
+    }
+
+    private static void appendSummary(StringBuilder text, String name, String label, String value,
+                                      Histogram histogram, double scale) {
+        String labels = label + "=\"" + value + "\"";
+        for (double quantile : QUANTILES) {
+            text.append(name).append('{').append(labels).append(",quantile=\"").append(quantile).append("\"} ")
+                    .append(number(histogram.getPercentile(quantile * 100) * scale)).append('\n');
+        }
+        text.append(name).append("_sum{").append(labels).append("} ").append(number(histogram.getSum() * scale)).append('\n');
+        text.append(name).append("_count{").append(labels).append("} ").append(histogram.getCount()).append('\n');
+    }
+
+    private static String percentLabel(double quantile) {
+        String percent = String.format(Locale.US, "%s", quantile * 100);
+        return percent.endsWith(".0") ? percent.substring(0, percent.length() - 2) : percent.replace(".", "");
+    }
+
+    private static String number(double value) {
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long) value);
+        }
+        return String.format(Locale.US, "%.6f", value);
+    }
+}
@@ -1,125 +1,131 @@
 package org.c8a.porcessor;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.util.DefaultPrettyPrinter;
 import org.jsoup.Jsoup;
 import org.jsoup.nodes.Document;
-import org.jsoup.nodes.Element;
-import org.jsoup.select.Elements;
-
+import org.jsoup.parser.Parser;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 public class ContentProcessor {
 
+    private static final int RAW_PREFIX = 64 * 1024;
+    private static final Set<String> JSON_LINES_TYPES = Set.of(
+            "application/x-ndjson", "application/ndjson", "application/jsonl", "application/x-jsonlines");
+
     public static String extractReadableContent(String html) {
         if (html == null || html.trim().isEmpty()) {
             return "No content found";
         }
 
-        StringBuilder result = new StringBuilder();
-
         try {
-            Document doc = Jsoup.parse(html);
-
-            doc.select("script, style, iframe, noscript, svg, [style*=display:none], [hidden]").remove();
-
-            String title = doc.title();
-            if (title != null && !title.trim().isEmpty()) {
-                result.append(title).append("\n");
-                result.append(String.valueOf('=').repeat(Math.min(title.length(), 40))).append("\n\n");
-            }
-
-            Element mainContent = findMainContent(doc);
-
-            if (mainContent != null) {
-                processContent(mainContent, result);
-            } else {
-                processContent(doc.body(), result);
-            }
-
-            String finalResult = result.toString().trim();
-            finalResult = finalResult.replaceAll("\n{3,}", "\n\n");
-
-            return finalResult.isEmpty() ? "Could not extract readable content" : finalResult;
+            return extractFromDocument(Jsoup.parse(html));
+        } catch (Exception e) {
+            return "Error processing HTML: " + e.getMessage();
+        }
+    }
 
+    /**
+     * Parses the page straight from the response stream, so the raw body never has to exist as a String.
+     * A null charset is taken from a byte order mark or a meta tag, else UTF-8.
+     */
+    public static String extractReadableContent(InputStream html, String charset, String baseUri) {
+        try {
+            return extractFromDocument(parse(html, charset, baseUri));
         } catch (Exception e) {
             return "Error processing HTML: " + e.getMessage();
         }
     }
 
-    private static Element findMainContent(Document doc) {
-        String[] contentSelectors = {
-                "main", "article", "div.content", "div.article", "div.post",
-                "div.main-content", "div#content", "div#main", "div#article",
-                "div.entry-content", ".post-content", ".entry", ".article-body"
-        };
+    /**
+     * Feeds jsoup a Reader rather than the stream: {@link Jsoup#parse(InputStream, String, String)} buffers
+     * through a stream that reads under a monitor, and a virtual thread waiting there for body bytes pins
+     * its carrier. With HTTP/2 the pinned readers then queue on the connection lock behind threads that
+     * have no carrier left to run on.
+     */
+    private static Document parse(InputStream html, String charset, String baseUri) throws IOException {
+        BufferedInputStream bytes = new BufferedInputStream(html);
+        Charset detected = charset != null
+                ? StreamingTextExtractor.charsetOr(charset, StandardCharsets.UTF_8)
+                : StreamingTextExtractor.sniffCharset(bytes);
+        BufferedReader reader = new BufferedReader(new InputStreamReader(bytes, detected));
+        reader.mark(1);
+        if (reader.read() != '\uFEFF') {
+            reader.reset();
+        }
+        return Parser.htmlParser().parseInput(reader, baseUri);
+    }
 
-        for (String selector : contentSelectors) {
-            Elements elements = doc.select(selector);
-            if (!elements.isEmpty()) {
-                Element bestElement = null;
-                int maxTextLength = 0;
+    /**
+     * Everything below works off one {@link PageScan} of the page, so the cost is linear in its size
+     * however deeply it nests.
+     */
+    private static String extractFromDocument(Document doc) {
+        StringBuilder result = new StringBuilder();
 
-                for (Element element : elements) {
-                    String text = element.text();
-                    if (text.length() > maxTextLength) {
-                        maxTextLength = text.length();
-                        bestElement = element;
-                    }
-                }
+        PageScan scan = PageScan.of(doc);
 
-                if (bestElement != null && maxTextLength > 100) {
-                    return bestElement;
-                }
-            }
+        String title = scan.title();
+        if (!title.isEmpty()) {
+            result.append(title).append("\n");
+            result.append(String.valueOf('=').repeat(Math.min(title.length(), 40))).append("\n\n");
         }
 
-        Elements divs = doc.select("div");
-        Element bestDiv = null;
-        int maxTextLength = 0;
+        int mainContent = scan.findMainContent();
 
-        for (Element div : divs) {
-            if (div.select("div").size() < 3) {
-                String text = div.text();
-                if (text.length() > maxTextLength) {
-                    maxTextLength = text.length();
-                    bestDiv = div;
-                }
-            }
+        if (mainContent >= 0) {
+            processContent(scan, mainContent, result);
+        } else if (scan.body() >= 0) {
+            processContent(scan, scan.body(), result);
         }
 
-        return (bestDiv != null && maxTextLength > 200) ? bestDiv : null;
-    }
+        String finalResult = result.toString().trim();
+        finalResult = finalResult.replaceAll("\n{3,}", "\n\n");
 
-    private static void processContent(Element element, StringBuilder result) {
-        if (element == null) return;
+        return finalResult.isEmpty() ? "Could not extract readable content" : finalResult;
+    }
 
-        processHeadings(element, result);
+    private static void processContent(PageScan scan, int element, StringBuilder result) {
+        processHeadings(scan, element, result);
 
-        boolean foundParagraphs = processParagraphs(element, result);
+        boolean foundParagraphs = processParagraphs(scan, element, result);
 
-        processLists(element, result);
+        processLists(scan, element, result);
 
-        processTables(element, result);
+        processTables(scan, element, result);
 
         if (!foundParagraphs && result.length() < 200) {
-            processTextDivs(element, result);
+            processTextDivs(scan, element, result);
         }
 
         if (result.length() < 100) {
-            String text = element.text();
+            String text = scan.text(element);
             if (!text.isEmpty()) {
                 result.append(text).append("\n");
             }
         }
     }
 
-    private static void processHeadings(Element element, StringBuilder result) {
+    private static void processHeadings(PageScan scan, int element, StringBuilder result) {
         for (int i = 1; i <= 6; i++) {
-            Elements headings = element.select("h" + i);
-            for (Element heading : headings) {
-                String headingText = heading.text().trim();
+            for (int heading : scan.within("h" + i, element)) {
+                String headingText = scan.text(heading);
                 if (!headingText.isEmpty()) {
                     result.append(headingText).append("\n");
                     if (i <= 2) {
@@ -131,12 +137,11 @@ public class ContentProcessor {
         }
     }
 
-    private static boolean processParagraphs(Element element, StringBuilder result) {
-        Elements paragraphs = element.select("p");
+    private static boolean processParagraphs(PageScan scan, int element, StringBuilder result) {
         boolean foundContent = false;
 
-        for (Element paragraph : paragraphs) {
-            String paragraphText = paragraph.text().trim();
+        for (int paragraph : scan.within("p", element)) {
+            String paragraphText = scan.text(paragraph);
             if (paragraphText.length() > 10) {
                 result.append(paragraphText).append("\n\n");
                 foundContent = true;
@@ -146,13 +151,11 @@ public class ContentProcessor {
         return foundContent;
     }
 
-    private static void processLists(Element element, StringBuilder result) {
-        Elements unorderedLists = element.select("ul");
-        for (Element ul : unorderedLists) {
+    private static void processLists(PageScan scan, int element, StringBuilder result) {
+        for (int ul : scan.within("ul", element)) {
             result.append("\n");
-            Elements items = ul.select("li");
-            for (Element item : items) {
-                String itemText = item.text().trim();
+            for (int item : scan.within("li", ul)) {
+                String itemText = scan.text(item);
                 if (!itemText.isEmpty()) {
                     result.append("• ").append(itemText).append("\n");
                 }
@@ -160,13 +163,11 @@ public class ContentProcessor {
             result.append("\n");
         }
 
-        Elements orderedLists = element.select("ol");
-        for (Element ol : orderedLists) {
+        for (int ol : scan.within("ol", element)) {
             result.append("\n");
-            Elements items = ol.select("li");
             int i = 1;
-            for (Element item : items) {
-                String itemText = item.text().trim();
+            for (int item : scan.within("li", ol)) {
+                String itemText = scan.text(item);
                 if (!itemText.isEmpty()) {
                     result.append(i++).append(". ").append(itemText).append("\n");
                 }
@@ -175,20 +176,18 @@ public class ContentProcessor {
         }
     }
 
-    private static void processTables(Element element, StringBuilder result) {
-        Elements tables = element.select("table");
-        for (Element table : tables) {
+    private static void processTables(PageScan scan, int element, StringBuilder result) {
+        for (int table : scan.within("table", element)) {
             result.append("\n");
-            Elements rows = table.select("tr");
 
-            for (Element row : rows) {
-                Elements headerCells = row.select("th");
-                Elements dataCells = row.select("td");
+            for (int row : scan.within("tr", table)) {
+                List<Integer> headerCells = scan.within("th", row);
+                List<Integer> dataCells = scan.within("td", row);
 
                 if (!headerCells.isEmpty()) {
                     StringBuilder headerText = new StringBuilder();
-                    for (Element cell : headerCells) {
-                        headerText.append(cell.text().trim()).append("\t");
+                    for (int cell : headerCells) {
+                        headerText.append(scan.text(cell)).append("\t");
                     }
                     String headerLine = headerText.toString().trim();
                     result.append(headerLine).append("\n");
@@ -196,8 +195,8 @@ public class ContentProcessor {
                 }
                 else if (!dataCells.isEmpty()) {
                     StringBuilder rowText = new StringBuilder();
-                    for (Element cell : dataCells) {
-                        rowText.append(cell.text().trim()).append("\t");
+                    for (int cell : dataCells) {
+                        rowText.append(scan.text(cell)).append("\t");
                     }
                     result.append(rowText.toString().trim()).append("\n");
                 }
@@ -206,13 +205,12 @@ public class ContentProcessor {
         }
     }
 
-    private static void processTextDivs(Element element, StringBuilder result) {
+    private static void processTextDivs(PageScan scan, int element, StringBuilder result) {
         Set<String> processedContents = new HashSet<>();
-        Elements divs = element.select("div");
 
-        for (Element div : divs) {
-            if (div.select("p, h1, h2, h3, h4, h5, h6, ul, ol, table").isEmpty()) {
-                String divText = div.text().trim();
+        for (int div : scan.within("div", element)) {
+            if (!scan.isStructured(div)) {
+                String divText = scan.text(div);
                 if (divText.length() > 40 && !processedContents.contains(divText)) {
                     processedContents.add(divText);
                     result.append(divText).append("\n\n");
@@ -223,12 +221,114 @@ public class ContentProcessor {
 
     public static String formatJson(String json) {
         try {
-            ObjectMapper mapper = new ObjectMapper();
-            mapper.enable(SerializationFeature.INDENT_OUTPUT);
-            Object jsonObject = mapper.readValue(json, Object.class);
-            return mapper.writeValueAsString(jsonObject);
+            StringWriter out = new StringWriter(json.length() + json.length() / 4);
+            copyJson(Json.FACTORY.createParser(json), out);
+            return out.toString();
         } catch (Exception e) {
             return json;
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Formats JSON as it streams in. A body that stops parsing within its first {@value #RAW_PREFIX} bytes, such
+     * as an HTML error page sent as JSON, is returned as it was sent, like {@link #formatJson(String)} does;
+     * only that much is kept aside for it, so memory does not grow with the body. One that breaks later keeps
+     * what was formatted and ends with the error.
+     */
+    public static String formatJson(InputStream json) {
+        Recording recording = new Recording(json, RAW_PREFIX);
+        StringWriter out = new StringWriter();
+        try (json) {
+            try {
+                formatJson(recording, out);
+                return out.toString();
+            } catch (Exception e) {
+                if (recording.prefix == null) {
+                    return out + "\n\nError processing JSON: " + e.getMessage();
+                }
+                json.transferTo(recording.prefix);
+                return recording.prefix.toString(StandardCharsets.UTF_8);
+            }
+        } catch (IOException e) {
+            // The body broke off while being read; the caller sees that on the stream itself
+            return recording.prefix != null ? recording.prefix.toString(StandardCharsets.UTF_8) : out.toString();
+        }
+    }
+
+    /**
+     * Re-indents JSON token by token, so no tree of the document is ever built. Several root values, as in
+     * JSON Lines / NDJSON, are written one after another on separate lines.
+     */
+    public static void formatJson(InputStream json, Writer out) throws IOException {
+        copyJson(Json.FACTORY.createParser(json), out);
+    }
+
+    /**
+     * Whether a response with this media type (parameters already stripped) is JSON or JSON Lines.
+     */
+    public static boolean isJson(String contentType) {
+        return contentType.equals("application/json") || contentType.endsWith("+json")
+                || JSON_LINES_TYPES.contains(contentType);
+    }
+
+    private static void copyJson(JsonParser parser, Writer out) throws IOException {
+        try (parser; JsonGenerator generator = Json.FACTORY.createGenerator(out)) {
+            generator.setPrettyPrinter(new DefaultPrettyPrinter().withRootSeparator("\n"));
+            while (parser.nextToken() != null) {
+                generator.copyCurrentEvent(parser);
+            }
+        }
+    }
+
+    /**
+     * Keeps a copy of what is read through it until that passes the limit, then drops it and keeps nothing.
+     * Closing it leaves the stream open: the parser closes its source when it stops, and after a parse error
+     * the rest of the body is still to be read.
+     */
+    private static final class Recording extends FilterInputStream {
+        private final int limit;
+        ByteArrayOutputStream prefix = new ByteArrayOutputStream(8192);
+
+        Recording(InputStream in, int limit) {
+            super(in);
+            this.limit = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0 && fits(1)) {
+                prefix.write(b);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0 && fits(n)) {
+                prefix.write(b, off, n);
+            }
+            return n;
+        }
+
+        private boolean fits(int length) {
+            if (prefix != null && prefix.size() + length > limit) {
+                prefix = null;
+            }
+            return prefix != null;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * Holds the factory so Jackson is loaded by the first JSON response, not by every HTML page. Streaming
+     * needs only jackson-core; databind's ObjectMapper would add a few hundred classes to each run.
+     */
+    private static final class Json {
+        static final JsonFactory FACTORY = new JsonFactory();
+    }
+}
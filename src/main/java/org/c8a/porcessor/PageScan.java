@@ -0,0 +1,281 @@
+package org.c8a.porcessor;
+
+import org.jsoup.internal.StringUtil;
+import org.jsoup.nodes.CDataNode;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.jsoup.nodes.Node;
+import org.jsoup.nodes.TextNode;
+import org.jsoup.select.Evaluator;
+import org.jsoup.select.NodeFilter;
+import org.jsoup.select.NodeTraversor;
+import org.jsoup.select.QueryParser;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Everything the extractor needs from a page, gathered in one traversal. Elements are numbered in document
+ * order, so an element's subtree is the range from its own number to {@link #last}, and "the p elements
+ * inside this one" is a range of the document-wide list of p elements.
+ * <p>
+ * The text of the whole page is accumulated once with the same rules as {@link Element#text()}, and each
+ * element remembers where its part starts and ends. Trimming that slice gives exactly what {@code text()}
+ * would, because the rules only look at whether the text so far is empty or ends in a space, and both
+ * only affect leading whitespace.
+ * <p>
+ * Scripts, styles and hidden elements are skipped with everything inside them, and looked past when a block
+ * checks what follows it, so the page reads as if they had been removed; the title is picked up from the
+ * head on the way.
+ */
+final class PageScan implements NodeFilter {
+
+    private static final Evaluator SKIPPED = QueryParser.parse(
+            "script, style, iframe, noscript, svg, [style*=display:none], [hidden]");
+
+    private static final Evaluator[] CONTENT_SELECTORS = Arrays.stream(new String[]{
+            "main", "article", "div.content", "div.article", "div.post",
+            "div.main-content", "div#content", "div#main", "div#article",
+            "div.entry-content", ".post-content", ".entry", ".article-body"
+    }).map(QueryParser::parse).toArray(Evaluator[]::new);
+
+    private static final Set<String> INDEXED_TAGS = Set.of(
+            "h1", "h2", "h3", "h4", "h5", "h6", "p", "ul", "ol", "li", "table", "tr", "th", "td", "div");
+    private static final Set<String> STRUCTURE_TAGS = Set.of(
+            "p", "h1", "h2", "h3", "h4", "h5", "h6", "ul", "ol", "table");
+
+    private final Document doc;
+    private final Element headElement;
+    private final Element bodyElement;
+    private final StringBuilder text = new StringBuilder();
+    private final Map<String, List<Integer>> byTag = new HashMap<>();
+    private int count;
+    private int[] textStart = new int[256];
+    private int[] textEnd = new int[256];
+    private int[] last = new int[256];
+    private int[] divs = new int[256];
+    private boolean[] structured = new boolean[256];
+    private int[] open = new int[64];
+    private int depth;
+    private int body = -1;
+    private boolean inHead;
+    private int title = -1;
+
+    private final int[] bestContent = new int[CONTENT_SELECTORS.length];
+    private final int[] bestContentLength = new int[CONTENT_SELECTORS.length];
+    private int bestDiv = -1;
+    private int bestDivLength;
+
+    private PageScan(Document doc) {
+        this.doc = doc;
+        this.headElement = doc.head();
+        this.bodyElement = doc.body();
+        Arrays.fill(bestContent, -1);
+    }
+
+    static PageScan of(Document doc) {
+        PageScan scan = new PageScan(doc);
+        NodeTraversor.filter(scan, doc);
+        return scan;
+    }
+
+    @Override
+    public FilterResult head(Node node, int nodeDepth) {
+        if (node instanceof Element element && SKIPPED.matches(doc, element)) {
+            return FilterResult.SKIP_ENTIRELY;
+        }
+        if (node instanceof TextNode textNode) {
+            if (textNode instanceof CDataNode || preserveWhitespace(textNode.parentNode())) {
+                text.append(textNode.getWholeText());
+            } else {
+                StringUtil.appendNormalisedWhitespace(text, textNode.getWholeText(), lastCharIsSpace());
+            }
+        } else if (node instanceof Element element) {
+            int index = count++;
+            grow();
+            if (element == bodyElement) {
+                body = index;
+            } else if (element == headElement) {
+                inHead = true;
+            } else if (inHead && title < 0 && element.normalName().equals("title")) {
+                // The first title inside the head, as Document.title() looks for it
+                title = index;
+            }
+            List<Integer> tagged = INDEXED_TAGS.contains(element.normalName()) ? byTag.computeIfAbsent(
+                    element.normalName(), tag -> new ArrayList<>()) : null;
+            if (tagged != null) {
+                tagged.add(index);
+            }
+            textStart[index] = text.length();
+            if (!text.isEmpty() && (element.isBlock() || element.normalName().equals("br")) && !lastCharIsSpace()) {
+                text.append(' ');
+            }
+            if (depth == open.length) {
+                open = Arrays.copyOf(open, depth * 2);
+            }
+            open[depth++] = index;
+        }
+        return FilterResult.CONTINUE;
+    }
+
+    @Override
+    public FilterResult tail(Node node, int nodeDepth) {
+        if (!(node instanceof Element element)) {
+            return FilterResult.CONTINUE;
+        }
+        Node next = node.nextSibling();
+        while (next instanceof Element nextElement && SKIPPED.matches(doc, nextElement)) {
+            next = next.nextSibling();
+        }
+        if (element.isBlock() && (next instanceof TextNode
+                || next instanceof Element nextElement && !nextElement.tag().formatAsBlock()) && !lastCharIsSpace()) {
+            text.append(' ');
+        }
+
+        if (element == headElement) {
+            inHead = false;
+        }
+        int index = open[--depth];
+        textEnd[index] = text.length();
+        last[index] = count - 1;
+        String name = element.normalName();
+        if (name.equals("div")) {
+            divs[index]++;
+        }
+        structured[index] |= STRUCTURE_TAGS.contains(name);
+        if (depth > 0) {
+            int parent = open[depth - 1];
+            divs[parent] += divs[index];
+            structured[parent] |= structured[index];
+        }
+
+        int length = -1;
+        for (int s = 0; s < CONTENT_SELECTORS.length; s++) {
+            if (CONTENT_SELECTORS[s].matches(doc, element)) {
+                length = length < 0 ? textLength(index) : length;
+                if (isBetter(index, length, bestContent[s], bestContentLength[s])) {
+                    bestContent[s] = index;
+                    bestContentLength[s] = length;
+                }
+            }
+        }
+        if (name.equals("div") && divs[index] < 3) {
+            length = length < 0 ? textLength(index) : length;
+            if (isBetter(index, length, bestDiv, bestDivLength)) {
+                bestDiv = index;
+                bestDivLength = length;
+            }
+        }
+        return FilterResult.CONTINUE;
+    }
+
+    /**
+     * Elements are offered after their children, so ties go to the one that comes first in the document,
+     * as they would scanning in document order.
+     */
+    private static boolean isBetter(int index, int length, int best, int bestLength) {
+        return length > bestLength || length == bestLength && length > 0 && index < best;
+    }
+
+    /**
+     * The element holding the page's main content, or -1 to fall back to the body: the longest match of
+     * the first content selector whose longest match has over 100 characters, else the longest div with
+     * at most one nested div if it has over 200.
+     */
+    int findMainContent() {
+        for (int s = 0; s < CONTENT_SELECTORS.length; s++) {
+            if (bestContent[s] >= 0 && bestContentLength[s] > 100) {
+                return bestContent[s];
+            }
+        }
+        return bestDiv >= 0 && bestDivLength > 200 ? bestDiv : -1;
+    }
+
+    int body() {
+        return body;
+    }
+
+    /**
+     * What {@link Document#title()} returns.
+     */
+    String title() {
+        return title < 0 ? "" : StringUtil.normaliseWhitespace(text(title)).trim();
+    }
+
+    /**
+     * What {@link Element#text()} returns for the element.
+     */
+    String text(int element) {
+        return text.substring(textStart[element], textEnd[element]).trim();
+    }
+
+    private int textLength(int element) {
+        int from = textStart[element];
+        int to = textEnd[element];
+        while (from < to && text.charAt(from) <= ' ') {
+            from++;
+        }
+        while (to > from && text.charAt(to - 1) <= ' ') {
+            to--;
+        }
+        return to - from;
+    }
+
+    /**
+     * Elements with the given tag inside the given one, itself included, in document order.
+     */
+    List<Integer> within(String tag, int element) {
+        List<Integer> tagged = byTag.get(tag);
+        if (tagged == null) {
+            return Collections.emptyList();
+        }
+        int from = Collections.binarySearch(tagged, element);
+        from = from < 0 ? -from - 1 : from;
+        int to = from;
+        while (to < tagged.size() && tagged.get(to) <= last[element]) {
+            to++;
+        }
+        return tagged.subList(from, to);
+    }
+
+    /**
+     * Whether the element contains a paragraph, heading, list or table.
+     */
+    boolean isStructured(int element) {
+        return structured[element];
+    }
+
+    private boolean lastCharIsSpace() {
+        return !text.isEmpty() && text.charAt(text.length() - 1) == ' ';
+    }
+
+    private static boolean preserveWhitespace(Node node) {
+        if (node instanceof Element element) {
+            int i = 0;
+            do {
+                if (element.tag().preserveWhitespace()) {
+                    return true;
+                }
+                element = element.parent();
+                i++;
+            } while (i < 6 && element != null);
+        }
+        return false;
+    }
+
+    private void grow() {
+        if (count > textStart.length) {
+            int capacity = textStart.length * 2;
+            textStart = Arrays.copyOf(textStart, capacity);
+            textEnd = Arrays.copyOf(textEnd, capacity);
+            last = Arrays.copyOf(last, capacity);
+            divs = Arrays.copyOf(divs, capacity);
+            structured = Arrays.copyOf(structured, capacity);
+        }
+    }
+}
@@ -0,0 +1,636 @@
+package org.c8a.porcessor;
+
+import org.jsoup.nodes.Entities;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A DOM-free alternative to {@link ContentProcessor}: a small HTML tokenizer that turns the page into text
+ * as its bytes arrive. Script, style, svg and hidden subtrees are dropped as they are met, and each finished
+ * line can be handed on before the rest of the page has been read. Memory is bounded by the open element
+ * stack and an 8 KB read buffer; only the extracted text itself grows with the page.
+ * <p>
+ * It does not pick out a main content block the way the DOM engine does, so navigation and footers come out
+ * too, in document order.
+ */
+public final class StreamingTextExtractor {
+
+    private static final int MAX_NAME_LENGTH = 32;
+    private static final int MAX_STYLE_LENGTH = 256;
+    private static final int MAX_TITLE_LENGTH = 1024;
+    private static final int MAX_DEPTH = 1024;
+    private static final int SNIFF_LENGTH = 1024;
+    private static final Pattern META_CHARSET = Pattern.compile("charset\\s*=\\s*[\"']?([A-Za-z0-9_.:-]+)",
+            Pattern.CASE_INSENSITIVE);
+
+    private static final Set<String> RAW_TEXT = Set.of("script", "style", "textarea", "xmp");
+    private static final Set<String> SKIPPED = Set.of("script", "style", "svg", "noscript", "iframe", "template");
+    private static final Set<String> VOID = Set.of("area", "base", "br", "col", "embed", "hr", "img", "input",
+            "link", "meta", "param", "source", "track", "wbr");
+    private static final Set<String> PARAGRAPH_BREAKS = Set.of("p", "table", "ul", "ol", "blockquote", "pre",
+            "h1", "h2", "h3", "h4", "h5", "h6");
+    private static final Set<String> LINE_BREAKS = Set.of("address", "article", "aside", "body", "dd", "details",
+            "dialog", "div", "dl", "dt", "fieldset", "figcaption", "figure", "footer", "form", "header", "hr",
+            "li", "main", "nav", "section", "summary", "tr", "caption", "br");
+
+    private final Reader in;
+    private final Consumer<String> lines;
+    private final StringBuilder result = new StringBuilder();
+    private final StringBuilder line = new StringBuilder();
+    private final List<String> open = new ArrayList<>();
+    private final List<int[]> listCounters = new ArrayList<>();
+    private final char[] buffer = new char[8192];
+    private int position;
+    private int limit;
+    private int pushedBack = -1;
+
+    private int skipFrom = -1;
+    private int preDepth;
+    private int pendingBreaks;
+    private boolean pendingSpace;
+    private boolean pendingCell;
+    private String pendingBullet;
+    private int headingLevel;
+    private int headingLength;
+    private StringBuilder title;
+    private String titleText;
+
+    private StreamingTextExtractor(Reader in, Consumer<String> lines) {
+        this.in = in;
+        this.lines = lines;
+    }
+
+    /**
+     * Extracts the page's text; each completed line is also passed to {@code lines} as soon as it is known,
+     * if that is not null. A null charset is taken from a byte order mark or a meta tag, else UTF-8.
+     */
+    public static String extract(InputStream html, String charset, Consumer<String> lines) {
+        try {
+            BufferedInputStream bytes = new BufferedInputStream(html, SNIFF_LENGTH * 8);
+            Charset detected = charset != null ? charsetOr(charset, StandardCharsets.UTF_8) : sniffCharset(bytes);
+            StreamingTextExtractor extractor = new StreamingTextExtractor(new InputStreamReader(bytes, detected), lines);
+            extractor.run();
+            String text = extractor.result.toString().trim();
+            return text.isEmpty() ? "Could not extract readable content" : text;
+        } catch (IOException e) {
+            return "Error processing HTML: " + e.getMessage();
+        }
+    }
+
+    private void run() throws IOException {
+        int c;
+        while ((c = read()) != -1) {
+            if (c == '<') {
+                markup();
+            } else if (c == '&') {
+                text(entity());
+            } else if (c != '\uFEFF') {
+                text((char) c);
+            }
+        }
+        if (title != null) {
+            endTitle();
+        }
+        flushLine();
+    }
+
+    // --- tokenizer
+
+    private int read() throws IOException {
+        if (pushedBack >= 0) {
+            int c = pushedBack;
+            pushedBack = -1;
+            return c;
+        }
+        if (position == limit) {
+            limit = in.read(buffer, 0, buffer.length);
+            position = 0;
+            if (limit <= 0) {
+                limit = 0;
+                return -1;
+            }
+        }
+        return buffer[position++];
+    }
+
+    private void unread(int c) {
+        pushedBack = c;
+    }
+
+    private void markup() throws IOException {
+        int c = read();
+        if (c == '!') {
+            int a = read();
+            int b = a == '-' ? read() : -1;
+            if (a == '-' && b == '-') {
+                skipPast("-->");
+            } else {
+                if (b >= 0) {
+                    unread(b);
+                } else if (a >= 0 && a != '>') {
+                    unread(a);
+                }
+                if (a != '>') {
+                    skipPast(">");
+                }
+            }
+        } else if (c == '?') {
+            skipPast(">");
+        } else if (c == '/') {
+            String name = readName(read());
+            skipPast(">");
+            if (!name.isEmpty()) {
+                endTag(name);
+            }
+        } else if (isLetter(c)) {
+            startTag(readName(c));
+        } else {
+            text('<');
+            if (c >= 0) {
+                unread(c);
+            }
+        }
+    }
+
+    private String readName(int c) throws IOException {
+        StringBuilder name = new StringBuilder();
+        while (c >= 0 && (isLetter(c) || c >= '0' && c <= '9' || c == '-' || c == ':')) {
+            if (name.length() < MAX_NAME_LENGTH) {
+                name.append(Character.toLowerCase((char) c));
+            }
+            c = read();
+        }
+        if (c >= 0) {
+            unread(c);
+        }
+        return name.toString();
+    }
+
+    private void startTag(String name) throws IOException {
+        boolean hidden = false;
+        boolean selfClosing = false;
+        int c;
+        while ((c = read()) >= 0 && c != '>') {
+            if (c == '/') {
+                selfClosing = true;
+                continue;
+            }
+            if (Character.isWhitespace(c)) {
+                continue;
+            }
+            selfClosing = false;
+            String attribute = readAttributeName(c);
+            String value = null;
+            c = read();
+            while (c >= 0 && Character.isWhitespace(c)) {
+                c = read();
+            }
+            if (c == '=') {
+                value = readAttributeValue(attribute.equals("style") ? MAX_STYLE_LENGTH : 0);
+            } else if (c >= 0) {
+                unread(c);
+            }
+            if (attribute.equals("hidden")
+                    || attribute.equals("style") && value != null && value.toLowerCase(Locale.ROOT).contains("display:none")) {
+                hidden = true;
+            }
+        }
+
+        if (RAW_TEXT.contains(name)) {
+            if (SKIPPED.contains(name) || skipFrom >= 0) {
+                skipRawText(name);
+                return;
+            }
+        }
+        if (name.equals("title") && title == null && titleText == null) {
+            title = new StringBuilder();
+            return;
+        }
+        if (VOID.contains(name) || selfClosing && !name.equals("p")) {
+            if (skipFrom < 0 && !hidden) {
+                voidElement(name);
+            }
+            return;
+        }
+
+        closeImplied(name);
+        if (open.size() >= MAX_DEPTH) {
+            return;
+        }
+        open.add(name);
+        if (skipFrom < 0 && (hidden || SKIPPED.contains(name))) {
+            skipFrom = open.size() - 1;
+            return;
+        }
+        if (skipFrom < 0) {
+            opened(name);
+        }
+    }
+
+    private String readAttributeName(int c) throws IOException {
+        StringBuilder name = new StringBuilder();
+        while (c >= 0 && c != '=' && c != '>' && c != '/' && !Character.isWhitespace(c)) {
+            if (name.length() < MAX_NAME_LENGTH) {
+                name.append(Character.toLowerCase((char) c));
+            }
+            c = read();
+        }
+        if (c >= 0) {
+            unread(c);
+        }
+        return name.toString();
+    }
+
+    /**
+     * Reads a quoted or bare attribute value, keeping at most {@code keep} characters of it.
+     */
+    private String readAttributeValue(int keep) throws IOException {
+        int c = read();
+        while (c >= 0 && Character.isWhitespace(c)) {
+            c = read();
+        }
+        StringBuilder value = new StringBuilder();
+        if (c == '"' || c == '\'') {
+            int quote = c;
+            while ((c = read()) >= 0 && c != quote) {
+                if (value.length() < keep && !Character.isWhitespace(c)) {
+                    value.append((char) c);
+                }
+            }
+        } else {
+            while (c >= 0 && c != '>' && !Character.isWhitespace(c)) {
+                if (value.length() < keep) {
+                    value.append((char) c);
+                }
+                c = read();
+            }
+            if (c >= 0) {
+                unread(c);
+            }
+        }
+        return value.toString();
+    }
+
+    private void endTag(String name) {
+        if (name.equals("title") && title != null) {
+            endTitle();
+            return;
+        }
+        int index = open.lastIndexOf(name);
+        if (index < 0) {
+            if (name.equals("p") || name.equals("br")) {
+                voidElement("br");
+            }
+            return;
+        }
+        while (open.size() > index) {
+            pop();
+        }
+    }
+
+    private void pop() {
+        int index = open.size() - 1;
+        String name = open.remove(index);
+        if (index == skipFrom) {
+            skipFrom = -1;
+        } else if (skipFrom < 0) {
+            closed(name);
+        }
+    }
+
+    /**
+     * The end tags HTML lets authors leave out: a block closes an open paragraph, and list items, rows
+     * and cells close their open siblings.
+     */
+    private void closeImplied(String name) {
+        if (PARAGRAPH_BREAKS.contains(name) || LINE_BREAKS.contains(name)) {
+            closeOpen("p", Set.of("div", "li", "td", "th", "blockquote", "section", "article", "main", "body"));
+        }
+        switch (name) {
+            case "li" -> closeOpen("li", Set.of("ul", "ol"));
+            case "dt", "dd" -> {
+                closeOpen("dt", Set.of("dl"));
+                closeOpen("dd", Set.of("dl"));
+            }
+            case "tr" -> closeOpen("tr", Set.of("table", "tbody", "thead", "tfoot"));
+            case "td", "th" -> {
+                closeOpen("td", Set.of("tr", "table"));
+                closeOpen("th", Set.of("tr", "table"));
+            }
+            default -> {
+            }
+        }
+    }
+
+    private void closeOpen(String name, Set<String> scope) {
+        for (int i = open.size() - 1; i >= 0; i--) {
+            String current = open.get(i);
+            if (current.equals(name)) {
+                while (open.size() > i) {
+                    pop();
+                }
+                return;
+            }
+            if (scope.contains(current)) {
+                return;
+            }
+        }
+    }
+
+    private void skipRawText(String name) throws IOException {
+        String end = "</" + name;
+        int matched = 0;
+        int c;
+        while ((c = read()) >= 0) {
+            if (Character.toLowerCase(c) == end.charAt(matched)) {
+                if (++matched == end.length()) {
+                    skipPast(">");
+                    return;
+                }
+            } else {
+                matched = Character.toLowerCase(c) == '<' ? 1 : 0;
+            }
+        }
+    }
+
+    private void skipPast(String end) throws IOException {
+        int matched = 0;
+        int c;
+        while ((c = read()) >= 0) {
+            if (c == end.charAt(matched)) {
+                if (++matched == end.length()) {
+                    return;
+                }
+            } else {
+                matched = c == end.charAt(0) ? 1 : 0;
+            }
+        }
+    }
+
+    private String entity() throws IOException {
+        StringBuilder name = new StringBuilder("&");
+        int c = read();
+        if (c == '#') {
+            name.append('#');
+            boolean hex = false;
+            c = read();
+            if (c == 'x' || c == 'X') {
+                hex = true;
+                name.append((char) c);
+                c = read();
+            }
+            int codePoint = 0;
+            int digits = 0;
+            while (c >= 0 && digits < 8 && Character.digit(c, hex ? 16 : 10) >= 0) {
+                codePoint = codePoint * (hex ? 16 : 10) + Character.digit(c, hex ? 16 : 10);
+                name.append((char) c);
+                digits++;
+                c = read();
+            }
+            if (c != ';' && c >= 0) {
+                unread(c);
+            }
+            return digits > 0 && Character.isValidCodePoint(codePoint) && codePoint != 0
+                    ? new String(Character.toChars(codePoint)) : name.toString();
+        }
+        while (c >= 0 && name.length() <= MAX_NAME_LENGTH && (isLetter(c) || c >= '0' && c <= '9')) {
+            name.append((char) c);
+            c = read();
+        }
+        String decoded = Entities.getByName(name.substring(1));
+        if (c == ';' && !decoded.isEmpty()) {
+            return decoded;
+        }
+        if (c >= 0) {
+            unread(c);
+        }
+        return decoded.isEmpty() ? name.toString() : decoded;
+    }
+
+    private static boolean isLetter(int c) {
+        return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z';
+    }
+
+    // --- formatting
+
+    private void opened(String name) {
+        switch (name) {
+            case "h1", "h2", "h3", "h4", "h5", "h6" -> {
+                paragraphBreak();
+                headingLevel = name.charAt(1) - '0';
+                headingLength = 0;
+            }
+            case "ul" -> {
+                paragraphBreak();
+                listCounters.add(null);
+            }
+            case "ol" -> {
+                paragraphBreak();
+                listCounters.add(new int[1]);
+            }
+            case "li" -> {
+                lineBreak();
+                int[] counter = listCounters.isEmpty() ? null : listCounters.getLast();
+                pendingBullet = counter == null ? "• " : "#";
+            }
+            case "td", "th" -> pendingCell = true;
+            case "pre" -> {
+                paragraphBreak();
+                preDepth++;
+            }
+            default -> {
+                if (PARAGRAPH_BREAKS.contains(name)) {
+                    paragraphBreak();
+                } else if (LINE_BREAKS.contains(name)) {
+                    lineBreak();
+                }
+            }
+        }
+    }
+
+    private void closed(String name) {
+        switch (name) {
+            case "h1", "h2", "h3", "h4", "h5", "h6" -> {
+                if (headingLevel <= 2 && headingLength > 0) {
+                    emit("\n" + String.valueOf(headingLevel == 1 ? '=' : '-').repeat(Math.min(headingLength, 40)));
+                }
+                headingLevel = 0;
+                paragraphBreak();
+            }
+            case "ul", "ol" -> {
+                if (!listCounters.isEmpty()) {
+                    listCounters.removeLast();
+                }
+                paragraphBreak();
+            }
+            case "li" -> pendingBullet = null;
+            case "pre" -> {
+                preDepth = Math.max(0, preDepth - 1);
+                paragraphBreak();
+            }
+            case "td", "th" -> pendingCell = false;
+            default -> {
+                if (PARAGRAPH_BREAKS.contains(name)) {
+                    paragraphBreak();
+                } else if (LINE_BREAKS.contains(name)) {
+                    lineBreak();
+                }
+            }
+        }
+    }
+
+    private void voidElement(String name) {
+        if (name.equals("br")) {
+            if (preDepth > 0) {
+                emit("\n");
+            } else {
+                lineBreak();
+            }
+        } else if (name.equals("hr")) {
+            paragraphBreak();
+        }
+    }
+
+    private void text(char c) {
+        if (title != null) {
+            if (title.length() < MAX_TITLE_LENGTH) {
+                title.append(c);
+            }
+            return;
+        }
+        if (skipFrom >= 0) {
+            return;
+        }
+        if (preDepth == 0 && Character.isWhitespace(c)) {
+            pendingSpace = true;
+            return;
+        }
+        if (c == '\u00A0' && preDepth == 0) {
+            c = ' ';
+        }
+        emitContent(c);
+    }
+
+    private void text(String decoded) {
+        for (int i = 0; i < decoded.length(); i++) {
+            text(decoded.charAt(i));
+        }
+    }
+
+    private void endTitle() {
+        titleText = title.toString().trim().replaceAll("\\s+", " ");
+        title = null;
+        if (!titleText.isEmpty() && result.isEmpty() && line.isEmpty()) {
+            emit(titleText + "\n" + "=".repeat(Math.min(titleText.length(), 40)));
+            paragraphBreak();
+        }
+    }
+
+    private void emitContent(char c) {
+        if (pendingBreaks > 0 && (!result.isEmpty() || !line.isEmpty())) {
+            emit("\n".repeat(pendingBreaks));
+            pendingSpace = false;
+        }
+        pendingBreaks = 0;
+        if (pendingCell) {
+            if (!line.isEmpty()) {
+                emit("\t");
+                pendingSpace = false;
+            }
+            pendingCell = false;
+        }
+        if (pendingBullet != null) {
+            if (pendingBullet.equals("#")) {
+                int[] counter = listCounters.isEmpty() ? new int[1] : listCounters.getLast();
+                pendingBullet = ++counter[0] + ". ";
+            }
+            emit(pendingBullet);
+            pendingBullet = null;
+            pendingSpace = false;
+        }
+        if (pendingSpace && !line.isEmpty() && !Character.isWhitespace(line.charAt(line.length() - 1))) {
+            emit(" ");
+        }
+        pendingSpace = false;
+        if (headingLevel > 0) {
+            headingLength++;
+        }
+        line.append(c);
+        if (c == '\n') {
+            flushLine();
+        }
+    }
+
+    /**
+     * Breaks are written lazily, before the next content, so runs of empty elements do not pile up blank
+     * lines; the line they end is handed on straight away.
+     */
+    private void lineBreak() {
+        flushLine();
+        pendingBreaks = Math.max(pendingBreaks, 1);
+        pendingSpace = false;
+    }
+
+    private void paragraphBreak() {
+        flushLine();
+        pendingBreaks = 2;
+        pendingSpace = false;
+    }
+
+    private void emit(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            line.append(c);
+            if (c == '\n') {
+                flushLine();
+            }
+        }
+    }
+
+    private void flushLine() {
+        if (line.isEmpty()) {
+            return;
+        }
+        String completed = line.toString();
+        line.setLength(0);
+        result.append(completed);
+        if (lines != null) {
+            lines.accept(completed);
+        }
+    }
+
+    static Charset sniffCharset(BufferedInputStream bytes) throws IOException {
+        bytes.mark(SNIFF_LENGTH);
+        byte[] head = bytes.readNBytes(SNIFF_LENGTH);
+        bytes.reset();
+        if (head.length >= 2 && (head[0] & 0xFF) == 0xFE && (head[1] & 0xFF) == 0xFF) {
+            return StandardCharsets.UTF_16BE;
+        }
+        if (head.length >= 2 && (head[0] & 0xFF) == 0xFF && (head[1] & 0xFF) == 0xFE) {
+            return StandardCharsets.UTF_16LE;
+        }
+        Matcher matcher = META_CHARSET.matcher(new String(head, StandardCharsets.ISO_8859_1));
+        return matcher.find() ? charsetOr(matcher.group(1), StandardCharsets.UTF_8) : StandardCharsets.UTF_8;
+    }
+
+    static Charset charsetOr(String name, Charset fallback) {
+        try {
+            return Charset.forName(name);
+        } catch (IllegalArgumentException e) {
+            return fallback;
+        }
+    }
+}
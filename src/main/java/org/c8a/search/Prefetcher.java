@@ -0,0 +1,88 @@
+package org.c8a.search;
+
+import org.c8a.cache.CacheManager;
+import org.c8a.handler.FetchResult;
+import org.c8a.handler.HttpHandler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Fetches and extracts the top search results in the background while the user reads the list, so the one
+ * they pick is usually ready. Each result gets its own quiet handler over the shared cache, capped at an even
+ * share of the byte budget, so the results not picked can be cancelled without touching the chosen one.
+ */
+final class Prefetcher implements AutoCloseable {
+
+    // Virtual threads, as for batch fetches; they never keep the JVM alive for a fetch no one will read
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final List<HttpHandler> handlers = new ArrayList<>();
+    private final List<Future<FetchResult>> futures = new ArrayList<>();
+
+    Prefetcher(CacheManager cacheManager, List<String> urls, int concurrency, long byteBudget) {
+        Semaphore permits = new Semaphore(concurrency);
+        long share = Math.max(1, byteBudget / Math.max(1, urls.size()));
+        for (String url : urls) {
+            HttpHandler handler = new HttpHandler(cacheManager);
+            handler.setVerbose(false);
+            handler.setMaxBodySize(share);
+            handlers.add(handler);
+            futures.add(executor.submit(() -> {
+                permits.acquire();
+                try {
+                    return handler.fetch(url);
+                } finally {
+                    permits.release();
+                }
+            }));
+        }
+    }
+
+    /**
+     * Cancels every other prefetch and returns this one's result, waiting if it is still in flight; null if
+     * it was not prefetched or failed (over its share of the budget, say), in which case fetch it normally.
+     */
+    FetchResult take(int index) {
+        for (int i = 0; i < futures.size(); i++) {
+            if (i != index) {
+                cancel(i);
+            }
+        }
+        if (index < 0 || index >= futures.size()) {
+            return null;
+        }
+        try {
+            FetchResult result = futures.get(index).get();
+            handlers.get(index).awaitRevalidations();
+            return result.status() == FetchResult.Status.FAILED ? null : result;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException | CancellationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Cancels whatever is still running. Threads are not interrupted, since one may be writing to the cache;
+     * queued fetches never start and running ones stop at their next body read.
+     */
+    @Override
+    public void close() {
+        for (int i = 0; i < futures.size(); i++) {
+            cancel(i);
+        }
+        executor.shutdown();
+    }
+
+    private void cancel(int index) {
+        handlers.get(index).cancel();
+        futures.get(index).cancel(false);
+    }
+}
@@ -1,6 +1,7 @@
 package org.c8a.search;
 
 import org.c8a.client.CustomHttpClient;
+import org.c8a.handler.FetchResult;
 import org.c8a.handler.HttpHandler;
 
 import java.io.BufferedReader;
@@ -16,29 +17,39 @@ import java.util.regex.Pattern;
 
 public class SearchEngine {
 
+    private static final String SEARCH_URL = System.getProperty("go2web.search.url", "https://html.duckduckgo.com/html/?q=");
+
     private final HttpHandler handler;
+    private volatile boolean verbose = true;
+    private volatile int prefetchCount = Integer.getInteger("go2web.search.prefetch", 0);
+    private volatile int prefetchConcurrency = Integer.getInteger("go2web.search.prefetch.concurrency", 3);
+    private volatile long prefetchBytes = Long.getLong("go2web.search.prefetch.bytes", 8L * 1024 * 1024);
 
     public SearchEngine(HttpHandler handler) {
         this.handler = handler;
     }
 
+    public void setVerbose(boolean verbose) {
+        this.verbose = verbose;
+    }
+
+    /**
+     * Fetches the top {@code count} results in the background while the prompt waits, at most
+     * {@code concurrency} at a time and {@code byteBudget} bytes in all; 0 turns prefetching off.
+     */
+    public void setPrefetch(int count, int concurrency, long byteBudget) {
+        if (count < 0 || concurrency < 1 || byteBudget < 1) {
+            throw new IllegalArgumentException("Prefetch count must not be negative, concurrency and budget must be positive");
+        }
+        this.prefetchCount = count;
+        this.prefetchConcurrency = concurrency;
+        this.prefetchBytes = byteBudget;
+    }
+
     public void search(String[] args) {
         try {
             String searchTerm = String.join(" ", Arrays.copyOfRange(args, 1, args.length));
-            String encodedSearchTerm = URLEncoder.encode(searchTerm, StandardCharsets.UTF_8);
-
-            CustomHttpClient client = new CustomHttpClient();
-            CustomHttpClient.HttpResponse response = client.get("https://html.duckduckgo.com/html/?q=" + encodedSearchTerm);
-            int responseCode = response.getStatusCode();
-
-            if (responseCode != 200) {
-                System.out.println("\nError: Could not complete search. Response code: " + responseCode);
-                return;
-            }
-
-            String responseBody = response.getBodyAsString();
-
-            List<String> searchResults = extractResults(responseBody);
+            List<String> searchResults = results(searchTerm);
             System.out.println("\nTop " + Math.min(10, searchResults.size()) + " search results for: " + searchTerm);
 
             for (int i = 0; i < Math.min(10, searchResults.size()); i++) {
@@ -50,21 +61,28 @@ public class SearchEngine {
                 return;
             }
 
-            System.out.println("\nEnter a number (1-" + Math.min(10, searchResults.size()) + ") to fetch that URL, or 0 to go exit: ");
-            BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
-            String input = reader.readLine();
-
-            try {
-                int selection = Integer.parseInt(input.trim());
-                if (selection > 0 && selection <= searchResults.size()) {
-                    String selectedUrl = searchResults.get(selection - 1);
-                    System.out.println("\nFetching URL: " + selectedUrl);
-                    handler.fetchURL(selectedUrl);
-                } else if (selection != 0) {
-                    System.out.println("\nInvalid selection: " + selection);
+            try (Prefetcher prefetcher = startPrefetch(searchResults)) {
+                System.out.println("\nEnter a number (1-" + Math.min(10, searchResults.size()) + ") to fetch that URL, or 0 to go exit: ");
+                BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
+                String input = reader.readLine();
+
+                try {
+                    int selection = Integer.parseInt(input.trim());
+                    if (selection > 0 && selection <= searchResults.size()) {
+                        String selectedUrl = searchResults.get(selection - 1);
+                        System.out.println("\nFetching URL: " + selectedUrl);
+                        FetchResult prefetched = prefetcher != null ? prefetcher.take(selection - 1) : null;
+                        if (prefetched != null) {
+                            handler.show(prefetched);
+                        } else {
+                            handler.fetchURL(selectedUrl);
+                        }
+                    } else if (selection != 0) {
+                        System.out.println("\nInvalid selection: " + selection);
+                    }
+                } catch (NumberFormatException e) {
+                    System.out.println("\nInvalid input. Please enter a number.");
                 }
-            } catch (NumberFormatException e) {
-                System.out.println("\nInvalid input. Please enter a number.");
             }
 
         } catch (IOException e) {
@@ -72,6 +90,32 @@ public class SearchEngine {
         }
     }
 
+    private Prefetcher startPrefetch(List<String> searchResults) {
+        int count = Math.min(prefetchCount, searchResults.size());
+        if (count == 0) {
+            return null;
+        }
+        if (verbose) {
+            System.out.println("\nPrefetching the top " + count + " results while you choose...");
+        }
+        return new Prefetcher(handler.getCacheManager(), searchResults.subList(0, count), prefetchConcurrency, prefetchBytes);
+    }
+
+    /**
+     * Runs the query and returns the URLs of the top 10 results.
+     */
+    public List<String> results(String searchTerm) throws IOException {
+        CustomHttpClient client = new CustomHttpClient();
+        client.setVerbose(verbose);
+        CustomHttpClient.HttpResponse response = client.get(SEARCH_URL + URLEncoder.encode(searchTerm, StandardCharsets.UTF_8));
+        int responseCode = response.getStatusCode();
+
+        if (responseCode != 200) {
+            throw new IOException("Could not complete search. Response code: " + responseCode);
+        }
+        return extractResults(response.getBodyAsString());
+    }
+
     private static List<String> extractResults(String html) {
         List<String> results = new ArrayList<>();
 